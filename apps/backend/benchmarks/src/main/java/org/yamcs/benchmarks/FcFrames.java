@@ -0,0 +1,29 @@
+package org.yamcs.benchmarks;
+
+/**
+ * Flight computer frames as described by the <code>FCFrame</code> container of <code>rocket.xml</code>: an 8 bytes
+ * header (little endian sequence count, FC ack flags, ack id, atomic container flags) followed by the states, prop,
+ * flight and sd containers whose flags are set.
+ */
+public class FcFrames {
+    /** Size of a frame with the states, prop, flight and sd containers. */
+    public static final int FRAME_SIZE = 76;
+    public static final int FC_ACK_FLAG = 0x02;
+    static final int ATOMIC_FLAGS = 0x10 | 0x08 | 0x04 | 0x01;
+
+    private FcFrames() {
+    }
+
+    public static byte[] frame(int sequence, boolean fcAck, int ackId) {
+        byte[] frame = new byte[FRAME_SIZE];
+        frame[0] = (byte) sequence;
+        frame[1] = (byte) (sequence >> 8);
+        frame[2] = (byte) (fcAck ? FC_ACK_FLAG : 0);
+        frame[3] = (byte) ackId;
+        frame[4] = (byte) ATOMIC_FLAGS;
+        for (int i = 8; i < FRAME_SIZE; i++) {
+            frame[i] = (byte) (sequence + i);
+        }
+        return frame;
+    }
+}
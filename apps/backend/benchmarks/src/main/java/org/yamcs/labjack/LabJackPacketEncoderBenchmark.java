@@ -0,0 +1,74 @@
+package org.yamcs.labjack;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time and allocations of the encoding of one LabJack scan into a
+ * LabJackPacket by {@link LabJackPacketEncoder}, compared with the encoding it
+ * replaces: a ByteBuffer for the analog readings, a byte[3] for the digital
+ * states and a copy of both into the packet. With the GC profiler,
+ * <code>gc.alloc.rate.norm</code> is the number of bytes allocated per scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LabJackPacketEncoderBenchmark {
+	double[] analogReadings = new double[LabJackUtil.NUM_ANALOG_PINS];
+	byte[] packet = new byte[LabJackPacketEncoder.PACKET_LENGTH];
+	int dioState;
+
+	public LabJackPacketEncoderBenchmark() {
+		for (int i = 0; i < analogReadings.length; i++) {
+			analogReadings[i] = 0.1 * i - 0.5;
+		}
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		dioState = (dioState + 1) & 0x7FFFFF;
+		return LabJackPacketEncoder.encode(analogReadings, dioState);
+	}
+
+	@Benchmark
+	public byte[] encodeIntoArray() {
+		dioState = (dioState + 1) & 0x7FFFFF;
+		LabJackPacketEncoder.encode(analogReadings, dioState, packet, 0);
+		return packet;
+	}
+
+	@Benchmark
+	public byte[] byteBufferAndCopy() {
+		dioState = (dioState + 1) & 0x7FFFFF;
+		byte[] digitalBinaryData = LabJackUtil.packDigitalState(dioState);
+
+		ByteBuffer buffer = ByteBuffer.allocate(LabJackUtil.NUM_ANALOG_PINS * 4);
+		for (int i = 0; i < LabJackUtil.NUM_ANALOG_PINS; i++) {
+			buffer.putInt(Float.floatToIntBits((float) analogReadings[i]));
+		}
+		byte[] analogBinaryData = buffer.array();
+
+		byte[] combinedBinaryData = new byte[analogBinaryData.length + digitalBinaryData.length];
+		int index = 0;
+		for (; index < analogBinaryData.length; index++) {
+			combinedBinaryData[index] = analogBinaryData[index];
+		}
+		for (; index < combinedBinaryData.length; index++) {
+			combinedBinaryData[index] = digitalBinaryData[index - analogBinaryData.length];
+		}
+		return combinedBinaryData;
+	}
+}
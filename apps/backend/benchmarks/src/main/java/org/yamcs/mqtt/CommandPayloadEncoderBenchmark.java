@@ -0,0 +1,50 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time and allocations of the command payloads of {@link CommandPayloadEncoder}, compared with the string
+ * concatenation it replaces. With the GC profiler, <code>gc.alloc.rate.norm</code> of the ASCII codes should be the
+ * size of the payload array only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandPayloadEncoderBenchmark {
+    @Param({ "pg", "reset_av", "ouvre_vanne_é" })
+    String commandCode;
+
+    int sequence = 1;
+
+    @Benchmark
+    public byte[] encode() {
+        sequence = sequence == 255 ? 1 : sequence + 1;
+        return CommandPayloadEncoder.encode(sequence, commandCode);
+    }
+
+    @Benchmark
+    public byte[] encodeWithoutSequence() {
+        return CommandPayloadEncoder.encode(commandCode);
+    }
+
+    @Benchmark
+    public byte[] concatenate() {
+        sequence = sequence == 255 ? 1 : sequence + 1;
+        return (sequence + "," + commandCode).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,91 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yamcs.ValidationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.benchmarks.FcFrames;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.mqtt.MqttFanoutCommandLink.AckDto;
+import org.yamcs.mqtt.MqttFanoutCommandLink.FlightComputerAck;
+import org.yamcs.mqtt.MqttFanoutCommandLink.Target;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Reading of the acks received by {@link MqttFanoutCommandLink}: the FC ack flags of every telemetry frame of a
+ * target (most frames do not ack a command) and the JSON radio acks.
+ * <p>
+ * The link is initialised but not started, it does not connect to a broker.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutAckBenchmark {
+    MqttFanoutCommandLink link;
+    Target target;
+    byte[] frame;
+    byte[] ackFrame;
+    MqttMessage radioAck;
+    MqttMessage plainAck;
+
+    @Setup
+    public void setup() throws ValidationException {
+        TimeEncoding.setUp();
+        EventProducerFactory.setMockup(false);
+
+        Map<String, Object> args = new HashMap<>();
+        args.put("name", "benchmark");
+        args.put("class", MqttFanoutCommandLink.class.getName());
+        args.put("brokers", List.of("tcp://localhost:1883"));
+        args.put("clientId", "benchmark");
+        // in-memory persistence, nothing is written to the working directory
+        args.put("protocolVersion", MqttUtils.PROTOCOL_5);
+        args.put("targets", List.of(Map.of("name", "SystemA", "baseTopic", "fc-a/radio")));
+        link = new MqttFanoutCommandLink();
+        link.init("benchmark", "benchmark", link.getSpec().validate(YConfiguration.wrap(args)));
+        target = link.findTarget("SystemA");
+
+        frame = FcFrames.frame(1234, false, 0);
+        ackFrame = FcFrames.frame(1235, true, 42);
+        radioAck = new MqttMessage("{\"cmd_id\":42,\"status\":\"RX_OK\"}".getBytes(StandardCharsets.UTF_8));
+        plainAck = new MqttMessage("\"ACK_OK\"".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public FlightComputerAck readFrameWithoutAck() {
+        return link.tryReadAckSequence(target, frame);
+    }
+
+    @Benchmark
+    public FlightComputerAck readFrameWithAck() {
+        return link.tryReadAckSequence(target, ackFrame);
+    }
+
+    @Benchmark
+    public AckDto parseRadioAck() {
+        return link.parseAck(target, radioAck, "radio");
+    }
+
+    @Benchmark
+    public AckDto parsePlainAck() {
+        return link.parseAck(target, plainAck, "command status");
+    }
+}
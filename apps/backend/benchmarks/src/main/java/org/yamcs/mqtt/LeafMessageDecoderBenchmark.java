@@ -0,0 +1,66 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yamcs.mqtt.LeafMqttToTmPacketConverter.LeafMessage;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Decoding of the LeafSpace messages: the streaming {@link LeafMessageDecoder} against the Gson tree parser it
+ * replaces, for frames of <code>frameSize</code> bytes sent as the "0x.." octets of the payload field.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LeafMessageDecoderBenchmark {
+    @Param({ "256", "4096" })
+    int frameSize;
+
+    byte[] payload;
+    MqttMessage message;
+
+    @Setup
+    public void setup() {
+        TimeEncoding.setUp();
+        byte[] frame = new byte[frameSize];
+        new Random(frameSize).nextBytes(frame);
+
+        var sb = new StringBuilder("{\"timestamp\": \"2024-08-12T22:23:28.430897\", \"payload\": \"");
+        for (int i = 0; i < frame.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append("0x").append(Integer.toHexString(frame[i] & 0xFF));
+        }
+        sb.append("\"}");
+        payload = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        message = new MqttMessage(payload);
+    }
+
+    @Benchmark
+    public LeafMessage decode() {
+        return LeafMessageDecoder.decode(payload);
+    }
+
+    @Benchmark
+    public LeafMessage parseLeafMessageTree() {
+        return LeafMqttToTmPacketConverter.parseLeafMessageTree(message);
+    }
+}
@@ -0,0 +1,75 @@
+package org.yamcs.mqtt;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yamcs.TmPacket;
+import org.yamcs.YConfiguration;
+import org.yamcs.benchmarks.FcFrames;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Conversion of the received MQTT messages to TM packets: the raw FC frames of {@link DefaultMqttToTmPacketConverter}
+ * (MQTT 3.1.1, and MQTT 5 with the timestamp and sequence count user properties) and the hexadecimal payloads of the
+ * LeafSpace messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MqttToTmPacketConverterBenchmark {
+    DefaultMqttToTmPacketConverter converter;
+    MqttMessage message;
+    Mqtt5Message message5;
+    String leafPayload;
+
+    @Setup
+    public void setup() {
+        TimeEncoding.setUp();
+        converter = new DefaultMqttToTmPacketConverter();
+        converter.init("benchmark", "benchmark", YConfiguration.emptyConfig());
+
+        byte[] frame = FcFrames.frame(1234, false, 0);
+        message = new MqttMessage(frame);
+        message5 = new Mqtt5Message(frame)
+                .addUserProperty(Mqtt5Message.TIMESTAMP, "2024-08-12T22:23:28.430897Z")
+                .addUserProperty(Mqtt5Message.SEQ, "1234");
+
+        var sb = new StringBuilder();
+        for (byte b : frame) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append("0x").append(Integer.toHexString(b & 0xFF));
+        }
+        leafPayload = sb.toString();
+    }
+
+    @Benchmark
+    public List<TmPacket> convertFrame() {
+        return converter.convert(message);
+    }
+
+    @Benchmark
+    public List<TmPacket> convertFrameWithUserProperties() {
+        return converter.convert(message5);
+    }
+
+    @Benchmark
+    public byte[] parseLeafHexString() {
+        return LeafMqttToTmPacketConverter.parseHexString(leafPayload);
+    }
+}
@@ -0,0 +1,46 @@
+package org.yamcs.mrt.utils;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yamcs.TmPacket;
+import org.yamcs.YConfiguration;
+import org.yamcs.benchmarks.FcFrames;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Preprocessing of the FC frames by {@link AstraPacketPreprocessor}. The packet is created in the
+ * benchmark, like the converters do for every received message, so its allocation is included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AstraPacketPreprocessorBenchmark {
+  AstraPacketPreprocessor preprocessor;
+  byte[] frame;
+
+  @Setup
+  public void setup() {
+    TimeEncoding.setUp();
+    EventProducerFactory.setMockup(false);
+    preprocessor = new AstraPacketPreprocessor("benchmark", YConfiguration.emptyConfig());
+    frame = FcFrames.frame(1234, false, 0);
+  }
+
+  @Benchmark
+  public TmPacket process() {
+    return preprocessor.process(new TmPacket(TimeEncoding.getWallclockTime(), frame));
+  }
+}
@@ -0,0 +1,86 @@
+package org.yamcs.mrt.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yamcs.YConfiguration;
+import org.yamcs.benchmarks.FcFrames;
+import org.yamcs.mdb.ContainerProcessingResult;
+import org.yamcs.mdb.Mdb;
+import org.yamcs.mdb.MdbFactory;
+import org.yamcs.mdb.XtceTmExtractor;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.xtce.SequenceContainer;
+
+/**
+ * Extraction of all the parameters of an FC frame with the <code>FCFrame</code> container of
+ * <code>rocket.xml</code>, as done by the realtime processor for every frame of a radio stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FcFrameExtractionBenchmark {
+  static final String ROOT_CONTAINER = "/FlightComputer/FCFrame";
+
+  XtceTmExtractor extractor;
+  SequenceContainer rootContainer;
+  byte[] frame;
+  long time;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    TimeEncoding.setUp();
+    // the XTCE loader reads a file, copy the MDB out of the benchmarks jar
+    Path file = Files.createTempFile("rocket", ".xml");
+    try (InputStream in = FcFrameExtractionBenchmark.class.getResourceAsStream("/rocket.xml")) {
+      Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+    try {
+      var loaderConfig =
+          YConfiguration.wrap(Map.of("type", "xtce", "args", Map.of("file", file.toString())));
+      Mdb mdb = MdbFactory.createInstance(List.of(loaderConfig), false, false);
+      rootContainer = mdb.getSequenceContainer(ROOT_CONTAINER);
+      extractor = new XtceTmExtractor(mdb);
+      extractor.provideAll();
+    } finally {
+      Files.delete(file);
+    }
+    frame = FcFrames.frame(1234, false, 0);
+    time = TimeEncoding.getWallclockTime();
+  }
+
+  @TearDown(Level.Trial)
+  public void checkExtraction() {
+    // make sure the benchmark measured a complete extraction
+    var result = extractor.processPacket(frame, time, time, 1234, rootContainer);
+    if (result.getParameterResult().size() < 10) {
+      throw new IllegalStateException(
+          "Only " + result.getParameterResult().size() + " parameters extracted");
+    }
+  }
+
+  @Benchmark
+  public ContainerProcessingResult extract() {
+    return extractor.processPacket(frame, time, time, 1234, rootContainer);
+  }
+}
@@ -0,0 +1,161 @@
+package org.yamcs.labjack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.yamcs.ConfigurationException;
+import org.yamcs.Spec;
+import org.yamcs.Spec.OptionType;
+import org.yamcs.ValidationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.tctm.AbstractLink;
+import org.yamcs.tctm.AggregatedDataLink;
+import org.yamcs.tctm.Link;
+
+/**
+ * Aggregate link for several LabJack T7s, each device being handled by its own
+ * {@link LabJackDataLink} sublink named <code>&lt;link&gt;/&lt;device&gt;</code>.
+ * <p>
+ * Every sublink has its own acquisition thread, queue and recording file, so
+ * a slow or disconnected device does not stall the others. Options given at
+ * the top level (e.g. <code>scanRate</code>) apply to all devices and can be
+ * overridden per device:
+ *
+ * <pre>
+ * - name: LabJacks
+ *   class: org.yamcs.labjack.LabJackAggregateDataLink
+ *   acquisitionMode: STREAM
+ *   devices:
+ *     - name: pad
+ *       identifier: "470012345"
+ *       tmStream: tm_labJack_pad
+ *       rootContainer: /PadDAQ/LabJackT7/LabJackPacket
+ *     - name: fill
+ *       identifier: 192.168.1.207
+ *       connectionType: ETHERNET
+ *       tmStream: tm_labJack_fill
+ *       rootContainer: /FillDAQ/LabJackT7/LabJackPacket
+ * </pre>
+ */
+public class LabJackAggregateDataLink extends AbstractLink implements AggregatedDataLink {
+
+	private final List<Link> subLinks = new ArrayList<>();
+
+	@Override
+	public Spec getSpec() {
+		var spec = getDefaultSpec();
+
+		Spec deviceSpec = new Spec();
+		deviceSpec.addOption("name", OptionType.STRING).withRequired(true);
+		// the remaining options are validated against the LabJackDataLink spec
+		deviceSpec.allowUnknownKeys(true);
+
+		spec.addOption("devices", OptionType.LIST).withElementType(OptionType.MAP).withSpec(deviceSpec)
+				.withRequired(true);
+		// defaults for the device options
+		spec.allowUnknownKeys(true);
+		return spec;
+	}
+
+	@Override
+	public void init(String instance, String name, YConfiguration config) throws ConfigurationException {
+		super.init(instance, name, config);
+
+		Map<String, Object> defaults = new HashMap<>(config.getRoot());
+		defaults.remove("devices");
+		defaults.remove("name");
+		defaults.remove("class");
+		defaults.remove("enabledAtStartup");
+
+		for (YConfiguration deviceConfig : config.getConfigList("devices")) {
+			String deviceName = deviceConfig.getString("name");
+			Map<String, Object> args = new HashMap<>(defaults);
+			args.putAll(deviceConfig.getRoot());
+			args.remove("name");
+
+			LabJackDataLink link = new LabJackDataLink();
+			String linkName = name + "/" + deviceName;
+			YConfiguration linkConfig;
+			try {
+				linkConfig = YConfiguration.wrap(link.getSpec().validate(args));
+			} catch (ValidationException e) {
+				throw new ConfigurationException("Invalid configuration for LabJack " + deviceName + ": "
+						+ e.getMessage());
+			}
+			link.init(instance, linkName, linkConfig);
+			link.setParent(this);
+			subLinks.add(link);
+		}
+	}
+
+	@Override
+	protected void doStart() {
+		// the sublinks are started by the LinkManager
+		notifyStarted();
+	}
+
+	@Override
+	protected void doStop() {
+		notifyStopped();
+	}
+
+	@Override
+	protected void doDisable() {
+		for (Link link : subLinks) {
+			link.disable();
+		}
+	}
+
+	@Override
+	protected void doEnable() {
+		for (Link link : subLinks) {
+			link.enable();
+		}
+	}
+
+	@Override
+	public List<Link> getSubLinks() {
+		return Collections.unmodifiableList(subLinks);
+	}
+
+	@Override
+	protected Status connectionStatus() {
+		for (Link link : subLinks) {
+			if (link.getLinkStatus() == Status.OK) {
+				return Status.OK;
+			}
+		}
+		return Status.UNAVAIL;
+	}
+
+	@Override
+	public String getDetailedStatus() {
+		if (isDisabled()) {
+			return "DISABLED";
+		}
+		return countConnected() + "/" + subLinks.size() + " LabJacks connected";
+	}
+
+	@Override
+	public Map<String, Object> getExtraInfo() {
+		var extra = new LinkedHashMap<String, Object>();
+		for (Link link : subLinks) {
+			extra.put(link.getName(), link.getLinkStatus().name());
+		}
+		return extra;
+	}
+
+	private int countConnected() {
+		int connected = 0;
+		for (Link link : subLinks) {
+			if (link.getLinkStatus() == Status.OK) {
+				connected++;
+			}
+		}
+		return connected;
+	}
+}
@@ -1,75 +1,133 @@
 package org.yamcs.labjack;
 
+import com.sun.jna.ptr.DoubleByReference;
 import com.sun.jna.ptr.IntByReference;
 import libs.LJM;
+import libs.LJMException;
+import org.yamcs.ConfigurationException;
+import org.yamcs.Spec;
+import org.yamcs.Spec.OptionType;
+import org.yamcs.StandardTupleDefinitions;
 import org.yamcs.TmPacket;
 import org.yamcs.YConfiguration;
 import org.yamcs.commanding.ArgumentValue;
 import org.yamcs.commanding.PreparedCommand;
-import org.yamcs.mdb.Mdb;
+import org.yamcs.labjack.ScanRingBuffer.OverflowPolicy;
 import org.yamcs.mdb.MdbFactory;
-import org.yamcs.mdb.XtceTmExtractor;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.parameter.SystemParametersService;
+import org.yamcs.protobuf.Yamcs.Value.Type;
 import org.yamcs.tctm.AbstractTcTmParamLink;
-import org.yamcs.xtce.ParameterEntry;
+import org.yamcs.utils.DataRateMeter;
+import org.yamcs.xtce.Parameter;
 import org.yamcs.xtce.SequenceContainer;
+import org.yamcs.yarch.Stream;
+import org.yamcs.yarch.Tuple;
+import org.yamcs.yarch.YarchDatabase;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Data link for a LabJack T7.
+ * <p>
+ * Two acquisition modes are supported:
+ * <ul>
+ * <li>POLL: a scheduled task reads all analog pins and DIO_STATE at
+ * <code>scanRate</code>, one command-response per scan.</li>
+ * <li>STREAM: the device is put in stream mode and scans are clocked by the
+ * LabJack at <code>scanRate</code>. They are read in blocks of
+ * <code>scansPerRead</code> scans and each scan is turned into a
+ * LabJackPacket, its generation time interpolated from the stream start time
+ * and the scan rate.</li>
+ * </ul>
+ * The scans are recorded at full rate by a {@link LabJackRecorder} in
+ * <code>recordingDir</code>; use {@link LabJackRecordingExporter} to convert
+ * a recording to CSV. They can also be sent at full rate to the
+ * <code>archiveStream</code>, a stream that is archived but not processed.
+ * <p>
+ * The realtime stream receives one LabJackPacket per display window
+ * (<code>displayRate</code> windows per second) holding the mean of each
+ * channel; the minimum and maximum are sent as the AINx_min and AINx_max
+ * parameters on the link's parameter stream.
+ */
 public class LabJackDataLink extends AbstractTcTmParamLink
 		implements Runnable {
 
-	private static LabJackDataLink instance;
-
-	public static LabJackDataLink getInstance() {
-		return instance;
+	public enum AcquisitionMode {
+		POLL, STREAM
 	}
 
-	private static final String CSV_FILENAME = "yamcs-data" + File.separator + "labjack_csv" + File.separator
-			+ "labj_"
-			+ new SimpleDateFormat("yyyy-MM-dd--HH-mm-ss")
-					.format(new Date())
-			+ ".csv";
+	private static final String DEFAULT_MDB_NAMESPACE = "/LabJackT7";
 
-	private static final int GRAPH_FREQ = 1;
+	// device selection passed to LJM_OpenS
+	private String deviceType;
+	private String connectionType;
+	private String identifier;
+	// null to use the root container of the tm stream
+	private SequenceContainer rootContainer;
 
-	private int packetCount = 0;
 	private int deviceHandle = 0;
-	private boolean isConnected = false;
-
-	private final Queue<TmPacket> dataQueue = new ConcurrentLinkedQueue<>();
+	private volatile boolean isConnected = false;
+
+	// thread connecting to the device and, in STREAM mode, reading the stream
+	private Thread linkThread;
+	private volatile boolean stopRequested = false;
+
+	private AcquisitionMode acquisitionMode;
+	private double scanRate;
+	private int scansPerRead;
+	// AIN index of each analog channel in the stream scan list
+	private int[] streamChannels;
+	private volatile boolean streaming = false;
+	private volatile double actualScanRate;
+
+	private final LabJackUtil.ScanBatch scanBatch = LabJackUtil.newScanBatch();
+	private final DataRateMeter scanRateMeter = new DataRateMeter();
+
+	// live display path, null if every scan is sent to the realtime stream
+	private LabJackDecimator decimator;
+	private double displayRate;
+	private int displaySeqCount = 0;
+	private final String[] minParameterNames = new String[LabJackUtil.NUM_ANALOG_PINS];
+	private final String[] maxParameterNames = new String[LabJackUtil.NUM_ANALOG_PINS];
+	// full-rate path, null if the full-rate scans are only recorded to file
+	private Stream archiveStream;
+
+	// scans waiting to be recorded, filled by the acquisition thread and drained
+	// by the persistence task
+	private ScanRingBuffer<TmPacket> dataQueue;
+	private Parameter spQueueHighWaterMark;
+	private Parameter spQueueDropped;
+	private Parameter spQueueLag;
 
 	private ScheduledExecutorService executorService;
-	private BufferedWriter csvWriter;
-	private XtceTmExtractor tmExtractor;
-	private SequenceContainer sequenceContainer;
-
-	public LabJackDataLink() {
-		instance = this;
-	}
+	private Path recordingDir;
+	private long recordingCapacity;
+	private LabJackRecorder recorder;
+	private String recordingPrefix;
+	private int recordingFileIndex = 0;
 
 	/**
-	 * Attempts to connect to any LabJack device (via ethernet or USB)
+	 * Attempts to connect to the configured LabJack device (by default any
+	 * device, via ethernet or USB)
 	 */
 	private void attemptLabJackConnection() {
 		IntByReference handleRef = new IntByReference(0);
 		try {
-			LJM.openS("ANY", "ANY", "ANY", handleRef);
-			log.info("LabJack Connected");
+			LJM.openS(deviceType, connectionType, identifier, handleRef);
+			log.info("LabJack " + identifier + " connected");
 			deviceHandle = handleRef.getValue();
 
 			// Watchdog 5 min
@@ -90,13 +148,13 @@ public class LabJackDataLink extends AbstractTcTmParamLink
 			isConnected = true;
 
 		} catch (Exception e) {
-			log.warn("Could not connect to LabJack");
+			log.warn("Could not connect to LabJack " + identifier);
 		}
 	}
 
 	/**
-	 * Reads all readable LabJack pins (analog, digital) and packs the readings into
-	 * a binary packet according to
+	 * Reads all readable LabJack pins (analog, digital) in a single batched read
+	 * and packs the readings into a binary packet according to
 	 * LABJ_XTCE.xml where all analog data is in the most significant bits followed
 	 * by all digital data.
 	 * This binary packet is then added to the {@link #dataQueue}.
@@ -107,83 +165,274 @@ public class LabJackDataLink extends AbstractTcTmParamLink
 			throw new IllegalStateException();
 		}
 
-		double[] analogReadings = new double[LabJackUtil.NUM_ANALOG_PINS];
+		if (!LabJackUtil.readAllPins(deviceHandle, scanBatch)) {
+			return;
+		}
 
-		for (int i = 0; i < LabJackUtil.NUM_ANALOG_PINS; i++) {
+		emitScan(scanBatch.analogReadings(), scanBatch.digitalState(), getCurrentTime(), 0);
+	}
 
-			analogReadings[i] = LabJackUtil.readAnalogPin(deviceHandle, i);
-		}
-		byte[] analogBinaryData = createAnalogBinaryPacket(analogReadings);
+	/**
+	 * Packs one scan into a LabJackPacket and adds it to the {@link #dataQueue}.
+	 * When decimation is enabled, the scan is also aggregated into the current
+	 * display window, which is published to the realtime stream once complete.
+	 *
+	 * @param analogReadings readings of the 14 analog pins (extra elements are
+	 *                       ignored)
+	 * @param dioState       DIO_STATE value
+	 * @param generationTime time at which the scan was acquired
+	 * @param seqCount       sequence count of the scan
+	 */
+	private void emitScan(double[] analogReadings, int dioState, long generationTime, int seqCount) {
+		scanRateMeter.mark(1);
+		byte[] packet = LabJackPacketEncoder.encode(analogReadings, dioState);
 
-		byte[] digitalBinaryData = LabJackUtil.readDigitalPins(deviceHandle);
+		dataIn(1, packet.length);
+		TmPacket tmPacket = new TmPacket(getCurrentTime(), generationTime, seqCount, packet);
+		tmPacket.setRootContainer(rootContainer);
 
-		if (digitalBinaryData == null) {
-			return;
+		if (decimator == null) {
+			processPacket(packetPreprocessor.process(tmPacket));
+		} else {
+			if (decimator.isWindowComplete(generationTime)) {
+				publishDisplayWindow();
+			}
+			decimator.add(analogReadings, dioState, generationTime);
 		}
 
-		byte[] combinedBinaryData = new byte[analogBinaryData.length + digitalBinaryData.length];
-		int index = 0;
-		for (; index < analogBinaryData.length; index++) {
-			combinedBinaryData[index] = analogBinaryData[index];
+		dataQueue.offer(tmPacket);
+	}
+
+	/**
+	 * Sends the mean of the current display window as a LabJackPacket to the
+	 * realtime stream, and the minimum and maximum of each channel as parameters.
+	 */
+	private void publishDisplayWindow() {
+		long generationTime = decimator.getLastGenerationTime();
+		int seqCount = displaySeqCount++;
+
+		byte[] packet = LabJackPacketEncoder.encode(decimator.getMean(), decimator.getLastDigitalState());
+		TmPacket tmPacket = new TmPacket(getCurrentTime(), generationTime, seqCount, packet);
+		tmPacket.setRootContainer(rootContainer);
+		processPacket(packetPreprocessor.process(tmPacket));
+
+		if (parameterSink != null) {
+			List<ParameterValue> envelope = new ArrayList<>(2 * LabJackUtil.NUM_ANALOG_PINS);
+			for (int i = 0; i < LabJackUtil.NUM_ANALOG_PINS; i++) {
+				envelope.add(floatParameter(minParameterNames[i], decimator.getMin(i), generationTime));
+				envelope.add(floatParameter(maxParameterNames[i], decimator.getMax(i), generationTime));
+			}
+			parameterSink.updateParameters(generationTime, linkName, seqCount, envelope);
 		}
-		for (; index < combinedBinaryData.length; index++) {
-			combinedBinaryData[index] = digitalBinaryData[index - analogBinaryData.length];
+		decimator.reset();
+	}
+
+	private static ParameterValue floatParameter(String name, double value, long generationTime) {
+		ParameterValue pv = new ParameterValue(name);
+		pv.setFloatValue((float) value);
+		pv.setGenerationTime(generationTime);
+		return pv;
+	}
+
+	/**
+	 * Starts a hardware-timed stream and converts the returned blocks to packets
+	 * until the stream is stopped. Runs on the link thread.
+	 */
+	private void runStream() {
+		int numAddresses = streamChannels.length + 2;
+		int[] scanList = new int[numAddresses];
+		for (int i = 0; i < streamChannels.length; i++) {
+			scanList[i] = LabJackUtil.analogAddress(streamChannels[i]);
 		}
-		dataIn(1, combinedBinaryData.length);
-		TmPacket tmPacket = new TmPacket(getCurrentTime(), combinedBinaryData);
+		scanList[numAddresses - 2] = LabJackUtil.FIO_EIO_STATE_ADDRESS;
+		scanList[numAddresses - 1] = LabJackUtil.CIO_MIO_STATE_ADDRESS;
 
-		if (++packetCount > GRAPH_FREQ) {
-			packetCount = 0;
-			executorService.schedule(() -> processPacket(packetPreprocessor.process(tmPacket)), 0, TimeUnit.SECONDS);
+		DoubleByReference scanRateRef = new DoubleByReference(scanRate);
+		try {
+			LJM.eStreamStart(deviceHandle, scansPerRead, numAddresses, scanList, scanRateRef);
+		} catch (LJMException e) {
+			log.error("Could not start LabJack stream: " + e.getMessage());
+			eventProducer.sendWarning("Could not start LabJack stream: " + e.getMessage());
+			return;
 		}
+		streaming = true;
+		actualScanRate = scanRateRef.getValue();
+		log.info("LabJack stream started at " + actualScanRate + " scans/s, " + scansPerRead
+				+ " scans per read");
 
-		dataQueue.add(tmPacket);
-	}
+		double[] data = new double[scansPerRead * numAddresses];
+		double[] analogReadings = new double[LabJackUtil.NUM_ANALOG_PINS];
+		Arrays.fill(analogReadings, Double.NaN);
+		IntByReference deviceScanBacklog = new IntByReference(0);
+		IntByReference ljmScanBacklog = new IntByReference(0);
+
+		double scanPeriodMillis = 1000.0 / actualScanRate;
+		long streamStartTime = getCurrentTime();
+		long scanCount = 0;
+
+		while (streaming && !stopRequested) {
+			try {
+				LJM.eStreamRead(deviceHandle, data, deviceScanBacklog, ljmScanBacklog);
+			} catch (LJMException e) {
+				if (streaming) {
+					log.error("LabJack stream read failed: " + e.getMessage());
+					eventProducer.sendWarning("LabJack stream read failed: " + e.getMessage());
+				}
+				break;
+			}
 
-	private void savePacketToCSV() {
+			for (int scan = 0; scan < scansPerRead; scan++) {
+				int offset = scan * numAddresses;
+				for (int i = 0; i < streamChannels.length; i++) {
+					double value = data[offset + i];
+					// skipped samples are reported as dummy values when the device auto-recovers
+					analogReadings[streamChannels[i]] = value == LJM.Constants.DUMMY_VALUE ? Double.NaN : value;
+				}
+				int dioState = LabJackUtil.combineDigitalStates((int) data[offset + numAddresses - 2],
+						(int) data[offset + numAddresses - 1]);
+
+				long generationTime = streamStartTime + Math.round(scanCount * scanPeriodMillis);
+				emitScan(analogReadings, dioState, generationTime, (int) scanCount);
+				scanCount++;
+			}
+		}
+		stopStream();
+	}
 
-		while (!dataQueue.isEmpty()) {
-			StringBuilder row = new StringBuilder();
+	private void stopStream() {
+		if (!streaming) {
+			return;
+		}
+		streaming = false;
+		try {
+			LJM.eStreamStop(deviceHandle);
+			log.info("LabJack stream stopped");
+		} catch (LJMException e) {
+			// the stream may already have been stopped by the other thread
+			log.debug("Error stopping LabJack stream: " + e.getMessage());
+		}
+	}
 
-			TmPacket dataArr = dataQueue.poll();
-			LocalDateTime dateTime = Instant.ofEpochMilli(dataArr.getReceptionTime())
-					.atZone(ZoneId.systemDefault())
-					.toLocalDateTime();
-			row.append(dateTime.format(DateTimeFormatter.ISO_LOCAL_TIME)).append(",");
-			var result = tmExtractor.processPacket(dataArr.getPacket(), dataArr.getGenerationTime(),
-					dataArr.getReceptionTime(), dataArr.getSeqCount());
-			row.append(dataArr.getReceptionTime());
-			for (var param : result.getParameterResult()) {
-				row.append(param.getEngValue()).append(",");
+	/**
+	 * Moves the queued packets to the recording file, opening a new file when the
+	 * current one is full, and to the archive stream if one is configured.
+	 */
+	private void savePacketsToRecorder() {
+		TmPacket tmPacket;
+		while ((tmPacket = dataQueue.poll()) != null) {
+			if (archiveStream != null) {
+				archiveStream.emitTuple(new Tuple(StandardTupleDefinitions.TM,
+						new Object[] { tmPacket.getGenerationTime(), tmPacket.getSeqCount(),
+								tmPacket.getReceptionTime(), tmPacket.getStatus(), tmPacket.getPacket(), null, null,
+								linkName, rootContainer == null ? null : rootContainer.getQualifiedName() }));
 			}
-			row.setLength(row.length() - 1);
 			try {
-				csvWriter.write(row.toString());
-				csvWriter.newLine();
+				if (recorder == null || recorder.isFull()) {
+					openRecorder();
+				}
+				recorder.append(tmPacket);
 			} catch (IOException e) {
-				throw new RuntimeException(e);
+				log.error("Could not record LabJack data", e);
+				eventProducer.sendWarning("Could not record LabJack data: " + e.getMessage());
+				return;
 			}
+		}
+	}
+
+	private void openRecorder() throws IOException {
+		closeRecorder();
+		String fileName = recordingPrefix + (recordingFileIndex == 0 ? "" : "_" + recordingFileIndex) + ".ljrec";
+		recordingFileIndex++;
+		Path path = recordingDir.resolve(fileName);
+		log.info("Creating LabJack recording at: " + path.toAbsolutePath());
+		recorder = LabJackRecorder.create(path, recordingCapacity);
+	}
 
+	private void closeRecorder() {
+		if (recorder == null) {
+			return;
+		}
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			log.error("Could not close LabJack recording " + recorder.getPath(), e);
 		}
+		recorder = null;
 	}
 
 	/**
-	 * Converts array of floating point analog readings into a corresponding array
-	 * of bytes.
-	 * 
-	 * @param floatValues array of analog readings
-	 * @return array of bytes corresponding to the incoming array of readings (just
-	 *         used Float.floatToIntBits)
+	 * Stops the acquisition and persistence tasks, then records whatever is left
+	 * in the queue.
 	 */
-	private byte[] createAnalogBinaryPacket(double[] floatValues) {
-		ByteBuffer buffer = ByteBuffer.allocate(floatValues.length * 4); // Each float is 4 bytes (32 bits)
+	private void stopTasks() {
+		if (executorService == null) {
+			return;
+		}
+		// release the producer in case it is blocked on a full queue
+		dataQueue.close();
+		executorService.shutdown();
+		try {
+			executorService.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executorService = null;
+		savePacketsToRecorder();
+		closeRecorder();
+	}
+
+	private void startLinkThread() {
+		stopRequested = false;
+		linkThread = new Thread(this);
+		linkThread.setName(getClass().getSimpleName() + "-" + linkName);
+		linkThread.start();
+	}
 
-		for (double value : floatValues) {
-			int bits = Float.floatToIntBits((float) value); // Convert float to 32-bit int representation
-			buffer.putInt(bits); // Add the 32-bit int to the byte buffer
+	/**
+	 * Stops the acquisition and closes the device. The link thread is joined
+	 * before the queue, the recorder and the device handle are closed, since it
+	 * may still be reading the stream or emitting a scan.
+	 */
+	private void stopAcquisition() {
+		stopRequested = true;
+		stopStream();
+
+		Thread thread = linkThread;
+		linkThread = null;
+		if (thread != null) {
+			if (!isConnected) {
+				// wake it up from the wait between connection attempts
+				thread.interrupt();
+			}
+			try {
+				thread.join(5000);
+				if (thread.isAlive()) {
+					// the producer may be blocked on a full queue whose consumer stalled
+					dataQueue.close();
+					thread.join(5000);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (thread.isAlive()) {
+				log.warn("LabJack link thread did not stop");
+			}
 		}
 
-		return buffer.array(); // Return the packed byte array
+		closeDevice();
+	}
+
+	/**
+	 * Stops the tasks and closes the device handle, if connected. Called when the
+	 * link is stopped and by the link thread when the stream fails.
+	 */
+	private synchronized void closeDevice() {
+		if (!isConnected) {
+			return;
+		}
+		stopTasks();
+		LJM.close(deviceHandle);
+		isConnected = false;
 	}
 
 	@Override
@@ -194,108 +443,78 @@ public class LabJackDataLink extends AbstractTcTmParamLink
 	@Override
 	protected void doStart() {
 		if (!isDisabled()) {
-			Thread thread = new Thread(this);
-			thread.setName(getClass().getSimpleName());
-			thread.start();
+			startLinkThread();
 		}
 		notifyStarted();
 	}
 
 	@Override
 	protected void doStop() {
-		if (isConnected) {
-			executorService.shutdown();
-			LJM.close(deviceHandle);
-			isConnected = false;
-
-			try {
-				csvWriter.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		}
+		stopAcquisition();
 		notifyStopped();
 	}
 
 	@Override
 	public void run() {
-		while (!isConnected) {
-			attemptLabJackConnection();
-			try {
-				Thread.sleep(10000);
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
+		while (!stopRequested) {
+			while (!isConnected && !stopRequested) {
+				attemptLabJackConnection();
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					// stop requested
+					return;
+				}
+			}
+			if (stopRequested) {
+				return;
 			}
-		}
 
-		initializeCSVWriterAndTasks();
-	}
+			initializeTasks();
 
-	private void initializeCSVWriterAndTasks() {
-		try {
-			File file = new File(CSV_FILENAME);
-			if (!file.exists()) {
-				file.getParentFile().mkdirs();
-				log.info("Creating LabJack CSV file at: " + file.getAbsolutePath());
-				csvWriter = new BufferedWriter(new FileWriter(file));
-				writeCSVHeader();
-			} else {
-				csvWriter = new BufferedWriter(new FileWriter(file));
+			if (acquisitionMode != AcquisitionMode.STREAM) {
+				return;
+			}
+			runStream();
+			if (!stopRequested) {
+				// the stream could not be started or failed (device unplugged, overflow...),
+				// close the device and connect again
+				eventProducer.sendWarning("LabJack stream lost, reconnecting");
+				closeDevice();
 			}
-
-		} catch (IOException e) {
-			throw new RuntimeException(e);
 		}
+	}
 
+	private void initializeTasks() {
 		for (int digital_pin = 0; digital_pin < LabJackUtil.NUM_DIGITAL_PINS; ++digital_pin) {
 			writeDigitalPin(digital_pin, 0);
 		}
 
+		dataQueue.open();
 		executorService = Executors.newScheduledThreadPool(5);
-		executorService.scheduleAtFixedRate(this::readAllPins, 25, 10, TimeUnit.MICROSECONDS);
-		executorService.scheduleWithFixedDelay(this::savePacketToCSV, 1000, 500, TimeUnit.MILLISECONDS);
-	}
-
-	private void writeCSVHeader() throws IOException {
-		StringBuilder stringBuilder = new StringBuilder();
-		stringBuilder.append("Reception Time,");
-		for (int i = 0; i < LabJackUtil.NUM_ANALOG_PINS; i++) {
-			stringBuilder.append("AIN").append(i).append(",");
+		if (acquisitionMode == AcquisitionMode.POLL) {
+			long scanPeriodMicros = Math.max(1, Math.round(1_000_000 / scanRate));
+			executorService.scheduleAtFixedRate(this::readAllPins, 25, scanPeriodMicros, TimeUnit.MICROSECONDS);
 		}
-		for (int i = 0; i < LabJackUtil.NUM_DIGITAL_PINS; i++) {
-			stringBuilder.append("DIO").append(i).append(",");
-		}
-		stringBuilder.setLength(stringBuilder.length() - 1);
-		csvWriter.write(stringBuilder.toString());
-		csvWriter.newLine();
+		executorService.scheduleWithFixedDelay(this::savePacketsToRecorder, 1000, 500, TimeUnit.MILLISECONDS);
 	}
 
 	@Override
 	public void doDisable() {
-		if (isConnected) {
-			executorService.shutdown();
-
-			LJM.close(deviceHandle);
-			isConnected = false;
-			try {
-				csvWriter.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		}
+		stopAcquisition();
 	}
 
 	@Override
 	public void doEnable() {
-		Thread thread = new Thread(this);
-		thread.setName(getClass().getSimpleName() + "-" + linkName);
-		thread.start();
+		startLinkThread();
 	}
 
 	@Override
 	public String getDetailedStatus() {
 		if (isDisabled()) {
 			return "DISABLED";
+		} else if (streaming) {
+			return "OK, streaming at " + actualScanRate + " scans/s";
 		} else if (isConnected) {
 			return "OK, connected to LabJack";
 		} else {
@@ -303,20 +522,171 @@ public class LabJackDataLink extends AbstractTcTmParamLink
 		}
 	}
 
+	@Override
+	public Map<String, Object> getExtraInfo() {
+		var extra = new LinkedHashMap<String, Object>();
+		extra.put("Acquisition mode", acquisitionMode.name());
+		extra.put("Requested scan rate", scanRate);
+		if (streaming) {
+			extra.put("Device scan rate", actualScanRate);
+		}
+		extra.put("Achieved scan rate", Math.round(scanRateMeter.getFiveSecondsRate() * 10) / 10.0);
+		extra.put("Display rate", decimator == null ? "full rate" : displayRate);
+		if (archiveStream != null) {
+			extra.put("Archive stream", archiveStream.getName());
+		}
+		extra.put("Queue overflow policy", dataQueue.getOverflowPolicy().name());
+		extra.put("Queue size", dataQueue.size() + "/" + dataQueue.capacity());
+		extra.put("Queue high-water mark", dataQueue.getHighWaterMark());
+		extra.put("Queue drops", dataQueue.getDroppedCount());
+		extra.put("Consumer lag (ms)", getConsumerLag());
+		return extra;
+	}
+
+	/**
+	 * Age of the oldest scan not yet recorded, in milliseconds.
+	 */
+	private long getConsumerLag() {
+		TmPacket oldest = dataQueue.peek();
+		return oldest == null ? 0 : Math.max(0, getCurrentTime() - oldest.getReceptionTime());
+	}
+
+	@Override
+	public void setupSystemParameters(SystemParametersService sysParamService) {
+		super.setupSystemParameters(sysParamService);
+		spQueueHighWaterMark = sysParamService.createSystemParameter(LINK_NAMESPACE + linkName + "/queueHighWaterMark",
+				Type.UINT32, "Highest number of scans waiting to be recorded");
+		spQueueDropped = sysParamService.createSystemParameter(LINK_NAMESPACE + linkName + "/queueDropped",
+				Type.UINT64, "Number of scans dropped because the recording queue was full");
+		spQueueLag = sysParamService.createSystemParameter(LINK_NAMESPACE + linkName + "/queueLag",
+				Type.UINT64, "Age in milliseconds of the oldest scan waiting to be recorded");
+	}
+
+	@Override
+	protected void collectSystemParameters(long time, List<ParameterValue> list) {
+		super.collectSystemParameters(time, list);
+		list.add(SystemParametersService.getPV(spQueueHighWaterMark, time, (long) dataQueue.getHighWaterMark()));
+		list.add(SystemParametersService.getPV(spQueueDropped, time, dataQueue.getDroppedCount()));
+		list.add(SystemParametersService.getPV(spQueueLag, time, getConsumerLag()));
+	}
+
+	@Override
+	public Spec getSpec() {
+		var spec = getDefaultSpec();
+		List<String> defaultChannels = new ArrayList<>();
+		for (int i = 0; i < LabJackUtil.NUM_ANALOG_PINS; i++) {
+			defaultChannels.add("AIN" + i);
+		}
+		spec.addOption("deviceType", OptionType.STRING).withDefault("ANY");
+		spec.addOption("connectionType", OptionType.STRING).withDefault("ANY");
+		// serial number, IP address or device name
+		spec.addOption("identifier", OptionType.STRING).withDefault("ANY");
+		spec.addOption("rootContainer", OptionType.STRING);
+		spec.addOption("acquisitionMode", OptionType.STRING).withChoices(AcquisitionMode.class)
+				.withDefault(AcquisitionMode.POLL.name());
+		spec.addOption("scanRate", OptionType.FLOAT).withDefault(1000.0);
+		spec.addOption("scansPerRead", OptionType.INTEGER).withDefault(100);
+		spec.addOption("streamChannels", OptionType.LIST).withElementType(OptionType.STRING)
+				.withDefault(defaultChannels);
+		spec.addOption("recordingDir", OptionType.STRING).withDefault("yamcs-data/labjack");
+		// 1 hour at 1 kHz
+		spec.addOption("recordingCapacity", OptionType.INTEGER).withDefault(3_600_000);
+		spec.addOption("queueCapacity", OptionType.INTEGER).withDefault(65536);
+		// rate at which aggregated scans are sent to the realtime stream, 0 to send every scan
+		spec.addOption("displayRate", OptionType.FLOAT).withDefault(10.0);
+		spec.addOption("archiveStream", OptionType.STRING);
+		spec.addOption("overflowPolicy", OptionType.STRING).withChoices(OverflowPolicy.class)
+				.withDefault(OverflowPolicy.DROP_OLDEST.name());
+		return spec;
+	}
+
 	@Override
 	public void init(String instance, String name, YConfiguration config) {
 		super.init(instance, name, config);
-		Mdb mdb = MdbFactory.getInstance("ground_station");
-		tmExtractor = new XtceTmExtractor(mdb);
-		sequenceContainer = mdb.getSequenceContainer("/LabJackT7/LabJackPacket");
-		tmExtractor.startProviding(sequenceContainer);
-
-		for (var seqEntry : sequenceContainer.getEntryList()) {
-			if (seqEntry instanceof ParameterEntry parameterEntry) {
-				tmExtractor.startProviding(parameterEntry.getParameter());
+		deviceType = config.getString("deviceType", "ANY");
+		connectionType = config.getString("connectionType", "ANY");
+		identifier = config.getString("identifier", "ANY");
+
+		String mdbNamespace = DEFAULT_MDB_NAMESPACE;
+		if (config.containsKey("rootContainer")) {
+			String containerName = config.getString("rootContainer");
+			rootContainer = MdbFactory.getInstance(instance).getSequenceContainer(containerName);
+			if (rootContainer == null) {
+				throw new ConfigurationException("Cannot find container '" + containerName + "'");
+			}
+			mdbNamespace = rootContainer.getSubsystemName();
+		}
+
+		acquisitionMode = config.getEnum("acquisitionMode", AcquisitionMode.class, AcquisitionMode.POLL);
+		scanRate = config.getDouble("scanRate", 1000.0);
+		scansPerRead = config.getInt("scansPerRead", 100);
+		if (scanRate <= 0 || scansPerRead <= 0) {
+			throw new ConfigurationException("scanRate and scansPerRead must be positive");
+		}
+		streamChannels = parseStreamChannels(config);
+
+		recordingDir = Paths.get(config.getString("recordingDir", "yamcs-data/labjack"));
+		recordingPrefix = "labj_" + name.replace('/', '_') + "_"
+				+ new SimpleDateFormat("yyyy-MM-dd--HH-mm-ss").format(new Date());
+		recordingCapacity = config.getInt("recordingCapacity", 3_600_000);
+		if (LabJackRecorder.fileSize(recordingCapacity, LabJackUtil.NUM_ANALOG_PINS) > Integer.MAX_VALUE) {
+			throw new ConfigurationException("recordingCapacity " + recordingCapacity + " is too large");
+		}
+
+		int queueCapacity = config.getInt("queueCapacity", 65536);
+		if (queueCapacity <= 0 || queueCapacity > (1 << 30)) {
+			throw new ConfigurationException("Invalid queueCapacity " + queueCapacity);
+		}
+		dataQueue = new ScanRingBuffer<>(queueCapacity,
+				config.getEnum("overflowPolicy", OverflowPolicy.class, OverflowPolicy.DROP_OLDEST));
+
+		displayRate = config.getDouble("displayRate", 10.0);
+		if (displayRate < 0) {
+			throw new ConfigurationException("displayRate cannot be negative");
+		} else if (displayRate > 0) {
+			decimator = new LabJackDecimator(LabJackUtil.NUM_ANALOG_PINS, Math.max(1, Math.round(1000 / displayRate)));
+			for (int i = 0; i < LabJackUtil.NUM_ANALOG_PINS; i++) {
+				minParameterNames[i] = mdbNamespace + "/AIN" + i + "_min";
+				maxParameterNames[i] = mdbNamespace + "/AIN" + i + "_max";
 			}
 		}
 
+		if (config.containsKey("archiveStream")) {
+			String streamName = config.getString("archiveStream");
+			archiveStream = YarchDatabase.getInstance(instance).getStream(streamName);
+			if (archiveStream == null) {
+				throw new ConfigurationException("Cannot find stream '" + streamName + "'");
+			}
+		}
+	}
+
+	private int[] parseStreamChannels(YConfiguration config) {
+		List<String> channelNames = config.containsKey("streamChannels") ? config.getList("streamChannels")
+				: List.of();
+		if (channelNames.isEmpty()) {
+			int[] channels = new int[LabJackUtil.NUM_ANALOG_PINS];
+			for (int i = 0; i < channels.length; i++) {
+				channels[i] = i;
+			}
+			return channels;
+		}
+
+		int[] channels = new int[channelNames.size()];
+		for (int i = 0; i < channels.length; i++) {
+			String channelName = channelNames.get(i);
+			int pinNum;
+			try {
+				pinNum = Integer.parseInt(channelName.substring(3));
+			} catch (RuntimeException e) {
+				pinNum = -1;
+			}
+			if (!channelName.startsWith("AIN") || pinNum < 0 || pinNum >= LabJackUtil.NUM_ANALOG_PINS) {
+				throw new ConfigurationException("Invalid stream channel '" + channelName + "', expected AIN0-AIN"
+						+ (LabJackUtil.NUM_ANALOG_PINS - 1));
+			}
+			channels[i] = pinNum;
+		}
+		return channels;
 	}
 
 	@Override
@@ -0,0 +1,131 @@
+package org.yamcs.labjack;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates full-rate LabJack scans into fixed-length windows for the live
+ * display. For each analog channel the minimum, maximum and mean of the window
+ * are kept; the digital state is the one of the last scan.
+ * <p>
+ * Windows are aligned on the generation time of the scans, so the display rate
+ * does not depend on how the scans are delivered (one by one when polling, in
+ * blocks when streaming). Not thread safe: meant to be used from the
+ * acquisition thread only.
+ */
+public class LabJackDecimator {
+	private final long windowMillis;
+	private final int numChannels;
+
+	private final double[] min;
+	private final double[] max;
+	private final double[] sum;
+	private final int[] count;
+	private final double[] mean;
+
+	private long windowStart = Long.MIN_VALUE;
+	private long lastGenerationTime;
+	private int lastDigitalState;
+	private int scanCount = 0;
+
+	/**
+	 * @param numChannels  number of analog channels
+	 * @param windowMillis length of a window in milliseconds
+	 */
+	public LabJackDecimator(int numChannels, long windowMillis) {
+		if (windowMillis <= 0) {
+			throw new IllegalArgumentException("Invalid window length " + windowMillis);
+		}
+		this.windowMillis = windowMillis;
+		this.numChannels = numChannels;
+		min = new double[numChannels];
+		max = new double[numChannels];
+		sum = new double[numChannels];
+		count = new int[numChannels];
+		mean = new double[numChannels];
+		reset();
+	}
+
+	/**
+	 * Returns true if a scan generated at the given time does not belong to the
+	 * current window, meaning that the current window should be published and
+	 * {@link #reset() reset} before adding the scan.
+	 */
+	public boolean isWindowComplete(long generationTime) {
+		return scanCount > 0 && (generationTime >= windowStart + windowMillis || generationTime < windowStart);
+	}
+
+	/**
+	 * Adds one scan to the current window. NaN readings are ignored.
+	 */
+	public void add(double[] analogReadings, int dioState, long generationTime) {
+		if (scanCount == 0) {
+			windowStart = generationTime - Math.floorMod(generationTime, windowMillis);
+		}
+		for (int i = 0; i < numChannels; i++) {
+			double value = analogReadings[i];
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			if (value < min[i]) {
+				min[i] = value;
+			}
+			if (value > max[i]) {
+				max[i] = value;
+			}
+			sum[i] += value;
+			count[i]++;
+		}
+		lastDigitalState = dioState;
+		lastGenerationTime = generationTime;
+		scanCount++;
+	}
+
+	/**
+	 * Starts a new, empty window.
+	 */
+	public void reset() {
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		Arrays.fill(sum, 0);
+		Arrays.fill(count, 0);
+		scanCount = 0;
+	}
+
+	/**
+	 * Returns the mean of each channel over the current window, NaN for channels
+	 * without readings. The returned array is reused by the next call.
+	 */
+	public double[] getMean() {
+		for (int i = 0; i < numChannels; i++) {
+			mean[i] = count[i] == 0 ? Double.NaN : sum[i] / count[i];
+		}
+		return mean;
+	}
+
+	public double getMin(int channel) {
+		return count[channel] == 0 ? Double.NaN : min[channel];
+	}
+
+	public double getMax(int channel) {
+		return count[channel] == 0 ? Double.NaN : max[channel];
+	}
+
+	public int getLastDigitalState() {
+		return lastDigitalState;
+	}
+
+	/**
+	 * Generation time of the last scan in the current window.
+	 */
+	public long getLastGenerationTime() {
+		return lastGenerationTime;
+	}
+
+	public int getScanCount() {
+		return scanCount;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+}
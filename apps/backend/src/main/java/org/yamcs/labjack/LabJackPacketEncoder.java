@@ -0,0 +1,61 @@
+package org.yamcs.labjack;
+
+/**
+ * Encodes LabJack scans into the binary layout of the LabJackPacket container
+ * in labjack-t7.xml: the 14 analog readings as big endian IEEE754 floats
+ * followed by the 23 digital pin states, DIO0 being the most significant bit.
+ * <p>
+ * The values are written directly into the destination array, without
+ * intermediate buffers, so that the only allocation per scan is the packet
+ * array itself which is then handed over to the TmPacket.
+ */
+public final class LabJackPacketEncoder {
+	public static final int ANALOG_LENGTH = LabJackUtil.NUM_ANALOG_PINS * 4;
+	public static final int DIGITAL_LENGTH = 3;
+	public static final int PACKET_LENGTH = ANALOG_LENGTH + DIGITAL_LENGTH;
+
+	private LabJackPacketEncoder() {
+	}
+
+	/**
+	 * Encodes one scan into a new packet.
+	 *
+	 * @param analogReadings readings of the analog pins, indexed by pin number
+	 *                       (extra elements are ignored)
+	 * @param dioState       DIO_STATE value (bit n = state of DIO n)
+	 * @return a new array of {@link #PACKET_LENGTH} bytes
+	 */
+	public static byte[] encode(double[] analogReadings, int dioState) {
+		byte[] packet = new byte[PACKET_LENGTH];
+		encode(analogReadings, dioState, packet, 0);
+		return packet;
+	}
+
+	/**
+	 * Encodes one scan into the given array.
+	 *
+	 * @param analogReadings readings of the analog pins, indexed by pin number
+	 *                       (extra elements are ignored)
+	 * @param dioState       DIO_STATE value (bit n = state of DIO n)
+	 * @param dest           destination array
+	 * @param offset         offset in the destination array where the packet
+	 *                       starts, there must be at least {@link #PACKET_LENGTH}
+	 *                       bytes available
+	 */
+	public static void encode(double[] analogReadings, int dioState, byte[] dest, int offset) {
+		int pos = offset;
+		for (int i = 0; i < LabJackUtil.NUM_ANALOG_PINS; i++) {
+			int bits = Float.floatToIntBits((float) analogReadings[i]);
+			dest[pos++] = (byte) (bits >> 24);
+			dest[pos++] = (byte) (bits >> 16);
+			dest[pos++] = (byte) (bits >> 8);
+			dest[pos++] = (byte) bits;
+		}
+
+		// DIO0 ends up in the most significant bit, see LabJackUtil.packDigitalState
+		int digitalBits = Integer.reverse(dioState << 9) << 9;
+		dest[pos++] = (byte) (digitalBits >> 24);
+		dest[pos++] = (byte) (digitalBits >> 16);
+		dest[pos] = (byte) (digitalBits >> 8);
+	}
+}
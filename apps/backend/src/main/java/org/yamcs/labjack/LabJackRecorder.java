@@ -0,0 +1,168 @@
+package org.yamcs.labjack;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.yamcs.TmPacket;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Records LabJack scans into a preallocated, memory-mapped columnar file.
+ * <p>
+ * The file starts with a fixed {@link #HEADER_SIZE} bytes header followed by
+ * one column per value, each column being preallocated for
+ * <code>capacity</code> scans:
+ * <ul>
+ * <li>the scan timestamps (unix epoch milliseconds, 8 bytes each)</li>
+ * <li>one column per analog channel (IEEE754 float, 4 bytes each)</li>
+ * <li>the DIO_STATE bitmask (4 bytes each, bit n = state of DIO n)</li>
+ * </ul>
+ * Header layout (big endian):
+ * 
+ * <pre>
+ * 0  int   magic ("LJRC")
+ * 4  int   version
+ * 8  int   number of analog channels
+ * 12 int   number of digital pins
+ * 16 long  capacity (scans)
+ * 24 long  number of scans recorded
+ * 32 ...   analog channel names, {@link #CHANNEL_NAME_SIZE} bytes each, NUL padded
+ * </pre>
+ * <p>
+ * Scans are copied from the LabJackPacket binary without any XTCE extraction.
+ * When the file is full, {@link #append(TmPacket)} returns false and a new
+ * recorder has to be opened. This class is not thread safe, it is meant to be
+ * used from the single persistence task.
+ */
+public class LabJackRecorder implements AutoCloseable {
+	public static final int MAGIC = 0x4C4A5243;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 4096;
+	public static final int CHANNEL_NAME_SIZE = 16;
+
+	static final int SCAN_COUNT_OFFSET = 24;
+	static final int CHANNEL_NAMES_OFFSET = 32;
+
+	private final Path path;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final long capacity;
+	private final int numAnalog;
+	private final int timestampColumn;
+	private final int analogColumns;
+	private final int digitalColumn;
+	private long scanCount = 0;
+
+	private LabJackRecorder(Path path, long capacity) throws IOException {
+		this.path = path;
+		this.capacity = capacity;
+		this.numAnalog = LabJackUtil.NUM_ANALOG_PINS;
+
+		long fileSize = fileSize(capacity, numAnalog);
+		if (fileSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Recording capacity of " + capacity + " scans is too large");
+		}
+		timestampColumn = HEADER_SIZE;
+		analogColumns = timestampColumn + (int) capacity * 8;
+		digitalColumn = analogColumns + (int) capacity * 4 * numAnalog;
+
+		file = new RandomAccessFile(path.toFile(), "rw");
+		file.setLength(fileSize);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+		writeHeader();
+	}
+
+	/**
+	 * Creates a new recording file, preallocated for the given number of scans.
+	 */
+	public static LabJackRecorder create(Path path, long capacity) throws IOException {
+		Files.createDirectories(path.toAbsolutePath().getParent());
+		return new LabJackRecorder(path, capacity);
+	}
+
+	static long fileSize(long capacity, int numAnalog) {
+		return HEADER_SIZE + capacity * (8 + 4L * numAnalog + 4);
+	}
+
+	private void writeHeader() {
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, numAnalog);
+		buffer.putInt(12, LabJackUtil.NUM_DIGITAL_PINS);
+		buffer.putLong(16, capacity);
+		buffer.putLong(SCAN_COUNT_OFFSET, 0);
+		for (int i = 0; i < numAnalog; i++) {
+			byte[] name = ("AIN" + i).getBytes(StandardCharsets.US_ASCII);
+			buffer.put(CHANNEL_NAMES_OFFSET + i * CHANNEL_NAME_SIZE, name);
+		}
+	}
+
+	/**
+	 * Appends the scan contained in a LabJackPacket.
+	 *
+	 * @return false if the file is full and the scan was not recorded
+	 */
+	public boolean append(TmPacket tmPacket) {
+		if (scanCount >= capacity) {
+			return false;
+		}
+		byte[] packet = tmPacket.getPacket();
+		int n = (int) scanCount;
+
+		buffer.putLong(timestampColumn + n * 8, TimeEncoding.toUnixMillisec(tmPacket.getGenerationTime()));
+		for (int i = 0; i < numAnalog; i++) {
+			// the float bits are copied as they are from the packet
+			buffer.putInt(analogColumns + (i * (int) capacity + n) * 4, readInt(packet, i * 4));
+		}
+		buffer.putInt(digitalColumn + n * 4, decodeDigitalState(packet, LabJackPacketEncoder.ANALOG_LENGTH));
+
+		scanCount++;
+		buffer.putLong(SCAN_COUNT_OFFSET, scanCount);
+		return true;
+	}
+
+	private static int readInt(byte[] packet, int offset) {
+		return ((packet[offset] & 0xFF) << 24) | ((packet[offset + 1] & 0xFF) << 16)
+				| ((packet[offset + 2] & 0xFF) << 8) | (packet[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Inverse of {@link LabJackPacketEncoder}: rebuilds DIO_STATE from the 3
+	 * digital bytes of a packet.
+	 */
+	static int decodeDigitalState(byte[] packet, int offset) {
+		int bits = ((packet[offset] & 0xFF) << 24) | ((packet[offset + 1] & 0xFF) << 16)
+				| ((packet[offset + 2] & 0xFF) << 8);
+		return Integer.reverse(bits) & 0x7FFFFF;
+	}
+
+	public boolean isFull() {
+		return scanCount >= capacity;
+	}
+
+	public long getScanCount() {
+		return scanCount;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Flushes the recorded scans to disk.
+	 */
+	public void flush() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer.force();
+		file.close();
+	}
+}
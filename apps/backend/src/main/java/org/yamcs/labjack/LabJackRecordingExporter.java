@@ -0,0 +1,109 @@
+package org.yamcs.labjack;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Offline exporter converting a recording written by {@link LabJackRecorder}
+ * to CSV.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * java -cp yamcs-mqtt.jar org.yamcs.labjack.LabJackRecordingExporter &lt;recording&gt; [&lt;output.csv&gt;]
+ * </pre>
+ * 
+ * If no output file is given, the CSV is written next to the recording with
+ * the <code>.csv</code> extension.
+ */
+public class LabJackRecordingExporter {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: LabJackRecordingExporter <recording> [<output.csv>]");
+			System.exit(1);
+		}
+		Path recording = Paths.get(args[0]);
+		Path output = args.length == 2 ? Paths.get(args[1]) : Paths.get(args[0].replaceAll("\\.[^.]*$", "") + ".csv");
+
+		long rows = export(recording, output);
+		System.out.println("Exported " + rows + " scans to " + output);
+	}
+
+	/**
+	 * Exports a recording to a CSV file.
+	 *
+	 * @return the number of scans exported
+	 */
+	public static long export(Path recording, Path output) throws IOException {
+		try (FileChannel channel = FileChannel.open(recording, StandardOpenOption.READ);
+				BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return export(buffer, writer);
+		}
+	}
+
+	static long export(ByteBuffer buffer, Writer writer) throws IOException {
+		if (buffer.getInt(0) != LabJackRecorder.MAGIC) {
+			throw new IOException("Not a LabJack recording");
+		}
+		int version = buffer.getInt(4);
+		if (version != LabJackRecorder.VERSION) {
+			throw new IOException("Unsupported LabJack recording version " + version);
+		}
+		int numAnalog = buffer.getInt(8);
+		int numDigital = buffer.getInt(12);
+		long capacity = buffer.getLong(16);
+		long scanCount = buffer.getLong(LabJackRecorder.SCAN_COUNT_OFFSET);
+
+		String[] channelNames = new String[numAnalog];
+		byte[] nameBytes = new byte[LabJackRecorder.CHANNEL_NAME_SIZE];
+		for (int i = 0; i < numAnalog; i++) {
+			buffer.get(LabJackRecorder.CHANNEL_NAMES_OFFSET + i * LabJackRecorder.CHANNEL_NAME_SIZE, nameBytes);
+			int length = 0;
+			while (length < nameBytes.length && nameBytes[length] != 0) {
+				length++;
+			}
+			channelNames[i] = new String(nameBytes, 0, length, StandardCharsets.US_ASCII);
+		}
+
+		int timestampColumn = LabJackRecorder.HEADER_SIZE;
+		int analogColumns = timestampColumn + (int) capacity * 8;
+		int digitalColumn = analogColumns + (int) capacity * 4 * numAnalog;
+
+		StringBuilder row = new StringBuilder();
+		row.append("Generation Time");
+		for (String channelName : channelNames) {
+			row.append(",").append(channelName);
+		}
+		for (int i = 0; i < numDigital; i++) {
+			row.append(",DIO").append(i);
+		}
+		writer.write(row.toString());
+		writer.write(System.lineSeparator());
+
+		for (int n = 0; n < scanCount; n++) {
+			row.setLength(0);
+			row.append(Instant.ofEpochMilli(buffer.getLong(timestampColumn + n * 8)));
+			for (int i = 0; i < numAnalog; i++) {
+				row.append(",").append(buffer.getFloat(analogColumns + (i * (int) capacity + n) * 4));
+			}
+			int dioState = buffer.getInt(digitalColumn + n * 4);
+			for (int i = 0; i < numDigital; i++) {
+				row.append(",").append((dioState >> i) & 1);
+			}
+			writer.write(row.toString());
+			writer.write(System.lineSeparator());
+		}
+		return scanCount;
+	}
+}
@@ -1,6 +1,7 @@
 package org.yamcs.labjack;
 
 import com.sun.jna.ptr.DoubleByReference;
+import com.sun.jna.ptr.IntByReference;
 import libs.LJM;
 import org.yamcs.logging.Log;
 
@@ -16,6 +17,13 @@ public class LabJackUtil {
 
 	// total number of digital pins on the LabJack (T7)
 	public static final int NUM_DIGITAL_PINS = 23;
+
+	// 16-bit digital state registers that can be added to a stream scan list
+	// (DIO_STATE is 32-bit and cannot be streamed)
+	public static final int FIO_EIO_STATE_ADDRESS = 2580;
+	public static final int CIO_MIO_STATE_ADDRESS = 2582;
+
+	public static final int DIO_STATE_ADDRESS = 2800;
 	private static final Log log = new Log(LabJackUtil.class);
 
 	/**
@@ -63,14 +71,7 @@ public class LabJackUtil {
 
 		try {
 			LJM.eReadName(deviceHandle, "DIO_STATE", readingRef);
-			int temp = Integer.reverse(((int) readingRef.getValue()) << 9) << 9;
-
-			byte[] result = new byte[3];
-
-			result[0] = (byte) (temp >> 24); // Most significant byte
-			result[1] = (byte) (temp >> 16);
-			result[2] = (byte) (temp >> 8);
-			return result;
+			return packDigitalState((int) readingRef.getValue());
 
 		} catch (Exception e) {
 			log.error("Could not read from DIO_STATE register");
@@ -78,6 +79,115 @@ public class LabJackUtil {
 		}
 	}
 
+	/**
+	 * Packs a DIO_STATE value (bit n = state of DIO n) into the 3 bytes expected
+	 * by the LabJackPacket container, DIO0 being the most significant bit of the
+	 * first byte.
+	 *
+	 * @param dioState DIO_STATE value, only the lower 23 bits are used
+	 * @return an array of 3 bytes for which the last element's least significant
+	 *         bit is garbage
+	 */
+	public static byte[] packDigitalState(int dioState) {
+		int temp = Integer.reverse(dioState << 9) << 9;
+
+		byte[] result = new byte[3];
+
+		result[0] = (byte) (temp >> 24); // Most significant byte
+		result[1] = (byte) (temp >> 16);
+		result[2] = (byte) (temp >> 8);
+		return result;
+	}
+
+	/**
+	 * Rebuilds a DIO_STATE value from the two 16-bit state registers returned in
+	 * a stream scan.
+	 *
+	 * @param fioEioState value of FIO_EIO_STATE (FIO0-7 in the low byte, EIO0-7 in
+	 *                    the high byte)
+	 * @param cioMioState value of CIO_MIO_STATE (CIO0-3 in the low byte, MIO0-2 in
+	 *                    the high byte)
+	 * @return the equivalent DIO_STATE value
+	 */
+	public static int combineDigitalStates(int fioEioState, int cioMioState) {
+		return (fioEioState & 0xFFFF)
+				| ((cioMioState & 0x0F) << 16)
+				| (((cioMioState >> 8) & 0x07) << 20);
+	}
+
+	/**
+	 * Returns the modbus address of an analog input.
+	 *
+	 * @param pinNum pinNum of the analog pin (0-13)
+	 * @return address of the AIN register
+	 */
+	public static int analogAddress(int pinNum) {
+		return pinNum * 2;
+	}
+
+	/**
+	 * Creates a new batch for reading all analog pins and DIO_STATE with
+	 * {@link #readAllPins(int, ScanBatch)}.
+	 */
+	public static ScanBatch newScanBatch() {
+		return new ScanBatch();
+	}
+
+	/**
+	 * Reads all analog pins and the DIO_STATE register in a single command-response
+	 * using eReadAddresses. The readings are stored in the batch, whose arrays are
+	 * reused from one scan to the next.
+	 *
+	 * @param deviceHandle device handle of the connected LabJack
+	 * @param batch        batch holding the addresses to read and the readings
+	 * @return true if the read succeeded, false otherwise
+	 */
+	public static boolean readAllPins(int deviceHandle, ScanBatch batch) {
+		try {
+			LJM.eReadAddresses(deviceHandle, batch.addresses.length, batch.addresses, batch.types, batch.values,
+					batch.errorAddress);
+			return true;
+		} catch (Exception e) {
+			log.error("Could not read LabJack pins: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Preallocated arrays for a batched read of all analog pins followed by the
+	 * DIO_STATE register.
+	 */
+	public static final class ScanBatch {
+		private final int[] addresses = new int[NUM_ANALOG_PINS + 1];
+		private final int[] types = new int[NUM_ANALOG_PINS + 1];
+		private final double[] values = new double[NUM_ANALOG_PINS + 1];
+		private final IntByReference errorAddress = new IntByReference(0);
+
+		private ScanBatch() {
+			for (int i = 0; i < NUM_ANALOG_PINS; i++) {
+				addresses[i] = analogAddress(i);
+				types[i] = LJM.Constants.FLOAT32;
+			}
+			addresses[NUM_ANALOG_PINS] = DIO_STATE_ADDRESS;
+			types[NUM_ANALOG_PINS] = LJM.Constants.UINT32;
+		}
+
+		/**
+		 * @return the analog readings of the last scan, indexed by pin number. The
+		 *         array has one extra element at the end holding DIO_STATE.
+		 */
+		public double[] analogReadings() {
+			return values;
+		}
+
+		/**
+		 * @return the DIO_STATE value of the last scan
+		 */
+		public int digitalState() {
+			return (int) values[NUM_ANALOG_PINS];
+		}
+	}
+
 	/**
 	 * Reads a single analog pin
 	 * 
@@ -0,0 +1,165 @@
+package org.yamcs.labjack;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, preallocated, lock-free ring buffer between one producer (the
+ * acquisition thread) and one consumer (the persistence task).
+ * <p>
+ * What happens when the producer finds the buffer full is decided by the
+ * {@link OverflowPolicy}:
+ * <ul>
+ * <li>DROP_OLDEST: the oldest element is discarded to make room.</li>
+ * <li>DROP_NEWEST: the new element is discarded.</li>
+ * <li>BLOCK: the producer waits until the consumer makes room.</li>
+ * </ul>
+ * To support DROP_OLDEST, the head index is advanced with a CAS by the
+ * consumer as well as by the producer when discarding.
+ */
+public class ScanRingBuffer<T> {
+	public enum OverflowPolicy {
+		DROP_OLDEST, DROP_NEWEST, BLOCK
+	}
+
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final AtomicReferenceArray<T> buffer;
+	private final int capacity;
+	private final int mask;
+	private final OverflowPolicy overflowPolicy;
+
+	// index of the next element to be consumed
+	private final AtomicLong head = new AtomicLong();
+	// index of the next element to be produced
+	private final AtomicLong tail = new AtomicLong();
+
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile int highWaterMark = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param capacity       requested capacity, rounded up to the next power of
+	 *                       two
+	 * @param overflowPolicy what to do when the buffer is full
+	 */
+	public ScanRingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+		if (capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.buffer = new AtomicReferenceArray<>(this.capacity);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Adds an element. Must only be called from the producer thread.
+	 *
+	 * @return false if the element (or, with DROP_OLDEST, an older element) was
+	 *         dropped
+	 */
+	public boolean offer(T element) {
+		boolean dropped = false;
+		long t = tail.get();
+		while (t - head.get() >= capacity) {
+			switch (overflowPolicy) {
+			case DROP_NEWEST:
+				droppedCount.incrementAndGet();
+				return false;
+			case DROP_OLDEST:
+				long h = head.get();
+				if (t - h >= capacity && head.compareAndSet(h, h + 1)) {
+					droppedCount.incrementAndGet();
+					dropped = true;
+				}
+				break;
+			case BLOCK:
+				if (closed) {
+					droppedCount.incrementAndGet();
+					return false;
+				}
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				break;
+			}
+		}
+		buffer.set((int) (t & mask), element);
+		tail.lazySet(t + 1);
+
+		int size = (int) (t + 1 - head.get());
+		if (size > highWaterMark) {
+			highWaterMark = size;
+		}
+		return !dropped;
+	}
+
+	/**
+	 * Removes and returns the oldest element, or null if the buffer is empty.
+	 * Must only be called from the consumer thread.
+	 */
+	public T poll() {
+		while (true) {
+			long h = head.get();
+			if (h >= tail.get()) {
+				return null;
+			}
+			int index = (int) (h & mask);
+			T element = buffer.get(index);
+			if (head.compareAndSet(h, h + 1)) {
+				// the slot may already have been reused by the producer
+				buffer.compareAndSet(index, element, null);
+				return element;
+			}
+		}
+	}
+
+	/**
+	 * Returns the oldest element without removing it, or null if the buffer is
+	 * empty. The result is only indicative since the producer may concurrently
+	 * drop it.
+	 */
+	public T peek() {
+		long h = head.get();
+		if (h >= tail.get()) {
+			return null;
+		}
+		return buffer.get((int) (h & mask));
+	}
+
+	/**
+	 * Releases a producer blocked in {@link #offer(Object)}; elements offered
+	 * afterwards on a full buffer are dropped.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Reverts {@link #close()}, used when acquisition restarts.
+	 */
+	public void open() {
+		closed = false;
+	}
+
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+}
@@ -0,0 +1,75 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the text commands sent to the radios and flight computers: <code>&lt;sequence&gt;,&lt;code&gt;</code>, or
+ * just the command code when the commands are not counted.
+ * <p>
+ * The payload is written directly into an array of the exact size, without building an intermediate string. The
+ * array is not pooled: the MQTT client keeps a reference to it until the message is delivered.
+ */
+public class CommandPayloadEncoder {
+
+    /**
+     * @param sequence
+     *            non-negative sequence count
+     * @param commandCode
+     *            the command code, normally ASCII
+     */
+    public static byte[] encode(int sequence, String commandCode) {
+        if (sequence < 0) {
+            throw new IllegalArgumentException("Negative sequence: " + sequence);
+        }
+        if (!isAscii(commandCode)) {
+            return (sequence + "," + commandCode).getBytes(StandardCharsets.UTF_8);
+        }
+
+        int digits = numDigits(sequence);
+        byte[] payload = new byte[digits + 1 + commandCode.length()];
+        int n = sequence;
+        for (int i = digits - 1; i >= 0; i--) {
+            payload[i] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        payload[digits] = ',';
+        writeAscii(commandCode, payload, digits + 1);
+        return payload;
+    }
+
+    /**
+     * Encodes a command without sequence count.
+     */
+    public static byte[] encode(String commandCode) {
+        if (!isAscii(commandCode)) {
+            return commandCode.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] payload = new byte[commandCode.length()];
+        writeAscii(commandCode, payload, 0);
+        return payload;
+    }
+
+    private static int numDigits(int n) {
+        int digits = 1;
+        while (n >= 10) {
+            n /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeAscii(String s, byte[] dest, int offset) {
+        for (int i = 0; i < s.length(); i++) {
+            dest[offset + i] = (byte) s.charAt(i);
+        }
+    }
+}
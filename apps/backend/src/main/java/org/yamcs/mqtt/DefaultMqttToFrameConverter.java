@@ -5,21 +5,41 @@ import java.util.Collections;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.YConfiguration;
 import org.yamcs.YamcsServer;
+import org.yamcs.logging.Log;
+import org.yamcs.time.Instant;
 import org.yamcs.time.TimeService;
+import org.yamcs.utils.TimeEncoding;
 
+/**
+ * Uses the message payload as the frame. The earth reception time is the current mission time or, with MQTT 5, the
+ * {@link Mqtt5Message#TIMESTAMP} user property of the message if it has one.
+ */
 public class DefaultMqttToFrameConverter implements MqttToFrameConverter {
     TimeService timeService;
+    Log log;
 
     @Override
     public void init(String yamcsInstance, String linkName, YConfiguration config) {
         this.timeService = YamcsServer.getTimeService(yamcsInstance);
+        this.log = new Log(this.getClass(), yamcsInstance);
     }
 
     @Override
     public Iterable<RawFrame> convert(MqttMessage message) {
         byte[] data = message.getPayload();
-        var frame = new RawFrame(timeService.getHresMissionTime(), data);
+        var frame = new RawFrame(getErt(message), data);
         return Collections.singletonList(frame);
     }
 
+    private Instant getErt(MqttMessage message) {
+        String timestamp = Mqtt5Message.getUserProperty(message, Mqtt5Message.TIMESTAMP);
+        if (timestamp != null) {
+            try {
+                return TimeEncoding.parseHres(timestamp);
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid {} user property '{}': {}", Mqtt5Message.TIMESTAMP, timestamp, e.toString());
+            }
+        }
+        return timeService.getHresMissionTime();
+    }
 }
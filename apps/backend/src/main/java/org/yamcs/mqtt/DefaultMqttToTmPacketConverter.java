@@ -7,26 +7,50 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.TmPacket;
 import org.yamcs.YConfiguration;
 import org.yamcs.YamcsServer;
+import org.yamcs.logging.Log;
 import org.yamcs.time.TimeService;
+import org.yamcs.utils.TimeEncoding;
 
 /**
  * Default MQTT packet converter - it uses the message payload as the TM packet: one mqtt message = one tm packet
  * <p>
- * It sets the
+ * It sets the reception time to the current mission time. With MQTT 5, the earth reception time and the sequence
+ * count are taken from the {@link Mqtt5Message#TIMESTAMP} and {@link Mqtt5Message#SEQ} user properties if the message
+ * has them.
  */
 public class DefaultMqttToTmPacketConverter implements MqttToTmPacketConverter {
     TimeService timeService;
+    Log log;
 
     @Override
     public void init(String yamcsInstance, String linkName, YConfiguration config) {
         this.timeService = YamcsServer.getTimeService(yamcsInstance);
-
+        this.log = new Log(this.getClass(), yamcsInstance);
     }
 
     @Override
     public List<TmPacket> convert(MqttMessage message) {
         byte[] data = message.getPayload();
         var packet = new TmPacket(timeService.getMissionTime(), data);
+        if (message instanceof Mqtt5Message m5) {
+            setProperties(packet, m5);
+        }
         return Collections.singletonList(packet);
     }
+
+    private void setProperties(TmPacket packet, Mqtt5Message message) {
+        String timestamp = message.getUserProperty(Mqtt5Message.TIMESTAMP);
+        String seq = message.getUserProperty(Mqtt5Message.SEQ);
+        try {
+            if (timestamp != null) {
+                packet.setEarthReceptionTime(TimeEncoding.parseHres(timestamp));
+            }
+            if (seq != null) {
+                packet.setSequenceCount(Integer.parseInt(seq));
+            }
+        } catch (IllegalArgumentException e) {
+            // the packet is kept with the default times
+            log.warn("Invalid user properties {}: {}", message.getUserProperties(), e.toString());
+        }
+    }
 }
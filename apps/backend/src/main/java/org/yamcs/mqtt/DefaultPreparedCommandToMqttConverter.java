@@ -3,7 +3,12 @@ package org.yamcs.mqtt;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.YConfiguration;
 import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.utils.TimeEncoding;
 
+/**
+ * Uses the command binary as the payload. The sequence number and the generation time of the command are passed as
+ * the {@link Mqtt5Message#SEQ} and {@link Mqtt5Message#TIMESTAMP} user properties, sent only with MQTT 5.
+ */
 public class DefaultPreparedCommandToMqttConverter implements PreparedCommandToMqttConverter {
 
     @Override
@@ -12,7 +17,10 @@ public class DefaultPreparedCommandToMqttConverter implements PreparedCommandToM
 
     @Override
     public MqttMessage convert(PreparedCommand preparedCommand) {
-        return new MqttMessage(preparedCommand.getBinary());
+        var commandId = preparedCommand.getCommandId();
+        return new Mqtt5Message(preparedCommand.getBinary())
+                .addUserProperty(Mqtt5Message.SEQ, Integer.toString(commandId.getSequenceNumber()))
+                .addUserProperty(Mqtt5Message.TIMESTAMP, TimeEncoding.toString(commandId.getGenerationTime()));
     }
 
 }
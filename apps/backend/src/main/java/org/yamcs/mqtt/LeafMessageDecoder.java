@@ -0,0 +1,295 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.yamcs.mqtt.LeafMqttToTmPacketConverter.LeafMessage;
+import org.yamcs.time.Instant;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Decodes LeafSpace JSON messages directly from the MQTT payload bytes.
+ * <p>
+ * The top level object is scanned once to locate the <code>timestamp</code> and <code>payload</code> string values;
+ * the other fields are skipped. The hex octets of the payload are decoded with a lookup table straight into the
+ * output array and the ISO 8601 timestamp is parsed from the bytes, so apart from the output array and the
+ * {@link Instant}, no objects are allocated.
+ * <p>
+ * Strings with escape sequences and timestamps with a zone offset are not handled here; for those the decoder
+ * returns null and the caller falls back to the generic JSON parser.
+ */
+class LeafMessageDecoder {
+    private static final byte[] TIMESTAMP_KEY = "timestamp".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PAYLOAD_KEY = "payload".getBytes(StandardCharsets.US_ASCII);
+
+    // value of each hex digit, -1 for other characters
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private LeafMessageDecoder() {
+    }
+
+    /**
+     * Decodes a LeafSpace message.
+     *
+     * @return the decoded message, or null if the message uses JSON features not supported by this decoder
+     * @throws IllegalArgumentException
+     *             if the message is malformed or has no payload
+     */
+    static LeafMessage decode(byte[] buf) {
+        int pos = skipWhitespace(buf, 0);
+        if (pos >= buf.length || buf[pos] != '{') {
+            throw new IllegalArgumentException("Message is not a JSON object");
+        }
+        pos = skipWhitespace(buf, pos + 1);
+
+        int timestampStart = -1, timestampEnd = -1;
+        int payloadStart = -1, payloadEnd = -1;
+
+        if (pos < buf.length && buf[pos] == '}') {
+            pos = buf.length;
+        }
+        while (pos < buf.length) {
+            // key
+            int keyStart = pos + 1;
+            int keyEnd = endOfString(buf, pos);
+            if (keyEnd < 0) {
+                return null;
+            }
+            pos = skipWhitespace(buf, keyEnd + 1);
+            if (pos >= buf.length || buf[pos] != ':') {
+                throw new IllegalArgumentException("Expected ':' at position " + pos);
+            }
+            pos = skipWhitespace(buf, pos + 1);
+            if (pos >= buf.length) {
+                break;
+            }
+
+            // value
+            int valueStart = pos;
+            if (buf[pos] == '"') {
+                int end = endOfString(buf, pos);
+                if (end < 0) {
+                    return null;
+                }
+                if (regionEquals(buf, keyStart, keyEnd, TIMESTAMP_KEY)) {
+                    timestampStart = valueStart + 1;
+                    timestampEnd = end;
+                } else if (regionEquals(buf, keyStart, keyEnd, PAYLOAD_KEY)) {
+                    payloadStart = valueStart + 1;
+                    payloadEnd = end;
+                }
+                pos = end + 1;
+            } else {
+                pos = skipValue(buf, pos);
+                if (pos < 0) {
+                    return null;
+                }
+            }
+
+            pos = skipWhitespace(buf, pos);
+            if (pos < buf.length && buf[pos] == ',') {
+                pos = skipWhitespace(buf, pos + 1);
+            } else if (pos < buf.length && buf[pos] == '}') {
+                break;
+            } else {
+                throw new IllegalArgumentException("Expected ',' or '}' at position " + pos);
+            }
+        }
+
+        if (payloadStart < 0) {
+            throw new IllegalArgumentException("Message has no payload field");
+        }
+
+        Instant ert = null;
+        if (timestampStart >= 0) {
+            ert = parseTimestamp(buf, timestampStart, timestampEnd);
+            if (ert == null) {
+                return null;
+            }
+        }
+        return new LeafMessage(ert, decodeHex(buf, payloadStart, payloadEnd));
+    }
+
+    /**
+     * Decodes a sequence of <code>0xN</code> or <code>0xNN</code> octets separated by any other characters.
+     */
+    static byte[] decodeHex(byte[] buf, int start, int end) {
+        int n = 0;
+        for (int i = start; i < end - 1; i++) {
+            if (buf[i] == '0' && buf[i + 1] == 'x') {
+                n++;
+                i += 2;
+            }
+        }
+
+        byte[] data = new byte[n];
+        int idx = 0;
+        for (int i = start; i < end - 1; i++) {
+            if (buf[i] == '0' && buf[i + 1] == 'x') {
+                i += 2;
+                int v = i < end ? hexValue(buf[i]) : -1;
+                if (v < 0) {
+                    throw new IllegalArgumentException("Invalid hex octet at position " + (i - 2));
+                }
+                int v2 = i + 1 < end ? hexValue(buf[i + 1]) : -1;
+                if (v2 >= 0) {
+                    v = (v << 4) | v2;
+                    i++;
+                }
+                data[idx++] = (byte) v;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Parses a UTC timestamp <code>yyyy-MM-ddTHH:mm:ss[.fraction][Z]</code>, the fraction having 3 to 12 digits as
+     * accepted by {@link TimeEncoding#parseHres(String)}.
+     *
+     * @return the instant or null if the timestamp has a different format
+     */
+    static Instant parseTimestamp(byte[] buf, int start, int end) {
+        if (end - start < 19 || buf[start + 4] != '-' || buf[start + 7] != '-' || buf[start + 10] != 'T'
+                || buf[start + 13] != ':' || buf[start + 16] != ':') {
+            return null;
+        }
+        int year = digits(buf, start, 4);
+        int month = digits(buf, start + 5, 2);
+        int day = digits(buf, start + 8, 2);
+        int hour = digits(buf, start + 11, 2);
+        int minute = digits(buf, start + 14, 2);
+        int second = digits(buf, start + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0
+                || minute > 59 || second < 0 || second > 59) {
+            return null;
+        }
+
+        int pos = start + 19;
+        long picos = 0;
+        if (pos < end && buf[pos] == '.') {
+            pos++;
+            int fractionStart = pos;
+            long scale = 100_000_000_000L;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                picos += (buf[pos] - '0') * scale;
+                scale /= 10;
+                pos++;
+            }
+            if (pos - fractionStart < 3 || pos - fractionStart > 12) {
+                return null;
+            }
+        }
+        if (pos < end && buf[pos] == 'Z') {
+            pos++;
+        }
+        if (pos != end) {
+            return null;
+        }
+
+        long unixMillis = (daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second) * 1000L
+                + picos / 1_000_000_000L;
+        return Instant.get(TimeEncoding.fromUnixMillisec(unixMillis), picos % 1_000_000_000L);
+    }
+
+    // days since 1970-01-01 in the proleptic Gregorian calendar
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+
+    private static int digits(byte[] buf, int pos, int n) {
+        int v = 0;
+        for (int i = pos; i < pos + n; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static int hexValue(byte b) {
+        return b < 0 ? -1 : HEX_VALUES[b];
+    }
+
+    private static int skipWhitespace(byte[] buf, int pos) {
+        while (pos < buf.length && (buf[pos] == ' ' || buf[pos] == '\t' || buf[pos] == '\n' || buf[pos] == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the position of the closing quote of the string starting at pos, or -1 if the string contains escape
+     * sequences.
+     */
+    private static int endOfString(byte[] buf, int pos) {
+        if (buf[pos] != '"') {
+            throw new IllegalArgumentException("Expected '\"' at position " + pos);
+        }
+        for (int i = pos + 1; i < buf.length; i++) {
+            if (buf[i] == '"') {
+                return i;
+            } else if (buf[i] == '\\') {
+                return -1;
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    /**
+     * Skips a non-string value (number, literal, object or array).
+     *
+     * @return the position after the value, or -1 if a nested string contains escape sequences
+     */
+    private static int skipValue(byte[] buf, int pos) {
+        int depth = 0;
+        while (pos < buf.length) {
+            byte b = buf[pos];
+            if (b == '"') {
+                pos = endOfString(buf, pos);
+                if (pos < 0) {
+                    return -1;
+                }
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0) {
+                    return pos;
+                }
+                depth--;
+            } else if (b == ',' && depth == 0) {
+                return pos;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean regionEquals(byte[] buf, int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buf[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
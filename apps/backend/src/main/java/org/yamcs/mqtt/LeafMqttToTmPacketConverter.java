@@ -60,6 +60,15 @@ public class LeafMqttToTmPacketConverter implements MqttToTmPacketConverter {
     }
 
     static LeafMessage parseLeafMessage(MqttMessage msg) {
+        var leafMsg = LeafMessageDecoder.decode(msg.getPayload());
+        if (leafMsg != null) {
+            return leafMsg;
+        }
+        // escaped strings or timestamps with a zone offset
+        return parseLeafMessageTree(msg);
+    }
+
+    static LeafMessage parseLeafMessageTree(MqttMessage msg) {
         String jsonString = new String(msg.getPayload(), StandardCharsets.US_ASCII);
 
         JsonObject jsonObject = JsonParser.parseString(jsonString).getAsJsonObject();
@@ -80,37 +89,10 @@ public class LeafMqttToTmPacketConverter implements MqttToTmPacketConverter {
     }
 
     static byte[] parseHexString(String hexString) {
-        int n = 0;
-        int length = hexString.length();
-        // first count the bytes
-        for (int i = 0; i < length - 1; i++) {
-            if (hexString.charAt(i) == '0' && hexString.charAt(i + 1) == 'x') {
-                n++;
-                i += 2; // Skip "0x"
-            }
-        }
-
-        // then parse the bytes
-        byte[] byteArray = new byte[n];
-        int idx = 0;
-        for (int i = 0; i < length - 1; i++) {
-            if (hexString.charAt(i) == '0' && hexString.charAt(i + 1) == 'x') {
-                int start = i + 2;
-                int end = start + 2;
-
-                if (end > length || hexString.charAt(end - 1) == ' ') {
-                    end = start + 1;
-                }
-
-                String hexByte = hexString.substring(start, end);
-                byteArray[idx++] = (byte) Integer.parseInt(hexByte, 16);
-
-                i = end - 1;
-            }
-        }
-
-        return byteArray;
+        byte[] chars = hexString.getBytes(StandardCharsets.US_ASCII);
+        return LeafMessageDecoder.decodeHex(chars, 0, chars.length);
     }
+
     record LeafMessage(Instant ert, byte[] data) {
     }
 }
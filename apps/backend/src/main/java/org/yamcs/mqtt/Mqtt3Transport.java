@@ -0,0 +1,124 @@
+package org.yamcs.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * MQTT 3.1.1 transport on the Paho <code>mqttv3</code> client.
+ */
+public class Mqtt3Transport implements MqttTransport {
+    final MqttAsyncClient client;
+    final MqttConnectOptions connOpts;
+
+    public Mqtt3Transport(String serverURI, String clientId, MqttConnectOptions connOpts) throws MqttException {
+        this.client = new MqttAsyncClient(serverURI, clientId);
+        this.connOpts = connOpts;
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return MqttUtils.PROTOCOL_3_1_1;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        client.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                callback.connectComplete(reconnect, serverURI);
+            }
+
+            @Override
+            public void connectionLost(Throwable cause) {
+                callback.connectionLost(cause);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                callback.messageArrived(topic, message);
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+    }
+
+    @Override
+    public IMqttToken connect(int maxInflight, IMqttActionListener listener) throws MqttException {
+        connOpts.setMaxInflight(maxInflight);
+        return client.connect(connOpts, null, listener);
+    }
+
+    @Override
+    public IMqttToken disconnect(IMqttActionListener listener) throws MqttException {
+        return client.disconnect(null, listener);
+    }
+
+    @Override
+    public void disconnectForcibly() throws MqttException {
+        client.disconnectForcibly(0, 0, false);
+    }
+
+    @Override
+    public void close() throws MqttException {
+        client.close();
+    }
+
+    @Override
+    public IMqttToken subscribe(String[] filters, int[] qos, IMqttActionListener listener) throws MqttException {
+        return client.subscribe(filters, qos, null, listener);
+    }
+
+    @Override
+    public IMqttToken unsubscribe(String[] filters) throws MqttException {
+        return client.unsubscribe(filters);
+    }
+
+    @Override
+    public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext,
+            IMqttActionListener listener) throws MqttException {
+        return client.publish(topic, message, userContext, listener);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    @Override
+    public boolean isAutomaticReconnect() {
+        return connOpts.isAutomaticReconnect();
+    }
+
+    @Override
+    public int getConnectionTimeout() {
+        return connOpts.getConnectionTimeout();
+    }
+
+    @Override
+    public String getClientId() {
+        return client.getClientId();
+    }
+
+    @Override
+    public String getServerURI() {
+        return client.getServerURI();
+    }
+
+    @Override
+    public String getCurrentServerURI() {
+        return client.getCurrentServerURI();
+    }
+
+    @Override
+    public String toString() {
+        return "MQTT 3.1.1 " + connOpts;
+    }
+}
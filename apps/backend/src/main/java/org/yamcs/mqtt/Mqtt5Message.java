@@ -0,0 +1,65 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * An MQTT message with MQTT 5 user properties.
+ * <p>
+ * The links pass the sequence count and the time of the data as user properties instead of inside the payload when
+ * the connection uses MQTT 5; with MQTT 3.1.1 the properties are not sent and the receivers use their defaults.
+ */
+public class Mqtt5Message extends MqttMessage {
+    /**
+     * User property with the time of the data, in ISO 8601 UTC format (as produced by
+     * {@link org.yamcs.utils.TimeEncoding#toString(long)}).
+     */
+    public static final String TIMESTAMP = "timestamp";
+    /**
+     * User property with the sequence count of the data.
+     */
+    public static final String SEQ = "seq";
+
+    private final List<Map.Entry<String, String>> userProperties = new ArrayList<>(2);
+
+    public Mqtt5Message(byte[] payload) {
+        super(payload);
+    }
+
+    /**
+     * Adds a user property; MQTT allows several properties with the same name.
+     */
+    public Mqtt5Message addUserProperty(String name, String value) {
+        userProperties.add(Map.entry(name, value));
+        return this;
+    }
+
+    public List<Map.Entry<String, String>> getUserProperties() {
+        return Collections.unmodifiableList(userProperties);
+    }
+
+    /**
+     * Returns the value of the first user property with the given name, or null if there is none.
+     */
+    public String getUserProperty(String name) {
+        for (int i = 0; i < userProperties.size(); i++) {
+            var p = userProperties.get(i);
+            if (p.getKey().equals(name)) {
+                return p.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of the user property of the message, or null if the message has no such property or was not
+     * received through MQTT 5.
+     */
+    public static String getUserProperty(MqttMessage message, String name) {
+        return message instanceof Mqtt5Message m ? m.getUserProperty(name) : null;
+    }
+}
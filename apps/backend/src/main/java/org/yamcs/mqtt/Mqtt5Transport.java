@@ -0,0 +1,411 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+/**
+ * MQTT 5 transport on the Paho <code>mqttv5</code> client.
+ * <p>
+ * The messages are converted from and to the <code>mqttv3</code> messages used by the links; the user properties of
+ * the received messages are passed as {@link Mqtt5Message}s and the ones of the published {@link Mqtt5Message}s are
+ * sent.
+ * <p>
+ * Topic aliases: the client replaces the topic of the published messages by an alias after the first message, up to
+ * the number of aliases allowed by the broker. The <code>topicAliasMaximum</code> option is the number of aliases the
+ * broker may use for the messages it sends to the client. These aliases are resolved here: Paho 1.2.5 passes the
+ * messages on with an empty topic.
+ * <p>
+ * The sessions are clean as with MQTT 3.1.1: nothing is kept by the broker or by the client between connections.
+ */
+public class Mqtt5Transport implements MqttTransport {
+    final MqttAsyncClient client;
+    final MqttConnectionOptions connOpts;
+    // topic aliases of the received messages, only used from the Paho callback thread
+    final Map<Integer, String> incomingTopicAliases = new HashMap<>();
+
+    // completes the token adapters passed as user context of the Paho operations
+    private static final MqttActionListener DISPATCHER = new MqttActionListener() {
+        @Override
+        public void onSuccess(org.eclipse.paho.mqttv5.client.IMqttToken token) {
+            Token t = (Token) token.getUserContext();
+            t.token = token;
+            var listener = t.listener;
+            if (listener != null) {
+                listener.onSuccess(t);
+            }
+        }
+
+        @Override
+        public void onFailure(org.eclipse.paho.mqttv5.client.IMqttToken token, Throwable e) {
+            Token t = (Token) token.getUserContext();
+            t.token = token;
+            var listener = t.listener;
+            if (listener != null) {
+                listener.onFailure(t, toMqtt3(e));
+            }
+        }
+    };
+
+    public Mqtt5Transport(String serverURI, String clientId, MqttConnectionOptions connOpts) throws MqttException {
+        try {
+            this.client = new MqttAsyncClient(serverURI, clientId, new MemoryPersistence());
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw toMqtt3(e);
+        }
+        this.connOpts = connOpts;
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return MqttUtils.PROTOCOL_5;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                // the aliases are defined again on each connection
+                incomingTopicAliases.clear();
+                callback.connectComplete(reconnect, serverURI);
+            }
+
+            @Override
+            public void disconnected(MqttDisconnectResponse response) {
+                var e = response.getException();
+                callback.connectionLost(e == null ? new MqttException(MqttException.REASON_CODE_CONNECTION_LOST)
+                        : toMqtt3(e));
+            }
+
+            @Override
+            public void mqttErrorOccurred(org.eclipse.paho.mqttv5.common.MqttException e) {
+                MqttConnectionPool.log.warn("MQTT error on clientId {}: {}", client.getClientId(), e.toString());
+            }
+
+            @Override
+            public void messageArrived(String topic, org.eclipse.paho.mqttv5.common.MqttMessage message) {
+                var properties = message.getProperties();
+                Integer alias = properties == null ? null : properties.getTopicAlias();
+                if (alias != null) {
+                    if (topic == null || topic.isEmpty()) {
+                        topic = incomingTopicAliases.get(alias);
+                        if (topic == null) {
+                            MqttConnectionPool.log.warn("Dropping message with unknown topic alias {}", alias);
+                            return;
+                        }
+                    } else {
+                        incomingTopicAliases.put(alias, topic);
+                    }
+                }
+                callback.messageArrived(topic, fromMqtt5(message));
+            }
+
+            @Override
+            public void deliveryComplete(org.eclipse.paho.mqttv5.client.IMqttToken token) {
+            }
+
+            @Override
+            public void authPacketArrived(int reasonCode, MqttProperties properties) {
+            }
+        });
+    }
+
+    @Override
+    public IMqttToken connect(int maxInflight, IMqttActionListener listener) throws MqttException {
+        var t = new Token(null, listener, null);
+        try {
+            t.token = client.connect(connOpts, t, DISPATCHER);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw toMqtt3(e);
+        }
+        return t;
+    }
+
+    @Override
+    public IMqttToken disconnect(IMqttActionListener listener) throws MqttException {
+        var t = new Token(null, listener, null);
+        try {
+            t.token = client.disconnect(t, DISPATCHER);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw toMqtt3(e);
+        }
+        return t;
+    }
+
+    @Override
+    public void disconnectForcibly() throws MqttException {
+        try {
+            client.disconnectForcibly(0, 0, false);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw toMqtt3(e);
+        }
+    }
+
+    @Override
+    public void close() throws MqttException {
+        try {
+            client.close();
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw toMqtt3(e);
+        }
+    }
+
+    @Override
+    public IMqttToken subscribe(String[] filters, int[] qos, IMqttActionListener listener) throws MqttException {
+        var t = new Token(null, listener, null);
+        try {
+            t.token = client.subscribe(filters, qos, t, DISPATCHER);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw toMqtt3(e);
+        }
+        return t;
+    }
+
+    @Override
+    public IMqttToken unsubscribe(String[] filters) throws MqttException {
+        var t = new Token(null, null, null);
+        try {
+            t.token = client.unsubscribe(filters, t, DISPATCHER, null);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw toMqtt3(e);
+        }
+        return t;
+    }
+
+    @Override
+    public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext,
+            IMqttActionListener listener) throws MqttException {
+        var t = new Token(userContext, listener, message);
+        try {
+            var token = client.publish(topic, toMqtt5(message), t, DISPATCHER);
+            if (t.token == null) {
+                t.token = token;
+            }
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw toMqtt3(e);
+        }
+        return t;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    @Override
+    public boolean isAutomaticReconnect() {
+        return connOpts.isAutomaticReconnect();
+    }
+
+    @Override
+    public int getConnectionTimeout() {
+        return connOpts.getConnectionTimeout();
+    }
+
+    @Override
+    public String getClientId() {
+        return client.getClientId();
+    }
+
+    @Override
+    public String getServerURI() {
+        return client.getServerURI();
+    }
+
+    @Override
+    public String getCurrentServerURI() {
+        return client.getCurrentServerURI();
+    }
+
+    @Override
+    public String toString() {
+        return "MQTT 5 " + connOpts;
+    }
+
+    static org.eclipse.paho.mqttv5.common.MqttMessage toMqtt5(MqttMessage message) {
+        var m = new org.eclipse.paho.mqttv5.common.MqttMessage(message.getPayload());
+        m.setQos(message.getQos());
+        m.setRetained(message.isRetained());
+        if (message instanceof Mqtt5Message m5) {
+            var userProperties = m5.getUserProperties();
+            if (!userProperties.isEmpty()) {
+                List<UserProperty> list = new ArrayList<>(userProperties.size());
+                for (var p : userProperties) {
+                    list.add(new UserProperty(p.getKey(), p.getValue()));
+                }
+                var properties = new MqttProperties();
+                properties.setUserProperties(list);
+                m.setProperties(properties);
+            }
+        }
+        return m;
+    }
+
+    static MqttMessage fromMqtt5(org.eclipse.paho.mqttv5.common.MqttMessage message) {
+        var properties = message.getProperties();
+        var userProperties = properties == null ? null : properties.getUserProperties();
+        MqttMessage m;
+        if (userProperties == null || userProperties.isEmpty()) {
+            m = new MqttMessage(message.getPayload());
+        } else {
+            var m5 = new Mqtt5Message(message.getPayload());
+            for (var p : userProperties) {
+                m5.addUserProperty(p.getKey(), p.getValue());
+            }
+            m = m5;
+        }
+        m.setQos(message.getQos());
+        m.setRetained(message.isRetained());
+        m.setId(message.getId());
+        return m;
+    }
+
+    static MqttException toMqtt3(Throwable e) {
+        if (e instanceof MqttException me) {
+            return me;
+        } else if (e instanceof org.eclipse.paho.mqttv5.common.MqttException me) {
+            // the client reason codes are the same in both versions
+            return new Mqtt5Exception(me);
+        } else {
+            return new MqttException(e);
+        }
+    }
+
+    /**
+     * Keeps the reason code and the message of an <code>mqttv5</code> exception.
+     */
+    static class Mqtt5Exception extends MqttException {
+        private static final long serialVersionUID = 1L;
+
+        Mqtt5Exception(org.eclipse.paho.mqttv5.common.MqttException cause) {
+            super(cause.getReasonCode(), cause);
+        }
+
+        @Override
+        public String getMessage() {
+            return getCause().getMessage();
+        }
+    }
+
+    /**
+     * The <code>mqttv3</code> view of an <code>mqttv5</code> token, given to the listeners of the links.
+     * <p>
+     * {@link #getClient()} and {@link #getResponse()} return null, the client and the packets being of the other
+     * version.
+     */
+    static class Token implements IMqttDeliveryToken {
+        volatile org.eclipse.paho.mqttv5.client.IMqttToken token;
+        volatile Object userContext;
+        volatile IMqttActionListener listener;
+        final MqttMessage message;
+
+        Token(Object userContext, IMqttActionListener listener, MqttMessage message) {
+            this.userContext = userContext;
+            this.listener = listener;
+            this.message = message;
+        }
+
+        @Override
+        public void waitForCompletion() throws MqttException {
+            try {
+                token.waitForCompletion();
+            } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+                throw toMqtt3(e);
+            }
+        }
+
+        @Override
+        public void waitForCompletion(long timeout) throws MqttException {
+            try {
+                token.waitForCompletion(timeout);
+            } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+                throw toMqtt3(e);
+            }
+        }
+
+        @Override
+        public boolean isComplete() {
+            return token.isComplete();
+        }
+
+        @Override
+        public MqttException getException() {
+            var e = token.getException();
+            return e == null ? null : toMqtt3(e);
+        }
+
+        @Override
+        public void setActionCallback(IMqttActionListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public IMqttActionListener getActionCallback() {
+            return listener;
+        }
+
+        @Override
+        public IMqttAsyncClient getClient() {
+            return null;
+        }
+
+        @Override
+        public String[] getTopics() {
+            return token.getTopics();
+        }
+
+        @Override
+        public void setUserContext(Object userContext) {
+            this.userContext = userContext;
+        }
+
+        @Override
+        public Object getUserContext() {
+            return userContext;
+        }
+
+        @Override
+        public int getMessageId() {
+            return token.getMessageId();
+        }
+
+        @Override
+        public int[] getGrantedQos() {
+            // the MQTT 5 reason codes of a subscription are the granted QoS, or 0x80 and above for a failure
+            return token.getGrantedQos();
+        }
+
+        @Override
+        public boolean getSessionPresent() {
+            return token.getSessionPresent();
+        }
+
+        @Override
+        public MqttWireMessage getResponse() {
+            return null;
+        }
+
+        @Override
+        public MqttMessage getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,853 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducer;
+import org.yamcs.logging.Log;
+import org.yamcs.mrt.utils.TopicTrie;
+import org.yamcs.utils.DataRateMeter;
+
+/**
+ * Shares MQTT broker connections between the links.
+ * <p>
+ * Links configured with the same broker set, username and clientId get a {@link LinkConnection} to the same
+ * {@link MqttTransport}, an MQTT 3.1.1 or MQTT 5 client according to the <code>protocolVersion</code> option. The
+ * subscriptions of all the links are made without a Paho message listener and the incoming messages are dispatched to
+ * the links through a {@link TopicTrie}, so several links can subscribe to overlapping filters. A filter is subscribed
+ * once on the broker, with the highest QoS requested, and unsubscribed when the last link using it unsubscribes. Since
+ * the sessions are clean, all the filters are subscribed again after a reconnection.
+ * <p>
+ * The links sharing a connection must have the same connection options (password, timeouts, keep alive, automatic
+ * reconnection, protocol version and topic aliases); a link with different options is refused with a
+ * {@link ConfigurationException}. Each link can limit the number of its messages in flight with the
+ * <code>maxInflight</code> option; the limit of the shared connection is the sum of the limits of its links.
+ * <p>
+ * Links with a <code>sharedSubscriptionGroup</code> subscribe to their data topics with
+ * <code>$share/&lt;group&gt;/&lt;filter&gt;</code>, so the broker splits the messages between the Yamcs servers using
+ * the same group; links of different groups never share a connection.
+ * <p>
+ * The broker connection is opened when the first link connects and closed when the last link disconnects. Paho only
+ * reconnects automatically after a successful connection; with <code>autoReconnect</code>, a failed initial connection
+ * is retried by the pool, with a delay doubling from 1 to 128 seconds. The last connection error is reported by
+ * {@link LinkConnection#getDetailedStatus()} until the connection succeeds.
+ */
+public class MqttConnectionPool {
+    static final int DEFAULT_MAX_INFLIGHT = 100;
+    static final Log log = new Log(MqttConnectionPool.class);
+
+    private static final MqttConnectionPool INSTANCE = new MqttConnectionPool();
+    private static final int MAX_RETRY_DELAY_SECS = 128;
+    static final String SHARE_PREFIX = "$share/";
+
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "MqttConnectionRetry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<String, SharedConnection> connections = new HashMap<>();
+
+    public static MqttConnectionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a connection for the link, sharing the broker connection with the other links having the same
+     * <code>brokers</code>, <code>username</code>, <code>clientId</code> and <code>sharedSubscriptionGroup</code>
+     * options.
+     * <p>
+     * The connection has to be {@link LinkConnection#close() closed} when the link stops.
+     */
+    public synchronized LinkConnection acquire(String linkName, YConfiguration config, Log linkLog,
+            EventProducer eventProducer) throws ConfigurationException {
+        String key = getKey(config);
+        SharedConnection shared = connections.get(key);
+        if (shared == null) {
+            shared = new SharedConnection(key, linkName, config);
+            connections.put(key, shared);
+        } else {
+            checkSameOptions(shared, linkName, config);
+        }
+        var conn = new LinkConnection(shared, linkName, config.getInt("maxInflight", DEFAULT_MAX_INFLIGHT),
+                config.getString("sharedSubscriptionGroup", null), linkLog, eventProducer);
+        synchronized (shared) {
+            shared.links.add(conn);
+        }
+        return conn;
+    }
+
+    private synchronized void release(LinkConnection conn) {
+        SharedConnection shared = conn.shared;
+        boolean unused;
+        synchronized (shared) {
+            shared.links.remove(conn);
+            unused = shared.links.isEmpty();
+        }
+        if (unused) {
+            connections.remove(shared.key);
+            shared.close();
+        }
+    }
+
+    /**
+     * Returns the options which have to be the same for all the links of a connection.
+     */
+    static Map<String, Object> getConnectionOptions(YConfiguration config) {
+        var options = new LinkedHashMap<String, Object>();
+        options.put("password", config.getString("password", null));
+        options.put("connectionTimeoutSecs", config.getInt("connectionTimeoutSecs", 5));
+        options.put("autoReconnect", config.getBoolean("autoReconnect", true));
+        options.put("keepAliveSecs", config.getInt("keepAliveSecs", 60));
+        options.put("protocolVersion", config.getString("protocolVersion", MqttUtils.PROTOCOL_3_1_1));
+        options.put("topicAliasMaximum", config.getInt("topicAliasMaximum", 16));
+        return options;
+    }
+
+    private static void checkSameOptions(SharedConnection shared, String linkName, YConfiguration config)
+            throws ConfigurationException {
+        var options = getConnectionOptions(config);
+        List<String> different = new ArrayList<>();
+        for (var entry : shared.options.entrySet()) {
+            if (!Objects.equals(entry.getValue(), options.get(entry.getKey()))) {
+                different.add(entry.getKey());
+            }
+        }
+        if (!different.isEmpty()) {
+            // the values are not shown, they include the password
+            throw new ConfigurationException("Link " + linkName + " shares the MQTT connection of link "
+                    + shared.firstLinkName + " (same brokers, username, clientId and sharedSubscriptionGroup) but has"
+                    + " different " + String.join(", ", different)
+                    + "; use the same options or a different clientId");
+        }
+    }
+
+    static String getKey(YConfiguration config) {
+        List<String> brokers = config.getList("brokers");
+        return String.join(",", brokers) + "|" + config.getString("username", "") + "|"
+                + config.getString("clientId", "") + "|" + config.getString("sharedSubscriptionGroup", "");
+    }
+
+    /**
+     * Returns the filter without the <code>$share/&lt;group&gt;/</code> prefix: the topics of the messages received
+     * through a shared subscription are the topics they were published to.
+     */
+    static String getMatchFilter(String filter) {
+        if (filter.startsWith(SHARE_PREFIX)) {
+            int idx = filter.indexOf('/', SHARE_PREFIX.length());
+            if (idx < 0) {
+                throw new IllegalArgumentException("Invalid shared subscription filter '" + filter + "'");
+            }
+            return filter.substring(idx + 1);
+        }
+        return filter;
+    }
+
+    /**
+     * One broker connection shared by several links.
+     */
+    class SharedConnection implements MqttTransport.Callback {
+        final String key;
+        final String firstLinkName;
+        final Map<String, Object> options;
+        final MqttTransport client;
+
+        final Set<LinkConnection> links = new LinkedHashSet<>();
+        // subscriptions of all links, the filters subscribed on the broker are derived from this list
+        final List<Route> routes = new ArrayList<>();
+        final TopicTrie<Route> dispatcher = new TopicTrie<>();
+
+        CompletableFuture<Void> connectFuture;
+        int retryDelaySecs = 0;
+        boolean closed;
+        // error of the last connection attempt, null once connected
+        volatile Throwable connectFailure;
+
+        final AtomicLong messagesIn = new AtomicLong();
+        final AtomicLong messagesOut = new AtomicLong();
+        final AtomicLong reconnections = new AtomicLong();
+        final DataRateMeter inRateMeter = new DataRateMeter();
+        final DataRateMeter outRateMeter = new DataRateMeter();
+
+        SharedConnection(String key, String firstLinkName, YConfiguration config) throws ConfigurationException {
+            this.key = key;
+            this.firstLinkName = firstLinkName;
+            this.options = getConnectionOptions(config);
+            this.client = MqttUtils.createTransport(config);
+            client.setCallback(this);
+        }
+
+        synchronized CompletableFuture<Void> connect() {
+            if (connectFuture != null) {
+                return connectFuture;
+            }
+            var cf = new CompletableFuture<Void>();
+            connectFuture = cf;
+
+            int maxInflight = 0;
+            for (LinkConnection conn : links) {
+                maxInflight = Math.min(65535, maxInflight + conn.maxInflight);
+            }
+            log.info("Connecting to MQTT with clientId {} for {} link(s) and options: {}", client.getClientId(),
+                    links.size(), client);
+            try {
+                client.connect(Math.max(1, maxInflight), new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        log.info("Succesfully connected to MQTT with clientId {}", client.getClientId());
+                        synchronized (SharedConnection.this) {
+                            retryDelaySecs = 0;
+                        }
+                        connectFailure = null;
+                        cf.complete(null);
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable e) {
+                        connectFailed(cf, e);
+                    }
+                });
+            } catch (MqttException e) {
+                connectFailed(cf, e);
+            }
+            return cf;
+        }
+
+        private void connectFailed(CompletableFuture<Void> cf, Throwable e) {
+            boolean firstFailure;
+            int delay = -1;
+            connectFailure = e;
+            synchronized (this) {
+                if (connectFuture == cf) {
+                    connectFuture = null;
+                }
+                firstFailure = retryDelaySecs == 0;
+                if (client.isAutomaticReconnect() && !closed && hasActiveLinks()) {
+                    retryDelaySecs = Math.min(MAX_RETRY_DELAY_SECS, Math.max(1, 2 * retryDelaySecs));
+                    delay = retryDelaySecs;
+                }
+            }
+            String msg = "Failed to connect to MQTT with clientId " + client.getClientId() + ": " + e.getMessage();
+            if (delay > 0) {
+                msg += "; retrying in " + delay + " s";
+                retryExecutor.schedule(this::retryConnect, delay, TimeUnit.SECONDS);
+            }
+            // retries are only logged
+            if (firstFailure) {
+                for (LinkConnection conn : linksSnapshot()) {
+                    if (conn.active) {
+                        conn.eventProducer.sendWarning(msg);
+                    }
+                }
+            }
+            log.warn("{}", msg);
+            cf.completeExceptionally(e);
+        }
+
+        private synchronized void retryConnect() {
+            if (!closed && connectFuture == null && hasActiveLinks()) {
+                connect();
+            }
+        }
+
+        private boolean hasActiveLinks() {
+            for (LinkConnection conn : links) {
+                if (conn.active) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void disconnectIfUnused() {
+            if (hasActiveLinks()) {
+                return;
+            }
+            connectFuture = null;
+            retryDelaySecs = 0;
+            if (client.isConnected()) {
+                try {
+                    client.disconnect(null);
+                } catch (MqttException e) {
+                    log.warn("Error disconnecting from MQTT: {}", e.toString());
+                }
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            try {
+                if (client.isConnected()) {
+                    client.disconnect(new IMqttActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken t) {
+                            closeClient();
+                        }
+
+                        @Override
+                        public void onFailure(IMqttToken t, Throwable e) {
+                            log.warn("Error disconnecting from MQTT: {}", e.toString());
+                            closeClient();
+                        }
+                    });
+                } else {
+                    client.disconnectForcibly();
+                    closeClient();
+                }
+            } catch (MqttException e) {
+                log.warn("Error disconnecting from MQTT: {}", e.toString());
+            }
+        }
+
+        private void closeClient() {
+            try {
+                client.close();
+            } catch (MqttException e) {
+                log.warn("Error closing the MQTT client: {}", e.toString());
+            }
+        }
+
+        synchronized void addRoutes(List<Route> newRoutes) {
+            List<String> filters = new ArrayList<>();
+            List<Integer> qos = new ArrayList<>();
+            for (Route r : newRoutes) {
+                int previousQos = getSubscribedQos(r.filter);
+                routes.add(r);
+                dispatcher.add(r.matchFilter, r);
+                if (r.qos > previousQos) {
+                    filters.add(r.filter);
+                    qos.add(r.qos);
+                }
+            }
+            if (client.isConnected() && !filters.isEmpty()) {
+                brokerSubscribe(filters, qos);
+            }
+        }
+
+        /**
+         * Removes the routes of the link with the given listener, or all routes of the link if the listener is null.
+         */
+        synchronized void removeRoutes(LinkConnection conn, IMqttMessageListener listener) {
+            List<String> unused = new ArrayList<>();
+            for (var it = routes.iterator(); it.hasNext();) {
+                Route r = it.next();
+                if (r.conn == conn && (listener == null || r.listener == listener)) {
+                    it.remove();
+                    dispatcher.remove(r.matchFilter, r);
+                    if (getSubscribedQos(r.filter) < 0 && !unused.contains(r.filter)) {
+                        unused.add(r.filter);
+                    }
+                }
+            }
+            if (client.isConnected() && !unused.isEmpty()) {
+                try {
+                    client.unsubscribe(unused.toArray(new String[0]));
+                } catch (MqttException e) {
+                    log.warn("Failed to unsubscribe from {}: {}", unused, e.toString());
+                }
+            }
+        }
+
+        /**
+         * Returns the highest QoS requested for the filter, -1 if there is no subscription.
+         */
+        private int getSubscribedQos(String filter) {
+            int qos = -1;
+            for (Route r : routes) {
+                if (r.filter.equals(filter)) {
+                    qos = Math.max(qos, r.qos);
+                }
+            }
+            return qos;
+        }
+
+        private void brokerSubscribe(List<String> filters, List<Integer> qosList) {
+            String[] topics = filters.toArray(new String[0]);
+            int[] qos = new int[topics.length];
+            for (int i = 0; i < qos.length; i++) {
+                qos[i] = qosList.get(i);
+            }
+            try {
+                client.subscribe(topics, qos, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken t) {
+                        int[] granted = t.getGrantedQos();
+                        for (int i = 0; i < topics.length; i++) {
+                            if (i >= granted.length || granted[i] > 2) {
+                                subscriptionFailed(topics[i], new MqttException(
+                                        MqttException.REASON_CODE_SUBSCRIBE_FAILED));
+                            } else {
+                                log.info("Succesfully subscribed to {}", topics[i]);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken t, Throwable e) {
+                        for (String topic : topics) {
+                            subscriptionFailed(topic, e);
+                        }
+                    }
+                });
+            } catch (MqttException e) {
+                for (String topic : topics) {
+                    subscriptionFailed(topic, e);
+                }
+            }
+        }
+
+        private void subscriptionFailed(String filter, Throwable e) {
+            String msg = "Subscription to " + filter + " failed: " + e.getMessage();
+            log.warn("{}", msg);
+            Set<LinkConnection> affected = new LinkedHashSet<>();
+            synchronized (this) {
+                for (Route r : routes) {
+                    if (r.filter.equals(filter)) {
+                        affected.add(r.conn);
+                    }
+                }
+            }
+            for (LinkConnection conn : affected) {
+                conn.subscriptionFailure = e;
+                conn.eventProducer.sendWarning(msg);
+            }
+        }
+
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            if (reconnect) {
+                reconnections.incrementAndGet();
+                log.info("Reconnected to MQTT broker {}", serverURI);
+            }
+            // clean session: the subscriptions made before the connection or lost with the previous session
+            synchronized (this) {
+                List<String> filters = new ArrayList<>();
+                List<Integer> qos = new ArrayList<>();
+                for (Route r : routes) {
+                    int idx = filters.indexOf(r.filter);
+                    if (idx < 0) {
+                        filters.add(r.filter);
+                        qos.add(r.qos);
+                    } else if (qos.get(idx) < r.qos) {
+                        qos.set(idx, r.qos);
+                    }
+                }
+                if (!filters.isEmpty()) {
+                    brokerSubscribe(filters, qos);
+                }
+            }
+            for (LinkConnection conn : linksSnapshot()) {
+                Runnable handler = conn.connectedHandler;
+                if (handler != null && conn.active) {
+                    handler.run();
+                }
+            }
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            log.warn("MQTT connection of clientId {} lost: {}", client.getClientId(), cause == null ? null : cause
+                    .toString());
+            synchronized (this) {
+                if (!client.isAutomaticReconnect()) {
+                    connectFuture = null;
+                }
+            }
+            for (LinkConnection conn : linksSnapshot()) {
+                // the messages in flight are not going to be acknowledged on the new session
+                conn.inflight.set(0);
+                Consumer<Throwable> handler = conn.connectionLostHandler;
+                if (handler != null && conn.active) {
+                    handler.accept(cause);
+                }
+            }
+        }
+
+        /**
+         * Called on the Paho callback thread. An exception thrown from here would close the connection of all the
+         * links, so the errors of each link are caught and logged.
+         */
+        @Override
+        public void messageArrived(String topic, MqttMessage message) {
+            messagesIn.incrementAndGet();
+            inRateMeter.mark(message.getPayload().length);
+            dispatcher.forEachMatch(topic, message, SharedConnection::deliver);
+        }
+
+        private static void deliver(Route route, String topic, MqttMessage message) {
+            try {
+                route.listener.messageArrived(topic, message);
+            } catch (Exception e) {
+                route.conn.log.warn("Error processing message on topic {}", topic, e);
+            }
+        }
+
+        private synchronized List<LinkConnection> linksSnapshot() {
+            return new ArrayList<>(links);
+        }
+    }
+
+    static class Route {
+        final LinkConnection conn;
+        // filter subscribed on the broker
+        final String filter;
+        // filter matched against the topics of the received messages
+        final String matchFilter;
+        final int qos;
+        final IMqttMessageListener listener;
+
+        Route(LinkConnection conn, String filter, int qos, IMqttMessageListener listener) {
+            this.conn = conn;
+            this.filter = filter;
+            this.matchFilter = getMatchFilter(filter);
+            this.qos = qos;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * The view of a link on a shared broker connection.
+     */
+    public class LinkConnection {
+        final SharedConnection shared;
+        final String linkName;
+        final int maxInflight;
+        final String sharedGroup;
+        final Log log;
+        final EventProducer eventProducer;
+
+        final AtomicInteger inflight = new AtomicInteger();
+        final AtomicLong inflightRejected = new AtomicLong();
+        volatile boolean active;
+        volatile boolean closed;
+        volatile Throwable subscriptionFailure;
+        volatile Consumer<Throwable> connectionLostHandler;
+        volatile Runnable connectedHandler;
+        volatile IMqttActionListener publishListener;
+
+        // passed to the client for all the publishes of the link, so publishing does not allocate a listener
+        final IMqttActionListener deliveryListener = new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) {
+                deliveryDone();
+                var listener = publishListener;
+                if (listener != null) {
+                    listener.onSuccess(token);
+                }
+            }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable e) {
+                deliveryDone();
+                var listener = publishListener;
+                if (listener != null) {
+                    listener.onFailure(token, e);
+                }
+            }
+        };
+
+        LinkConnection(SharedConnection shared, String linkName, int maxInflight, String sharedGroup, Log log,
+                EventProducer eventProducer) {
+            this.shared = shared;
+            this.linkName = linkName;
+            this.maxInflight = maxInflight;
+            this.sharedGroup = sharedGroup;
+            this.log = log;
+            this.eventProducer = eventProducer;
+        }
+
+        /**
+         * Connects the shared client if it is not already connected.
+         * <p>
+         * The returned future is completed when the broker connection is established; failures are also reported as
+         * events.
+         */
+        public CompletableFuture<Void> connect() {
+            checkOpen();
+            subscriptionFailure = null;
+            active = true;
+            return shared.connect();
+        }
+
+        /**
+         * Connects and waits for the connection to be established, at most the configured connection timeout.
+         */
+        public void connectAndWait() throws MqttException {
+            var cf = connect();
+            try {
+                cf.get(Math.max(1, shared.client.getConnectionTimeout()) + 1L, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof MqttException me ? me : new MqttException(cause);
+            } catch (TimeoutException e) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MqttException(e);
+            }
+        }
+
+        /**
+         * Subscribes to a topic filter; the messages are passed to the listener on the Paho callback thread.
+         * <p>
+         * The subscription is kept until {@link #disconnect()}, including over reconnections. It can be made before
+         * the connection is established.
+         */
+        public void subscribe(String filter, int qos, IMqttMessageListener listener) {
+            subscribe(new String[] { filter }, new int[] { qos }, listener);
+        }
+
+        public void subscribe(String[] filters, int[] qos, IMqttMessageListener listener) {
+            checkOpen();
+            if (filters.length != qos.length) {
+                throw new IllegalArgumentException("Each topic filter must have a corresponding qos");
+            }
+            List<Route> newRoutes = new ArrayList<>(filters.length);
+            for (int i = 0; i < filters.length; i++) {
+                newRoutes.add(new Route(this, filters[i], qos[i], listener));
+            }
+            shared.addRoutes(newRoutes);
+        }
+
+        /**
+         * Subscribes to data topics which may be split between several Yamcs servers: if the link has a
+         * <code>sharedSubscriptionGroup</code>, the filters are subscribed as shared subscriptions of that group,
+         * otherwise this is the same as {@link #subscribe(String[], int[], IMqttMessageListener)}.
+         * <p>
+         * The shared subscriptions are a feature of MQTT 5 also supported for MQTT 3.1.1 clients by the common brokers
+         * (Mosquitto, EMQX, HiveMQ).
+         */
+        public void subscribeShared(String[] filters, int[] qos, IMqttMessageListener listener) {
+            if (sharedGroup == null) {
+                subscribe(filters, qos, listener);
+                return;
+            }
+            String[] shared = new String[filters.length];
+            for (int i = 0; i < filters.length; i++) {
+                shared[i] = SHARE_PREFIX + sharedGroup + "/" + filters[i];
+            }
+            subscribe(shared, qos, listener);
+        }
+
+        public void subscribeShared(String filter, int qos, IMqttMessageListener listener) {
+            subscribeShared(new String[] { filter }, new int[] { qos }, listener);
+        }
+
+        /**
+         * Removes the subscriptions made with the listener. The filters not used anymore by any link are unsubscribed
+         * on the broker.
+         */
+        public void unsubscribe(IMqttMessageListener listener) {
+            shared.removeRoutes(this, listener);
+        }
+
+        /**
+         * Publishes a message.
+         *
+         * @throws MqttException
+         *             with the reason code {@link MqttException#REASON_CODE_MAX_INFLIGHT} if the link has already
+         *             <code>maxInflight</code> messages not yet delivered, or if the client refuses the message.
+         */
+        public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext,
+                IMqttActionListener callback) throws MqttException {
+            return doPublish(topic, message, userContext, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken t) {
+                    deliveryDone();
+                    if (callback != null) {
+                        callback.onSuccess(t);
+                    }
+                }
+
+                @Override
+                public void onFailure(IMqttToken t, Throwable e) {
+                    deliveryDone();
+                    if (callback != null) {
+                        callback.onFailure(t, e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Publishes a message and notifies the delivery to the listener set with {@link #setPublishListener}, which
+         * finds what the message was about with {@link IMqttToken#getUserContext()}.
+         * <p>
+         * Unlike {@link #publish(String, MqttMessage, Object, IMqttActionListener)}, no listener is created for the
+         * message.
+         *
+         * @throws MqttException
+         *             as {@link #publish(String, MqttMessage, Object, IMqttActionListener)}
+         */
+        public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext)
+                throws MqttException {
+            return doPublish(topic, message, userContext, deliveryListener);
+        }
+
+        private IMqttDeliveryToken doPublish(String topic, MqttMessage message, Object userContext,
+                IMqttActionListener listener) throws MqttException {
+            if (inflight.incrementAndGet() > maxInflight) {
+                inflight.decrementAndGet();
+                inflightRejected.incrementAndGet();
+                throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+            }
+            try {
+                IMqttDeliveryToken token = shared.client.publish(topic, message, userContext, listener);
+                shared.messagesOut.incrementAndGet();
+                shared.outRateMeter.mark(message.getPayload().length);
+                return token;
+            } catch (MqttException | RuntimeException e) {
+                deliveryDone();
+                throw e;
+            }
+        }
+
+        private void deliveryDone() {
+            // the counter is reset when the connection is lost, the late completions must not make it negative
+            inflight.getAndUpdate(n -> n > 0 ? n - 1 : 0);
+        }
+
+        /**
+         * Removes the subscriptions of the link; the shared client is disconnected if no other link is connected.
+         */
+        public void disconnect() {
+            active = false;
+            shared.removeRoutes(this, null);
+            shared.disconnectIfUnused();
+        }
+
+        /**
+         * Disconnects and gives the connection back to the pool. The connection cannot be used anymore.
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            active = false;
+            shared.removeRoutes(this, null);
+            release(this);
+        }
+
+        public boolean isConnected() {
+            return active && shared.client.isConnected();
+        }
+
+        /**
+         * Returns true if a failed connection is retried, by the pool for the initial connection and by Paho after a
+         * connection loss.
+         */
+        public boolean isAutomaticReconnect() {
+            return shared.client.isAutomaticReconnect();
+        }
+
+        /**
+         * Returns the error of the last connection attempt if the connection is not established, null otherwise.
+         */
+        public Throwable getConnectFailure() {
+            return shared.client.isConnected() ? null : shared.connectFailure;
+        }
+
+        /**
+         * Describes the connection and subscription problems for the detailed status of the link, empty if there is
+         * none.
+         */
+        public String getDetailedStatus() {
+            Throwable e = getConnectFailure();
+            if (active && e != null) {
+                return "Failed to connect to MQTT: " + e.getMessage() + (isAutomaticReconnect() ? ", retrying" : "");
+            }
+            e = subscriptionFailure;
+            if (e != null) {
+                return "MQTT subscription failed: " + e.getMessage();
+            }
+            return "";
+        }
+
+        /**
+         * Returns the error of the last failed subscription, null if all the subscriptions succeeded.
+         */
+        public Throwable getSubscriptionFailure() {
+            return subscriptionFailure;
+        }
+
+        /**
+         * Sets a handler called (on the Paho thread) when the broker connection is lost while the link is connected.
+         */
+        public void setConnectionLostHandler(Consumer<Throwable> handler) {
+            this.connectionLostHandler = handler;
+        }
+
+        /**
+         * Sets a handler called (on the Paho thread) when the broker connection is established or re-established, after
+         * the subscriptions have been renewed.
+         */
+        public void setConnectedHandler(Runnable handler) {
+            this.connectedHandler = handler;
+        }
+
+        /**
+         * Sets the listener notified (on the Paho thread) of the delivery of the messages published with
+         * {@link #publish(String, MqttMessage, Object)}.
+         */
+        public void setPublishListener(IMqttActionListener listener) {
+            this.publishListener = listener;
+        }
+
+        public String getClientId() {
+            return shared.client.getClientId();
+        }
+
+        /**
+         * Adds the connection statistics to the extra info of the link.
+         */
+        public void addExtraInfo(Map<String, Object> extra) {
+            var client = shared.client;
+            extra.put("MQTT broker", client.isConnected() ? client.getCurrentServerURI() : client.getServerURI());
+            extra.put("MQTT clientId", client.getClientId());
+            extra.put("MQTT version", client.getProtocolVersion());
+            if (sharedGroup != null) {
+                extra.put("Shared subscription group", sharedGroup);
+            }
+            extra.put("Links on connection", shared.linksSnapshot().size());
+            extra.put("Connection messages in", shared.messagesIn.get());
+            extra.put("Connection messages out", shared.messagesOut.get());
+            extra.put("Connection in rate (B/s)", Math.round(shared.inRateMeter.getFiveSecondsRate()));
+            extra.put("Connection out rate (B/s)", Math.round(shared.outRateMeter.getFiveSecondsRate()));
+            extra.put("Reconnections", shared.reconnections.get());
+            extra.put("Messages in flight", inflight.get() + "/" + maxInflight);
+            extra.put("Rejected (max in flight)", inflightRejected.get());
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("The MQTT connection of " + linkName + " is closed");
+            }
+        }
+    }
+}
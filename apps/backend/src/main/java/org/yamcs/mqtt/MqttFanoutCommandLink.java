@@ -3,22 +3,21 @@ package org.yamcs.mqtt;
 import com.google.gson.Gson;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
-import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.CommandOption;
@@ -31,12 +30,27 @@ import org.yamcs.YamcsServer;
 import org.yamcs.cmdhistory.CommandHistoryPublisher;
 import org.yamcs.cmdhistory.CommandHistoryPublisher.AckStatus;
 import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
+import org.yamcs.mrt.utils.LatencyHistogram;
+import org.yamcs.mrt.utils.TimerWheel;
 import org.yamcs.tctm.AbstractTcDataLink;
+import org.yamcs.utils.DataRateMeter;
 
 /**
  * Sends one logical Yamcs command to multiple configured MQTT targets and aggregates their acks.
+ *
+ * <p>The commands in flight are kept in a table indexed by their 8-bit sequence count; slots are
+ * claimed and released with compare-and-set, so dispatching and ack handling do not contend on a
+ * link-wide lock. Within a dispatch, the targets that published, failed or acked are tracked as
+ * bitmasks of target indexes, so recording an ack takes the same time whatever the number of
+ * targets.
+ *
+ * <p>The acks a target has not sent within its <code>ackTimeoutSecs</code> are published as NOK
+ * and a command still in flight after <code>commandTimeoutSecs</code> is completed as failed;
+ * either way its sequence slot is freed for the next commands. The timeouts run on the shared
+ * {@link TimerWheel}.
  */
-public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCallback {
+public class MqttFanoutCommandLink extends AbstractTcDataLink implements IMqttMessageListener {
 
   static final String TARGET_SYSTEM_A_OPTION_ID = "mqttFanoutSystemA";
   static final String TARGET_SYSTEM_B_OPTION_ID = "mqttFanoutSystemB";
@@ -47,23 +61,68 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
   private static final int DEFAULT_ACK_ID_BYTE_INDEX = 3;
   private static final int FIRST_SEQUENCE = 1;
   private static final int MAX_SEQUENCE = 255;
+  // a batch cannot use a sequence count twice
+  private static final int MAX_BATCH_SIZE = MAX_SEQUENCE - FIRST_SEQUENCE + 1;
+  // one bit per target in the dispatch masks
+  private static final int MAX_TARGETS = Long.SIZE;
+  private static final int DEFAULT_ACK_TIMEOUT_SECS = 10;
+  private static final int DEFAULT_COMMAND_TIMEOUT_SECS = 30;
+  private static final int DEFAULT_COMMAND_WINDOW = 32;
+  private static final String ACK_TIMEOUT_MESSAGE = "Ack timeout";
+  // flags returned by DispatchState.recordAckTimeout
+  private static final int MISSING_FC_ACK = 1;
+  private static final int MISSING_RADIO_TX_ACK = 2;
+  private static final int MISSING_RADIO_RX_ACK = 4;
   private static final int RESET_AV_ACK_SEQUENCE = 0;
   private static final String RESET_AV_COMMAND_NAME = "reset_av";
   private static final String RESET_AV_COMMAND_CODE = "rs";
   private static final Gson GSON = new Gson();
 
   private String detailedStatus = "Not started.";
-  private MqttAsyncClient client;
-  private MqttConnectOptions connOpts;
+  private LinkConnection client;
   private boolean commandCountingEnabled = true;
+  private int commandTimeoutSecs;
+  private int commandWindow;
+  private int sequenceWarningThreshold;
 
   private List<Target> targets = List.of();
   private Map<String, AckRoute> ackRouteByTopic = Map.of();
 
   private final AtomicInteger currentCommandId = new AtomicInteger(1);
-  private final Map<Integer, DispatchState> dispatchBySequence = new ConcurrentHashMap<>();
-  private volatile DispatchState uncountedDispatch;
-  private volatile DispatchState pendingResetAvDispatch;
+  private final AtomicReferenceArray<DispatchState> dispatchBySequence =
+      new AtomicReferenceArray<>(MAX_SEQUENCE + 1);
+  private final AtomicReference<DispatchState> uncountedDispatch = new AtomicReference<>();
+  private final AtomicReference<DispatchState> pendingResetAvDispatch = new AtomicReference<>();
+
+  private final AtomicInteger sequencesInFlight = new AtomicInteger();
+  private final AtomicInteger peakSequencesInFlight = new AtomicInteger();
+  private final AtomicBoolean sequenceWarningSent = new AtomicBoolean();
+  private final AtomicLong ackTimeoutCount = new AtomicLong();
+  private final AtomicLong commandTimeoutCount = new AtomicLong();
+
+  // publishes sent and not yet confirmed by the broker, and those waiting for the window
+  private final AtomicInteger publishesInFlight = new AtomicInteger();
+  private final Queue<CommandPublish> waitingPublishes = new ConcurrentLinkedQueue<>();
+  private final DataRateMeter commandRateMeter = new DataRateMeter();
+  private final LatencyHistogram firstAckLatency = new LatencyHistogram();
+
+  /** Listener of all the command publishes of the link. */
+  private final IMqttActionListener publishListener =
+      new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+          publishCompleted();
+          CommandPublish publish = (CommandPublish) token.getUserContext();
+          handlePublishSuccess(publish.dispatch(), publish.target());
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+          publishCompleted();
+          CommandPublish publish = (CommandPublish) token.getUserContext();
+          handlePublishFailure(publish.dispatch(), publish.target(), exception);
+        }
+      };
 
   @Override
   public void init(String yamcsInstance, String linkName, YConfiguration config)
@@ -71,9 +130,16 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     super.init(yamcsInstance, linkName, config);
 
     registerCommandOption();
-    connOpts = MqttUtils.getConnectionOptions(config);
-    client = MqttUtils.newClient(config);
+    client = MqttConnectionPool.getInstance().acquire(linkName, config, log, eventProducer);
+    client.setConnectionLostHandler(this::connectionLost);
+    client.setPublishListener(publishListener);
     commandCountingEnabled = config.getBoolean("commandCountingEnabled", true);
+    commandTimeoutSecs = config.getInt("commandTimeoutSecs", DEFAULT_COMMAND_TIMEOUT_SECS);
+    commandWindow = config.getInt("commandWindow", DEFAULT_COMMAND_WINDOW);
+    if (commandWindow <= 0) {
+      commandWindow = Integer.MAX_VALUE;
+    }
+    sequenceWarningThreshold = config.getInt("sequenceWarningThreshold", 3 * MAX_SEQUENCE / 4);
     targets = loadTargets(config);
 
     Map<String, AckRoute> ackRoutes = new LinkedHashMap<>();
@@ -96,6 +162,14 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     Spec spec = getDefaultSpec();
     MqttUtils.addConnectionOptionsToSpec(spec);
     spec.addOption("commandCountingEnabled", OptionType.BOOLEAN).withDefault(true);
+    spec.addOption("ackTimeoutSecs", OptionType.INTEGER).withDefault(DEFAULT_ACK_TIMEOUT_SECS);
+    spec.addOption("commandTimeoutSecs", OptionType.INTEGER)
+        .withDefault(DEFAULT_COMMAND_TIMEOUT_SECS);
+    // maximum number of command publishes not yet confirmed by the broker, 0 for no limit
+    spec.addOption("commandWindow", OptionType.INTEGER).withDefault(DEFAULT_COMMAND_WINDOW);
+    // number of sequences in flight above which a warning event is sent
+    spec.addOption("sequenceWarningThreshold", OptionType.INTEGER)
+        .withDefault(3 * MAX_SEQUENCE / 4);
 
     Spec targetSpec = new Spec();
     targetSpec.addOption("name", OptionType.STRING).withRequired(true);
@@ -114,6 +188,8 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     targetSpec
         .addOption("ackIdByteIndex", OptionType.INTEGER)
         .withDefault(DEFAULT_ACK_ID_BYTE_INDEX);
+    // defaults to the link's ackTimeoutSecs
+    targetSpec.addOption("ackTimeoutSecs", OptionType.INTEGER).withRequired(false);
     targetSpec.requireOneOf("baseTopic", "commandTopic");
     targetSpec.requireOneOf("baseTopic", "ackTopic", "statusAckTopic");
 
@@ -145,12 +221,14 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
 
   @Override
   protected void doStop() {
-    MqttUtils.doStop(client, this::notifyStopped, this::notifyFailed);
+    client.close();
+    failWaitingPublishes();
+    notifyStopped();
   }
 
   @Override
   protected void doDisable() throws Exception {
-    MqttUtils.doDisable(client);
+    client.disconnect();
   }
 
   @Override
@@ -168,29 +246,140 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     return detailedStatus;
   }
 
+  @Override
+  public Map<String, Object> getExtraInfo() {
+    Map<String, Object> extra = new LinkedHashMap<>();
+    client.addExtraInfo(extra);
+    if (commandCountingEnabled) {
+      extra.put("Sequences in flight", sequencesInFlight.get() + "/" + MAX_SEQUENCE);
+      extra.put("Peak sequences in flight", peakSequencesInFlight.get());
+    }
+    extra.put("Command rate (cmd/s)", Math.round(commandRateMeter.getFiveSecondsRate()));
+    extra.put("Publishes in flight", publishesInFlight.get());
+    extra.put("Publishes waiting", waitingPublishes.size());
+    extra.put(
+        "Time to first ack p50 (ms)",
+        LatencyHistogram.toMillis(firstAckLatency.getPercentileMicros(0.5)));
+    extra.put(
+        "Time to first ack p99 (ms)",
+        LatencyHistogram.toMillis(firstAckLatency.getPercentileMicros(0.99)));
+    extra.put("Ack timeouts", ackTimeoutCount.get());
+    extra.put("Command timeouts", commandTimeoutCount.get());
+    return extra;
+  }
+
   @Override
   public boolean sendCommand(PreparedCommand preparedCommand) {
+    ResolvedTargetSelection targetSelection = prepareCommand(preparedCommand);
+    if (targetSelection == null) {
+      return false;
+    }
+
+    int sequence = commandCountingEnabled ? reserveSequences(1) : 0;
+    DispatchState dispatch = startDispatch(preparedCommand, targetSelection, sequence);
+    return dispatch != null && publishDispatch(dispatch);
+  }
+
+  /**
+   * Sends a burst of commands, e.g. the steps of a procedure, in the given order.
+   *
+   * <p>The sequence counts of the valid commands are reserved in one step and are consecutive
+   * (modulo the wrap to {@value #FIRST_SEQUENCE}). All the publishes are queued at once and sent
+   * as the <code>commandWindow</code> allows, without waiting for the acks; each command keeps its
+   * own ack accounting as if it had been sent by {@link #sendCommand}.
+   *
+   * <p>A batch has at most {@value #MAX_BATCH_SIZE} commands, the number of sequence counts, and
+   * needs <code>commandCountingEnabled</code>: without sequence counts the status acks cannot be
+   * matched to the commands of a batch. Batches that do not meet these conditions are failed
+   * entirely.
+   *
+   * <p>Yamcs hands the commands to the link one at a time, so this is not reachable from a procedure
+   * yet; it is used by the burst benchmark.
+   *
+   * @return the number of commands sent; the others have been failed in the command history
+   */
+  int sendCommands(List<PreparedCommand> preparedCommands) {
+    String batchError = null;
+    if (!commandCountingEnabled && preparedCommands.size() > 1) {
+      batchError = "Command batches require commandCountingEnabled";
+    } else if (preparedCommands.size() > MAX_BATCH_SIZE) {
+      batchError =
+          "Command batch of "
+              + preparedCommands.size()
+              + " exceeds the maximum of "
+              + MAX_BATCH_SIZE
+              + " commands";
+    }
+    if (batchError != null) {
+      for (PreparedCommand preparedCommand : preparedCommands) {
+        failedCommand(preparedCommand.getCommandId(), batchError);
+      }
+      return 0;
+    }
+
+    List<PreparedCommand> validCommands = new ArrayList<>(preparedCommands.size());
+    List<ResolvedTargetSelection> targetSelections = new ArrayList<>(preparedCommands.size());
+    for (PreparedCommand preparedCommand : preparedCommands) {
+      ResolvedTargetSelection targetSelection = prepareCommand(preparedCommand);
+      if (targetSelection != null) {
+        validCommands.add(preparedCommand);
+        targetSelections.add(targetSelection);
+      }
+    }
+    if (validCommands.isEmpty()) {
+      return 0;
+    }
+
+    int sequence = commandCountingEnabled ? reserveSequences(validCommands.size()) : 0;
+    List<DispatchState> dispatches = new ArrayList<>(validCommands.size());
+    for (int i = 0; i < validCommands.size(); i++) {
+      DispatchState dispatch =
+          startDispatch(validCommands.get(i), targetSelections.get(i), sequence);
+      if (dispatch != null) {
+        dispatches.add(dispatch);
+      }
+      if (commandCountingEnabled) {
+        sequence = advanceSequence(sequence, 1);
+      }
+    }
+
+    int sent = 0;
+    for (DispatchState dispatch : dispatches) {
+      if (publishDispatch(dispatch)) {
+        sent++;
+      }
+    }
+    return sent;
+  }
+
+  /** Encodes the command and resolves its targets; returns null if the command has failed. */
+  private ResolvedTargetSelection prepareCommand(PreparedCommand preparedCommand) {
     byte[] binary = postprocess(preparedCommand);
     if (binary == null) {
-      return false;
+      return null;
     }
     preparedCommand.setBinary(binary);
 
     String commandCode = preparedCommand.getMetaCommand().getShortDescription();
     if (commandCode == null || commandCode.isBlank()) {
       failedCommand(preparedCommand.getCommandId(), "Command shortDescription is required");
-      return false;
+      return null;
     }
 
-    ResolvedTargetSelection targetSelection = resolveTargets(preparedCommand);
-    if (targetSelection == null) {
-      return false;
-    }
+    return resolveTargets(preparedCommand);
+  }
 
-    int sequence = commandCountingEnabled ? nextSequence() : 0;
+  /**
+   * Registers the dispatch under its sequence and publishes the pending acks; returns null if the
+   * command has failed.
+   */
+  private DispatchState startDispatch(
+      PreparedCommand preparedCommand, ResolvedTargetSelection targetSelection, int sequence) {
+    String commandCode = preparedCommand.getMetaCommand().getShortDescription();
     DispatchState dispatch =
         new DispatchState(
             preparedCommand,
+            commandCode,
             sequence,
             targetSelection.selectedTargets(),
             commandCountingEnabled ? AckTrackingMode.COUNTED : AckTrackingMode.STATUS,
@@ -198,8 +387,9 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     String reservationError = registerDispatch(dispatch);
     if (reservationError != null) {
       failedCommand(preparedCommand.getCommandId(), reservationError);
-      return false;
+      return null;
     }
+    scheduleTimeouts(dispatch);
 
     commandHistoryPublisher.publish(preparedCommand.getCommandId(), "Command_Id", commandCode);
     if (commandCountingEnabled) {
@@ -238,46 +428,94 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
       }
     }
 
-    String payload = commandCountingEnabled ? sequence + "," + commandCode : commandCode;
-    MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
-    int attemptedPublishes = 0;
+    return dispatch;
+  }
+
+  /** Queues the publishes of the command to each of its targets. */
+  private boolean publishDispatch(DispatchState dispatch) {
+    if (dispatch.requestedTargets().isEmpty()) {
+      releaseDispatch(dispatch);
+      failedCommand(dispatch.commandId(), "No command targets are configured");
+      return false;
+    }
+
+    byte[] payload =
+        commandCountingEnabled
+            ? CommandPayloadEncoder.encode(dispatch.sequence(), dispatch.commandCode())
+            : CommandPayloadEncoder.encode(dispatch.commandCode());
+    // the same message is published to all the targets
+    MqttMessage message = new MqttMessage(payload);
+    for (Target target : dispatch.requestedTargets()) {
+      waitingPublishes.add(new CommandPublish(dispatch, target, message));
+    }
+    commandRateMeter.mark(1);
+    drainPublishes();
+    return true;
+  }
+
+  /**
+   * Publishes the waiting messages, in order, while fewer than <code>commandWindow</code> are
+   * unconfirmed. Called after queuing messages and whenever a publish completes.
+   */
+  private void drainPublishes() {
+    while (true) {
+      int inFlight = publishesInFlight.get();
+      if (inFlight >= commandWindow) {
+        return;
+      }
+      if (!publishesInFlight.compareAndSet(inFlight, inFlight + 1)) {
+        continue;
+      }
+
+      CommandPublish publish = waitingPublishes.poll();
+      if (publish == null) {
+        publishesInFlight.decrementAndGet();
+        // a message queued while we held the slot would have seen the window full
+        if (waitingPublishes.isEmpty()) {
+          return;
+        }
+        continue;
+      }
+      if (publish.dispatch().isReleased()) {
+        // the command timed out or failed while waiting for the window
+        publishesInFlight.decrementAndGet();
+        continue;
+      }
 
-    for (Target target : targetSelection.selectedTargets()) {
       try {
-        attemptedPublishes++;
-        client.publish(
-            target.commandTopic(),
-            message,
-            null,
-            new IMqttActionListener() {
-              @Override
-              public void onSuccess(IMqttToken asyncActionToken) {
-                handlePublishSuccess(dispatch, target);
-              }
-
-              @Override
-              public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-                handlePublishFailure(dispatch, target, exception);
-              }
-            });
-
-        dataOut(1, message.getPayload().length);
+        client.publish(publish.target().commandTopic(), publish.message(), publish);
+        dataOut(1, publish.message().getPayload().length);
       } catch (MqttException e) {
-        handlePublishFailure(dispatch, target, e);
+        publishesInFlight.decrementAndGet();
+        handlePublishFailure(publish.dispatch(), publish.target(), e);
       }
     }
+  }
 
-    if (attemptedPublishes == 0) {
-      releaseDispatch(dispatch);
-      failedCommand(preparedCommand.getCommandId(), "No command targets are configured");
-      return false;
+  private void publishCompleted() {
+    publishesInFlight.decrementAndGet();
+    drainPublishes();
+  }
+
+  /** Fails the publishes still waiting for the window, called when the link stops. */
+  private void failWaitingPublishes() {
+    CommandPublish publish;
+    while ((publish = waitingPublishes.poll()) != null) {
+      handlePublishFailure(
+          publish.dispatch(),
+          publish.target(),
+          new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
     }
+  }
 
-    return true;
+  private void recordFirstAck(DispatchState dispatch) {
+    long latencyNanos = dispatch.markFirstAck();
+    if (latencyNanos >= 0) {
+      firstAckLatency.recordNanos(latencyNanos);
+    }
   }
 
-  @Override
-  public void connectionLost(Throwable cause) {
+  private void connectionLost(Throwable cause) {
     String message =
         cause == null || cause.getMessage() == null ? "unknown cause" : cause.getMessage();
     detailedStatus = "MQTT connection lost: " + message;
@@ -329,6 +567,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     if (!dispatch.recordFlightComputerAck(target, ack.completionRejected())) {
       return;
     }
+    recordFirstAck(dispatch);
 
     commandHistoryPublisher.publishAck(
         dispatch.commandId(), target.fcAckKey(), timeService.getMissionTime(), AckStatus.OK);
@@ -350,9 +589,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
           AckStatus.OK);
     }
 
-    if (dispatch.canRemove()) {
-      releaseDispatch(dispatch);
-    }
+    releaseIfDone(dispatch);
   }
 
   private void handleRadioAck(Target target, MqttMessage message) {
@@ -384,6 +621,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     if (!dispatch.recordRadioAck(target, phase)) {
       return;
     }
+    recordFirstAck(dispatch);
 
     commandHistoryPublisher.publishAck(
         dispatch.commandId(),
@@ -392,9 +630,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
         ackStatus,
         ackStatus == AckStatus.OK ? null : ack.status);
 
-    if (dispatch.canRemove()) {
-      releaseDispatch(dispatch);
-    }
+    releaseIfDone(dispatch);
   }
 
   private void handleStatusAck(Target target, MqttMessage message) {
@@ -416,7 +652,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
       return;
     }
 
-    DispatchState dispatch = uncountedDispatch;
+    DispatchState dispatch = uncountedDispatch.get();
     if (dispatch == null || !dispatch.includesTarget(target)) {
       log.debug(
           "Ignoring command status {} from {} because no dispatch is in flight",
@@ -429,6 +665,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     if (!dispatch.recordStatusAck(target, ackStatus, ack.status)) {
       return;
     }
+    recordFirstAck(dispatch);
 
     if (!dispatch.isPublishResultsFinalized()) {
       return;
@@ -447,9 +684,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
           AckStatus.OK);
     }
 
-    if (dispatch.canRemove()) {
-      releaseDispatch(dispatch);
-    }
+    releaseIfDone(dispatch);
   }
 
   private AckStatus toAckStatus(String status) {
@@ -462,10 +697,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     return AckStatus.CANCELLED;
   }
 
-  @Override
-  public void deliveryComplete(IMqttDeliveryToken token) {}
-
-  private FlightComputerAck tryReadAckSequence(Target target, byte[] payload) {
+  FlightComputerAck tryReadAckSequence(Target target, byte[] payload) {
     int maxIndex = Math.max(target.ackFlagByteIndex(), target.ackIdByteIndex());
     if (payload.length <= maxIndex) {
       log.warn(
@@ -479,8 +711,12 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     byte flags = payload[target.ackFlagByteIndex()];
     boolean ackFlag = ((flags >> target.ackFlagBitIndex()) & 1) == 1;
     boolean completionRejected = ((flags >> DEFAULT_COMMAND_FLAG_BIT_INDEX) & 1) == 1;
-    String flagBits = String.format("%8s", Integer.toBinaryString(flags & 0xFF)).replace(' ', '0');
-    log.info("Received FC flags from {}: {}", target.name(), flagBits);
+    // called for every FC frame: only format the flags when they are logged
+    if (log.isDebugEnabled()) {
+      String flagBits =
+          String.format("%8s", Integer.toBinaryString(flags & 0xFF)).replace(' ', '0');
+      log.debug("Received FC flags from {}: {}", target.name(), flagBits);
+    }
     if (!ackFlag) {
       return null;
     }
@@ -489,8 +725,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
   }
 
   private void connectAndSubscribe() throws MqttException {
-    client.setCallback(this);
-    client.connect(connOpts).waitForCompletion();
+    client.connectAndWait();
 
     if (targets.isEmpty() || ackRouteByTopic.isEmpty()) {
       return;
@@ -504,7 +739,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
       qos[i] = 1;
       i++;
     }
-    client.subscribe(topics, qos).waitForCompletion();
+    client.subscribe(topics, qos, this);
   }
 
   private ResolvedTargetSelection resolveTargets(PreparedCommand preparedCommand) {
@@ -538,7 +773,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     return new ResolvedTargetSelection(selectedTargets.get(0).name(), List.copyOf(selectedTargets));
   }
 
-  private Target findTarget(String candidate) {
+  Target findTarget(String candidate) {
     for (Target target : targets) {
       if (target.matches(candidate)) {
         return target;
@@ -576,11 +811,8 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
   }
 
   private void handlePublishFailure(DispatchState dispatch, Target target, Throwable error) {
-    String errorMessage =
-        error == null || error.getMessage() == null
-            ? "Unknown publish failure"
-            : error.getMessage();
-    DispatchProgress progress = dispatch.recordPublishFailure(target, errorMessage);
+    log.debug("Publishing command to {} failed", target.name(), error);
+    DispatchProgress progress = dispatch.recordPublishFailure(target);
     if (!progress.recorded()) {
       return;
     }
@@ -640,7 +872,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
       return;
     }
 
-    if (dispatch.failedTargets().isEmpty()) {
+    if (!dispatch.hasFailedTargets()) {
       ackCommand(dispatch.commandId());
       if (dispatch.hasStatusFailure()) {
         completeStatusFailure(dispatch);
@@ -657,9 +889,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
             timeService.getMissionTime(),
             AckStatus.OK);
       }
-      if (dispatch.canRemove()) {
-        releaseDispatch(dispatch);
-      }
+      releaseIfDone(dispatch);
       return;
     }
 
@@ -673,12 +903,10 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
         AckStatus.CANCELLED,
         failureMessage);
 
-    if (dispatch.isFinished()) {
-      releaseDispatch(dispatch);
-    }
+    releaseIfDone(dispatch);
   }
 
-  private AckDto parseAck(Target target, MqttMessage message, String ackType) {
+  AckDto parseAck(Target target, MqttMessage message, String ackType) {
     String payload = new String(message.getPayload(), StandardCharsets.UTF_8).trim();
     AckDto ack;
     try {
@@ -727,7 +955,8 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     }
   }
 
-  private int nextSequence() {
+  /** Reserves <code>count</code> consecutive sequences and returns the first one. */
+  int reserveSequences(int count) {
     while (true) {
       int current = currentCommandId.get();
       int sequence = current;
@@ -735,64 +964,192 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
         sequence = FIRST_SEQUENCE;
       }
 
-      int next = sequence >= MAX_SEQUENCE ? FIRST_SEQUENCE : sequence + 1;
-      if (currentCommandId.compareAndSet(current, next)) {
+      if (currentCommandId.compareAndSet(current, advanceSequence(sequence, count))) {
         return sequence;
       }
     }
   }
 
-  private String registerDispatch(DispatchState dispatch) {
-    if (dispatch.ackTrackingMode() == AckTrackingMode.COUNTED) {
-      synchronized (this) {
-        if (dispatch.isResetAv() && pendingResetAvDispatch != null) {
-          return "Reset AV command is still in flight; refusing to overwrite reserved ack sequence"
-              + " 0";
-        }
-
-        DispatchState previous = dispatchBySequence.putIfAbsent(dispatch.sequence(), dispatch);
-        if (previous != null) {
-          return "Sequence "
-              + dispatch.sequence()
-              + " is still in flight; refusing to overwrite dispatch state";
-        }
+  static int advanceSequence(int sequence, int count) {
+    int range = MAX_SEQUENCE - FIRST_SEQUENCE + 1;
+    return FIRST_SEQUENCE + (sequence - FIRST_SEQUENCE + count) % range;
+  }
 
-        if (dispatch.isResetAv()) {
-          pendingResetAvDispatch = dispatch;
-        }
+  private String registerDispatch(DispatchState dispatch) {
+    if (dispatch.ackTrackingMode() == AckTrackingMode.STATUS) {
+      uncountedDispatch.set(dispatch);
+      return null;
+    }
 
-        return null;
-      }
+    if (dispatch.isResetAv() && !pendingResetAvDispatch.compareAndSet(null, dispatch)) {
+      return "Reset AV command is still in flight; refusing to overwrite reserved ack sequence 0";
     }
 
-    synchronized (this) {
-      uncountedDispatch = dispatch;
+    if (!dispatchBySequence.compareAndSet(dispatch.sequence(), null, dispatch)) {
+      if (dispatch.isResetAv()) {
+        pendingResetAvDispatch.compareAndSet(dispatch, null);
+      }
+      return "Sequence "
+          + dispatch.sequence()
+          + " is still in flight; refusing to overwrite dispatch state";
     }
 
+    sequenceReserved();
     return null;
   }
 
   private void releaseDispatch(DispatchState dispatch) {
+    if (!dispatch.markReleased()) {
+      return;
+    }
+    dispatch.cancelTimeouts();
+
     if (dispatch.ackTrackingMode() == AckTrackingMode.COUNTED) {
-      synchronized (this) {
-        dispatchBySequence.remove(dispatch.sequence(), dispatch);
-        if (pendingResetAvDispatch == dispatch) {
-          pendingResetAvDispatch = null;
-        }
+      if (dispatchBySequence.compareAndSet(dispatch.sequence(), dispatch, null)) {
+        sequenceReleased();
       }
+      pendingResetAvDispatch.compareAndSet(dispatch, null);
+      return;
+    }
+
+    uncountedDispatch.compareAndSet(dispatch, null);
+  }
+
+  /**
+   * Releases the dispatch once no more acks are expected, completing it as failed first if some
+   * targets timed out before all the FC acks arrived.
+   */
+  private void releaseIfDone(DispatchState dispatch) {
+    if (!dispatch.canRemove()) {
       return;
     }
 
-    synchronized (this) {
-      if (uncountedDispatch == dispatch) {
-        uncountedDispatch = null;
+    if (dispatch.hasTimedOutTargets() && dispatch.markCompletionTimedOut()) {
+      commandHistoryPublisher.publishAck(
+          dispatch.commandId(),
+          CommandHistoryPublisher.CommandComplete_KEY,
+          timeService.getMissionTime(),
+          AckStatus.NOK,
+          ACK_TIMEOUT_MESSAGE + " on " + String.join(", ", dispatch.timedOutAckNames()));
+    }
+    releaseDispatch(dispatch);
+  }
+
+  private void sequenceReserved() {
+    int inFlight = sequencesInFlight.incrementAndGet();
+    peakSequencesInFlight.accumulateAndGet(inFlight, Math::max);
+    if (inFlight >= sequenceWarningThreshold && sequenceWarningSent.compareAndSet(false, true)) {
+      eventProducer.sendWarning(
+          inFlight
+              + " of "
+              + MAX_SEQUENCE
+              + " command sequences are waiting for acks; new commands will be refused when"
+              + " they are all in use");
+    }
+  }
+
+  private void sequenceReleased() {
+    int inFlight = sequencesInFlight.decrementAndGet();
+    if (inFlight <= sequenceWarningThreshold / 2) {
+      sequenceWarningSent.set(false);
+    }
+  }
+
+  private void scheduleTimeouts(DispatchState dispatch) {
+    TimerWheel timer = TimerWheel.getShared();
+    dispatch.addTimeout(
+        timer.schedule(commandTimeoutSecs, TimeUnit.SECONDS, () -> handleCommandTimeout(dispatch)));
+    if (dispatch.ackTrackingMode() != AckTrackingMode.COUNTED) {
+      return;
+    }
+    for (Target target : dispatch.requestedTargets()) {
+      if (target.ackTimeoutSecs() < commandTimeoutSecs) {
+        dispatch.addTimeout(
+            timer.schedule(
+                target.ackTimeoutSecs(),
+                TimeUnit.SECONDS,
+                () -> handleAckTimeout(dispatch, target)));
+      }
+    }
+  }
+
+  /** Called on the timer thread when a target has not sent all its acks in time. */
+  private void handleAckTimeout(DispatchState dispatch, Target target) {
+    if (publishMissingAcks(dispatch, target)) {
+      releaseIfDone(dispatch);
+    }
+  }
+
+  private boolean publishMissingAcks(DispatchState dispatch, Target target) {
+    int missing = dispatch.recordAckTimeout(target);
+    if (missing == 0) {
+      return false;
+    }
+
+    ackTimeoutCount.incrementAndGet();
+    log.debug("Ack timeout for command {} on {}", dispatch.sequence(), target.name());
+    long missionTime = timeService.getMissionTime();
+    if ((missing & MISSING_RADIO_TX_ACK) != 0) {
+      commandHistoryPublisher.publishAck(
+          dispatch.commandId(),
+          target.radioTxAckKey(),
+          missionTime,
+          AckStatus.NOK,
+          ACK_TIMEOUT_MESSAGE);
+    }
+    if ((missing & MISSING_RADIO_RX_ACK) != 0) {
+      commandHistoryPublisher.publishAck(
+          dispatch.commandId(),
+          target.radioRxAckKey(),
+          missionTime,
+          AckStatus.NOK,
+          ACK_TIMEOUT_MESSAGE);
+    }
+    if ((missing & MISSING_FC_ACK) != 0) {
+      commandHistoryPublisher.publishAck(
+          dispatch.commandId(), target.fcAckKey(), missionTime, AckStatus.NOK, ACK_TIMEOUT_MESSAGE);
+    }
+    return true;
+  }
+
+  /** Called on the timer thread when a command is still in flight after commandTimeoutSecs. */
+  private void handleCommandTimeout(DispatchState dispatch) {
+    if (dispatch.isReleased()) {
+      return;
+    }
+
+    commandTimeoutCount.incrementAndGet();
+    String detail = "Command timed out after " + commandTimeoutSecs + " s";
+    if (dispatch.ackTrackingMode() == AckTrackingMode.COUNTED) {
+      for (Target target : dispatch.requestedTargets()) {
+        publishMissingAcks(dispatch, target);
       }
     }
+    if (dispatch.forcePublishResultsFinalized()) {
+      // the broker never confirmed the publishes
+      failedCommand(dispatch.commandId(), detail);
+    }
+    if (dispatch.markCompletionTimedOut()) {
+      commandHistoryPublisher.publishAck(
+          dispatch.commandId(),
+          CommandHistoryPublisher.CommandComplete_KEY,
+          timeService.getMissionTime(),
+          AckStatus.NOK,
+          detail);
+    }
+    releaseDispatch(dispatch);
   }
 
   private List<Target> loadTargets(YConfiguration config) {
+    int defaultAckTimeoutSecs = config.getInt("ackTimeoutSecs", DEFAULT_ACK_TIMEOUT_SECS);
+    List<YConfiguration> targetConfigs = config.getConfigList("targets");
+    if (targetConfigs.size() > MAX_TARGETS) {
+      throw new ConfigurationException(
+          "At most " + MAX_TARGETS + " targets are supported, got " + targetConfigs.size());
+    }
+
     List<Target> loadedTargets = new ArrayList<>();
-    for (YConfiguration targetConfig : config.getConfigList("targets")) {
+    for (YConfiguration targetConfig : targetConfigs) {
       String name = targetConfig.getString("name");
       String ackName = targetConfig.getString("ackName", normalizeAckName(name));
       String baseTopic = targetConfig.getString("baseTopic", null);
@@ -806,6 +1163,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
 
       loadedTargets.add(
           new Target(
+              loadedTargets.size(),
               name,
               ackName,
               commandTopic,
@@ -814,7 +1172,8 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
               radioAckTopic,
               targetConfig.getInt("ackFlagByteIndex", DEFAULT_ACK_FLAG_BYTE_INDEX),
               targetConfig.getInt("ackFlagBitIndex", DEFAULT_ACK_FLAG_BIT_INDEX),
-              targetConfig.getInt("ackIdByteIndex", DEFAULT_ACK_ID_BYTE_INDEX)));
+              targetConfig.getInt("ackIdByteIndex", DEFAULT_ACK_ID_BYTE_INDEX),
+              targetConfig.getInt("ackTimeoutSecs", defaultAckTimeoutSecs)));
     }
     return List.copyOf(loadedTargets);
   }
@@ -862,13 +1221,14 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
   }
 
   private DispatchState resolveDispatchForAck(Target target, int sequence, String ackSource) {
-    DispatchState dispatch = dispatchBySequence.get(sequence);
+    DispatchState dispatch =
+        sequence >= 0 && sequence <= MAX_SEQUENCE ? dispatchBySequence.get(sequence) : null;
     if (dispatch != null) {
       return dispatch;
     }
 
     if (sequence == RESET_AV_ACK_SEQUENCE) {
-      DispatchState resetDispatch = pendingResetAvDispatch;
+      DispatchState resetDispatch = pendingResetAvDispatch.get();
       if (resetDispatch != null && resetDispatch.includesTarget(target)) {
         log.debug(
             "Treating {} ack 0 from {} as the pending reset AV dispatch", ackSource, target.name());
@@ -884,7 +1244,8 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     return null;
   }
 
-  private record Target(
+  record Target(
+      int index,
       String name,
       String ackName,
       String commandTopic,
@@ -893,7 +1254,12 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
       String radioAckTopic,
       int ackFlagByteIndex,
       int ackFlagBitIndex,
-      int ackIdByteIndex) {
+      int ackIdByteIndex,
+      int ackTimeoutSecs) {
+
+    long bit() {
+      return 1L << index;
+    }
 
     String fcAckKey() {
       return "fc_" + ackName;
@@ -929,7 +1295,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
 
   private record AckRoute(Target target, AckChannel channel) {}
 
-  private record FlightComputerAck(int sequence, boolean completionRejected) {}
+  record FlightComputerAck(int sequence, boolean completionRejected) {}
 
   private enum AckChannel {
     FLIGHT_COMPUTER,
@@ -964,80 +1330,95 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
 
   private record DispatchProgress(boolean recorded, boolean allPublishesResolved) {}
 
+  /** A command message to publish to one target, the user context of its delivery token. */
+  private record CommandPublish(DispatchState dispatch, Target target, MqttMessage message) {}
+
   private static final class DispatchState {
     private final PreparedCommand preparedCommand;
+    private final String commandCode;
     private final int sequence;
+    private final long dispatchNanos = System.nanoTime();
+    private boolean firstAckReceived;
     private final AckTrackingMode ackTrackingMode;
     private final boolean resetAv;
-    private final Map<String, Target> requestedTargetsByName;
-    private final Set<String> expectedRadioTargets = new HashSet<>();
-    private final Set<String> publishedTargets = new HashSet<>();
-    private final Map<String, String> failedTargets = new HashMap<>();
-    private final Set<String> flightComputerAcks = new HashSet<>();
-    private final Set<String> radioTxAcks = new HashSet<>();
-    private final Set<String> radioRxAcks = new HashSet<>();
-    private String flightComputerFailureTargetName;
+    private final List<Target> requestedTargets;
+    // bits indexed by Target.index()
+    private final long requestedMask;
+    private final long expectedRadioMask;
+    private long publishedMask;
+    private long failedMask;
+    private long flightComputerAckMask;
+    private long radioTxAckMask;
+    private long radioRxAckMask;
+    private long timedOutMask;
+    private Target flightComputerFailureTarget;
     private String flightComputerFailureDetail;
     private boolean flightComputerFailurePublished;
     private boolean statusAckReceived;
-    private String statusFailureTargetName;
+    private Target statusFailureTarget;
     private AckStatus statusFailureAckStatus;
     private String statusFailureDetail;
     private boolean publishResultsFinalized;
+    private boolean completionTimedOut;
+    private volatile boolean released;
+    private final List<TimerWheel.Timeout> timeouts = new ArrayList<>(2);
 
     private DispatchState(
         PreparedCommand preparedCommand,
+        String commandCode,
         int sequence,
-        Collection<Target> targets,
+        List<Target> targets,
         AckTrackingMode ackTrackingMode,
         boolean resetAv) {
       this.preparedCommand = preparedCommand;
+      this.commandCode = commandCode;
       this.sequence = sequence;
       this.ackTrackingMode = ackTrackingMode;
       this.resetAv = resetAv;
-      this.requestedTargetsByName = new LinkedHashMap<>();
+      this.requestedTargets = targets;
+      long requested = 0;
+      long expectedRadio = 0;
       for (Target target : targets) {
-        this.requestedTargetsByName.put(target.name(), target);
+        requested |= target.bit();
         if (ackTrackingMode == AckTrackingMode.COUNTED && target.expectsRadioAcks()) {
-          expectedRadioTargets.add(target.name());
+          expectedRadio |= target.bit();
         }
       }
+      this.requestedMask = requested;
+      this.expectedRadioMask = expectedRadio;
     }
 
     synchronized DispatchProgress recordPublishSuccess(Target target) {
-      if (!requestedTargetsByName.containsKey(target.name())
-          || publishedTargets.contains(target.name())
-          || failedTargets.containsKey(target.name())) {
+      long bit = target.bit();
+      if (released || (requestedMask & bit) == 0 || ((publishedMask | failedMask) & bit) != 0) {
         return new DispatchProgress(false, allPublishesResolved());
       }
 
-      publishedTargets.add(target.name());
+      publishedMask |= bit;
       return new DispatchProgress(true, allPublishesResolved());
     }
 
-    synchronized DispatchProgress recordPublishFailure(Target target, String message) {
-      if (!requestedTargetsByName.containsKey(target.name())
-          || publishedTargets.contains(target.name())
-          || failedTargets.containsKey(target.name())) {
+    synchronized DispatchProgress recordPublishFailure(Target target) {
+      long bit = target.bit();
+      if (released || (requestedMask & bit) == 0 || ((publishedMask | failedMask) & bit) != 0) {
         return new DispatchProgress(false, allPublishesResolved());
       }
 
-      failedTargets.put(target.name(), message);
+      failedMask |= bit;
       return new DispatchProgress(true, allPublishesResolved());
     }
 
     synchronized boolean recordFlightComputerAck(Target target, boolean completionRejected) {
-      if (!requestedTargetsByName.containsKey(target.name())
-          || failedTargets.containsKey(target.name())) {
-        return false;
-      }
-
-      if (!flightComputerAcks.add(target.name())) {
+      long bit = target.bit();
+      if ((requestedMask & bit) == 0
+          || ((failedMask | timedOutMask) & bit) != 0
+          || (flightComputerAckMask & bit) != 0) {
         return false;
       }
 
+      flightComputerAckMask |= bit;
       if (completionRejected) {
-        flightComputerFailureTargetName = target.name();
+        flightComputerFailureTarget = target;
         flightComputerFailureDetail = "Flight computer rejected command";
       }
 
@@ -1045,21 +1426,31 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     }
 
     synchronized boolean recordRadioAck(Target target, RadioAckPhase phase) {
-      if (!expectedRadioTargets.contains(target.name())
-          || failedTargets.containsKey(target.name())) {
+      long bit = target.bit();
+      if ((expectedRadioMask & bit) == 0 || ((failedMask | timedOutMask) & bit) != 0) {
         return false;
       }
 
-      return switch (phase) {
-        case TX -> radioTxAcks.add(target.name());
-        case RX -> radioRxAcks.add(target.name());
-      };
+      switch (phase) {
+        case TX -> {
+          if ((radioTxAckMask & bit) != 0) {
+            return false;
+          }
+          radioTxAckMask |= bit;
+        }
+        case RX -> {
+          if ((radioRxAckMask & bit) != 0) {
+            return false;
+          }
+          radioRxAckMask |= bit;
+        }
+      }
+      return true;
     }
 
     synchronized boolean recordStatusAck(Target target, AckStatus ackStatus, String message) {
-      if (!requestedTargetsByName.containsKey(target.name())
-          || failedTargets.containsKey(target.name())
-          || hasStatusFailure()) {
+      long bit = target.bit();
+      if ((requestedMask & bit) == 0 || (failedMask & bit) != 0 || hasStatusFailure()) {
         return false;
       }
 
@@ -1071,7 +1462,7 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
         return true;
       }
 
-      statusFailureTargetName = target.name();
+      statusFailureTarget = target;
       statusFailureAckStatus = ackStatus;
       statusFailureDetail = message;
       return true;
@@ -1093,53 +1484,151 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     synchronized boolean shouldComplete() {
       if (ackTrackingMode == AckTrackingMode.STATUS) {
         return publishResultsFinalized
-            && failedTargets.isEmpty()
+            && failedMask == 0
             && !hasStatusFailure()
             && statusAckReceived;
       }
 
       return publishResultsFinalized
-          && failedTargets.isEmpty()
+          && failedMask == 0
           && !hasFlightComputerFailure()
-          && flightComputerAcks.containsAll(requestedTargetsByName.keySet());
+          && (flightComputerAckMask & requestedMask) == requestedMask;
     }
 
-    synchronized boolean isFinished() {
+    synchronized boolean canRemove() {
       if (!publishResultsFinalized) {
         return false;
       }
 
-      return canRemove();
+      if (ackTrackingMode == AckTrackingMode.STATUS) {
+        return failedMask != 0 || hasStatusFailure() || statusAckReceived;
+      }
+
+      // the targets that timed out are not waited for anymore
+      long expectedFlightMask = (failedMask == 0 ? requestedMask : publishedMask) & ~timedOutMask;
+      long expectedPublishedRadioMask =
+          (failedMask == 0 ? expectedRadioMask : expectedRadioMask & publishedMask)
+              & ~timedOutMask;
+
+      return (flightComputerAckMask & expectedFlightMask) == expectedFlightMask
+          && (radioTxAckMask & expectedPublishedRadioMask) == expectedPublishedRadioMask
+          && (radioRxAckMask & expectedPublishedRadioMask) == expectedPublishedRadioMask;
+    }
+
+    /**
+     * Marks the target as timed out if some of its acks are missing and returns the missing ones as
+     * MISSING_* flags, or 0 if there is nothing to time out.
+     */
+    synchronized int recordAckTimeout(Target target) {
+      long bit = target.bit();
+      if (released
+          || (requestedMask & bit) == 0
+          || ((failedMask | timedOutMask) & bit) != 0) {
+        return 0;
+      }
+
+      int missing = 0;
+      if ((flightComputerAckMask & bit) == 0) {
+        missing |= MISSING_FC_ACK;
+      }
+      if ((expectedRadioMask & bit) != 0) {
+        if ((radioTxAckMask & bit) == 0) {
+          missing |= MISSING_RADIO_TX_ACK;
+        }
+        if ((radioRxAckMask & bit) == 0) {
+          missing |= MISSING_RADIO_RX_ACK;
+        }
+      }
+      if (missing != 0) {
+        timedOutMask |= bit;
+      }
+      return missing;
     }
 
-    synchronized boolean canRemove() {
-      if (!publishResultsFinalized) {
+    synchronized boolean hasTimedOutTargets() {
+      return timedOutMask != 0;
+    }
+
+    synchronized List<String> timedOutAckNames() {
+      List<String> ackNames = new ArrayList<>();
+      for (Target target : requestedTargets) {
+        if ((timedOutMask & target.bit()) != 0) {
+          ackNames.add(target.ackName());
+        }
+      }
+      return ackNames;
+    }
+
+    /**
+     * Returns true, once, if the command has been neither completed nor failed and is to be
+     * completed as timed out.
+     */
+    synchronized boolean markCompletionTimedOut() {
+      if (completionTimedOut || !publishResultsFinalized) {
         return false;
       }
 
+      boolean pending;
       if (ackTrackingMode == AckTrackingMode.STATUS) {
-        return !failedTargets.isEmpty() || hasStatusFailure() || statusAckReceived;
+        pending = failedMask == 0 && !hasStatusFailure() && !statusAckReceived;
+      } else {
+        pending =
+            failedMask == 0
+                && !hasFlightComputerFailure()
+                && (flightComputerAckMask & requestedMask) != requestedMask;
       }
+      completionTimedOut = pending;
+      return pending;
+    }
+
+    /** Returns true if the publish results were not finalized yet. */
+    synchronized boolean forcePublishResultsFinalized() {
+      if (publishResultsFinalized) {
+        return false;
+      }
+      publishResultsFinalized = true;
+      return true;
+    }
 
-      Set<String> expectedFlightTargets =
-          failedTargets.isEmpty() ? requestedTargetsByName.keySet() : publishedTargets;
-      Set<String> expectedPublishedRadioTargets = new HashSet<>(expectedRadioTargets);
-      if (!failedTargets.isEmpty()) {
-        expectedPublishedRadioTargets.retainAll(publishedTargets);
+    synchronized void addTimeout(TimerWheel.Timeout timeout) {
+      if (released) {
+        timeout.cancel();
+      } else {
+        timeouts.add(timeout);
       }
+    }
 
-      return flightComputerAcks.containsAll(expectedFlightTargets)
-          && radioTxAcks.containsAll(expectedPublishedRadioTargets)
-          && radioRxAcks.containsAll(expectedPublishedRadioTargets);
+    synchronized void cancelTimeouts() {
+      for (TimerWheel.Timeout timeout : timeouts) {
+        timeout.cancel();
+      }
+      timeouts.clear();
+    }
+
+    /** Returns true if the dispatch was not released before. */
+    synchronized boolean markReleased() {
+      if (released) {
+        return false;
+      }
+      released = true;
+      return true;
+    }
+
+    boolean isReleased() {
+      return released;
+    }
+
+    List<Target> requestedTargets() {
+      return requestedTargets;
     }
 
     synchronized boolean allPublishesResolved() {
-      return publishedTargets.size() + failedTargets.size() == requestedTargetsByName.size();
+      return (publishedMask | failedMask) == requestedMask;
     }
 
-    synchronized List<String> requestedTargetNames() {
-      List<String> targetNames = new ArrayList<>();
-      for (Target target : requestedTargetsByName.values()) {
+    List<String> requestedTargetNames() {
+      List<String> targetNames = new ArrayList<>(requestedTargets.size());
+      for (Target target : requestedTargets) {
         targetNames.add(target.name());
       }
       return targetNames;
@@ -1147,9 +1636,10 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
 
     synchronized List<String> failedAckNames() {
       List<String> ackNames = new ArrayList<>();
-      for (String targetName : failedTargets.keySet()) {
-        Target target = requestedTargetsByName.get(targetName);
-        ackNames.add(target == null ? targetName : target.ackName());
+      for (Target target : requestedTargets) {
+        if ((failedMask & target.bit()) != 0) {
+          ackNames.add(target.ackName());
+        }
       }
       return ackNames;
     }
@@ -1158,6 +1648,19 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
       return sequence;
     }
 
+    String commandCode() {
+      return commandCode;
+    }
+
+    /** Returns the time since the dispatch for the first ack, or -1 for the next ones. */
+    synchronized long markFirstAck() {
+      if (firstAckReceived) {
+        return -1;
+      }
+      firstAckReceived = true;
+      return System.nanoTime() - dispatchNanos;
+    }
+
     AckTrackingMode ackTrackingMode() {
       return ackTrackingMode;
     }
@@ -1166,8 +1669,8 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
       return resetAv;
     }
 
-    synchronized boolean includesTarget(Target target) {
-      return requestedTargetsByName.containsKey(target.name());
+    boolean includesTarget(Target target) {
+      return (requestedMask & target.bit()) != 0;
     }
 
     synchronized boolean isPublishResultsFinalized() {
@@ -1191,9 +1694,8 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     }
 
     synchronized String flightComputerFailureMessage() {
-      Target target = requestedTargetsByName.get(flightComputerFailureTargetName);
-      String targetLabel = target == null ? flightComputerFailureTargetName : target.ackName();
-      return "Command completion rejected by flight computer on " + targetLabel;
+      return "Command completion rejected by flight computer on "
+          + flightComputerFailureTarget.ackName();
     }
 
     synchronized boolean markFlightComputerFailurePublished() {
@@ -1210,21 +1712,19 @@ public class MqttFanoutCommandLink extends AbstractTcDataLink implements MqttCal
     }
 
     synchronized String statusFailureMessage() {
-      Target target = requestedTargetsByName.get(statusFailureTargetName);
-      String targetLabel = target == null ? statusFailureTargetName : target.ackName();
-      return "Command ack failed on " + targetLabel + ": " + statusFailureDetail;
+      return "Command ack failed on " + statusFailureTarget.ackName() + ": " + statusFailureDetail;
     }
 
     org.yamcs.protobuf.Commanding.CommandId commandId() {
       return preparedCommand.getCommandId();
     }
 
-    synchronized Set<String> failedTargets() {
-      return Set.copyOf(failedTargets.keySet());
+    synchronized boolean hasFailedTargets() {
+      return failedMask != 0;
     }
   }
 
-  private static final class AckDto {
+  static final class AckDto {
     Integer cmd_id;
     String status;
 
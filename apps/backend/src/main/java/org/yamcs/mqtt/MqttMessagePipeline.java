@@ -0,0 +1,177 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.Spec;
+import org.yamcs.Spec.OptionType;
+import org.yamcs.YConfiguration;
+import org.yamcs.logging.Log;
+import org.yamcs.mrt.utils.LatencyHistogram;
+import org.yamcs.utils.DataRateMeter;
+
+/**
+ * Hands the MQTT messages received by a link over from the Paho callback thread to the link's own worker threads, so
+ * a slow conversion or packet processing on one link does not delay the messages of the other links sharing the
+ * connection.
+ * <p>
+ * Each worker has a bounded queue; the messages of a topic always go to the same worker and are therefore processed in
+ * the order they were received. When the queue of a worker is full, the new message is dropped and counted: blocking
+ * would stall the shared callback thread.
+ * <p>
+ * With <code>processingThreads: 0</code> the messages are processed directly on the callback thread.
+ */
+public class MqttMessagePipeline {
+    final String name;
+    final IMqttMessageListener processor;
+    final Log log;
+    final List<BlockingQueue<Item>> queues;
+    final int queueCapacity;
+    Thread[] threads;
+
+    final AtomicLong processedCount = new AtomicLong();
+    final AtomicLong droppedCount = new AtomicLong();
+    final AtomicLong errorCount = new AtomicLong();
+    // time between the reception and the end of the processing
+    final LatencyHistogram latency = new LatencyHistogram();
+    final DataRateMeter messageRateMeter = new DataRateMeter();
+
+    record Item(String topic, MqttMessage message, long receptionNanos) {
+    }
+
+    public static void addOptionsToSpec(Spec spec) {
+        spec.addOption("processingThreads", OptionType.INTEGER).withDefault(1);
+        spec.addOption("processingQueueSize", OptionType.INTEGER).withDefault(4096);
+    }
+
+    /**
+     * @param name
+     *            used to name the worker threads, typically the link name
+     * @param processor
+     *            called on a worker thread for each message
+     */
+    public MqttMessagePipeline(String name, YConfiguration config, IMqttMessageListener processor, Log log) {
+        this(name, config.getInt("processingThreads", 1), config.getInt("processingQueueSize", 4096), processor,
+                log);
+    }
+
+    public MqttMessagePipeline(String name, int numThreads, int queueCapacity, IMqttMessageListener processor,
+            Log log) {
+        if (numThreads < 0 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid processing threads/queue size: " + numThreads + "/"
+                    + queueCapacity);
+        }
+        this.name = name;
+        this.processor = processor;
+        this.log = log;
+        this.queueCapacity = queueCapacity;
+        List<BlockingQueue<Item>> list = new ArrayList<>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            list.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+        queues = List.copyOf(list);
+    }
+
+    public synchronized void start() {
+        if (threads != null) {
+            return;
+        }
+        threads = new Thread[queues.size()];
+        for (int i = 0; i < threads.length; i++) {
+            var queue = queues.get(i);
+            threads[i] = new Thread(() -> work(queue), "MqttWorker-" + name + (threads.length > 1 ? "-" + i : ""));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Stops the workers; the messages still in the queues are discarded.
+     */
+    public synchronized void stop() {
+        if (threads == null) {
+            return;
+        }
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        threads = null;
+        for (var queue : queues) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Queues a message for processing. Called on the MQTT callback thread.
+     * <p>
+     * Messages submitted before {@link #start()} are kept in the queue (up to its capacity) and processed once the
+     * workers are started.
+     */
+    public void submit(String topic, MqttMessage message) {
+        long now = System.nanoTime();
+        int n = queues.size();
+        if (n == 0) {
+            process(new Item(topic, message, now));
+            return;
+        }
+        var queue = queues.get(n == 1 ? 0 : (topic.hashCode() & 0x7FFFFFFF) % n);
+        if (!queue.offer(new Item(topic, message, now))) {
+            if (droppedCount.getAndIncrement() == 0) {
+                log.warn("Processing queue of {} full, dropping messages", name);
+            }
+        }
+    }
+
+    private void work(BlockingQueue<Item> queue) {
+        try {
+            while (true) {
+                process(queue.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void process(Item item) {
+        try {
+            processor.messageArrived(item.topic, item.message);
+        } catch (Exception e) {
+            errorCount.incrementAndGet();
+            log.warn("Error processing message on topic {}", item.topic, e);
+        }
+        latency.recordNanos(System.nanoTime() - item.receptionNanos);
+        messageRateMeter.mark(1);
+        processedCount.incrementAndGet();
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (var queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public void addExtraInfo(Map<String, Object> extra) {
+        extra.put("Processing queue", getQueueSize() + "/" + queueCapacity * Math.max(1, queues.size()));
+        extra.put("Processing threads", queues.size());
+        extra.put("Processed messages", processedCount.get());
+        extra.put("Dropped messages", droppedCount.get());
+        extra.put("Processing errors", errorCount.get());
+        extra.put("Processing rate (msg/s)", Math.round(messageRateMeter.getFiveSecondsRate()));
+        extra.put("Ingest latency avg (ms)", LatencyHistogram.toMillis(latency.getMeanMicros()));
+        extra.put("Ingest latency p50 (ms)", LatencyHistogram.toMillis(latency.getPercentileMicros(0.5)));
+        extra.put("Ingest latency p99 (ms)", LatencyHistogram.toMillis(latency.getPercentileMicros(0.99)));
+        extra.put("Ingest latency max (ms)", LatencyHistogram.toMillis(latency.getMaxMicros()));
+    }
+}
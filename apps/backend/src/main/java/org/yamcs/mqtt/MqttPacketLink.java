@@ -1,10 +1,11 @@
 package org.yamcs.mqtt;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.ConfigurationException;
@@ -12,6 +13,7 @@ import org.yamcs.Spec;
 import org.yamcs.YConfiguration;
 import org.yamcs.Spec.OptionType;
 import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
 import org.yamcs.tctm.AbstractTcTmParamLink;
 import org.yamcs.utils.StringConverter;
 import org.yamcs.utils.YObjectLoader;
@@ -20,20 +22,19 @@ import org.yamcs.utils.YObjectLoader;
  * MQTT packet link - supports TM and TC packets
  */
 public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessageListener {
-	MqttConnectOptions connOpts;
-	MqttAsyncClient client;
+	LinkConnection client;
 	String tmTopic, tcTopic;
-	volatile Throwable subscriptionFailure;
 	MqttToTmPacketConverter tmConverter;
 	PreparedCommandToMqttConverter tcConverter;
+	MqttMessagePipeline pipeline;
 
 	@Override
 	public void init(String yamcsInstance, String linkName, YConfiguration config) throws ConfigurationException {
 		super.init(yamcsInstance, linkName, config);
-		connOpts = MqttUtils.getConnectionOptions(config);
 		tmTopic = config.getString("tmTopic", null);
 		tcTopic = config.getString("tcTopic", null);
-		client = MqttUtils.newClient(config);
+		client = MqttConnectionPool.getInstance().acquire(linkName, config, log, eventProducer);
+		pipeline = new MqttMessagePipeline(linkName, config, this::processMessage, log);
 
 		tmConverter = YObjectLoader.loadObject(config.getString("tmConverterClassName"));
 		tmConverter.init(yamcsInstance, linkName, config.getConfigOrEmpty("tmConverterArgs"));
@@ -47,6 +48,7 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
 	public Spec getSpec() {
 		var spec = getDefaultSpec();
 		MqttUtils.addConnectionOptionsToSpec(spec);
+		MqttMessagePipeline.addOptionsToSpec(spec);
 		spec.addOption("tmTopic", OptionType.STRING).withRequired(false);
 		spec.addOption("tcTopic", OptionType.STRING).withRequired(false);
 		spec.addOption("tmConverterClassName", OptionType.STRING)
@@ -95,6 +97,13 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
 	 */
 	@Override
 	public void messageArrived(String topic, MqttMessage message) {
+		pipeline.submit(topic, message);
+	}
+
+	/**
+	 * Called by the pipeline worker to convert and process a message
+	 */
+	private void processMessage(String topic, MqttMessage message) {
 		if (log.isTraceEnabled()) {
 			log.trace("topic: {}, got message: {}", topic,
 					StringConverter.arrayToHexString(message.getPayload(), true));
@@ -111,6 +120,7 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
 
 	@Override
 	protected void doStart() {
+		pipeline.start();
 		if (isDisabled()) {
 			notifyStarted();
 		} else {
@@ -118,6 +128,7 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
 				doConnect();
 				notifyStarted();
 			} catch (MqttException e) {
+				client.disconnect();
 				notifyFailed(e);
 			}
 		}
@@ -125,17 +136,27 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
 
 	@Override
 	protected void doStop() {
-		MqttUtils.doStop(client, this::notifyStopped, this::notifyFailed);
+		client.close();
+		pipeline.stop();
+		notifyStopped();
 	}
 
 	@Override
 	public String getDetailedStatus() {
-		return "";
+		return client.getDetailedStatus();
+	}
+
+	@Override
+	public Map<String, Object> getExtraInfo() {
+		var extra = new LinkedHashMap<String, Object>();
+		client.addExtraInfo(extra);
+		pipeline.addExtraInfo(extra);
+		return extra;
 	}
 
 	@Override
 	protected void doDisable() throws Exception {
-		MqttUtils.doDisable(client);
+		client.disconnect();
 	}
 
 	@Override
@@ -143,19 +164,26 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
 		doConnect();
 	}
 
+	/**
+	 * Connects and waits for the connection. A failure is only thrown if the
+	 * connection is not retried, otherwise it is reported in the detailed status.
+	 */
 	private void doConnect() throws MqttException {
-		subscriptionFailure = null;
 		if (tmTopic != null) {
-			MqttUtils.connectAndSubscribe(connOpts, client, this, tmTopic, log, eventProducer,
-					e -> subscriptionFailure = e);
-		} else {
-			MqttUtils.connect(connOpts, client, log, eventProducer);
+			client.subscribeShared(tmTopic, 2, this);
+		}
+		try {
+			client.connectAndWait();
+		} catch (MqttException e) {
+			if (!client.isAutomaticReconnect()) {
+				throw e;
+			}
 		}
 	}
 
 	@Override
 	protected Status connectionStatus() {
-		if (client.isConnected() && subscriptionFailure == null) {
+		if (client.isConnected() && client.getSubscriptionFailure() == null) {
 			return Status.OK;
 		} else {
 			return Status.UNAVAIL;
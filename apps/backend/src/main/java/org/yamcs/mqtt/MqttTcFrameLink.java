@@ -1,15 +1,16 @@
 package org.yamcs.mqtt;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.yamcs.Spec;
 import org.yamcs.Spec.OptionType;
 import org.yamcs.YConfiguration;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
 import org.yamcs.tctm.ccsds.AbstractTcFrameLink;
 import org.yamcs.tctm.ccsds.TcTransferFrame;
 import org.yamcs.utils.StringConverter;
@@ -28,8 +29,7 @@ import com.google.common.util.concurrent.RateLimiter;
  */
 public class MqttTcFrameLink extends AbstractTcFrameLink implements Runnable {
     RateLimiter rateLimiter;
-    MqttConnectOptions connOpts;
-    MqttAsyncClient client;
+    LinkConnection client;
     String topic;
     Thread thread;
 
@@ -51,14 +51,13 @@ public class MqttTcFrameLink extends AbstractTcFrameLink implements Runnable {
     @Override
     public void init(String yamcsInstance, String name, YConfiguration config) {
         super.init(yamcsInstance, name, config);
-        connOpts = MqttUtils.getConnectionOptions(config);
         topic = config.getString("topic");
         if (config.containsKey("frameMaxRate")) {
             rateLimiter = RateLimiter.create(config.getDouble("frameMaxRate"), 1, TimeUnit.SECONDS);
         }
         converter = YObjectLoader.loadObject(config.getString("converterClassName"));
         converter.init(yamcsInstance, linkName, config.getConfigOrEmpty("converterArgs"));
-        client = MqttUtils.newClient(config);
+        client = MqttConnectionPool.getInstance().acquire(linkName, config, log, eventProducer);
     }
 
     @Override
@@ -83,7 +82,7 @@ public class MqttTcFrameLink extends AbstractTcFrameLink implements Runnable {
                 }
                 try {
                     var msg = converter.convert(data);
-                    client.publish(topic, null, msg, new IMqttActionListener() {
+                    client.publish(topic, msg, null, new IMqttActionListener() {
                         @Override
                         public void onSuccess(IMqttToken asyncActionToken) {
                             if (tf.isBypass()) {
@@ -115,12 +114,19 @@ public class MqttTcFrameLink extends AbstractTcFrameLink implements Runnable {
         if (thread != null) {
             thread.interrupt();
         }
-        MqttUtils.doDisable(client);
+        client.disconnect();
     }
 
     @Override
     protected void doEnable() throws Exception {
-        MqttUtils.connect(connOpts, client, log, eventProducer);
+        try {
+            client.connectAndWait();
+        } catch (MqttException e) {
+            // otherwise retried by the connection pool and reported in the detailed status
+            if (!client.isAutomaticReconnect()) {
+                throw e;
+            }
+        }
         thread = new Thread(this);
         thread.setName(getClass().getSimpleName() + "-" + linkName);
         thread.start();
@@ -136,14 +142,28 @@ public class MqttTcFrameLink extends AbstractTcFrameLink implements Runnable {
                 notifyStarted();
             } catch (Exception e) {
                 log.warn("Exception starting link", e);
+                client.disconnect();
                 notifyFailed(e);
             }
         }
     }
 
+    @Override
+    public String getDetailedStatus() {
+        return client.getDetailedStatus();
+    }
+
     @Override
     protected void doStop() {
-        MqttUtils.doStop(client, this::notifyStopped, this::notifyFailed);
+        client.close();
+        notifyStopped();
+    }
+
+    @Override
+    public Map<String, Object> getExtraInfo() {
+        var extra = new LinkedHashMap<String, Object>();
+        client.addExtraInfo(extra);
+        return extra;
     }
 
     @Override
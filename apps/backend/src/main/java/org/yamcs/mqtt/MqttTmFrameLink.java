@@ -4,14 +4,13 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.ConfigurationException;
 import org.yamcs.Spec;
 import org.yamcs.Spec.OptionType;
 import org.yamcs.YConfiguration;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
 import org.yamcs.tctm.ccsds.AbstractTmFrameLink;
 import org.yamcs.utils.StringConverter;
 import org.yamcs.utils.YObjectLoader;
@@ -20,16 +19,16 @@ import org.yamcs.utils.YObjectLoader;
  * Receives telemetry fames via MQTT. One MQTT message = one TM frame.
  */
 public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessageListener {
-    MqttConnectOptions connOpts;
-    MqttAsyncClient client;
+    LinkConnection client;
     String topic;
-    volatile Throwable subscriptionFailure;
     MqttToFrameConverter converter;
+    MqttMessagePipeline pipeline;
 
     @Override
     public Spec getSpec() {
         var spec = getDefaultSpec();
         MqttUtils.addConnectionOptionsToSpec(spec);
+        MqttMessagePipeline.addOptionsToSpec(spec);
         spec.addOption("topic", OptionType.STRING).withRequired(true);
         spec.addOption("converterClassName", OptionType.STRING)
                 .withDefault(DefaultMqttToFrameConverter.class.getName());
@@ -47,16 +46,17 @@ public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessage
     @Override
     public void init(String instance, String name, YConfiguration config) throws ConfigurationException {
         super.init(instance, name, config);
-        connOpts = MqttUtils.getConnectionOptions(config);
         topic = config.getString("topic");
         converter = YObjectLoader.loadObject(config.getString("converterClassName"));
         converter.init(yamcsInstance, linkName, config.getConfigOrEmpty("converterArgs"));
 
-        client = MqttUtils.newClient(config);
+        client = MqttConnectionPool.getInstance().acquire(linkName, config, log, eventProducer);
+        pipeline = new MqttMessagePipeline(linkName, config, this::processMessage, log);
     }
 
     @Override
     protected void doStart() {
+        pipeline.start();
         if (isDisabled()) {
             notifyStarted();
         } else {
@@ -64,19 +64,37 @@ public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessage
                 doConnect();
                 notifyStarted();
             } catch (MqttException e) {
+                client.disconnect();
                 notifyFailed(e);
             }
         }
     }
 
+    /**
+     * Connects and waits for the connection. A failure is only thrown if the connection is not retried, otherwise it
+     * is reported in the detailed status.
+     */
     private void doConnect() throws MqttException {
-        subscriptionFailure = null;
-        MqttUtils.connectAndSubscribe(connOpts, client, this, topic, log, eventProducer, e -> subscriptionFailure = e);
+        client.subscribeShared(topic, 2, this);
+        try {
+            client.connectAndWait();
+        } catch (MqttException e) {
+            if (!client.isAutomaticReconnect()) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public String getDetailedStatus() {
+        return client.getDetailedStatus();
     }
 
     @Override
     protected void doStop() {
-        MqttUtils.doStop(client, this::notifyStopped, this::notifyFailed);
+        client.close();
+        pipeline.stop();
+        notifyStopped();
     }
 
     /**
@@ -84,6 +102,13 @@ public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessage
      */
     @Override
     public void messageArrived(String topic, MqttMessage message) {
+        pipeline.submit(topic, message);
+    }
+
+    /**
+     * Called by the pipeline worker to convert and process a message
+     */
+    private void processMessage(String topic, MqttMessage message) {
         try {
 
             if (log.isTraceEnabled()) {
@@ -105,12 +130,14 @@ public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessage
         var extra = new LinkedHashMap<String, Object>();
         extra.put("Valid frames", validFrameCount.get());
         extra.put("Invalid frames", invalidFrameCount.get());
+        client.addExtraInfo(extra);
+        pipeline.addExtraInfo(extra);
         return extra;
     }
 
     @Override
     protected void doDisable() throws Exception {
-        MqttUtils.doDisable(client);
+        client.disconnect();
     }
 
     @Override
@@ -120,7 +147,7 @@ public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessage
 
     @Override
     protected Status connectionStatus() {
-        if (client.isConnected() && subscriptionFailure == null) {
+        if (client.isConnected() && client.getSubscriptionFailure() == null) {
             return Status.OK;
         } else {
             return Status.UNAVAIL;
@@ -0,0 +1,80 @@
+package org.yamcs.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * The MQTT client used by a shared connection of the {@link MqttConnectionPool}.
+ * <p>
+ * The links work with the Paho <code>mqttv3</code> types whatever the protocol version: the MQTT 5 implementation
+ * converts the messages, tokens and exceptions, and passes the MQTT 5 user properties of the messages as
+ * {@link Mqtt5Message}s. The transport is created by {@link MqttUtils#createTransport} according to the
+ * <code>protocolVersion</code> option.
+ */
+public interface MqttTransport {
+
+    /**
+     * Receives the connection events and the messages; all the methods are called on the Paho callback thread.
+     */
+    interface Callback {
+        void connectComplete(boolean reconnect, String serverURI);
+
+        void connectionLost(Throwable cause);
+
+        void messageArrived(String topic, MqttMessage message);
+    }
+
+    /**
+     * Returns the protocol version, <code>3.1.1</code> or <code>5</code>.
+     */
+    String getProtocolVersion();
+
+    void setCallback(Callback callback);
+
+    /**
+     * Connects with the configured options.
+     *
+     * @param maxInflight
+     *            the number of messages published and not yet acknowledged by the broker; with MQTT 5 the broker
+     *            gives the limit.
+     */
+    IMqttToken connect(int maxInflight, IMqttActionListener listener) throws MqttException;
+
+    IMqttToken disconnect(IMqttActionListener listener) throws MqttException;
+
+    /**
+     * Disconnects without waiting for the work in progress.
+     */
+    void disconnectForcibly() throws MqttException;
+
+    void close() throws MqttException;
+
+    /**
+     * Subscribes to the filters. The listener finds the granted QoS of each filter with
+     * {@link IMqttToken#getGrantedQos()}, a value above 2 meaning that the subscription was refused.
+     */
+    IMqttToken subscribe(String[] filters, int[] qos, IMqttActionListener listener) throws MqttException;
+
+    IMqttToken unsubscribe(String[] filters) throws MqttException;
+
+    /**
+     * Publishes a message. The user properties of a {@link Mqtt5Message} are only sent with MQTT 5.
+     */
+    IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext, IMqttActionListener listener)
+            throws MqttException;
+
+    boolean isConnected();
+
+    boolean isAutomaticReconnect();
+
+    int getConnectionTimeout();
+
+    String getClientId();
+
+    String getServerURI();
+
+    String getCurrentServerURI();
+}
@@ -1,36 +1,40 @@
 package org.yamcs.mqtt;
 
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
-import org.eclipse.paho.client.mqttv3.IMqttActionListener;
-import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
-import org.eclipse.paho.client.mqttv3.IMqttToken;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
 import org.yamcs.ConfigurationException;
 import org.yamcs.Spec;
 import org.yamcs.YConfiguration;
-import org.yamcs.events.EventProducer;
-import org.yamcs.logging.Log;
 import org.yamcs.Spec.OptionType;
 
 /**
  * A set of utilities used by the MQTT packet and frame links to avoid code duplication
+ * <p>
+ * The clients themselves are shared between the links by the {@link MqttConnectionPool}. They are created by
+ * {@link #createTransport(YConfiguration)} for the MQTT version given by the <code>protocolVersion</code> option
+ * (<code>MQTT_3_1_1</code> or <code>MQTT_5</code>).
  */
 public class MqttUtils {
+    public static final String PROTOCOL_3_1_1 = "MQTT_3_1_1";
+    public static final String PROTOCOL_5 = "MQTT_5";
 
     /**
-     * create a new MQTT async client with the clientId and initial broker loaded from the config object
+     * Creates the MQTT client of a shared connection.
      */
-    static MqttAsyncClient newClient(YConfiguration config) throws ConfigurationException {
+    static MqttTransport createTransport(YConfiguration config) throws ConfigurationException {
+        List<String> brokers = config.getList("brokers");
+        String clientId = config.getString("clientId", MqttClient.generateClientId());
         try {
-            List<String> brokers = config.getList("brokers");
-            String clientId = config.getString("clientId", MqttClient.generateClientId());
-
-            return new MqttAsyncClient(brokers.get(0), clientId);
+            if (PROTOCOL_5.equals(config.getString("protocolVersion", PROTOCOL_3_1_1))) {
+                return new Mqtt5Transport(brokers.get(0), clientId, getConnection5Options(config));
+            } else {
+                return new Mqtt3Transport(brokers.get(0), clientId, getConnectionOptions(config));
+            }
         } catch (MqttException e) {
             throw new ConfigurationException(e);
         }
@@ -53,6 +57,24 @@ public class MqttUtils {
         return connOpts;
     }
 
+    static MqttConnectionOptions getConnection5Options(YConfiguration config) {
+        MqttConnectionOptions connOpts = new MqttConnectionOptions();
+
+        connOpts.setAutomaticReconnect(config.getBoolean("autoReconnect"));
+        List<String> brokers = config.getList("brokers");
+        connOpts.setServerURIs(brokers.toArray(new String[0]));
+        if (config.containsKey("username")) {
+            connOpts.setUserName(config.getString("username"));
+            connOpts.setPassword(config.getString("password").getBytes(StandardCharsets.UTF_8));
+        }
+        connOpts.setConnectionTimeout(config.getInt("connectionTimeoutSecs"));
+        connOpts.setKeepAliveInterval(config.getInt("keepAliveSecs"));
+        connOpts.setCleanStart(true);
+        connOpts.setTopicAliasMaximum(config.getInt("topicAliasMaximum", 0));
+
+        return connOpts;
+    }
+
     static void addConnectionOptionsToSpec(Spec spec) {
         spec.addOption("brokers", OptionType.LIST).withElementType(OptionType.STRING).withRequired(true);
         spec.addOption("username", OptionType.STRING).withRequired(false);
@@ -62,131 +84,14 @@ public class MqttUtils {
         spec.addOption("connectionTimeoutSecs", OptionType.INTEGER).withDefault(5);
         spec.addOption("autoReconnect", OptionType.BOOLEAN).withDefault(true);
         spec.addOption("keepAliveSecs", OptionType.INTEGER).withDefault(60);
+        spec.addOption("protocolVersion", OptionType.STRING).withChoices(PROTOCOL_3_1_1, PROTOCOL_5)
+                .withDefault(PROTOCOL_3_1_1);
+        // MQTT 5: number of topic aliases the broker may use in the messages sent to us
+        spec.addOption("topicAliasMaximum", OptionType.INTEGER).withDefault(16);
+        // messages published by the link and not yet delivered
+        spec.addOption("maxInflight", OptionType.INTEGER).withDefault(MqttConnectionPool.DEFAULT_MAX_INFLIGHT);
+        // the data topics are subscribed as $share/<group>/<topic> to split them between several servers
+        spec.addOption("sharedSubscriptionGroup", OptionType.STRING).withRequired(false);
         spec.requireTogether("username", "password");
     }
-
-    /**
-     * Connect to MQTT
-     */
-    static void connect(MqttConnectOptions connOpts, MqttAsyncClient client, Log log, EventProducer eventProducer)
-            throws MqttException {
-        log.info("Connecting to MQTT with clientId {} and options: {}", client.getClientId(), connOpts);
-
-        client.connect(connOpts, null, new IMqttActionListener() {
-            @Override
-            public void onSuccess(IMqttToken token) {
-                log.info("Succesfully connected to MQTT");
-
-            }
-
-            @Override
-            public void onFailure(IMqttToken t, Throwable e) {
-                String msg = "Failed to connect to MQTT with clientId " + client.getClientId() + ": " + e.getMessage();
-                eventProducer.sendWarning(msg);
-                log.warn("{}", msg);
-            }
-        });
-    }
-
-    /**
-     * Connect MQTT and subscribe to a given topic
-     */
-    static void connectAndSubscribe(MqttConnectOptions connOpts, MqttAsyncClient client,
-            IMqttMessageListener messageListener, String topic, Log log, EventProducer eventProducer,
-            SubscriptionFailureCallback subscriptionFailureCallback)
-            throws MqttException {
-        log.info("Connecting to MQTT with clientId {} and options: {}", client.getClientId(), connOpts);
-
-        client.connect(connOpts, null, new IMqttActionListener() {
-            @Override
-            public void onSuccess(IMqttToken token) {
-                log.info("Succesfully connected to MQTT");
-                try {
-                    client.subscribe(topic, 2, messageListener).setActionCallback(new IMqttActionListener() {
-                        @Override
-                        public void onSuccess(IMqttToken t) {
-                            int[] granted = t.getGrantedQos();
-                            if (granted.length != 1 || granted[0] > 2) {
-                                String msg = "Subscription to " + topic + " failed; granted QoS: "
-                                        + Arrays.asList(granted);
-                                eventProducer.sendWarning(msg);
-                                subscriptionFailureCallback.setSubscriptionFailure(new Exception(msg));
-                            } else {
-                                log.info("Succesfully subscribed to {}", topic);
-                            }
-                        }
-
-                        @Override
-                        public void onFailure(IMqttToken t, Throwable e) {
-                            String msg = "Subscription to " + topic + " failed: " + e.getMessage();
-                            eventProducer.sendWarning(msg);
-                            log.warn("{}", msg);
-                            subscriptionFailureCallback.setSubscriptionFailure(e);
-                        }
-
-                    });
-                } catch (MqttException e) {
-                    subscriptionFailureCallback.setSubscriptionFailure(e);
-                }
-            }
-
-            @Override
-            public void onFailure(IMqttToken t, Throwable e) {
-                String msg = "Failed to connect to MQTT with clientId " + client.getClientId() + ": " + e.getMessage();
-                eventProducer.sendWarning(msg);
-                log.warn("{}", msg);
-            }
-        });
-    }
-
-    public static void doDisable(MqttAsyncClient client) throws MqttException {
-        if (client.isConnected()) {
-            client.disconnect();
-        }
-    }
-
-    public static void doStop(MqttAsyncClient client, NotifyStoppedCallback stopCb, NotifyFailedCallback failCb) {
-        try {
-            if (client.isConnected()) {
-                client.disconnect(null,
-                        new IMqttActionListener() {
-                            @Override
-                            public void onSuccess(IMqttToken t) {
-                                try {
-                                    client.close();
-                                    stopCb.notifyStopped();
-                                } catch (MqttException e) {
-                                    failCb.notifyFailed(e);
-                                }
-                            }
-
-                            @Override
-                            public void onFailure(IMqttToken t, Throwable e) {
-                                failCb.notifyFailed(e);
-                            }
-                        });
-            } else {
-                client.disconnectForcibly(0, 0, false);
-                client.close();
-                stopCb.notifyStopped();
-            }
-        } catch (MqttException e) {
-            failCb.notifyFailed(e);
-        }
-    }
-
-    @FunctionalInterface
-    public interface NotifyStoppedCallback {
-        void notifyStopped();
-    }
-
-    @FunctionalInterface
-    public interface NotifyFailedCallback {
-        void notifyFailed(Throwable e);
-    }
-
-    @FunctionalInterface
-    public interface SubscriptionFailureCallback {
-        void setSubscriptionFailure(Throwable e);
-    }
 }
@@ -1,20 +1,24 @@
 package org.yamcs.mrt;
 
-import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.paho.client.mqttv3.*;
 import org.yamcs.*;
 import org.yamcs.Spec.OptionType;
 import org.yamcs.management.LinkManager;
+import org.yamcs.mqtt.MqttConnectionPool;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
 import org.yamcs.mrt.astra.*;
+import org.yamcs.mrt.utils.MetadataCache;
 import org.yamcs.mrt.utils.MetadataDto;
+import org.yamcs.mrt.utils.MqttTopicHandler;
+import org.yamcs.mrt.utils.TopicTrie;
 import org.yamcs.tctm.*;
-import com.google.common.util.concurrent.Service;
-
-import com.google.gson.Gson;
 
 /**
  * AstraDataLink is an aggregate YAMCS link that dynamically discovers and
@@ -22,12 +26,24 @@ import com.google.gson.Gson;
  * retained metadata JSON message is published and automatically removed when
  * their metadata is cleared (e.g., via MQTT Last Will). Telemetry from active
  * devices is forwarded to their corresponding sublinks.
+ * <p>
+ * Sublinks are created on a dedicated lifecycle thread so that the MQTT
+ * callback thread is never blocked by device discovery. Each device goes
+ * through the states DISCOVERING (sublink being set up, telemetry buffered in
+ * a bounded queue), ACTIVE (telemetry forwarded to the sublink, the buffered
+ * messages being replayed first) and REMOVED (metadata cleared, sublink
+ * disabled). A removed device that publishes metadata again is rediscovered
+ * and its sublink re-enabled.
  *
  * @author Léo Mindlin
  */
 public class AstraAggregateDataLink extends AbstractLink implements AggregatedDataLink {
 
-	private final Map<String, AstraSubLink> subLinksMap = new ConcurrentHashMap<>();
+	public enum DeviceState {
+		DISCOVERING, ACTIVE, REMOVED
+	}
+
+	private final Map<String, Device> devices = new ConcurrentHashMap<>();
 	private final List<Link> subLinks = Collections.synchronizedList(new ArrayList<>());
 
 	private String instance;
@@ -36,11 +52,18 @@ public class AstraAggregateDataLink extends AbstractLink implements AggregatedDa
 	private String detailedStatus;
 	private String frequency;
 
-	private MqttAsyncClient client;
-	private MqttConnectOptions connOpts;
+	private LinkConnection client;
+
+	private static final String METADATA_SUFFIX = "/metadata";
+	private static final String TELEMETRY_SUFFIX = "/telemetry";
+
+	// "+/metadata" plus one "<device>/telemetry" route per discovering or active device
+	private final TopicTrie<MqttTopicHandler> routes = new TopicTrie<>();
+	private final MetadataCache metadataCache = new MetadataCache();
+
+	private ExecutorService lifecycleExecutor;
+	private int discoveryBufferSize;
 
-	// Gson parser for JSON validation
-	// private static final Gson gson = new Gson();
 	@Override
 	public void init(String instance, String name, YConfiguration config)
 			throws ConfigurationException {
@@ -50,41 +73,32 @@ public class AstraAggregateDataLink extends AbstractLink implements AggregatedDa
 		this.config = config;
 		this.frequency = config.getString("frequency");
 		this.detailedStatus = "Not started.";
-		this.connOpts = MqttUtils.getConnectionOptions(config);
-		this.client = MqttUtils.newClient(config);
+		this.client = MqttConnectionPool.getInstance().acquire(name, config, log, eventProducer);
+		client.setConnectionLostHandler(
+				cause -> eventProducer.sendWarning("MQTT connection lost: " + cause.getMessage()));
+		this.discoveryBufferSize = config.getInt("discoveryBufferSize", 256);
+
+		routes.add("+" + METADATA_SUFFIX, this::handleMetadata);
 	}
 
 	@Override
 	public Spec getSpec() {
 		var spec = getDefaultSpec();
 		spec.addOption("frequency", OptionType.STRING).withRequired(true);
+		// telemetry messages kept per device while its sublink is being created
+		spec.addOption("discoveryBufferSize", OptionType.INTEGER).withDefault(256);
 		MqttUtils.addConnectionOptionsToSpec(spec);
 		return spec;
 	}
 
 	@Override
 	protected void doStart() {
+		lifecycleExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "AstraLifecycle-" + name));
 		try {
-			client.setCallback(new MqttCallback() {
-				@Override
-				public void connectionLost(Throwable cause) {
-
-					eventProducer.sendWarning(
-							"MQTT connection lost: " + cause.getMessage());
-				}
-
-				@Override
-				public void messageArrived(String topic, MqttMessage message) {
-					handleMessage(topic, message);
-				}
-
-				@Override
-				public void deliveryComplete(IMqttDeliveryToken token) {
-				}
-			});
-
-			client.connect(connOpts).waitForCompletion();
-			client.subscribe("#", 0).waitForCompletion();
+			client.connectAndWait();
+			// every server discovers all the devices, the telemetry may be split with a shared subscription
+			client.subscribe("+" + METADATA_SUFFIX, 0, this::handleMessage);
+			client.subscribeShared("+" + TELEMETRY_SUFFIX, 0, this::handleMessage);
 
 			detailedStatus = "Connected to MQTT broker, listening for devices";
 
@@ -98,103 +112,76 @@ public class AstraAggregateDataLink extends AbstractLink implements AggregatedDa
 		}
 	}
 
-	/** Handle MQTT message logic for metadata/telemetry and device lifecycle. */
+	/**
+	 * Routes a message to the metadata handler or to the sublink of the device.
+	 * Telemetry from undiscovered devices has no route and is dropped.
+	 */
 	private void handleMessage(String topic, MqttMessage message) {
 		try {
-			String[] parts = topic.split("/");
-			if (parts.length < 2)
-				return;
-
-			String deviceName = parts[0]; // e.g., radio-pad-a
-			String subTopic = parts[1]; // metadata or telemetry or ack
-
-			if ("metadata".equalsIgnoreCase(subTopic)) {
-				handleMetadata(deviceName, message);
-			} else if ("telemetry".equalsIgnoreCase(subTopic)) {
-				handleTelemetry(deviceName, message);
-			}
+			routes.forEachMatch(topic, message, (handler, t, msg) -> handler.handleMqtt(t, msg));
 		} catch (Exception e) {
 			eventProducer.sendWarning(
 					"Error handling message on topic " + topic + ": " + e.getMessage());
 		}
 	}
 
-	private void handleMetadata(String deviceName, MqttMessage message) {
+	private void handleMetadata(String topic, MqttMessage message) {
+		// device names are used as map keys and trie levels, keep a single copy of each
+		String deviceName = topic.substring(0, topic.length() - METADATA_SUFFIX.length()).intern();
 		byte[] payload = message.getPayload();
 		if (payload == null || payload.length == 0) {
 			// Retained empty payload means device gone (Last Will)
+			metadataCache.remove(deviceName);
 			removeDevice(deviceName);
 			return;
 		}
 
 		try {
-			String jsonString = new String(payload, StandardCharsets.UTF_8);
-			MetadataDto metadata = new Gson().fromJson(jsonString, MetadataDto.class);
-			if (metadata == null) {
-				eventProducer.sendWarning("Invalid metadata JSON from " + deviceName);
+			MetadataDto previous = metadataCache.get(deviceName);
+			MetadataDto metadata = metadataCache.parse(deviceName, payload);
+			if (metadata == previous && isDiscovered(deviceName)) {
+				// retained metadata republished unchanged
 				return;
 			}
 
-			metadata.validate();
-
 			// Check if device frequency matches configured frequency
 			if (metadata.frequency == null || !metadata.frequency.equals(this.frequency)) {
 				// Frequency doesn't match, ignore this device
 				return;
 			}
 
-			subLinksMap.computeIfAbsent(deviceName, dn -> {
-				eventProducer.sendInfo("Discovered new radio device: " + dn);
-				return createSubLinkForDevice(dn);
-			});
-
-			AstraSubLink link = subLinksMap.get(deviceName);
-			if (link != null) {
-				link.setDetailedStatus(metadata.long_status);
-				link.setStatus(metadata.status);
-			}
+			Device device = devices.computeIfAbsent(deviceName, dn -> new Device(dn, discoveryBufferSize));
+			device.update(metadata);
 
 		} catch (Exception e) {
 			eventProducer.sendWarning("Error parsing metadata JSON for " + deviceName + ": " + e.getMessage());
 		}
 	}
 
-	private void handleTelemetry(String deviceName, MqttMessage message) {
-		AstraSubLink link = subLinksMap.get(deviceName);
-		if (link != null) {
-			link.handleMqttMessage(message);
-		}
+	/**
+	 * Returns true if the device is being discovered or is active. A device whose
+	 * sublink could not be created is forgotten, its unchanged metadata is then
+	 * processed again to retry.
+	 */
+	private boolean isDiscovered(String deviceName) {
+		Device device = devices.get(deviceName);
+		return device != null && device.state != DeviceState.REMOVED;
 	}
 
-	/** Removes the sublink corresponding to a device that cleared metadata. */
+	/** Marks a device whose metadata was cleared as removed and disables its sublink. */
 	private void removeDevice(String deviceName) {
-		AstraSubLink link = subLinksMap.remove(deviceName);
-		if (link != null) {
-			try {
-				((Service) link).stopAsync();
-
-				LinkManager linkManager = YamcsServer.getServer().getInstance(instance).getLinkManager();
-				linkManager.configureDataLink(this, config);
-
-				linkManager.disableLink(link.getName());
-
-				eventProducer.sendInfo("Removed device " + deviceName + " (metadata cleared)");
-			} catch (Exception e) {
-				eventProducer.sendWarning(
-						"Failed to remove device " + deviceName + ": " + e.getMessage());
-			}
+		Device device = devices.get(deviceName);
+		if (device != null) {
+			device.remove();
 		}
 	}
 
-	/** Creates and registers a new device sublink. */
+	/**
+	 * Creates and registers a new device sublink. Runs on the lifecycle thread,
+	 * which also serializes the registration of concurrently discovered devices.
+	 */
 	private AstraSubLink createSubLinkForDevice(String device) {
 		try {
-			// TODO: Fix this random race condition when two links start at once
-			int randomMillis = ThreadLocalRandom.current().nextInt(0, 1001);
-
-			log.info("Sleeping for " + randomMillis + " ms");
-
-			Thread.sleep(randomMillis);
 			String deviceType = device.split("-")[0];
 
 			// Implement more types of links here!
@@ -208,9 +195,7 @@ public class AstraAggregateDataLink extends AbstractLink implements AggregatedDa
 			link.init(instance, linkName, config);
 			link.setParent(this);
 			subLinks.add(link);
-
-			LinkManager linkManager = YamcsServer.getServer().getInstance(instance).getLinkManager();
-			linkManager.configureDataLink(link, config);
+			configureSubLink(link);
 
 			return link;
 		} catch (IllegalArgumentException e) {
@@ -220,20 +205,164 @@ public class AstraAggregateDataLink extends AbstractLink implements AggregatedDa
 		} catch (IndexOutOfBoundsException e) {
 			eventProducer.sendWarning("Invalid device name \"" + device + "\". Could not identify device type.");
 			return null;
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-			return null;
 		}
+	}
+
+	/**
+	 * Hands a new sublink to the link manager of the instance, which connects it
+	 * to the TM streams.
+	 */
+	void configureSubLink(AstraSubLink link) {
+		LinkManager linkManager = YamcsServer.getServer().getInstance(instance).getLinkManager();
+		linkManager.configureDataLink(link, config);
+	}
 
+	void enableSubLink(AstraSubLink link) {
+		YamcsServer.getServer().getInstance(instance).getLinkManager().enableLink(link.getName());
+	}
+
+	void disableSubLink(AstraSubLink link) {
+		YamcsServer.getServer().getInstance(instance).getLinkManager().disableLink(link.getName());
+	}
+
+	/**
+	 * A discovered device. The state transitions and the hand-over of the
+	 * buffered telemetry are done under the device lock; once ACTIVE, telemetry
+	 * is forwarded without locking.
+	 */
+	private final class Device implements MqttTopicHandler {
+		final String name;
+		final String telemetryTopic;
+		final ArrayBlockingQueue<MqttMessage> pending;
+		volatile DeviceState state = DeviceState.REMOVED;
+		volatile AstraSubLink link;
+		// latest metadata, applied to the sublink once it exists
+		volatile MetadataDto metadata;
+		long droppedCount = 0;
+
+		Device(String name, int bufferSize) {
+			this.name = name;
+			this.telemetryTopic = name + TELEMETRY_SUFFIX;
+			this.pending = new ArrayBlockingQueue<>(bufferSize);
+		}
+
+		/** Called on the MQTT callback thread for each valid metadata message. */
+		void update(MetadataDto metadata) {
+			this.metadata = metadata;
+			synchronized (this) {
+				if (state == DeviceState.REMOVED) {
+					state = DeviceState.DISCOVERING;
+					routes.add(telemetryTopic, this);
+					lifecycleExecutor.execute(this::activate);
+					return;
+				}
+			}
+			AstraSubLink l = link;
+			if (state == DeviceState.ACTIVE && l != null) {
+				l.setDetailedStatus(metadata.long_status);
+				l.setStatus(metadata.status);
+			}
+		}
+
+		/** Called on the MQTT callback thread when the metadata is cleared. */
+		void remove() {
+			synchronized (this) {
+				if (state == DeviceState.REMOVED) {
+					return;
+				}
+				state = DeviceState.REMOVED;
+				routes.remove(telemetryTopic, this);
+				pending.clear();
+			}
+			lifecycleExecutor.execute(this::deactivate);
+		}
+
+		/** Runs on the lifecycle thread. */
+		private void activate() {
+			AstraSubLink l = link;
+			if (l == null) {
+				eventProducer.sendInfo("Discovered new radio device: " + name);
+				l = createSubLinkForDevice(name);
+			} else {
+				enableSubLink(l);
+				eventProducer.sendInfo("Rediscovered device " + name);
+			}
+
+			synchronized (this) {
+				if (l == null) {
+					// unsupported device, forget it so that new metadata triggers a new attempt
+					state = DeviceState.REMOVED;
+					routes.remove(telemetryTopic, this);
+					pending.clear();
+					devices.remove(name, this);
+					return;
+				}
+				link = l;
+				if (state == DeviceState.DISCOVERING) {
+					MetadataDto md = metadata;
+					l.setDetailedStatus(md.long_status);
+					l.setStatus(md.status);
+
+					MqttMessage msg;
+					while ((msg = pending.poll()) != null) {
+						l.handleMqttMessage(msg);
+					}
+					state = DeviceState.ACTIVE;
+					if (droppedCount > 0) {
+						eventProducer.sendWarning("Dropped " + droppedCount + " telemetry messages from " + name
+								+ " during discovery");
+						droppedCount = 0;
+					}
+					return;
+				}
+			}
+			// removed while the sublink was being set up
+			deactivate();
+		}
+
+		/** Runs on the lifecycle thread. */
+		private void deactivate() {
+			AstraSubLink l = link;
+			if (l == null || state != DeviceState.REMOVED) {
+				return;
+			}
+			try {
+				disableSubLink(l);
+				eventProducer.sendInfo("Removed device " + name + " (metadata cleared)");
+			} catch (Exception e) {
+				eventProducer.sendWarning("Failed to remove device " + name + ": " + e.getMessage());
+			}
+		}
+
+		@Override
+		public void handleMqtt(String topic, MqttMessage message) {
+			if (state != DeviceState.ACTIVE) {
+				synchronized (this) {
+					if (state == DeviceState.DISCOVERING) {
+						if (!pending.offer(message)) {
+							pending.poll();
+							pending.offer(message);
+							droppedCount++;
+						}
+						return;
+					} else if (state == DeviceState.REMOVED) {
+						return;
+					}
+				}
+			}
+			link.handleMqttMessage(message);
+		}
 	}
 
 	@Override
 	protected void doStop() {
+		lifecycleExecutor.shutdown();
 		try {
-			client.disconnect().waitForCompletion();
-		} catch (Exception e) {
-			eventProducer.sendWarning("Error disconnecting MQTT: " + e.getMessage());
+			lifecycleExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		client.close();
 		notifyStopped();
 	}
 
@@ -252,6 +381,13 @@ public class AstraAggregateDataLink extends AbstractLink implements AggregatedDa
 		return detailedStatus;
 	}
 
+	@Override
+	public Map<String, Object> getExtraInfo() {
+		var extra = new LinkedHashMap<String, Object>();
+		client.addExtraInfo(extra);
+		return extra;
+	}
+
 	private static final class AckDto {
 		Number cmd_id;
 		String status;
@@ -1,8 +1,10 @@
 package org.yamcs.mrt;
 
-import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.yamcs.CommandOption;
 import org.yamcs.ConfigurationException;
@@ -10,19 +12,27 @@ import org.yamcs.Spec;
 import org.yamcs.YConfiguration;
 import org.yamcs.YamcsServer;
 import org.yamcs.CommandOption.CommandOptionType;
+import org.yamcs.Spec.OptionType;
 import org.yamcs.cmdhistory.CommandHistoryPublisher;
 import org.yamcs.cmdhistory.CommandHistoryPublisher.AckStatus;
 import org.yamcs.commanding.Acknowledgment;
 import org.yamcs.commanding.ActiveCommand;
 import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.mqtt.CommandPayloadEncoder;
+import org.yamcs.mqtt.MqttConnectionPool;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
+import org.yamcs.mrt.utils.AckBus;
+import org.yamcs.mrt.utils.AckParser;
 import org.yamcs.mrt.utils.DeviceFrequencyManager;
+import org.yamcs.mrt.utils.DeviceSelectionPolicy;
+import org.yamcs.mrt.utils.LatencyHistogram;
+import org.yamcs.mrt.utils.MetadataCache;
 import org.yamcs.mrt.utils.MetadataDto;
+import org.yamcs.mrt.utils.TimerWheel;
 import org.yamcs.protobuf.Commanding.CommandId;
 import org.yamcs.protobuf.YamcsInstance;
 import org.yamcs.tctm.AbstractTcDataLink;
 
-import com.google.gson.Gson;
-
 import org.eclipse.paho.client.mqttv3.*;
 
 /**
@@ -52,18 +62,59 @@ public class AstraCommandLink extends AbstractTcDataLink {
 	private YConfiguration config;
 	private String detailedStatus;
 
-	private MqttAsyncClient client;
-	private MqttConnectOptions connOpts;
+	private LinkConnection client;
 
-	private DeviceFrequencyManager deviceManager = new DeviceFrequencyManager();
+	private DeviceFrequencyManager deviceManager;
+	private final MetadataCache metadataCache = new MetadataCache();
 
-	// Each command is sent with a numeric id (0-255) used when it's acknowledged.
-	// We assume that there will never be more than 255 commands in the air at one
-	// time. We store each command and the devices it was sent to.
+	// Each command is sent with a numeric id (1-255) used when it's acknowledged.
+	// The commands in flight are stored in a table indexed by that id, with the
+	// devices they were sent to. An entry is removed when all the devices have
+	// acked or after commandTimeoutSecs; until then the id cannot be reused.
+	private static final int MAX_SEQUENCE = 255;
 	private final AtomicInteger currentCommandId = new AtomicInteger(1);
+	private final AtomicReferenceArray<InFlightCommand> inFlightCommands = new AtomicReferenceArray<>(
+			MAX_SEQUENCE + 1);
+	// Commands completed by their FC acks, kept for commandTimeoutSecs (or until the id
+	// completes again) so that the radio acks arriving after the FC acks are not lost.
+	private final AtomicReferenceArray<InFlightCommand> completedCommands = new AtomicReferenceArray<>(
+			MAX_SEQUENCE + 1);
+	private int commandTimeoutSecs;
+
+	private final AtomicInteger commandsInFlight = new AtomicInteger();
+	private final AtomicInteger peakCommandsInFlight = new AtomicInteger();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final LatencyHistogram completionLatency = new LatencyHistogram();
+	// from the reception of the telemetry carrying the FC ack to the command history update
+	private final LatencyHistogram fcAckLatency = new LatencyHistogram();
+	private final AckBus.FcAckListener fcAckListener = new AckBus.FcAckListener() {
+		@Override
+		public void onFcAck(int cmdId, String frequency, String deviceName, long arrivalNanos) {
+			handleFCAck(cmdId, frequency, deviceName, arrivalNanos);
+		}
+
+		@Override
+		public void onRssi(String deviceName, double dBm) {
+			deviceManager.recordRssi(deviceName, dBm);
+		}
+	};
+
+	// Listener of all the command publishes, the token's user context is the command
+	private final IMqttActionListener publishListener = new IMqttActionListener() {
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			var command = (PreparedCommand) asyncActionToken.getUserContext();
+			ackCommand(command.getCommandId());
+		}
 
-	private Map<Integer, Collection<String>> commandToDeviceMap = new HashMap<>();
-	private Map<Integer, PreparedCommand> commandToPreparedMap = new HashMap<>();
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			var command = (PreparedCommand) asyncActionToken.getUserContext();
+			log.warn("Failed to send command", exception);
+			failedCommand(command.getCommandId(), exception.toString());
+		}
+	};
 
 	@Override
 	public void init(String instance, String name, YConfiguration config) throws ConfigurationException {
@@ -72,15 +123,24 @@ public class AstraCommandLink extends AbstractTcDataLink {
 		this.name = name;
 		this.config = config;
 		this.detailedStatus = "Not started.";
-
-		this.connOpts = MqttUtils.getConnectionOptions(config);
-		this.client = MqttUtils.newClient(config);
+		this.commandTimeoutSecs = config.getInt("commandTimeoutSecs", 30);
+		this.deviceManager = new DeviceFrequencyManager(
+				DeviceSelectionPolicy.forName(config.getString("deviceSelection", "FIRST")));
+
+		this.client = MqttConnectionPool.getInstance().acquire(name, config, log, eventProducer);
+		client.setConnectionLostHandler(
+				cause -> eventProducer.sendWarning("MQTT connection lost: " + cause.getMessage()));
+		client.setPublishListener(publishListener);
 	}
 
 	@Override
 	public Spec getSpec() {
 		var spec = getDefaultSpec();
 		MqttUtils.addConnectionOptionsToSpec(spec);
+		spec.addOption("commandTimeoutSecs", OptionType.INTEGER).withDefault(30);
+		spec.addOption("deviceSelection", OptionType.STRING)
+				.withChoices("FIRST", "BEST_RSSI", "LOWEST_ACK_LATENCY", "ROUND_ROBIN")
+				.withDefault("FIRST");
 		return spec;
 	}
 
@@ -91,31 +151,14 @@ public class AstraCommandLink extends AbstractTcDataLink {
 		processor.addAcknowledgment(ack);
 
 		try {
-			client.setCallback(new MqttCallback() {
-				@Override
-				public void connectionLost(Throwable cause) {
-
-					eventProducer.sendWarning(
-							"MQTT connection lost: " + cause.getMessage());
-				}
-
-				@Override
-				public void messageArrived(String topic, MqttMessage message) {
-					handleMqttMessage(topic, message);
-				}
-
-				@Override
-				public void deliveryComplete(IMqttDeliveryToken token) {
-				}
-			});
-
-			client.connect(connOpts).waitForCompletion();
+			client.connectAndWait();
 
 			// Each topic must have a corresponding qos
 			String[] topics = { "+/acks", "+/metadata", "commands/send" };
 			int[] qos = { 1, 1, 1 };
 
-			client.subscribe(topics, qos).waitForCompletion();
+			client.subscribe(topics, qos, this::handleMqttMessage);
+			AckBus.getInstance(instance).addListener(fcAckListener);
 
 			detailedStatus = "Connected to MQTT broker, listening for commands";
 
@@ -131,11 +174,8 @@ public class AstraCommandLink extends AbstractTcDataLink {
 
 	@Override
 	protected void doStop() {
-		try {
-			client.disconnect().waitForCompletion();
-		} catch (Exception e) {
-			eventProducer.sendWarning("Error disconnecting MQTT: " + e.getMessage());
-		}
+		AckBus.getInstance(instance).removeListener(fcAckListener);
+		client.close();
 		notifyStopped();
 	}
 
@@ -144,6 +184,24 @@ public class AstraCommandLink extends AbstractTcDataLink {
 		return detailedStatus;
 	}
 
+	@Override
+	public Map<String, Object> getExtraInfo() {
+		var extra = new LinkedHashMap<String, Object>();
+		client.addExtraInfo(extra);
+		extra.put("Commands in flight", commandsInFlight.get() + "/" + MAX_SEQUENCE);
+		extra.put("Peak commands in flight", peakCommandsInFlight.get());
+		extra.put("Completed commands", completedCount.get());
+		extra.put("Timed out commands", timeoutCount.get());
+		extra.put("Completion latency p50 (ms)",
+				LatencyHistogram.toMillis(completionLatency.getPercentileMicros(0.5)));
+		extra.put("Completion latency p99 (ms)",
+				LatencyHistogram.toMillis(completionLatency.getPercentileMicros(0.99)));
+		extra.put("FC ack latency p50 (ms)", LatencyHistogram.toMillis(fcAckLatency.getPercentileMicros(0.5)));
+		extra.put("FC ack latency p99 (ms)", LatencyHistogram.toMillis(fcAckLatency.getPercentileMicros(0.99)));
+		extra.put("FC ack latency max (ms)", LatencyHistogram.toMillis(fcAckLatency.getMaxMicros()));
+		return extra;
+	}
+
 	@Override
 	protected org.yamcs.tctm.Link.Status connectionStatus() {
 		return client.isConnected() ? Status.OK : Status.UNAVAIL;
@@ -181,52 +239,55 @@ public class AstraCommandLink extends AbstractTcDataLink {
 		String cmdId = preparedCommand.getMetaCommand().getShortDescription();
 		postprocess(preparedCommand);
 
-		int seqNum = currentCommandId.getAndIncrement();
-		if (seqNum > 255) {
-			currentCommandId.set(1);
-			seqNum = 1;
-		}
+		int seqNum = currentCommandId.getAndUpdate(n -> n >= MAX_SEQUENCE ? 1 : n + 1);
 
 		this.commandHistoryPublisher.publish(preparedCommand.getCommandId(),
 				"Command_Id", cmdId);
 		this.commandHistoryPublisher.publish(preparedCommand.getCommandId(),
 				"Sequence_Count", seqNum);
 
-		commandToPreparedMap.put(seqNum, preparedCommand);
-
-		String cmdPayload = seqNum + "," + cmdId;
-		MqttMessage msg = new MqttMessage(cmdPayload.getBytes());
+		byte[] cmdPayload = CommandPayloadEncoder.encode(seqNum, cmdId);
+		MqttMessage msg = new MqttMessage(cmdPayload);
 
 		Collection<String> devices = deviceManager.getAllSelectedDevices();
 		int successCount = 0;
 
 		this.commandHistoryPublisher.publish(preparedCommand.getCommandId(),
 				"TX_Devices", String.join(",", devices));
-		this.commandToDeviceMap.put(seqNum, devices);
+		InFlightCommand entry = null;
+		if (!devices.isEmpty()) {
+			entry = new InFlightCommand(preparedCommand, devices);
+			// scheduled before the entry is visible, so that removing it always cancels the timeout
+			var timedOutEntry = entry;
+			entry.timeout = TimerWheel.getShared().schedule(commandTimeoutSecs, TimeUnit.SECONDS,
+					() -> handleTimeout(seqNum, timedOutEntry));
+			if (!inFlightCommands.compareAndSet(seqNum, null, entry)) {
+				entry.timeout.cancel();
+				failedCommand(preparedCommand.getCommandId(),
+						"Sequence " + seqNum + " is still in flight; refusing to overwrite it");
+				return false;
+			}
+			int n = commandsInFlight.incrementAndGet();
+			peakCommandsInFlight.accumulateAndGet(n, Math::max);
+		}
 
 		for (var device : devices) {
 			try {
-				client.publish(device + "/commands", msg, null, new IMqttActionListener() {
-					@Override
-					public void onSuccess(IMqttToken asyncActionToken) {
-						ackCommand(preparedCommand.getCommandId());
-					}
+				client.publish(device + "/commands", msg, preparedCommand);
 
-					@Override
-					public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-						log.warn("Failed to send command", exception);
-						failedCommand(preparedCommand.getCommandId(), exception.toString());
-					}
-				});
-
-				dataOut(1, cmdPayload.length());
+				dataOut(1, cmdPayload.length);
 
 				successCount++;
 			} catch (MqttException e) {
 				log.warn("Failed to send command {}", e);
 			}
 		}
+		deviceManager.commandSent();
 
+		if (successCount == 0 && entry != null) {
+			// no ack can come, free the id now instead of after commandTimeoutSecs
+			removeInFlightCommand(seqNum, entry);
+		}
 		return successCount > 0;
 	};
 
@@ -238,19 +299,19 @@ public class AstraCommandLink extends AbstractTcDataLink {
 		byte[] payload = message.getPayload();
 		// Retained empty payload means device gone (Last Will)
 		if (payload == null || payload.length == 0) {
+			metadataCache.remove(deviceName);
 			deviceManager.removeDevice(deviceName);
 			return;
 		}
 
 		try {
-			String jsonString = new String(payload, StandardCharsets.UTF_8);
-			MetadataDto metadata = new Gson().fromJson(jsonString, MetadataDto.class);
-			if (metadata == null) {
-				throw new IllegalArgumentException("Metadata payload is null");
+			MetadataDto previous = metadataCache.get(deviceName);
+			MetadataDto metadata = metadataCache.parse(deviceName, payload);
+			if (metadata == previous) {
+				// republished unchanged
+				return;
 			}
 
-			metadata.validate();
-
 			deviceManager.addOrUpdateDevice(deviceName, metadata.frequency);
 
 		} catch (Exception e) {
@@ -263,51 +324,109 @@ public class AstraCommandLink extends AbstractTcDataLink {
 	// FIX: Currently the only way we reigster the FC ack is if the same
 	// radio that sent it recieved it. Reciving FC acks should be
 	// radio agnostic, but we don't do that right now
-	public void handleFCAck(int cmd_id, String frequency, String deviceName) {
-		PreparedCommand command = commandToPreparedMap.get(cmd_id);
-		Collection<String> devices = commandToDeviceMap.get(cmd_id);
-
-		if (devices.contains(deviceName)) {
-			commandHistoryPublisher.publishAck(
-					command.getCommandId(),
-					"fc_" + frequency,
-					timeService.getMissionTime(),
-					AckStatus.OK);
-
-			devices.remove(deviceName);
+	private void handleFCAck(int cmd_id, String frequency, String deviceName, long arrivalNanos) {
+		InFlightCommand entry = getInFlightCommand(cmd_id);
+		if (entry == null || !entry.ackDevice(deviceName)) {
+			return;
 		}
 
+		commandHistoryPublisher.publishAck(
+				entry.command.getCommandId(),
+				"fc_" + frequency,
+				timeService.getMissionTime(),
+				AckStatus.OK);
+		fcAckLatency.recordNanos(System.nanoTime() - arrivalNanos);
+		deviceManager.recordAckLatency(deviceName, arrivalNanos - entry.sentNanos);
+
 		// If both FCs have ack'd then the command
 		// is complete
-		if (devices.size() == 0) {
+		if (entry.isComplete() && removeInFlightCommand(cmd_id, entry)) {
+			entry.completedNanos = System.nanoTime();
+			completedCommands.set(cmd_id, entry);
+			completedCount.incrementAndGet();
+			completionLatency.recordNanos(System.nanoTime() - entry.sentNanos);
 			commandHistoryPublisher.publishAck(
-					command.getCommandId(),
+					entry.command.getCommandId(),
 					CommandHistoryPublisher.CommandComplete_KEY,
 					timeService.getMissionTime(),
 					AckStatus.OK);
 		}
+	}
+
+	private void handleTimeout(int seqNum, InFlightCommand entry) {
+		if (!removeInFlightCommand(seqNum, entry)) {
+			return;
+		}
+		timeoutCount.incrementAndGet();
+		List<String> pendingDevices = entry.pendingDevices();
+		// counted as acked at the timeout, so that a silent device is not kept selected
+		for (String device : pendingDevices) {
+			deviceManager.recordAckLatency(device, TimeUnit.SECONDS.toNanos(commandTimeoutSecs));
+		}
+		commandHistoryPublisher.publishAck(
+				entry.command.getCommandId(),
+				CommandHistoryPublisher.CommandComplete_KEY,
+				timeService.getMissionTime(),
+				AckStatus.NOK,
+				"No ack from " + String.join(", ", pendingDevices) + " after " + commandTimeoutSecs
+						+ " s");
+	}
+
+	private InFlightCommand getInFlightCommand(int seqNum) {
+		if (seqNum < 0 || seqNum > MAX_SEQUENCE) {
+			return null;
+		}
+		return inFlightCommands.get(seqNum);
+	}
+
+	/**
+	 * Returns the command in flight with the given id or, if there is none, the command completed
+	 * with that id in the last commandTimeoutSecs.
+	 */
+	private InFlightCommand getCommandForRadioAck(int seqNum) {
+		InFlightCommand entry = getInFlightCommand(seqNum);
+		if (entry != null) {
+			return entry;
+		}
+		if (seqNum < 0 || seqNum > MAX_SEQUENCE) {
+			return null;
+		}
+		entry = completedCommands.get(seqNum);
+		if (entry == null
+				|| System.nanoTime() - entry.completedNanos > TimeUnit.SECONDS.toNanos(commandTimeoutSecs)) {
+			return null;
+		}
+		return entry;
+	}
 
+	private boolean removeInFlightCommand(int seqNum, InFlightCommand entry) {
+		if (!inFlightCommands.compareAndSet(seqNum, entry, null)) {
+			return false;
+		}
+		commandsInFlight.decrementAndGet();
+		if (entry.timeout != null) {
+			entry.timeout.cancel();
+		}
+		return true;
 	}
 
 	private void handleAck(String deviceName, MqttMessage message) {
 		byte[] payload = message.getPayload();
 
 		try {
-			String jsonString = new String(payload, StandardCharsets.UTF_8);
+			AckParser.Ack ack = AckParser.parse(payload);
 
-			AckDto ack = new Gson().fromJson(jsonString, AckDto.class);
-			if (ack == null) {
-				throw new IllegalArgumentException("ACK payload is null");
+			InFlightCommand entry = getCommandForRadioAck(ack.cmdId());
+			if (entry == null) {
+				log.debug("Ignoring ack {} from {}, no such command in flight", ack.cmdId(), deviceName);
+				return;
 			}
-
-			ack.validate();
-
-			PreparedCommand command = commandToPreparedMap.get(ack.cmd_id);
+			PreparedCommand command = entry.command;
 
 			AckStatus ackStatus;
-			if (ack.status.endsWith("NOK")) {
+			if (ack.status().endsWith("NOK")) {
 				ackStatus = AckStatus.NOK;
-			} else if (ack.status.endsWith("OK")) {
+			} else if (ack.status().endsWith("OK")) {
 				ackStatus = AckStatus.OK;
 			} else {
 				ackStatus = AckStatus.CANCELLED;
@@ -317,7 +436,7 @@ public class AstraCommandLink extends AbstractTcDataLink {
 					command.getCommandId(),
 					// Get the substring from RX_OK -> RX since we have the
 					// status we don't want to inclue it in the ack name
-					deviceName + "_" + ack.status.substring(0, 2),
+					deviceName + "_" + ack.status().substring(0, 2),
 					timeService.getMissionTime(),
 					ackStatus);
 
@@ -327,17 +446,30 @@ public class AstraCommandLink extends AbstractTcDataLink {
 		}
 	}
 
-	private static final class AckDto {
-		Integer cmd_id;
-		String status;
+	private static final class InFlightCommand {
+		final PreparedCommand command;
+		final long sentNanos = System.nanoTime();
+		// devices which have not sent the FC ack yet
+		private final Set<String> pendingDevices;
+		volatile TimerWheel.Timeout timeout;
+		volatile long completedNanos;
+
+		InFlightCommand(PreparedCommand command, Collection<String> devices) {
+			this.command = command;
+			this.pendingDevices = new HashSet<>(devices);
+		}
 
-		void validate() {
-			if (cmd_id == null) {
-				throw new IllegalArgumentException("Missing required field: cmd_id");
-			}
-			if (status == null) {
-				throw new IllegalArgumentException("Missing required field: status");
-			}
+		synchronized boolean ackDevice(String deviceName) {
+			return pendingDevices.remove(deviceName);
+		}
+
+		synchronized boolean isComplete() {
+			return pendingDevices.isEmpty();
+		}
+
+		synchronized List<String> pendingDevices() {
+			return new ArrayList<>(pendingDevices);
 		}
 	}
+
 }
@@ -2,18 +2,19 @@ package org.yamcs.mrt.astra;
 
 import java.util.HashMap;
 import java.util.Map;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.ConfigurationException;
 import org.yamcs.YConfiguration;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
+import org.yamcs.mrt.utils.MqttTopicHandler;
 import org.yamcs.tctm.AbstractTmDataLink;
 
-public abstract class AstraSubLink extends AbstractTmDataLink {
+public abstract class AstraSubLink extends AbstractTmDataLink implements MqttTopicHandler {
   private Status status = Status.UNAVAIL;
   private String detailedStatus = "";
-  MqttAsyncClient client;
+  LinkConnection client;
 
-  public AstraSubLink(MqttAsyncClient client) {
+  public AstraSubLink(LinkConnection client) {
     this.client = client;
   }
 
@@ -58,6 +59,11 @@ public abstract class AstraSubLink extends AbstractTmDataLink {
 
   public abstract void handleMqttMessage(MqttMessage message);
 
+  @Override
+  public void handleMqtt(String topic, MqttMessage message) {
+    handleMqttMessage(message);
+  }
+
   @Override
   protected Status connectionStatus() {
     return status;
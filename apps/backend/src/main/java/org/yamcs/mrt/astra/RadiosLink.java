@@ -2,23 +2,33 @@ package org.yamcs.mrt.astra;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.ConfigurationException;
 import org.yamcs.YConfiguration;
-import org.yamcs.YamcsServer;
-import org.yamcs.mrt.AstraCommandLink;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
 import org.yamcs.mrt.DefaultMqttToTmPacketConverter;
 import org.yamcs.mrt.MqttToTmPacketConverter;
-import org.yamcs.tctm.Link;
+import org.yamcs.mrt.utils.AckBus;
 
 public class RadiosLink extends AstraSubLink {
+  // layout of the FCFrame container of rocket.xml: an 8 bytes header whose byte 4 flags the atomic
+  // containers which follow, in the order states, prop, flight
+  static final int ATOMIC_FLAGS_OFFSET = 4;
+  static final int HEADER_LENGTH = 8;
+  static final int STATES_ATOMIC_FLAG = 0x01;
+  static final int STATES_ATOMIC_LENGTH = 4;
+  static final int PROP_ATOMIC_FLAG = 0x02;
+  static final int PROP_ATOMIC_LENGTH = 7;
+  static final int FLIGHT_ATOMIC_FLAG = 0x04;
+  static final int FC_RSSI_OFFSET_IN_FLIGHT_ATOMIC = 51;
+
   MqttToTmPacketConverter tmConverter;
   private String deviceName;
   private String deviceFrequency;
+  private AckBus ackBus;
   private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
 
-  public RadiosLink(MqttAsyncClient client, String frequency) {
+  public RadiosLink(LinkConnection client, String frequency) {
     super(client);
     this.deviceFrequency = frequency;
   }
@@ -29,6 +39,7 @@ public class RadiosLink extends AstraSubLink {
     super.init(yamcsInstance, linkName, config);
 
     this.deviceName = linkName.split("/")[1];
+    this.ackBus = AckBus.getInstance(yamcsInstance);
 
     tmConverter = new DefaultMqttToTmPacketConverter();
     tmConverter.init(yamcsInstance, linkName, config);
@@ -36,23 +47,21 @@ public class RadiosLink extends AstraSubLink {
 
   @Override
   public void handleMqttMessage(MqttMessage message) {
+    long arrivalNanos = System.nanoTime();
     dataIn(1, message.getPayload().length);
 
     // This is the only point where we can access the binary packet
-    // In order to pass acks along to toe AstraCommandLinkClass
+    // In order to pass the acks and the FC RSSI along to the command links
     byte flags = message.getPayload()[2];
     boolean ackFlag = ((flags >> 1) & 1) == 1;
     if (ackFlag) {
       byte commandAckIdByte = message.getPayload()[3];
       int commandAckId = commandAckIdByte & 0xFF;
-
-      var links =
-          YamcsServer.getServer().getInstance(this.getYamcsInstance()).getLinkManager().getLinks();
-      for (Link link : links) {
-        if (link instanceof AstraCommandLink) {
-          ((AstraCommandLink) link).handleFCAck(commandAckId, deviceFrequency, deviceName);
-        }
-      }
+      ackBus.publishFcAck(commandAckId, deviceFrequency, deviceName, arrivalNanos);
+    }
+    double rssi = fcRssi(message.getPayload());
+    if (!Double.isNaN(rssi)) {
+      ackBus.publishRssi(deviceName, rssi);
     }
 
     dataIn(1, message.getPayload().length);
@@ -63,4 +72,30 @@ public class RadiosLink extends AstraSubLink {
       }
     }
   }
+
+  /**
+   * Returns the fc_rssi parameter of an FC frame in dBm, or NaN if the frame has no flight_atomic
+   * container.
+   */
+  static double fcRssi(byte[] frame) {
+    if (frame.length <= ATOMIC_FLAGS_OFFSET) {
+      return Double.NaN;
+    }
+    int flags = frame[ATOMIC_FLAGS_OFFSET];
+    if ((flags & FLIGHT_ATOMIC_FLAG) == 0) {
+      return Double.NaN;
+    }
+    int offset = HEADER_LENGTH + FC_RSSI_OFFSET_IN_FLIGHT_ATOMIC;
+    if ((flags & STATES_ATOMIC_FLAG) != 0) {
+      offset += STATES_ATOMIC_LENGTH;
+    }
+    if ((flags & PROP_ATOMIC_FLAG) != 0) {
+      offset += PROP_ATOMIC_LENGTH;
+    }
+    if (offset >= frame.length) {
+      return Double.NaN;
+    }
+    // unsigned, calibrated by dividing by -2
+    return (frame[offset] & 0xFF) / -2.0;
+  }
 }
@@ -1,16 +1,16 @@
 package org.yamcs.mrt.astra;
 
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.ConfigurationException;
 import org.yamcs.YConfiguration;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
 import org.yamcs.mrt.DefaultMqttToTmPacketConverter;
 import org.yamcs.mrt.MqttToTmPacketConverter;
 
 public class ThermocoupleLink extends AstraSubLink {
 	MqttToTmPacketConverter tmConverter;
 
-	public ThermocoupleLink(MqttAsyncClient client, String frequency) {
+	public ThermocoupleLink(LinkConnection client, String frequency) {
 		super(client);
 	}
 
@@ -1,6 +1,11 @@
 package org.yamcs.mrt.links;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.ConfigurationException;
@@ -8,6 +13,7 @@ import org.yamcs.Spec;
 import org.yamcs.YConfiguration;
 import org.yamcs.commanding.PreparedCommand;
 import org.yamcs.logging.Log;
+import org.yamcs.mqtt.MqttMessagePipeline;
 import org.yamcs.mrt.DefaultMqttToTmPacketConverter;
 import org.yamcs.mrt.MqttToTmPacketConverter;
 import org.yamcs.mrt.utils.MqttManager;
@@ -18,6 +24,8 @@ abstract class AbstractAstraGenericTmTcLink extends AbstractTcTmParamLink implem
   protected final Log log = new Log(getClass());
 
   private MqttToTmPacketConverter tmConverter;
+  private MqttMessagePipeline pipeline;
+  private MqttManager mqttManager;
   private String baseTopic;
   private String telemetryTopic;
   private String statusTopic;
@@ -38,29 +46,35 @@ abstract class AbstractAstraGenericTmTcLink extends AbstractTcTmParamLink implem
 
     tmConverter = new DefaultMqttToTmPacketConverter();
     tmConverter.init(yamcsInstance, linkName, config);
+    pipeline = new MqttMessagePipeline(linkName, config, this::processMessage, log);
 
-    MqttManager manager = MqttManager.getInstance();
-    try {
-      manager.subscribe(telemetryTopic, this);
-      manager.subscribe(statusTopic, this);
-      manager.subscribe(detailTopic, this);
-    } catch (MqttException e) {
-      throw new ConfigurationException("Failed to subscribe to MQTT topics for " + baseTopic, e);
-    }
+    mqttManager = new MqttManager(linkName, config, log, eventProducer);
   }
 
   @Override
   public Spec getSpec() {
-    return getDefaultSpec();
+    Spec spec = getDefaultSpec();
+    MqttMessagePipeline.addOptionsToSpec(spec);
+    MqttManager.addOptionsToSpec(spec);
+    return spec;
   }
 
   @Override
   protected void doStart() {
+    pipeline.start();
+    String[] topics = getSubscriptionTopics();
+    int[] qos = new int[topics.length];
+    Arrays.fill(qos, 1);
+    mqttManager.subscribe(topics, qos, this);
+    mqttManager.subscribeShared(new String[] {telemetryTopic}, new int[] {1}, this);
+    mqttManager.connect();
     notifyStarted();
   }
 
   @Override
   protected void doStop() {
+    mqttManager.close();
+    pipeline.stop();
     notifyStopped();
   }
 
@@ -74,8 +88,22 @@ abstract class AbstractAstraGenericTmTcLink extends AbstractTcTmParamLink implem
     return detailedStatus;
   }
 
+  @Override
+  public Map<String, Object> getExtraInfo() {
+    Map<String, Object> extra = new LinkedHashMap<>();
+    mqttManager.addExtraInfo(extra);
+    pipeline.addExtraInfo(extra);
+    return extra;
+  }
+
+  /** Called on the MQTT callback thread, hands the message over to the link worker. */
   @Override
   public void handleMqtt(String topic, MqttMessage message) {
+    pipeline.submit(topic, message);
+  }
+
+  /** Called on the link worker for each received message, in order for a given topic. */
+  protected void processMessage(String topic, MqttMessage message) {
     if (telemetryTopic.equals(topic)) {
       dataIn(1, message.getPayload().length);
 
@@ -107,6 +135,14 @@ abstract class AbstractAstraGenericTmTcLink extends AbstractTcTmParamLink implem
     }
   }
 
+  /**
+   * Topics subscribed when the link starts, besides the telemetry topic which may be a shared
+   * subscription.
+   */
+  protected String[] getSubscriptionTopics() {
+    return new String[] {statusTopic, detailTopic};
+  }
+
   protected String getCommandTopic() {
     return commandTopic;
   }
@@ -129,9 +165,22 @@ abstract class AbstractAstraGenericTmTcLink extends AbstractTcTmParamLink implem
 
     try {
       byte[] payload = commandText.getBytes(StandardCharsets.UTF_8);
-      MqttManager.getInstance().publish(getCommandTopic(), new MqttMessage(payload));
+      mqttManager.publish(
+          getCommandTopic(),
+          new MqttMessage(payload),
+          new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+              ackCommand(preparedCommand.getCommandId());
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+              log.warn("Failed to send command {}", preparedCommand, exception);
+              failedCommand(preparedCommand.getCommandId(), exception.toString());
+            }
+          });
       dataOut(1, payload.length);
-      ackCommand(preparedCommand.getCommandId());
       return true;
     } catch (MqttException e) {
       log.warn("Failed to send command {}", preparedCommand, e);
@@ -3,9 +3,9 @@ package org.yamcs.mrt.links;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.ConfigurationException;
 import org.yamcs.YConfiguration;
@@ -24,11 +24,14 @@ public class AstraGenericTmTcLink extends AbstractAstraGenericTmTcLink {
     super.init(instance, name, config);
 
     ackTopic = name + "/acks";
-    try {
-      org.yamcs.mrt.utils.MqttManager.getInstance().subscribe(ackTopic, this);
-    } catch (MqttException e) {
-      throw new ConfigurationException("Failed to subscribe to MQTT ack topic for " + name, e);
-    }
+  }
+
+  @Override
+  protected String[] getSubscriptionTopics() {
+    String[] topics = super.getSubscriptionTopics();
+    String[] withAcks = Arrays.copyOf(topics, topics.length + 1);
+    withAcks[topics.length] = ackTopic;
+    return withAcks;
   }
 
   @Override
@@ -58,13 +61,13 @@ public class AstraGenericTmTcLink extends AbstractAstraGenericTmTcLink {
   }
 
   @Override
-  public void handleMqtt(String topic, MqttMessage message) {
+  protected void processMessage(String topic, MqttMessage message) {
     if (ackTopic != null && ackTopic.equals(topic)) {
       handleAck(message);
       return;
     }
 
-    super.handleMqtt(topic, message);
+    super.processMessage(topic, message);
   }
 
   private void handleAck(MqttMessage message) {
@@ -0,0 +1,79 @@
+package org.yamcs.mrt.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delivers the flight computer acks and signal strength found in the radio telemetry to the command
+ * links of a Yamcs instance.
+ *
+ * <p>The command links register once when they start; the radio links publish each ack to the bus
+ * of their instance. The listeners are kept in a copy-on-write array, so publishing neither locks
+ * nor allocates.
+ */
+public class AckBus {
+  private static final Map<String, AckBus> buses = new ConcurrentHashMap<>();
+  private static final FcAckListener[] NO_LISTENERS = new FcAckListener[0];
+
+  private volatile FcAckListener[] listeners = NO_LISTENERS;
+
+  /** Listener of the flight computer acks and signal strength. */
+  @FunctionalInterface
+  public interface FcAckListener {
+    /**
+     * Called on the thread of the radio link which received the ack.
+     *
+     * @param cmdId the sequence of the acked command
+     * @param frequency frequency of the radio which received the ack
+     * @param deviceName name of the radio which received the ack
+     * @param arrivalNanos {@link System#nanoTime()} when the telemetry carrying the ack was received
+     */
+    void onFcAck(int cmdId, String frequency, String deviceName, long arrivalNanos);
+
+    /**
+     * Called on the thread of the radio link for each frame reporting the RSSI of the flight
+     * computer.
+     *
+     * @param deviceName name of the radio which received the frame
+     * @param dBm the RSSI of the flight computer radio
+     */
+    default void onRssi(String deviceName, double dBm) {}
+  }
+
+  public static AckBus getInstance(String yamcsInstance) {
+    return buses.computeIfAbsent(yamcsInstance, k -> new AckBus());
+  }
+
+  public synchronized void addListener(FcAckListener listener) {
+    FcAckListener[] current = listeners;
+    FcAckListener[] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = listener;
+    listeners = updated;
+  }
+
+  public synchronized void removeListener(FcAckListener listener) {
+    FcAckListener[] current = listeners;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] == listener) {
+        FcAckListener[] updated = new FcAckListener[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, i);
+        System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+        listeners = updated;
+        return;
+      }
+    }
+  }
+
+  public void publishFcAck(int cmdId, String frequency, String deviceName, long arrivalNanos) {
+    for (FcAckListener listener : listeners) {
+      listener.onFcAck(cmdId, frequency, deviceName, arrivalNanos);
+    }
+  }
+
+  public void publishRssi(String deviceName, double dBm) {
+    for (FcAckListener listener : listeners) {
+      listener.onRssi(deviceName, dBm);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package org.yamcs.mrt.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming parser of the command acks sent by the radios:
+ *
+ * <pre>
+ * {
+ *   "cmd_id": int,
+ *   "status": string
+ * }
+ * </pre>
+ *
+ * <p>The payload bytes are read directly with a {@link JsonReader}, without decoding them to a
+ * string first or going through reflection. Unknown fields are skipped.
+ */
+public class AckParser {
+
+  public record Ack(int cmdId, String status) {}
+
+  /**
+   * @throws IllegalArgumentException if a required field is missing
+   * @throws IOException if the payload is not a JSON object
+   */
+  public static Ack parse(byte[] payload) throws IOException {
+    int cmdId = -1;
+    String status = null;
+
+    try (JsonReader reader =
+        new JsonReader(
+            new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8))) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (reader.peek() == JsonToken.NULL) {
+          reader.nextNull();
+          continue;
+        }
+        switch (name) {
+          case "cmd_id" -> cmdId = reader.nextInt();
+          case "status" -> status = reader.nextString();
+          default -> reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IllegalStateException | NumberFormatException e) {
+      // wrong token types
+      throw new IOException(e.getMessage(), e);
+    }
+
+    if (cmdId < 0) {
+      throw new IllegalArgumentException("Missing required field: cmd_id");
+    }
+    if (status == null) {
+      throw new IllegalArgumentException("Missing required field: status");
+    }
+    return new Ack(cmdId, status);
+  }
+}
@@ -1,87 +1,208 @@
 package org.yamcs.mrt.utils;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the devices on each frequency and of the one selected to send the commands on it.
+ * <p>
+ * The devices are updated from the MQTT callbacks and read for every command, so the state is copy-on-write: each
+ * change builds a new immutable snapshot under the lock and publishes it, and the readers use the current snapshot
+ * without locking or allocating.
+ * <p>
+ * The device selected on a frequency is chosen by a {@link DeviceSelectionPolicy}, when the devices come and go, when
+ * their statistics are updated and after each command.
+ */
 public class DeviceFrequencyManager {
 
-    private final Map<String, String> deviceToFrequency = new HashMap<>();
-
-    private final Map<String, FrequencyBucket> frequencyBuckets = new HashMap<>();
+    private final DeviceSelectionPolicy policy;
 
-    public void addOrUpdateDevice(String device, String frequency) {
+    private final Map<String, DeviceStats> stats = new ConcurrentHashMap<>();
 
-        removeDevice(device); // remove old mapping if exists
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
-        deviceToFrequency.put(device, frequency);
+    /**
+     * The devices on a frequency and the selected one.
+     */
+    public record Frequency(List<String> devices, String selectedDevice) {
+    }
 
-        FrequencyBucket bucket = frequencyBuckets.computeIfAbsent(
-                frequency, f -> new FrequencyBucket());
+    private record Snapshot(Map<String, String> deviceToFrequency, Map<String, Frequency> frequencies,
+            List<String> selectedDevices) {
+        static final Snapshot EMPTY = new Snapshot(Map.of(), Map.of(), List.of());
+    }
 
-        bucket.devices.add(device);
+    public DeviceFrequencyManager() {
+        this(DeviceSelectionPolicy.FIRST);
+    }
 
-        // If no selected device yet, pick this one
-        if (bucket.selectedDevice == null) {
-            bucket.selectedDevice = device;
-        }
+    public DeviceFrequencyManager(DeviceSelectionPolicy policy) {
+        this.policy = policy;
     }
 
-    public void removeDevice(String device) {
-        String frequency = deviceToFrequency.remove(device);
-        if (frequency == null)
+    public synchronized void addOrUpdateDevice(String device, String frequency) {
+        Snapshot s = snapshot;
+        if (frequency.equals(s.deviceToFrequency.get(device))) {
             return;
+        }
 
-        FrequencyBucket bucket = frequencyBuckets.get(frequency);
-        if (bucket == null)
-            return;
+        Map<String, String> deviceToFrequency = new HashMap<>(s.deviceToFrequency);
+        Map<String, Frequency> frequencies = new HashMap<>(s.frequencies);
 
-        bucket.devices.remove(device);
+        // remove old mapping if exists
+        String oldFrequency = deviceToFrequency.put(device, frequency);
+        if (oldFrequency != null) {
+            removeFromFrequency(frequencies, oldFrequency, device);
+        }
 
-        // If we removed the selected device, pick another
-        if (device.equals(bucket.selectedDevice)) {
-            bucket.selectedDevice = bucket.devices.stream()
-                    .findAny()
-                    .orElse(null);
+        Frequency f = frequencies.get(frequency);
+        if (f == null) {
+            frequencies.put(frequency, select(List.of(device), null));
+        } else {
+            List<String> devices = new ArrayList<>(f.devices);
+            devices.add(device);
+            frequencies.put(frequency, select(List.copyOf(devices), f.selectedDevice));
         }
 
-        if (bucket.devices.isEmpty()) {
-            frequencyBuckets.remove(frequency);
+        publish(deviceToFrequency, frequencies);
+    }
+
+    public synchronized void removeDevice(String device) {
+        Snapshot s = snapshot;
+        String frequency = s.deviceToFrequency.get(device);
+        if (frequency == null) {
+            return;
         }
+        stats.remove(device);
+
+        Map<String, String> deviceToFrequency = new HashMap<>(s.deviceToFrequency);
+        Map<String, Frequency> frequencies = new HashMap<>(s.frequencies);
+        deviceToFrequency.remove(device);
+        removeFromFrequency(frequencies, frequency, device);
+
+        publish(deviceToFrequency, frequencies);
     }
 
-    public String getSelectedDevice(String frequency) {
-        FrequencyBucket bucket = frequencyBuckets.get(frequency);
-        return bucket == null ? null : bucket.selectedDevice;
+    /**
+     * Records the signal strength reported by a frame received through the device.
+     */
+    public void recordRssi(String device, double dBm) {
+        stats.computeIfAbsent(device, d -> new DeviceStats()).recordRssi(dBm, System.nanoTime());
+        reselectIfChanged(device);
     }
 
-    public Set<String> getAllSelectedDevices() {
-        Set<String> result = new HashSet<>();
+    /**
+     * Records the time from sending a command through the device to receiving its ack.
+     */
+    public void recordAckLatency(String device, long nanos) {
+        stats.computeIfAbsent(device, d -> new DeviceStats()).recordAckLatency(nanos / 1e6, System.nanoTime());
+        reselectIfChanged(device);
+    }
 
-        for (FrequencyBucket bucket : frequencyBuckets.values()) {
-            if (bucket.selectedDevice != null) {
-                result.add(bucket.selectedDevice);
+    /**
+     * Lets the policy move the selection after a command has been sent through the selected devices.
+     */
+    public void commandSent() {
+        for (Frequency f : snapshot.frequencies.values()) {
+            if (!policy.next(f.devices, f.selectedDevice).equals(f.selectedDevice)) {
+                advanceSelection();
+                return;
             }
         }
+    }
+
+    public String getSelectedDevice(String frequency) {
+        Frequency f = snapshot.frequencies.get(frequency);
+        return f == null ? null : f.selectedDevice;
+    }
+
+    /**
+     * Returns the selected device of each frequency. The list is immutable and shared until the next change.
+     */
+    public List<String> getAllSelectedDevices() {
+        return snapshot.selectedDevices;
+    }
 
-        return result;
+    public List<String> getDevices(String frequency) {
+        Frequency f = snapshot.frequencies.get(frequency);
+        return f == null ? List.of() : f.devices;
     }
 
-    public Set<String> getDevices(String frequency) {
-        FrequencyBucket bucket = frequencyBuckets.get(frequency);
-        return bucket == null
-                ? Collections.emptySet()
-                : bucket.devices;
+    public Map<String, Frequency> getFrequencies() {
+        return snapshot.frequencies;
     }
 
     public String getFrequency(String device) {
-        return deviceToFrequency.get(device);
+        return snapshot.deviceToFrequency.get(device);
     }
 
-    public static class FrequencyBucket {
-        Set<String> devices = new HashSet<>();
-        String selectedDevice;
+    /**
+     * Returns the statistics of the device, or null if none has been recorded.
+     */
+    public DeviceStats getStats(String device) {
+        return stats.get(device);
+    }
+
+    private void reselectIfChanged(String device) {
+        Snapshot s = snapshot;
+        String frequency = s.deviceToFrequency.get(device);
+        if (frequency == null) {
+            return;
+        }
+        Frequency f = s.frequencies.get(frequency);
+        if (!policy.select(f.devices, f.selectedDevice, stats).equals(f.selectedDevice)) {
+            reselect(frequency);
+        }
+    }
+
+    private synchronized void reselect(String frequency) {
+        Snapshot s = snapshot;
+        Frequency f = s.frequencies.get(frequency);
+        if (f == null) {
+            return;
+        }
+        Map<String, Frequency> frequencies = new HashMap<>(s.frequencies);
+        frequencies.put(frequency, select(f.devices, f.selectedDevice));
+        publish(s.deviceToFrequency, frequencies);
+    }
+
+    private synchronized void advanceSelection() {
+        Snapshot s = snapshot;
+        Map<String, Frequency> frequencies = new HashMap<>();
+        for (var entry : s.frequencies.entrySet()) {
+            Frequency f = entry.getValue();
+            frequencies.put(entry.getKey(), new Frequency(f.devices, policy.next(f.devices, f.selectedDevice)));
+        }
+        publish(s.deviceToFrequency, frequencies);
+    }
+
+    private void removeFromFrequency(Map<String, Frequency> frequencies, String frequency, String device) {
+        Frequency f = frequencies.get(frequency);
+        if (f == null) {
+            return;
+        }
+        List<String> devices = new ArrayList<>(f.devices);
+        devices.remove(device);
+        if (devices.isEmpty()) {
+            frequencies.remove(frequency);
+        } else {
+            // if we removed the selected device, the policy picks another
+            frequencies.put(frequency, select(List.copyOf(devices), f.selectedDevice));
+        }
+    }
+
+    private Frequency select(List<String> devices, String current) {
+        return new Frequency(devices, policy.select(devices, current, stats));
+    }
+
+    private void publish(Map<String, String> deviceToFrequency, Map<String, Frequency> frequencies) {
+        List<String> selectedDevices = new ArrayList<>(frequencies.size());
+        for (Frequency f : frequencies.values()) {
+            selectedDevices.add(f.selectedDevice);
+        }
+        snapshot = new Snapshot(Map.copyOf(deviceToFrequency), Map.copyOf(frequencies), List.copyOf(selectedDevices));
     }
 }
@@ -0,0 +1,129 @@
+package org.yamcs.mrt.utils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses which device sends the commands on a frequency, when several devices are on it.
+ * <p>
+ * The policies are called by the {@link DeviceFrequencyManager} when the devices or their statistics change, not for
+ * every command, so they may iterate over the candidates but should not block.
+ */
+public interface DeviceSelectionPolicy {
+
+    /**
+     * Keeps the device selected until it goes away, then takes the first remaining one.
+     */
+    DeviceSelectionPolicy FIRST = (devices, current, stats) -> isCandidate(devices, current) ? current : devices.get(0);
+
+    /**
+     * Prefers the device with the strongest recent signal, switching only when another device is better by at least 3
+     * dB.
+     */
+    DeviceSelectionPolicy BEST_RSSI = (devices, current, stats) -> {
+        String best = isCandidate(devices, current) ? current : null;
+        double bestRssi = best == null ? Double.NaN : rssi(stats, best);
+        for (String device : devices) {
+            double rssi = rssi(stats, device);
+            if (best == null || (!Double.isNaN(rssi) && (Double.isNaN(bestRssi) || rssi > bestRssi + 3))) {
+                best = device;
+                bestRssi = rssi;
+            }
+        }
+        return best;
+    };
+
+    /**
+     * Prefers the device whose commands are acked the fastest, switching only when another device is faster by at
+     * least 20%.
+     * <p>
+     * A device can only be measured while it is selected, so the devices without a recent ack latency (see
+     * {@link DeviceStats#getAckLatencyMillis()}) are tried first, one after the other: the current one is kept
+     * until it has a sample, then the next unmeasured one is selected.
+     */
+    DeviceSelectionPolicy LOWEST_ACK_LATENCY = (devices, current, stats) -> {
+        String best = isCandidate(devices, current) ? current : null;
+        double bestLatency = best == null ? Double.NaN : ackLatency(stats, best);
+        if (best != null && Double.isNaN(bestLatency)) {
+            return best;
+        }
+        for (String device : devices) {
+            if (Double.isNaN(ackLatency(stats, device))) {
+                return device;
+            }
+        }
+        for (String device : devices) {
+            double latency = ackLatency(stats, device);
+            if (best == null || latency < bestLatency * 0.8) {
+                best = device;
+                bestLatency = latency;
+            }
+        }
+        return best;
+    };
+
+    /**
+     * Sends each command through the next device of the frequency.
+     */
+    DeviceSelectionPolicy ROUND_ROBIN = new DeviceSelectionPolicy() {
+        @Override
+        public String select(List<String> devices, String current, Map<String, DeviceStats> stats) {
+            return FIRST.select(devices, current, stats);
+        }
+
+        @Override
+        public String next(List<String> devices, String current) {
+            int i = current == null ? -1 : devices.indexOf(current);
+            return devices.get((i + 1) % devices.size());
+        }
+    };
+
+    /**
+     * Returns the device to select.
+     *
+     * @param devices
+     *            the devices on the frequency, never empty
+     * @param current
+     *            the device selected so far, null if none. It may no longer be in the devices.
+     * @param stats
+     *            statistics of the devices, a device may have none
+     */
+    String select(List<String> devices, String current, Map<String, DeviceStats> stats);
+
+    /**
+     * Returns the device to select after a command has been sent through the current one. By default the selection
+     * stays the same.
+     */
+    default String next(List<String> devices, String current) {
+        return current;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if there is no policy with that name
+     */
+    static DeviceSelectionPolicy forName(String name) {
+        return switch (name) {
+        case "FIRST" -> FIRST;
+        case "BEST_RSSI" -> BEST_RSSI;
+        case "LOWEST_ACK_LATENCY" -> LOWEST_ACK_LATENCY;
+        case "ROUND_ROBIN" -> ROUND_ROBIN;
+        default -> throw new IllegalArgumentException("Unknown device selection policy: " + name);
+        };
+    }
+
+    private static boolean isCandidate(List<String> devices, String device) {
+        // the immutable lists do not accept contains(null)
+        return device != null && devices.contains(device);
+    }
+
+    private static double rssi(Map<String, DeviceStats> stats, String device) {
+        DeviceStats s = stats.get(device);
+        return s == null ? Double.NaN : s.getRssi();
+    }
+
+    private static double ackLatency(Map<String, DeviceStats> stats, String device) {
+        DeviceStats s = stats.get(device);
+        return s == null ? Double.NaN : s.getAckLatencyMillis();
+    }
+}
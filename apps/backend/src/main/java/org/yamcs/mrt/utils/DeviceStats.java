@@ -0,0 +1,50 @@
+package org.yamcs.mrt.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent link statistics of a device, used by the {@link DeviceSelectionPolicy}. The values are NaN until a first
+ * sample is recorded, and again once they are too old to describe the link.
+ */
+public class DeviceStats {
+    // weight of a new ack latency sample
+    private static final double ALPHA = 0.2;
+    // a value not updated for that long is measured again from scratch
+    static final long MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private volatile double rssi = Double.NaN;
+    private volatile long lastRssiNanos;
+    private volatile double ackLatencyMillis = Double.NaN;
+    private volatile long lastAckNanos;
+
+    /**
+     * Signal strength in dBm reported by the last frame received through the device. NaN if no frame has been
+     * received in the last minute.
+     */
+    public double getRssi() {
+        return isRecent(rssi, lastRssiNanos, System.nanoTime()) ? rssi : Double.NaN;
+    }
+
+    /**
+     * Moving average of the time from sending a command to receiving its ack, in milliseconds. NaN if no ack has been
+     * received in the last minute.
+     */
+    public double getAckLatencyMillis() {
+        return isRecent(ackLatencyMillis, lastAckNanos, System.nanoTime()) ? ackLatencyMillis : Double.NaN;
+    }
+
+    void recordRssi(double dBm, long nanoTime) {
+        rssi = dBm;
+        lastRssiNanos = nanoTime;
+    }
+
+    synchronized void recordAckLatency(double millis, long nanoTime) {
+        double avg = isRecent(ackLatencyMillis, lastAckNanos, nanoTime) ? ackLatencyMillis : Double.NaN;
+        ackLatencyMillis = Double.isNaN(avg) ? millis : avg + ALPHA * (millis - avg);
+        lastAckNanos = nanoTime;
+    }
+
+    private static boolean isRecent(double value, long sampleNanos, long nanoTime) {
+        return !Double.isNaN(value) && nanoTime - sampleNanos <= MAX_AGE_NANOS;
+    }
+}
@@ -0,0 +1,93 @@
+package org.yamcs.mrt.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies for reporting percentiles in the link extra info.
+ *
+ * <p>Values are recorded in microseconds into logarithmic buckets with four sub-buckets per power
+ * of two, so a percentile is exact to within about 19%. Recording does not allocate and can be done
+ * concurrently from several threads.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKETS = 4;
+  private static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  public void recordNanos(long nanos) {
+    recordMicros(nanos / 1000);
+  }
+
+  public void recordMicros(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    counts.incrementAndGet(bucketIndex(micros));
+    totalCount.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    maxMicros.accumulateAndGet(micros, Math::max);
+  }
+
+  static int bucketIndex(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(micros);
+    // the two bits following the leading one
+    int sub = (int) (micros >>> (exp - 2)) & (SUB_BUCKETS - 1);
+    return Math.min(NUM_BUCKETS - 1, (exp - 1) * SUB_BUCKETS + sub);
+  }
+
+  /** Upper bound (exclusive) of the values falling into the bucket. */
+  static long bucketLimit(int index) {
+    if (index < SUB_BUCKETS) {
+      return index + 1;
+    }
+    int exp = index / SUB_BUCKETS + 1;
+    int sub = index % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + sub + 1) << (exp - 2);
+  }
+
+  /**
+   * Returns the value in microseconds below which the given fraction (0 to 1) of the recorded values
+   * fall, or 0 if nothing has been recorded.
+   */
+  public long getPercentileMicros(double fraction) {
+    long total = totalCount.get();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(fraction * total);
+    long cumulated = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      cumulated += counts.get(i);
+      if (cumulated >= rank) {
+        return Math.min(bucketLimit(i), maxMicros.get());
+      }
+    }
+    return maxMicros.get();
+  }
+
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  public double getMeanMicros() {
+    long n = totalCount.get();
+    return n == 0 ? 0 : (double) totalMicros.get() / n;
+  }
+
+  /** Formats a value in microseconds as milliseconds with three decimals. */
+  public static double toMillis(double micros) {
+    return Math.round(micros) / 1000.0;
+  }
+}
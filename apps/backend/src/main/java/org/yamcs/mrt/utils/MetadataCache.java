@@ -0,0 +1,69 @@
+package org.yamcs.mrt.utils;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses the device metadata messages, keeping the last metadata of each device.
+ *
+ * <p>The devices republish their retained metadata periodically, usually unchanged. When the
+ * payload of a device is identical to the previous one (same hash and same bytes), the metadata
+ * parsed before is returned as is, so a caller can detect an unchanged payload by comparing the
+ * returned instance with {@link #get(String)}. The returned instances are shared and must not be
+ * modified.
+ *
+ * <p>Each link has its own cache, since "unchanged" is relative to what the link has seen.
+ */
+public class MetadataCache {
+  private static final Gson GSON = new Gson();
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private record Entry(int hash, byte[] payload, MetadataDto metadata) {}
+
+  /**
+   * Returns the metadata in the payload.
+   *
+   * @throws IllegalArgumentException if the payload is not valid metadata
+   * @throws com.google.gson.JsonParseException if the payload is not valid JSON
+   */
+  public MetadataDto parse(String deviceName, byte[] payload) {
+    int hash = Arrays.hashCode(payload);
+    Entry entry = entries.get(deviceName);
+    if (entry != null && entry.hash == hash && Arrays.equals(entry.payload, payload)) {
+      return entry.metadata;
+    }
+
+    MetadataDto metadata =
+        GSON.fromJson(
+            new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8),
+            MetadataDto.class);
+    if (metadata == null) {
+      throw new IllegalArgumentException("Metadata payload is null");
+    }
+    metadata.validate();
+
+    // the MQTT client does not reuse the payload arrays, no need to copy
+    entries.put(deviceName, new Entry(hash, payload, metadata));
+    return metadata;
+  }
+
+  /** Returns the last metadata parsed for the device, or null. */
+  public MetadataDto get(String deviceName) {
+    Entry entry = entries.get(deviceName);
+    return entry == null ? null : entry.metadata;
+  }
+
+  public void remove(String deviceName) {
+    entries.remove(deviceName);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+}
@@ -1,56 +1,191 @@
 package org.yamcs.mrt.utils;
 
+import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import org.eclipse.paho.client.mqttv3.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.Spec;
+import org.yamcs.Spec.OptionType;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducer;
+import org.yamcs.logging.Log;
+import org.yamcs.mqtt.MqttConnectionPool;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
+import org.yamcs.mrt.MqttUtils;
 
-public class MqttManager implements MqttCallback {
-  private static MqttManager instance;
-  private MqttClient client;
-  private final String brokerUrl = "tcp://localhost:1883";
-  private final Map<String, MqttTopicHandler> handlers = new ConcurrentHashMap<>();
+/**
+ * MQTT access for the links that exchange plain topics with a device: subscriptions delivered to
+ * {@link MqttTopicHandler}s and asynchronous publishing.
+ *
+ * <p>Topic filters may use the <code>+</code> and <code>#</code> wildcards and several handlers
+ * may subscribe to the same or overlapping filters (e.g. a link and a recorder sharing a feed).
+ * The filters are kept in the topic trie of the shared connection, so a received message is routed
+ * to its handlers with one trie walk and without allocation.
+ *
+ * <p>The connection is taken from the {@link MqttConnectionPool}, which reconnects automatically
+ * and renews the subscriptions after a reconnection. Messages published while the connection is
+ * down are kept in a bounded buffer (<code>outboundBufferSize</code>) and sent once it is back; when
+ * the buffer is full the publish fails.
+ */
+public class MqttManager {
+  static final String DEFAULT_BROKER = "tcp://localhost:1883";
+  static final int SUBSCRIPTION_QOS = 1;
 
-  private MqttManager() {
+  private final LinkConnection connection;
+  private final Log log;
+  private final int outboundBufferSize;
+  private final ArrayDeque<PendingPublish> outbound = new ArrayDeque<>();
+  // one listener per handler, used as the key of its routes in the connection
+  private final Map<MqttTopicHandler, IMqttMessageListener> listeners = new ConcurrentHashMap<>();
+
+  private final AtomicLong bufferedCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  private record PendingPublish(String topic, MqttMessage message, IMqttActionListener listener) {}
+
+  public MqttManager(String linkName, YConfiguration config, Log log, EventProducer eventProducer) {
+    this.log = log;
+    this.outboundBufferSize = config.getInt("outboundBufferSize", 100);
+    connection = MqttConnectionPool.getInstance().acquire(linkName, config, log, eventProducer);
+    connection.setConnectedHandler(this::flush);
+    connection.setConnectionLostHandler(
+        cause -> eventProducer.sendWarning("MQTT connection lost: " + cause.getMessage()));
+  }
+
+  /** Adds the connection options, with the broker defaulting to {@value #DEFAULT_BROKER}. */
+  public static void addOptionsToSpec(Spec spec) {
+    MqttUtils.addConnectionOptionsToSpec(spec, DEFAULT_BROKER);
+    // messages published while disconnected
+    spec.addOption("outboundBufferSize", OptionType.INTEGER).withDefault(100);
+  }
+
+  /** Connects asynchronously; failures are reported as events and retried. */
+  public void connect() {
+    connection.connect();
+  }
+
+  /** Disconnects and fails the messages still buffered. */
+  public void close() {
+    connection.close();
+    PendingPublish p;
+    while ((p = pollOutbound()) != null) {
+      notifyFailure(p, new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+    }
+  }
+
+  public boolean isConnected() {
+    return connection.isConnected();
+  }
+
+  /**
+   * Subscribes the handler to the topic filter. The subscription can be made before {@link
+   * #connect()} and is kept over reconnections.
+   */
+  public void subscribe(String filter, MqttTopicHandler handler) {
+    subscribe(new String[] {filter}, new int[] {SUBSCRIPTION_QOS}, handler);
+  }
+
+  /**
+   * Subscribes the handler to several topic filters, sent to the broker in one request.
+   *
+   * @throws IllegalArgumentException if a filter is invalid or the arrays differ in length
+   */
+  public void subscribe(String[] filters, int[] qos, MqttTopicHandler handler) {
+    IMqttMessageListener listener = listeners.computeIfAbsent(handler, h -> h::handleMqtt);
+    connection.subscribe(filters, qos, listener);
+  }
+
+  /**
+   * Subscribes the handler to data topics, as shared subscriptions if the link has a <code>
+   * sharedSubscriptionGroup</code>.
+   */
+  public void subscribeShared(String[] filters, int[] qos, MqttTopicHandler handler) {
+    IMqttMessageListener listener = listeners.computeIfAbsent(handler, h -> h::handleMqtt);
+    connection.subscribeShared(filters, qos, listener);
+  }
+
+  /** Removes all the subscriptions of the handler. */
+  public void unsubscribe(MqttTopicHandler handler) {
+    IMqttMessageListener listener = listeners.remove(handler);
+    if (listener != null) {
+      connection.unsubscribe(listener);
+    }
+  }
+
+  /**
+   * Publishes a message without waiting for the broker. The listener is called when the message is
+   * delivered or has failed; if the connection is down the message is buffered until it is back.
+   *
+   * @throws MqttException if the message cannot be sent or buffered
+   */
+  public void publish(String topic, MqttMessage message, IMqttActionListener listener)
+      throws MqttException {
+    synchronized (this) {
+      // keep the order of the buffered messages
+      if (!outbound.isEmpty() || !connection.isConnected()) {
+        buffer(new PendingPublish(topic, message, listener));
+        return;
+      }
+    }
     try {
-      client = new MqttClient(brokerUrl, MqttClient.generateClientId());
-      client.setCallback(this);
-      MqttConnectOptions options = new MqttConnectOptions();
-      options.setCleanSession(true);
-      client.connect(options);
+      connection.publish(topic, message, null, listener);
     } catch (MqttException e) {
-      e.printStackTrace();
+      if (e.getReasonCode() != MqttException.REASON_CODE_CLIENT_NOT_CONNECTED) {
+        throw e;
+      }
+      synchronized (this) {
+        buffer(new PendingPublish(topic, message, listener));
+      }
     }
   }
 
-  public static synchronized MqttManager getInstance() {
-    if (instance == null) {
-      instance = new MqttManager();
+  private void buffer(PendingPublish p) throws MqttException {
+    if (outbound.size() >= outboundBufferSize) {
+      droppedCount.incrementAndGet();
+      throw new MqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
     }
-    return instance;
+    outbound.add(p);
+    bufferedCount.incrementAndGet();
   }
 
-  public void subscribe(String topic, MqttTopicHandler handler) throws MqttException {
-    handlers.put(topic, handler);
-    client.subscribe(topic);
+  /** Sends the buffered messages, called by the pool when the connection is (re)established. */
+  private synchronized void flush() {
+    if (!outbound.isEmpty()) {
+      log.info("Sending {} messages buffered while disconnected", outbound.size());
+    }
+    PendingPublish p;
+    while ((p = outbound.poll()) != null) {
+      try {
+        connection.publish(p.topic, p.message, null, p.listener);
+      } catch (MqttException e) {
+        droppedCount.incrementAndGet();
+        notifyFailure(p, e);
+      }
+    }
   }
 
-  public void publish(String topic, MqttMessage message) throws MqttException {
-    client.publish(topic, message);
+  private synchronized PendingPublish pollOutbound() {
+    return outbound.poll();
   }
 
-  @Override
-  public void messageArrived(String topic, MqttMessage message) {
-    // Find the handler for this topic and delegate the work
-    if (handlers.containsKey(topic)) {
-      handlers.get(topic).handleMqtt(topic, message);
+  private void notifyFailure(PendingPublish p, Throwable e) {
+    if (p.listener != null) {
+      p.listener.onFailure(null, e);
     }
   }
 
-  @Override
-  public void connectionLost(Throwable cause) {
-    /* Handle Reconnect */
+  public synchronized int getBufferedMessages() {
+    return outbound.size();
   }
 
-  @Override
-  public void deliveryComplete(IMqttDeliveryToken token) {}
+  public void addExtraInfo(Map<String, Object> extra) {
+    connection.addExtraInfo(extra);
+    extra.put("Outbound buffer", getBufferedMessages() + "/" + outboundBufferSize);
+    extra.put("Outbound buffered", bufferedCount.get());
+    extra.put("Outbound dropped", droppedCount.get());
+  }
 }
@@ -0,0 +1,164 @@
+package org.yamcs.mrt.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.yamcs.logging.Log;
+
+/**
+ * Hashed timer wheel running many coarse timeouts (e.g. command ack timeouts) on one thread.
+ *
+ * <p>Scheduling and cancelling are constant time and do not lock: a new timeout is queued and
+ * placed in its bucket by the timer thread at the next tick, a cancelled one is dropped when its
+ * bucket comes up. Timeouts fire with the resolution of a tick, on the timer thread, so the tasks
+ * have to be short.
+ */
+public class TimerWheel {
+  private static final Log log = new Log(TimerWheel.class);
+  private static final TimerWheel SHARED = new TimerWheel("TimerWheel", 100, 512);
+
+  private final String name;
+  final long tickNanos;
+  private final List<List<Timeout>> buckets;
+  private final int mask;
+  private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+  final long startNanos = System.nanoTime();
+  private Thread thread;
+
+  /** Timer wheel shared by the links, ticking every 100 ms. */
+  public static TimerWheel getShared() {
+    return SHARED;
+  }
+
+  /**
+   * @param tickMillis resolution of the timeouts
+   * @param wheelSize number of buckets, rounded up to a power of two; timeouts longer than one turn
+   *     of the wheel wait for several turns
+   */
+  public TimerWheel(String name, long tickMillis, int wheelSize) {
+    if (tickMillis <= 0 || wheelSize <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid tick/wheel size: " + tickMillis + "/" + wheelSize);
+    }
+    this.name = name;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    int size = Integer.highestOneBit(wheelSize);
+    if (size < wheelSize) {
+      size <<= 1;
+    }
+    buckets = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      buckets.add(new ArrayList<>());
+    }
+    mask = size - 1;
+  }
+
+  /** Runs the task on the timer thread once the delay has elapsed, unless cancelled before. */
+  public Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+    var timeout = add(System.nanoTime() + unit.toNanos(delay), task);
+    ensureStarted();
+    return timeout;
+  }
+
+  /** Queues a timeout without starting the timer thread. */
+  Timeout add(long deadlineNanos, Runnable task) {
+    var timeout = new Timeout(deadlineNanos, task);
+    pending.add(timeout);
+    return timeout;
+  }
+
+  private synchronized void ensureStarted() {
+    if (thread == null) {
+      thread = new Thread(this::run, name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void run() {
+    long tick = 0;
+    try {
+      while (true) {
+        long sleep = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+        if (sleep > 0) {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        }
+        tick++;
+        advance(tick);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Processes a tick of the wheel, ticks are numbered from 1 and processed in order. */
+  void advance(long tick) {
+    transferPending(tick);
+    expire(buckets.get((int) (tick & mask)));
+  }
+
+  private void transferPending(long currentTick) {
+    Timeout timeout;
+    while ((timeout = pending.poll()) != null) {
+      if (timeout.state.get() != Timeout.PENDING) {
+        continue;
+      }
+      long deadlineTick = (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+      if (deadlineTick < currentTick) {
+        deadlineTick = currentTick;
+      }
+      timeout.rounds = (deadlineTick - currentTick) / buckets.size();
+      buckets.get((int) (deadlineTick & mask)).add(timeout);
+    }
+  }
+
+  private void expire(List<Timeout> bucket) {
+    Iterator<Timeout> it = bucket.iterator();
+    while (it.hasNext()) {
+      Timeout timeout = it.next();
+      if (timeout.state.get() != Timeout.PENDING) {
+        it.remove();
+      } else if (timeout.rounds > 0) {
+        timeout.rounds--;
+      } else {
+        it.remove();
+        if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+          try {
+            timeout.task.run();
+          } catch (Exception e) {
+            log.warn("Error running timeout task", e);
+          }
+        }
+      }
+    }
+  }
+
+  public static final class Timeout {
+    static final int PENDING = 0;
+    static final int CANCELLED = 1;
+    static final int EXPIRED = 2;
+
+    final long deadlineNanos;
+    final Runnable task;
+    final AtomicInteger state = new AtomicInteger(PENDING);
+    // remaining turns of the wheel, only accessed by the timer thread
+    long rounds;
+
+    Timeout(long deadlineNanos, Runnable task) {
+      this.deadlineNanos = deadlineNanos;
+      this.task = task;
+    }
+
+    /** Returns true if the timeout was cancelled, false if it had already fired. */
+    public boolean cancel() {
+      return state.compareAndSet(PENDING, CANCELLED);
+    }
+
+    public boolean isExpired() {
+      return state.get() == EXPIRED;
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package org.yamcs.mrt.utils;
+
+import java.util.Arrays;
+
+/**
+ * Maps MQTT topic filters (with the <code>+</code> and <code>#</code> wildcards) to values, typically message
+ * handlers, and finds the values whose filter matches a topic.
+ *
+ * <p>Each level of a filter is a node of the trie; the literal children of a node are kept in a small open addressing
+ * table keyed by the level string, and looked up by hashing the level directly in the topic string. Matching a topic
+ * therefore does not allocate.
+ *
+ * <p>Updates are synchronized and copy the modified arrays, so they can run concurrently with {@link #forEachMatch}
+ * which does not lock.
+ */
+public class TopicTrie<T> {
+
+  /** Called for every value matching a topic. */
+  @FunctionalInterface
+  public interface Visitor<T, A> {
+    void visit(T value, String topic, A arg);
+  }
+
+  private static final Object[] NO_VALUES = new Object[0];
+
+  private final Node root = new Node("");
+  private int size = 0;
+
+  /** Adds a value for the given filter. A value can be added several times for the same filter. */
+  public synchronized void add(String filter, T value) {
+    validateFilter(filter);
+    Node node = root;
+    int start = 0;
+    while (true) {
+      int end = levelEnd(filter, start);
+      String level = filter.substring(start, end);
+      if (level.equals("#")) {
+        node.hashValues = append(node.hashValues, value);
+        break;
+      }
+      node = node.getOrCreateChild(level);
+      if (end == filter.length()) {
+        node.values = append(node.values, value);
+        break;
+      }
+      start = end + 1;
+    }
+    size++;
+  }
+
+  /**
+   * Removes one occurrence of the value from the given filter.
+   *
+   * @return true if the value was found
+   */
+  public synchronized boolean remove(String filter, T value) {
+    if (remove(root, filter, 0, value)) {
+      size--;
+      return true;
+    }
+    return false;
+  }
+
+  private boolean remove(Node node, String filter, int start, T value) {
+    int end = levelEnd(filter, start);
+    String level = filter.substring(start, end);
+    if (level.equals("#")) {
+      Object[] updated = removeValue(node.hashValues, value);
+      if (updated == node.hashValues) {
+        return false;
+      }
+      node.hashValues = updated;
+      return true;
+    }
+    Node child = node.getChild(level);
+    if (child == null) {
+      return false;
+    }
+    boolean removed;
+    if (end == filter.length()) {
+      Object[] updated = removeValue(child.values, value);
+      removed = updated != child.values;
+      child.values = updated;
+    } else {
+      removed = remove(child, filter, end + 1, value);
+    }
+    if (removed && child.isEmpty()) {
+      node.removeChild(child);
+    }
+    return removed;
+  }
+
+  /**
+   * Calls the visitor for each value whose filter matches the topic.
+   *
+   * @return the number of matching values
+   */
+  public <A> int forEachMatch(String topic, A arg, Visitor<? super T, A> visitor) {
+    return match(root, topic, 0, arg, visitor);
+  }
+
+  /** Returns true if at least one filter matches the topic. */
+  public boolean hasMatch(String topic) {
+    return forEachMatch(topic, null, (v, t, a) -> {}) > 0;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <A> int match(Node node, String topic, int start, A arg, Visitor<? super T, A> visitor) {
+    // topics starting with $ are not matched by wildcards at the first level
+    boolean wildcards = start > 0 || topic.isEmpty() || topic.charAt(0) != '$';
+    int count = 0;
+
+    if (wildcards) {
+      // "a/#" also matches "a"
+      for (Object v : node.hashValues) {
+        visitor.visit((T) v, topic, arg);
+        count++;
+      }
+    }
+    if (start > topic.length()) {
+      for (Object v : node.values) {
+        visitor.visit((T) v, topic, arg);
+        count++;
+      }
+      return count;
+    }
+
+    int end = levelEnd(topic, start);
+    Node child = node.findChild(topic, start, end);
+    if (child != null) {
+      count += match(child, topic, end + 1, arg, visitor);
+    }
+    Node plus = node.plus;
+    if (plus != null && wildcards) {
+      count += match(plus, topic, end + 1, arg, visitor);
+    }
+    return count;
+  }
+
+  private static int levelEnd(String s, int start) {
+    int end = s.indexOf('/', start);
+    return end < 0 ? s.length() : end;
+  }
+
+  private static void validateFilter(String filter) {
+    if (filter.isEmpty()) {
+      throw new IllegalArgumentException("Empty topic filter");
+    }
+    int hash = filter.indexOf('#');
+    if (hash >= 0 && (hash != filter.length() - 1 || (hash > 0 && filter.charAt(hash - 1) != '/'))) {
+      throw new IllegalArgumentException("Invalid topic filter '" + filter + "': # must be the last level");
+    }
+    int start = 0;
+    while (start <= filter.length()) {
+      int end = levelEnd(filter, start);
+      if (filter.indexOf('+', start) >= 0 && filter.indexOf('+', start) < end && end - start != 1) {
+        throw new IllegalArgumentException("Invalid topic filter '" + filter + "': + must occupy a whole level");
+      }
+      start = end + 1;
+    }
+  }
+
+  private static Object[] append(Object[] values, Object value) {
+    Object[] updated = Arrays.copyOf(values, values.length + 1);
+    updated[values.length] = value;
+    return updated;
+  }
+
+  /** Returns the array without the first occurrence of the value, or the same array if it was not found. */
+  private static Object[] removeValue(Object[] values, Object value) {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i].equals(value)) {
+        if (values.length == 1) {
+          return NO_VALUES;
+        }
+        Object[] updated = new Object[values.length - 1];
+        System.arraycopy(values, 0, updated, 0, i);
+        System.arraycopy(values, i + 1, updated, i, values.length - i - 1);
+        return updated;
+      }
+    }
+    return values;
+  }
+
+  private static final class Node {
+    final String level;
+    volatile Object[] values = NO_VALUES;
+    // values of the "#" filter one level below this node
+    volatile Object[] hashValues = NO_VALUES;
+    volatile Node plus;
+    // open addressing table of the literal children, the length is a power of two
+    volatile Node[] children = new Node[0];
+    int childCount = 0;
+
+    Node(String level) {
+      this.level = level;
+    }
+
+    boolean isEmpty() {
+      return values.length == 0 && hashValues.length == 0 && plus == null && childCount == 0;
+    }
+
+    Node getChild(String level) {
+      if (level.equals("+")) {
+        return plus;
+      }
+      return findChild(level, 0, level.length());
+    }
+
+    Node getOrCreateChild(String level) {
+      Node child = getChild(level);
+      if (child == null) {
+        child = new Node(level);
+        if (level.equals("+")) {
+          plus = child;
+        } else {
+          Node[] table = children;
+          int tableLength = table.length;
+          while (tableLength < 2 * (childCount + 1)) {
+            tableLength = Math.max(4, tableLength * 2);
+          }
+          Node[] updated = new Node[tableLength];
+          for (Node n : table) {
+            if (n != null) {
+              insert(updated, n);
+            }
+          }
+          insert(updated, child);
+          children = updated;
+          childCount++;
+        }
+      }
+      return child;
+    }
+
+    void removeChild(Node child) {
+      if (child == plus) {
+        plus = null;
+        return;
+      }
+      Node[] updated = new Node[children.length];
+      for (Node n : children) {
+        if (n != null && n != child) {
+          insert(updated, n);
+        }
+      }
+      children = updated;
+      childCount--;
+    }
+
+    /** Finds the literal child whose level is the region [start, end) of s. */
+    Node findChild(String s, int start, int end) {
+      Node[] table = children;
+      if (table.length == 0) {
+        return null;
+      }
+      int h = 0;
+      for (int i = start; i < end; i++) {
+        h = 31 * h + s.charAt(i);
+      }
+      int len = end - start;
+      int mask = table.length - 1;
+      for (int i = spread(h) & mask; ; i = (i + 1) & mask) {
+        Node n = table[i];
+        if (n == null) {
+          return null;
+        }
+        if (n.level.length() == len && s.regionMatches(start, n.level, 0, len)) {
+          return n;
+        }
+      }
+    }
+
+    private static void insert(Node[] table, Node n) {
+      int mask = table.length - 1;
+      int i = spread(n.level.hashCode()) & mask;
+      while (table[i] != null) {
+        i = (i + 1) & mask;
+      }
+      table[i] = n;
+    }
+
+    private static int spread(int h) {
+      return h ^ (h >>> 16);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package org.yamcs.mqtt;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.yamcs.mrt.AstraLoadGenerator;
+import org.yamcs.mrt.utils.LatencyHistogram;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * The measurements of an end-to-end benchmark: messages per second, latency percentiles and allocation rate.
+ * <p>
+ * The messages are recorded with {@link #record(long)} when they reach the end of the measured path (TM sink,
+ * command history, ...), between {@link #begin()} and {@link #end()}. The allocations are read from the JVM thread
+ * counters, for all the threads and for the threads of the links only: the threads of the
+ * {@link EmbeddedMqttBroker} and of the load generator (whose MQTT client ids start with <code>loadgen-</code>) are
+ * left out. The allocations of the threads ending during the measurement are not counted.
+ * <p>
+ * The results are printed and written as JSON to <code>target/benchmarks/e2e-&lt;name&gt;.json</code> (or the
+ * <code>benchmark.outputDir</code> system property). The benchmark parameters are read from the
+ * <code>benchmark.*</code> system properties, see {@link #intParam(String, int)}.
+ */
+public class BenchmarkRun {
+    /**
+     * Tag of the benchmark tests, excluded from the normal build. They are run with
+     * <code>mvn test -Pe2e-benchmarks</code>.
+     */
+    public static final String TAG = "benchmark";
+
+    private final String name;
+    private final Map<String, Object> params = new LinkedHashMap<>();
+    private final Map<String, Object> extra = new LinkedHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong messages = new AtomicLong();
+    private volatile boolean measuring;
+    private long startNanos;
+    private long endNanos;
+    private long startLinkBytes;
+    private long startJvmBytes;
+    private long linkBytes;
+    private long jvmBytes;
+
+    public BenchmarkRun(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the <code>benchmark.&lt;name&gt;</code> system property, e.g. <code>-Dbenchmark.devices=16</code>.
+     */
+    public static int intParam(String name, int defaultValue) {
+        return Integer.getInteger("benchmark." + name, defaultValue);
+    }
+
+    public static double doubleParam(String name, double defaultValue) {
+        String value = System.getProperty("benchmark." + name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Adds a parameter to the results.
+     */
+    public BenchmarkRun param(String key, Object value) {
+        params.put(key, value);
+        return this;
+    }
+
+    /**
+     * Adds a result measured by the benchmark itself.
+     */
+    public BenchmarkRun result(String key, Object value) {
+        extra.put(key, value);
+        return this;
+    }
+
+    public void begin() {
+        startLinkBytes = allocatedBytes(true);
+        startJvmBytes = allocatedBytes(false);
+        startNanos = System.nanoTime();
+        measuring = true;
+    }
+
+    public void end() {
+        measuring = false;
+        endNanos = System.nanoTime();
+        linkBytes = allocatedBytes(true) - startLinkBytes;
+        jvmBytes = allocatedBytes(false) - startJvmBytes;
+    }
+
+    public boolean isMeasuring() {
+        return measuring;
+    }
+
+    /**
+     * Records a message at the end of its path.
+     *
+     * @param startNanos
+     *            {@link System#nanoTime()} when the message entered the path
+     */
+    public void record(long startNanos) {
+        if (measuring) {
+            messages.incrementAndGet();
+            latency.recordNanos(System.nanoTime() - startNanos);
+        }
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public Map<String, Object> getResults() {
+        double secs = (endNanos - startNanos) / 1e9;
+        long n = messages.get();
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("benchmark", name);
+        results.put("params", params);
+        results.put("durationSecs", secs);
+        results.put("messages", n);
+        results.put("messagesPerSec", n / secs);
+        results.put("latencyP50Micros", latency.getPercentileMicros(0.5));
+        results.put("latencyP99Micros", latency.getPercentileMicros(0.99));
+        results.put("latencyMaxMicros", latency.getMaxMicros());
+        results.put("latencyMeanMicros", latency.getMeanMicros());
+        results.put("linkAllocatedBytesPerSec", linkBytes / secs);
+        results.put("linkAllocatedBytesPerMessage", n == 0 ? 0.0 : (double) linkBytes / n);
+        results.put("jvmAllocatedBytesPerSec", jvmBytes / secs);
+        results.putAll(extra);
+        return results;
+    }
+
+    /**
+     * Prints the results and writes them as JSON.
+     */
+    public Map<String, Object> write() throws IOException {
+        var results = getResults();
+        String json = new GsonBuilder().setPrettyPrinting().create().toJson(results);
+        Path dir = Path.of(System.getProperty("benchmark.outputDir", "target/benchmarks"));
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve("e2e-" + name + ".json"), json + "\n", StandardCharsets.UTF_8);
+        System.out.println(json);
+        return results;
+    }
+
+    static long allocatedBytes(boolean linkThreadsOnly) {
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (linkThreadsOnly && !isLinkThread(t.getName())) {
+                continue;
+            }
+            long bytes = threadBean.getThreadAllocatedBytes(t.getId());
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    static boolean isLinkThread(String threadName) {
+        return !threadName.startsWith(EmbeddedMqttBroker.THREAD_PREFIX)
+                && !threadName.contains(AstraLoadGenerator.CLIENT_ID_PREFIX);
+    }
+}
@@ -0,0 +1,47 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class CommandPayloadEncoderTest {
+
+    static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 0, 1, 9, 10, 11, 99, 100, 101, 254, 255, 999, 1000, 65535, Integer.MAX_VALUE })
+    public void testSequenceDigits(int sequence) {
+        assertArrayEquals(utf8(sequence + ",pg"), CommandPayloadEncoder.encode(sequence, "pg"));
+    }
+
+    @Test
+    public void testAsciiCodes() {
+        assertArrayEquals(utf8("7,"), CommandPayloadEncoder.encode(7, ""));
+        assertArrayEquals(utf8("12,reset_av"), CommandPayloadEncoder.encode(12, "reset_av"));
+        // the last ASCII character still goes through the direct path
+        assertArrayEquals(utf8("3,a\u007f"), CommandPayloadEncoder.encode(3, "a\u007f"));
+
+        assertArrayEquals(utf8(""), CommandPayloadEncoder.encode(""));
+        assertArrayEquals(utf8("reset_av"), CommandPayloadEncoder.encode("reset_av"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "\u0080", "ouvre_vanne_é", "été", "指令", "go_🚀" })
+    public void testNonAsciiFallsBackToUtf8(String commandCode) {
+        assertArrayEquals(utf8("42," + commandCode), CommandPayloadEncoder.encode(42, commandCode));
+        assertArrayEquals(utf8("0," + commandCode), CommandPayloadEncoder.encode(0, commandCode));
+        assertArrayEquals(utf8(commandCode), CommandPayloadEncoder.encode(commandCode));
+    }
+
+    @Test
+    public void testNegativeSequence() {
+        assertThrows(IllegalArgumentException.class, () -> CommandPayloadEncoder.encode(-1, "pg"));
+    }
+}
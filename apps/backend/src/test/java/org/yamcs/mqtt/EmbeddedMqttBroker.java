@@ -0,0 +1,535 @@
+package org.yamcs.mqtt;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.yamcs.mrt.utils.TopicTrie;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttProperties.IntegerProperty;
+import io.netty.handler.codec.mqtt.MqttProperties.MqttPropertyType;
+import io.netty.handler.codec.mqtt.MqttProperties.StringPair;
+import io.netty.handler.codec.mqtt.MqttProperties.UserProperties;
+import io.netty.handler.codec.mqtt.MqttProperties.UserProperty;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
+import io.netty.handler.codec.mqtt.MqttUnsubscribeMessage;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * An MQTT broker running in the test JVM, on Netty with the <code>netty-codec-mqtt</code> encoder and decoder.
+ * <p>
+ * It accepts MQTT 3.1.1 and MQTT 5 clients and supports what the links use: QoS 0, 1 and 2 in both directions,
+ * wildcard filters, shared subscriptions (<code>$share/&lt;group&gt;/&lt;filter&gt;</code>, the messages being given
+ * in turn to the members of the group), topic aliases in both directions and user properties. The sessions are clean;
+ * retained messages, wills and authentication are not supported.
+ * <p>
+ * The messages published by the clients are reported to the listeners added with {@link #addListener(Consumer)}, and
+ * the tests can publish to the clients with {@link #publish(String, byte[], int, List)}.
+ */
+public class EmbeddedMqttBroker implements AutoCloseable {
+    /**
+     * A message published to the broker, by a client or by {@link EmbeddedMqttBroker#publish}.
+     *
+     * @param clientId
+     *            the publishing client, null for the messages published by the test
+     * @param aliased
+     *            true if the topic was replaced by a topic alias in the PUBLISH packet
+     */
+    public record Received(String clientId, String topic, byte[] payload, int qos,
+            List<Map.Entry<String, String>> userProperties, boolean aliased, long receivedNanos) {
+    }
+
+    /**
+     * Prefix of the names of the broker threads.
+     */
+    public static final String THREAD_PREFIX = "mqtt-broker";
+
+    private final int topicAliasMaximum;
+    private final EventLoopGroup bossGroup = new NioEventLoopGroup(1, new DefaultThreadFactory(THREAD_PREFIX));
+    private final EventLoopGroup workerGroup = new NioEventLoopGroup(2, new DefaultThreadFactory(THREAD_PREFIX));
+    private Channel serverChannel;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // guarded by this
+    private final TopicTrie<Subscription> subscriptions = new TopicTrie<>();
+    private final Map<String, AtomicInteger> sharedGroupCounters = new HashMap<>();
+
+    private final List<Consumer<Received>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+    private final AtomicLong aliasedIn = new AtomicLong();
+    private final AtomicLong aliasedOut = new AtomicLong();
+
+    /**
+     * Creates a broker allowing up to 16 topic aliases from each MQTT 5 client.
+     */
+    public EmbeddedMqttBroker() {
+        this(16);
+    }
+
+    public EmbeddedMqttBroker(int topicAliasMaximum) {
+        this.topicAliasMaximum = topicAliasMaximum;
+    }
+
+    /**
+     * Starts listening on an ephemeral port of the loopback interface.
+     */
+    public EmbeddedMqttBroker start() throws InterruptedException {
+        var bootstrap = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(1 << 20), MqttEncoder.INSTANCE, new Handler());
+                    }
+                });
+        serverChannel = bootstrap.bind("127.0.0.1", 0).sync().channel();
+        return this;
+    }
+
+    public int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    public String getUri() {
+        return "tcp://127.0.0.1:" + getPort();
+    }
+
+    public void addListener(Consumer<Received> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Received> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the ids of the connected clients.
+     */
+    public Set<String> getClients() {
+        return new HashSet<>(sessions.keySet());
+    }
+
+    /**
+     * Returns the number of subscriptions of the client, 0 if it is not connected.
+     */
+    public synchronized int getSubscriptionCount(String clientId) {
+        var session = sessions.get(clientId);
+        return session == null ? 0 : session.subscriptions.size();
+    }
+
+    /**
+     * Returns the number of messages received from the clients and from {@link #publish}.
+     */
+    public long getMessagesIn() {
+        return messagesIn.get();
+    }
+
+    /**
+     * Returns the number of messages sent to the clients.
+     */
+    public long getMessagesOut() {
+        return messagesOut.get();
+    }
+
+    /**
+     * Returns the number of messages received with a topic alias instead of the topic.
+     */
+    public long getAliasedIn() {
+        return aliasedIn.get();
+    }
+
+    /**
+     * Returns the number of messages sent with a topic alias instead of the topic.
+     */
+    public long getAliasedOut() {
+        return aliasedOut.get();
+    }
+
+    /**
+     * Publishes a message to the subscribed clients as if it was published by a client.
+     *
+     * @param userProperties
+     *            sent only to the MQTT 5 clients, may be empty
+     */
+    public void publish(String topic, byte[] payload, int qos, List<Map.Entry<String, String>> userProperties) {
+        var msg = new Received(null, topic, payload, qos, userProperties, false, System.nanoTime());
+        messagesIn.incrementAndGet();
+        route(msg);
+    }
+
+    /**
+     * Closes the connections of all the clients, as a broker restart would.
+     */
+    public void disconnectAll() {
+        // the sessions are removed before returning, channelInactive runs later on the event loop
+        List<Session> closed;
+        synchronized (this) {
+            closed = new ArrayList<>(sessions.values());
+            for (var session : closed) {
+                sessions.remove(session.clientId, session);
+                removeSubscriptions(session);
+            }
+        }
+        for (var session : closed) {
+            session.channel.close().syncUninterruptibly();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        disconnectAll();
+        bossGroup.shutdownGracefully(0, 1, java.util.concurrent.TimeUnit.SECONDS).syncUninterruptibly();
+        workerGroup.shutdownGracefully(0, 1, java.util.concurrent.TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    private void route(Received msg) {
+        for (var listener : listeners) {
+            listener.accept(msg);
+        }
+        List<Subscription> matches = new ArrayList<>();
+        synchronized (this) {
+            subscriptions.forEachMatch(msg.topic, matches, (s, t, list) -> list.add(s));
+        }
+        // one copy per client at the highest matching QoS, one copy per shared group
+        Map<Session, Integer> direct = new HashMap<>();
+        Map<String, List<Subscription>> groups = new HashMap<>();
+        for (var s : matches) {
+            if (s.group == null) {
+                direct.merge(s.session, s.qos, Math::max);
+            } else {
+                groups.computeIfAbsent(s.group + "/" + s.matchFilter, k -> new ArrayList<>()).add(s);
+            }
+        }
+        for (var e : groups.entrySet()) {
+            var members = e.getValue();
+            members.sort((a, b) -> a.session.clientId.compareTo(b.session.clientId));
+            AtomicInteger counter;
+            synchronized (this) {
+                counter = sharedGroupCounters.computeIfAbsent(e.getKey(), k -> new AtomicInteger());
+            }
+            var s = members.get(Math.floorMod(counter.getAndIncrement(), members.size()));
+            direct.merge(s.session, s.qos, Math::max);
+        }
+        for (var e : direct.entrySet()) {
+            e.getKey().send(msg, Math.min(msg.qos, e.getValue()));
+        }
+    }
+
+    private synchronized void removeSubscriptions(Session session) {
+        for (var s : session.subscriptions) {
+            subscriptions.remove(s.matchFilter, s);
+        }
+        session.subscriptions.clear();
+    }
+
+    record Subscription(Session session, String filter, String matchFilter, String group, int qos) {
+    }
+
+    class Session {
+        final Channel channel;
+        final String clientId;
+        final boolean mqtt5;
+        final int clientTopicAliasMaximum;
+        // guarded by EmbeddedMqttBroker.this
+        final List<Subscription> subscriptions = new ArrayList<>();
+        // guarded by this
+        final Map<Integer, String> inboundAliases = new HashMap<>();
+        final Map<String, Integer> outboundAliases = new HashMap<>();
+        final Set<Integer> receivedQos2 = new HashSet<>();
+        int nextPacketId = 1;
+
+        Session(Channel channel, String clientId, boolean mqtt5, int clientTopicAliasMaximum) {
+            this.channel = channel;
+            this.clientId = clientId;
+            this.mqtt5 = mqtt5;
+            this.clientTopicAliasMaximum = clientTopicAliasMaximum;
+        }
+
+        synchronized void send(Received msg, int qos) {
+            var properties = new MqttProperties();
+            String topic = msg.topic;
+            boolean aliased = false;
+            if (mqtt5) {
+                if (!msg.userProperties.isEmpty()) {
+                    var userProperties = new UserProperties();
+                    for (var p : msg.userProperties) {
+                        userProperties.add(p.getKey(), p.getValue());
+                    }
+                    properties.add(userProperties);
+                }
+                Integer alias = outboundAliases.get(topic);
+                if (alias != null) {
+                    topic = "";
+                    aliased = true;
+                } else if (outboundAliases.size() < clientTopicAliasMaximum) {
+                    alias = outboundAliases.size() + 1;
+                    outboundAliases.put(topic, alias);
+                }
+                if (alias != null) {
+                    properties.add(new IntegerProperty(MqttPropertyType.TOPIC_ALIAS.value(), alias));
+                }
+            }
+            int packetId = 0;
+            if (qos > 0) {
+                packetId = nextPacketId;
+                nextPacketId = nextPacketId == 65535 ? 1 : nextPacketId + 1;
+            }
+            var publish = MqttMessageBuilders.publish()
+                    .topicName(topic)
+                    .qos(MqttQoS.valueOf(qos))
+                    .retained(false)
+                    .messageId(packetId)
+                    .payload(Unpooled.wrappedBuffer(msg.payload))
+                    .properties(properties)
+                    .build();
+            messagesOut.incrementAndGet();
+            if (aliased) {
+                aliasedOut.incrementAndGet();
+            }
+            // written under the lock so an alias is never used before the message defining it
+            channel.writeAndFlush(publish);
+        }
+
+        void received(MqttPublishMessage publish) {
+            var header = publish.variableHeader();
+            var properties = header.properties();
+            String topic = header.topicName();
+            boolean aliased = false;
+            int qos = publish.fixedHeader().qosLevel().value();
+            int packetId = header.packetId();
+            boolean duplicate = false;
+            synchronized (this) {
+                var aliasProperty = properties.getProperty(MqttPropertyType.TOPIC_ALIAS.value());
+                if (aliasProperty != null) {
+                    int alias = (Integer) aliasProperty.value();
+                    if (topic.isEmpty()) {
+                        topic = inboundAliases.get(alias);
+                        aliased = true;
+                        if (topic == null) {
+                            // protocol error
+                            channel.close();
+                            return;
+                        }
+                    } else {
+                        inboundAliases.put(alias, topic);
+                    }
+                }
+                if (qos == 2) {
+                    duplicate = !receivedQos2.add(packetId);
+                }
+            }
+            if (qos == 1) {
+                channel.writeAndFlush(MqttMessageBuilders.pubAck().packetId(packetId).build());
+            } else if (qos == 2) {
+                channel.writeAndFlush(new MqttMessage(
+                        new MqttFixedHeader(MqttMessageType.PUBREC, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                        MqttMessageIdVariableHeader.from(packetId)));
+            }
+            if (duplicate) {
+                return;
+            }
+            messagesIn.incrementAndGet();
+            if (aliased) {
+                aliasedIn.incrementAndGet();
+            }
+            route(new Received(clientId, topic, ByteBufUtil.getBytes(publish.payload()), qos,
+                    getUserProperties(properties), aliased, System.nanoTime()));
+        }
+
+        synchronized void released(int packetId) {
+            receivedQos2.remove(packetId);
+        }
+    }
+
+    static List<Map.Entry<String, String>> getUserProperties(MqttProperties properties) {
+        var list = properties.getProperties(MqttPropertyType.USER_PROPERTY.value());
+        if (list.isEmpty()) {
+            return List.of();
+        }
+        List<Map.Entry<String, String>> result = new ArrayList<>();
+        for (var p : list) {
+            if (p instanceof UserProperty up) {
+                result.add(Map.entry(up.value().key, up.value().value));
+            } else if (p instanceof UserProperties ups) {
+                for (StringPair sp : ups.value()) {
+                    result.add(Map.entry(sp.key, sp.value));
+                }
+            }
+        }
+        return result;
+    }
+
+    private class Handler extends SimpleChannelInboundHandler<MqttMessage> {
+        Session session;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+            if (msg.decoderResult().isFailure()) {
+                ctx.close();
+                return;
+            }
+            switch (msg.fixedHeader().messageType()) {
+            case CONNECT -> connect(ctx, (MqttConnectMessage) msg);
+            case SUBSCRIBE -> subscribe(ctx, (MqttSubscribeMessage) msg);
+            case UNSUBSCRIBE -> unsubscribe(ctx, (MqttUnsubscribeMessage) msg);
+            case PUBLISH -> session.received((MqttPublishMessage) msg);
+            case PUBREC -> ctx.writeAndFlush(new MqttMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                    MqttMessageIdVariableHeader.from(messageId(msg))));
+            case PUBREL -> {
+                session.released(messageId(msg));
+                ctx.writeAndFlush(new MqttMessage(
+                        new MqttFixedHeader(MqttMessageType.PUBCOMP, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                        MqttMessageIdVariableHeader.from(messageId(msg))));
+            }
+            case PINGREQ -> ctx.writeAndFlush(new MqttMessage(
+                    new MqttFixedHeader(MqttMessageType.PINGRESP, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+            case DISCONNECT -> ctx.close();
+            default -> {
+                // PUBACK and PUBCOMP of the messages sent to the client, nothing to do
+            }
+            }
+        }
+
+        private int messageId(MqttMessage msg) {
+            return ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
+        }
+
+        private void connect(ChannelHandlerContext ctx, MqttConnectMessage msg) {
+            var header = msg.variableHeader();
+            boolean mqtt5 = header.version() == 5;
+            String clientId = msg.payload().clientIdentifier();
+            if (clientId == null || clientId.isEmpty()) {
+                clientId = "embedded-" + Integer.toHexString(ctx.channel().hashCode());
+            }
+            int clientAliasMaximum = 0;
+            if (mqtt5) {
+                var p = header.properties().getProperty(MqttPropertyType.TOPIC_ALIAS_MAXIMUM.value());
+                if (p != null) {
+                    clientAliasMaximum = (Integer) p.value();
+                }
+            }
+            session = new Session(ctx.channel(), clientId, mqtt5, clientAliasMaximum);
+            var previous = sessions.put(clientId, session);
+            if (previous != null) {
+                // session takeover
+                removeSubscriptions(previous);
+                previous.channel.close();
+            }
+
+            var properties = new MqttProperties();
+            if (mqtt5) {
+                properties.add(new IntegerProperty(MqttPropertyType.TOPIC_ALIAS_MAXIMUM.value(), topicAliasMaximum));
+                properties.add(new IntegerProperty(MqttPropertyType.SHARED_SUBSCRIPTION_AVAILABLE.value(), 1));
+            }
+            ctx.writeAndFlush(MqttMessageBuilders.connAck()
+                    .returnCode(MqttConnectReturnCode.CONNECTION_ACCEPTED)
+                    .sessionPresent(false)
+                    .properties(properties)
+                    .build());
+        }
+
+        private void subscribe(ChannelHandlerContext ctx, MqttSubscribeMessage msg) {
+            var subAck = MqttMessageBuilders.subAck().packetId(msg.variableHeader().messageId());
+            for (var ts : msg.payload().topicSubscriptions()) {
+                String filter = ts.topicFilter();
+                String group = null;
+                String matchFilter = filter;
+                int qos = Math.min(2, ts.qualityOfService().value());
+                try {
+                    if (filter.startsWith(MqttConnectionPool.SHARE_PREFIX)) {
+                        int idx = filter.indexOf('/', MqttConnectionPool.SHARE_PREFIX.length());
+                        group = filter.substring(MqttConnectionPool.SHARE_PREFIX.length(), idx);
+                        matchFilter = filter.substring(idx + 1);
+                    }
+                    var s = new Subscription(session, filter, matchFilter, group, qos);
+                    synchronized (EmbeddedMqttBroker.this) {
+                        // a new subscription to the same filter replaces the previous one
+                        for (var it = session.subscriptions.iterator(); it.hasNext();) {
+                            var old = it.next();
+                            if (old.filter.equals(filter)) {
+                                it.remove();
+                                subscriptions.remove(old.matchFilter, old);
+                            }
+                        }
+                        subscriptions.add(matchFilter, s);
+                        session.subscriptions.add(s);
+                    }
+                    subAck.addGrantedQos(MqttQoS.valueOf(qos));
+                } catch (RuntimeException e) {
+                    subAck.addGrantedQos(MqttQoS.FAILURE);
+                }
+            }
+            ctx.writeAndFlush(subAck.build());
+        }
+
+        private void unsubscribe(ChannelHandlerContext ctx, MqttUnsubscribeMessage msg) {
+            var unsubAck = MqttMessageBuilders.unsubAck().packetId(msg.variableHeader().messageId());
+            synchronized (EmbeddedMqttBroker.this) {
+                for (String filter : msg.payload().topics()) {
+                    for (var it = session.subscriptions.iterator(); it.hasNext();) {
+                        var s = it.next();
+                        if (s.filter.equals(filter)) {
+                            it.remove();
+                            subscriptions.remove(s.matchFilter, s);
+                        }
+                    }
+                    if (session.mqtt5) {
+                        unsubAck.addReasonCode((short) 0);
+                    }
+                }
+            }
+            ctx.writeAndFlush(unsubAck.build());
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (session != null) {
+                sessions.remove(session.clientId, session);
+                removeSubscriptions(session);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
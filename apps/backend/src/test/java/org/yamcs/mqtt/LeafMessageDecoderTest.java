@@ -0,0 +1,196 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.yamcs.mqtt.LeafMqttToTmPacketConverter.LeafMessage;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Checks that {@link LeafMessageDecoder} gives the same result as the Gson based parser.
+ */
+public class LeafMessageDecoderTest {
+
+    @BeforeAll
+    public static void setUpTime() {
+        TimeEncoding.setUp();
+    }
+
+    static String hexPayload(byte[] data, boolean shortOctets) {
+        var sb = new StringBuilder();
+        for (int i = 0; i < data.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            int v = data[i] & 0xFF;
+            sb.append("0x").append(shortOctets ? Integer.toHexString(v) : String.format("%02x", v));
+        }
+        return sb.toString();
+    }
+
+    static byte[] randomData(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void assertParity(String json) {
+        byte[] payload = json.getBytes(StandardCharsets.US_ASCII);
+        LeafMessage decoded = LeafMessageDecoder.decode(payload);
+        assertNotNull(decoded, json);
+        LeafMessage expected = LeafMqttToTmPacketConverter.parseLeafMessageTree(new MqttMessage(payload));
+
+        assertEquals(expected.ert(), decoded.ert(), json);
+        assertArrayEquals(expected.data(), decoded.data(), json);
+    }
+
+    @Test
+    public void testDocumentationExample() {
+        String json = "{\"timestamp\": \"2024-08-12T22:23:28.430897\", \"payload\": \"0x47 0x1c 0xa 0x2\"}";
+        assertParity(json);
+
+        var msg = LeafMessageDecoder.decode(json.getBytes(StandardCharsets.US_ASCII));
+        assertArrayEquals(new byte[] { 0x47, 0x1c, 0x0a, 0x02 }, msg.data());
+    }
+
+    @Test
+    public void testFrameSizes() {
+        for (int length : new int[] { 0, 1, 256, 4096 }) {
+            byte[] data = randomData(length, length);
+            for (boolean shortOctets : new boolean[] { false, true }) {
+                String json = "{\"timestamp\": \"2024-08-12T22:23:28.430897\", \"payload\": \""
+                        + hexPayload(data, shortOctets) + "\"}";
+                assertParity(json);
+                assertArrayEquals(data,
+                        LeafMessageDecoder.decode(json.getBytes(StandardCharsets.US_ASCII)).data());
+            }
+        }
+    }
+
+    /**
+     * The hex parser used before {@link LeafMessageDecoder}, which the Gson path now shares the decoder with.
+     */
+    static byte[] referenceParseHexString(String hexString) {
+        int n = 0;
+        int length = hexString.length();
+        for (int i = 0; i < length - 1; i++) {
+            if (hexString.charAt(i) == '0' && hexString.charAt(i + 1) == 'x') {
+                n++;
+                i += 2;
+            }
+        }
+        byte[] byteArray = new byte[n];
+        int idx = 0;
+        for (int i = 0; i < length - 1; i++) {
+            if (hexString.charAt(i) == '0' && hexString.charAt(i + 1) == 'x') {
+                int start = i + 2;
+                int end = start + 2;
+                if (end > length || hexString.charAt(end - 1) == ' ') {
+                    end = start + 1;
+                }
+                byteArray[idx++] = (byte) Integer.parseInt(hexString.substring(start, end), 16);
+                i = end - 1;
+            }
+        }
+        return byteArray;
+    }
+
+    @Test
+    public void testHexParityWithPreviousParser() {
+        for (int length : new int[] { 0, 1, 2, 256, 4096 }) {
+            for (boolean shortOctets : new boolean[] { false, true }) {
+                String hex = hexPayload(randomData(length, 31 * length), shortOctets);
+                assertArrayEquals(referenceParseHexString(hex), LeafMqttToTmPacketConverter.parseHexString(hex), hex);
+            }
+        }
+        assertArrayEquals(referenceParseHexString("0xA 0xBc 0x0"),
+                LeafMqttToTmPacketConverter.parseHexString("0xA 0xBc 0x0"));
+    }
+
+    @Test
+    public void testTimestamps() {
+        String[] timestamps = {
+                "2024-08-12T22:23:28",
+                "2024-08-12T22:23:28Z",
+                "2024-08-12T22:23:28.430",
+                "2024-08-12T22:23:28.430897Z",
+                "2024-08-12T22:23:28.123456789",
+                "2024-08-12T22:23:28.123456789012",
+                "2024-02-29T00:00:00.000001",
+                "1999-12-31T23:59:59.999",
+                "2016-12-31T23:59:59.500",
+                "2040-01-01T12:00:00"
+        };
+        for (String timestamp : timestamps) {
+            assertParity("{\"timestamp\":\"" + timestamp + "\",\"payload\":\"0x01\"}");
+        }
+    }
+
+    @Test
+    public void testFieldOrderAndExtraFields() {
+        assertParity("{\"payload\":\"0x01 0x02\",\"timestamp\":\"2024-08-12T22:23:28.432\"}");
+        assertParity("{\"payload\":\"0xff\"}");
+        assertParity("{ \"station\" : \"leaf-1\" ,\n\t\"snr\": -12.5, \"tags\": [1, {\"a\": \"b\"}], \"ok\": true,"
+                + " \"x\": null, \"payload\" : \"0x10 0x20\" , \"timestamp\":\"2024-08-12T22:23:28\" }");
+    }
+
+    @Test
+    public void testFallbackToTreeParser() {
+        // escape sequences are left to the Gson parser
+        String[] jsons = {
+                "{\"station\":\"a\\\"b\",\"payload\":\"0x01\"}",
+                "{\"payload\":\"0x\\u0041\"}"
+        };
+        for (String json : jsons) {
+            byte[] payload = json.getBytes(StandardCharsets.US_ASCII);
+            assertNull(LeafMessageDecoder.decode(payload), json);
+
+            var msg = new MqttMessage(payload);
+            LeafMessage expected = LeafMqttToTmPacketConverter.parseLeafMessageTree(msg);
+            LeafMessage actual = LeafMqttToTmPacketConverter.parseLeafMessage(msg);
+            assertEquals(expected.ert(), actual.ert());
+            assertArrayEquals(expected.data(), actual.data());
+        }
+    }
+
+    @Test
+    public void testUnsupportedTimestampsAreRejected() {
+        // the tree parser rejects these, the decoder must not accept them either
+        String[] timestamps = {
+                "2024-08-12T22:23:28+02:00",
+                "2024-08-12 22:23:28",
+                "2024-08-12T22:23:28.4",
+                "2024-08-12T22:23:28.43",
+                "2024-08-12T22:23:28.1234567890123"
+        };
+        for (String timestamp : timestamps) {
+            byte[] payload = ("{\"timestamp\":\"" + timestamp + "\",\"payload\":\"0x01\"}")
+                    .getBytes(StandardCharsets.US_ASCII);
+            assertNull(LeafMessageDecoder.decode(payload), timestamp);
+            assertThrows(IllegalArgumentException.class,
+                    () -> LeafMqttToTmPacketConverter.parseLeafMessage(new MqttMessage(payload)), timestamp);
+        }
+    }
+
+    @Test
+    public void testInvalidMessages() {
+        assertThrows(IllegalArgumentException.class,
+                () -> LeafMessageDecoder.decode("[1, 2]".getBytes(StandardCharsets.US_ASCII)));
+        assertThrows(IllegalArgumentException.class,
+                () -> LeafMessageDecoder.decode("{\"timestamp\":\"2024-08-12T22:23:28\"}"
+                        .getBytes(StandardCharsets.US_ASCII)));
+        assertThrows(IllegalArgumentException.class,
+                () -> LeafMessageDecoder.decode("{\"payload\":\"0xzz\"}".getBytes(StandardCharsets.US_ASCII)));
+        assertThrows(IllegalArgumentException.class,
+                () -> LeafMessageDecoder.decode("{\"payload\":\"0x01".getBytes(StandardCharsets.US_ASCII)));
+    }
+}
@@ -0,0 +1,104 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.Test;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducer;
+import org.yamcs.logging.Log;
+
+public class MqttConnectionPoolTest {
+    static final Log log = new Log(MqttConnectionPoolTest.class);
+
+    static YConfiguration config(String clientId, Object... options) {
+        Map<String, Object> m = new HashMap<>();
+        // nothing listens on port 1
+        m.put("brokers", List.of("tcp://127.0.0.1:1"));
+        m.put("clientId", clientId);
+        m.put("connectionTimeoutSecs", 1);
+        m.put("autoReconnect", true);
+        m.put("keepAliveSecs", 60);
+        for (int i = 0; i < options.length; i += 2) {
+            m.put((String) options[i], options[i + 1]);
+        }
+        return YConfiguration.wrap(m);
+    }
+
+    static MqttConnectionPool.LinkConnection acquire(String linkName, YConfiguration config) {
+        return MqttConnectionPool.getInstance().acquire(linkName, config, log, mock(EventProducer.class));
+    }
+
+    @Test
+    public void testSameOptionsShareConnection() {
+        var c1 = acquire("link1", config("pool-test-share"));
+        var c2 = acquire("link2", config("pool-test-share", "maxInflight", 10));
+        try {
+            assertSame(c1.shared, c2.shared);
+        } finally {
+            c1.close();
+            c2.close();
+        }
+    }
+
+    @Test
+    public void testConflictingOptionsAreRefused() {
+        var c1 = acquire("link1", config("pool-test-conflict"));
+        try {
+            var e = assertThrows(ConfigurationException.class,
+                    () -> acquire("link2", config("pool-test-conflict", "keepAliveSecs", 30, "autoReconnect", false)));
+            assertTrue(e.getMessage().contains("link1"), e.getMessage());
+            assertTrue(e.getMessage().contains("autoReconnect, keepAliveSecs"), e.getMessage());
+
+            var c3 = acquire("link3", config("pool-test-conflict", "username", "u", "password", "p3"));
+            try {
+                e = assertThrows(ConfigurationException.class, () -> acquire("link4",
+                        config("pool-test-conflict", "username", "u", "password", "secret")));
+                // the password itself is not shown
+                assertTrue(e.getMessage().contains("password") && !e.getMessage().contains("secret"),
+                        e.getMessage());
+            } finally {
+                c3.close();
+            }
+
+            // a different client id gets its own connection
+            var c2 = acquire("link2", config("pool-test-conflict-2", "keepAliveSecs", 30));
+            assertNotSame(c1.shared, c2.shared);
+            c2.close();
+        } finally {
+            c1.close();
+        }
+    }
+
+    @Test
+    public void testFailedConnectionIsReported() {
+        var conn = acquire("link1", config("pool-test-failure", "autoReconnect", false));
+        try {
+            assertThrows(MqttException.class, conn::connectAndWait);
+            assertNotNull(conn.getConnectFailure());
+            assertTrue(conn.getDetailedStatus().startsWith("Failed to connect to MQTT"), conn.getDetailedStatus());
+        } finally {
+            conn.close();
+        }
+
+        var retried = acquire("link1", config("pool-test-failure-retry"));
+        try {
+            assertThrows(MqttException.class, retried::connectAndWait);
+            assertTrue(retried.getDetailedStatus().endsWith(", retrying"), retried.getDetailedStatus());
+        } finally {
+            retried.close();
+        }
+        assertEquals("", acquire("link1", config("pool-test-unused")).getDetailedStatus());
+    }
+}
@@ -0,0 +1,333 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.yamcs.YConfiguration;
+import org.yamcs.cmdhistory.CommandHistoryPublisher;
+import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.mrt.AstraLoadGenerator;
+import org.yamcs.mrt.AstraLoadGenerator.Profile;
+import org.yamcs.mrt.utils.LatencyHistogram;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.protobuf.Commanding.CommandId;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.xtce.MetaCommand;
+
+/**
+ * End-to-end throughput of {@link MqttFanoutCommandLink}: commands sent to two emulated flight computers, each
+ * answering with the TX and RX radio acks and a telemetry frame acking the command, until the command is complete in
+ * the command history. The flight computers also publish telemetry frames without acks, which the link reads for the
+ * ack flags.
+ * <p>
+ * The messages are the completed commands and the latency is from {@link MqttFanoutCommandLink#sendCommand} to the
+ * CommandComplete ack; the link allocations include the creation of the commands by the benchmark. The time to the
+ * first ack (the first radio or FC ack of the command) is reported as <code>firstAckP50Micros</code> and
+ * <code>firstAckP99Micros</code>.
+ * <p>
+ * {@link #benchmarkBursts()} sends bursts of 10 and 100 commands with {@link MqttFanoutCommandLink#sendCommands},
+ * each burst once the previous one is complete, and writes one result per burst size.
+ * <p>
+ * Parameters (system properties): <code>benchmark.commandsInFlight</code>, <code>benchmark.framesPerSecond</code>
+ * (telemetry of each flight computer), <code>benchmark.warmupSecs</code>, <code>benchmark.durationSecs</code>.
+ */
+@Tag(BenchmarkRun.TAG)
+public class MqttFanoutCommandLinkBenchmark {
+    static final int MAX_COMMANDS = 4096;
+    static final List<Integer> BURST_SIZES = List.of(10, 100);
+    static final MetaCommand PING = new MetaCommand("ping");
+    static final byte[] PING_BINARY = "pg".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        PING.setShortDescription("pg");
+    }
+
+    EmbeddedMqttBroker broker;
+    AstraLoadGenerator generator;
+    MqttFanoutCommandLink link;
+
+    /**
+     * Completes the commands in flight when their CommandComplete ack is published.
+     */
+    static class CompletionRecorder implements CommandHistoryPublisher {
+        final BenchmarkRun run;
+        final Semaphore inFlight;
+        // send time by command sequence number, 0 once completed
+        final AtomicLongArray sentNanos = new AtomicLongArray(MAX_COMMANDS);
+        // send time by command sequence number, 0 once the first ack is received
+        final AtomicLongArray firstAckSentNanos = new AtomicLongArray(MAX_COMMANDS);
+        final LatencyHistogram firstAckLatency = new LatencyHistogram();
+        final AtomicLong failed = new AtomicLong();
+
+        CompletionRecorder(BenchmarkRun run, Semaphore inFlight) {
+            this.run = run;
+            this.inFlight = inFlight;
+        }
+
+        void sent(CommandId commandId, long nanos) {
+            sentNanos.set(commandId.getSequenceNumber() % MAX_COMMANDS, nanos);
+            firstAckSentNanos.set(commandId.getSequenceNumber() % MAX_COMMANDS, nanos);
+        }
+
+        @Override
+        public void publishAck(CommandId cmdId, String key, long time, AckStatus state, String message,
+                ParameterValue returnPv) {
+            if (state == AckStatus.PENDING) {
+                return;
+            }
+            if (!CommandComplete_KEY.equals(key)) {
+                long firstAckSent = firstAckSentNanos.getAndSet(cmdId.getSequenceNumber() % MAX_COMMANDS, 0);
+                if (firstAckSent != 0 && state == AckStatus.OK && run.isMeasuring()) {
+                    firstAckLatency.recordNanos(System.nanoTime() - firstAckSent);
+                }
+                return;
+            }
+            long sent = sentNanos.getAndSet(cmdId.getSequenceNumber() % MAX_COMMANDS, 0);
+            if (sent == 0) {
+                return;
+            }
+            if (state == AckStatus.OK) {
+                run.record(sent);
+            } else {
+                failed.incrementAndGet();
+            }
+            inFlight.release();
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, String value) {
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, int value) {
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, long value) {
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, byte[] binary) {
+        }
+
+        @Override
+        public void addCommand(PreparedCommand pc) {
+        }
+    }
+
+    @BeforeEach
+    public void startBroker() throws InterruptedException {
+        TimeEncoding.setUp();
+        EventProducerFactory.setMockup(false);
+        broker = new EmbeddedMqttBroker().start();
+    }
+
+    @AfterEach
+    public void stop() throws InterruptedException {
+        if (generator != null) {
+            generator.close();
+        }
+        if (link != null) {
+            link.stopAsync().awaitTerminated();
+        }
+        broker.close();
+    }
+
+    /**
+     * Starts the emulated flight computers and the link, with the given command history.
+     */
+    void startLink(double framesPerSecond, CommandHistoryPublisher recorder) throws Exception {
+        Map<String, Object> args = new HashMap<>();
+        args.put("name", "bench-fanout");
+        args.put("class", MqttFanoutCommandLink.class.getName());
+        args.put("brokers", List.of(broker.getUri()));
+        args.put("clientId", "bench-fanout");
+        // in-memory persistence, no directory left in the working directory
+        args.put("protocolVersion", "MQTT_5");
+        args.put("targets", List.of(
+                Map.of("name", "SystemA", "baseTopic", "fc-a/radio"),
+                Map.of("name", "SystemB", "baseTopic", "fc-b/radio")));
+
+        generator = new AstraLoadGenerator(broker.getUri(),
+                new Profile(List.of("fc-a/radio", "fc-b/radio"), "433", framesPerSecond, 0, 0))
+                .connect();
+        generator.respondToCommands(0, "fc-a/ControlStation/Radio/acks");
+        generator.respondToCommands(1, "fc-b/ControlStation/Radio/acks");
+
+        link = new MqttFanoutCommandLink();
+        link.init("bench", "bench-fanout", link.getSpec().validate(YConfiguration.wrap(args)));
+        link.setCommandHistoryPublisher(recorder);
+        link.startAsync().awaitRunning();
+        generator.start();
+    }
+
+    static PreparedCommand command(int sequenceNumber) {
+        var commandId = CommandId.newBuilder().setGenerationTime(TimeEncoding.getWallclockTime())
+                .setOrigin("benchmark").setSequenceNumber(sequenceNumber).setCommandName("/bench/ping")
+                .build();
+        var pc = new PreparedCommand(commandId);
+        pc.setMetaCommand(PING);
+        pc.setBinary(PING_BINARY);
+        return pc;
+    }
+
+    static BenchmarkRun firstAckResults(BenchmarkRun run, CompletionRecorder recorder) {
+        return run.result("firstAckP50Micros", recorder.firstAckLatency.getPercentileMicros(0.5))
+                .result("firstAckP99Micros", recorder.firstAckLatency.getPercentileMicros(0.99));
+    }
+
+    @Test
+    public void benchmarkCommands() throws Exception {
+        int commandsInFlight = Math.min(BenchmarkRun.intParam("commandsInFlight", 64), 200);
+        double framesPerSecond = BenchmarkRun.doubleParam("framesPerSecond", 100);
+        var run = new BenchmarkRun("MqttFanoutCommandLink")
+                .param("targets", 2)
+                .param("commandsInFlight", commandsInFlight)
+                .param("framesPerSecond", framesPerSecond);
+
+        var inFlight = new Semaphore(commandsInFlight);
+        var recorder = new CompletionRecorder(run, inFlight);
+        startLink(framesPerSecond, recorder);
+
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(BenchmarkRun.intParam("warmupSecs", 3));
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(BenchmarkRun.intParam("durationSecs", 10));
+        int sequenceNumber = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (!run.isMeasuring() && now > warmupEnd && now < end) {
+                run.begin();
+            } else if (now >= end) {
+                run.end();
+                break;
+            }
+            if (!inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                continue;
+            }
+            var pc = command(sequenceNumber++);
+            var commandId = pc.getCommandId();
+            recorder.sent(commandId, System.nanoTime());
+            if (!link.sendCommand(pc)) {
+                recorder.failed.incrementAndGet();
+                recorder.sentNanos.set(commandId.getSequenceNumber() % MAX_COMMANDS, 0);
+                inFlight.release();
+            }
+        }
+
+        firstAckResults(run, recorder)
+                .result("commandsFailed", recorder.failed.get())
+                .result("commandsReceivedByTargets", generator.getCommandsReceived())
+                .result("framesSent", generator.getFramesSent())
+                .result("linkExtraInfo", link.getExtraInfo());
+        run.write();
+        assertTrue(run.getMessages() > 0);
+    }
+
+    @Test
+    public void benchmarkBursts() throws Exception {
+        double framesPerSecond = BenchmarkRun.doubleParam("framesPerSecond", 100);
+        List<BenchmarkRun> runs = new ArrayList<>();
+        List<CompletionRecorder> recorders = new ArrayList<>();
+        for (int burstSize : BURST_SIZES) {
+            var run = new BenchmarkRun("MqttFanoutCommandLink-burst" + burstSize)
+                    .param("targets", 2)
+                    .param("burstSize", burstSize)
+                    .param("framesPerSecond", framesPerSecond);
+            runs.add(run);
+            recorders.add(new CompletionRecorder(run, new Semaphore(0)));
+        }
+        // the link has a single command history, which forwards to the recorder of the current burst size
+        var current = new AtomicReference<CompletionRecorder>();
+        startLink(framesPerSecond, new ForwardingPublisher(current));
+
+        int sequenceNumber = 0;
+        for (int i = 0; i < BURST_SIZES.size(); i++) {
+            int burstSize = BURST_SIZES.get(i);
+            var run = runs.get(i);
+            var recorder = recorders.get(i);
+            current.set(recorder);
+
+            long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(BenchmarkRun.intParam("warmupSecs", 3));
+            long end = warmupEnd + TimeUnit.SECONDS.toNanos(BenchmarkRun.intParam("durationSecs", 10));
+            while (true) {
+                long now = System.nanoTime();
+                if (!run.isMeasuring() && now > warmupEnd && now < end) {
+                    run.begin();
+                } else if (now >= end) {
+                    run.end();
+                    break;
+                }
+                List<PreparedCommand> burst = new ArrayList<>(burstSize);
+                for (int j = 0; j < burstSize; j++) {
+                    burst.add(command(sequenceNumber++));
+                }
+                long sentNanos = System.nanoTime();
+                for (PreparedCommand pc : burst) {
+                    recorder.sent(pc.getCommandId(), sentNanos);
+                }
+                link.sendCommands(burst);
+                // the failed commands are completed NOK, so the burst is over once all are complete
+                if (!recorder.inFlight.tryAcquire(burstSize, 30, TimeUnit.SECONDS)) {
+                    throw new AssertionError("Burst of " + burstSize + " commands not completed");
+                }
+            }
+
+            firstAckResults(run, recorder)
+                    .result("commandsFailed", recorder.failed.get())
+                    .result("linkExtraInfo", link.getExtraInfo());
+            run.write();
+            assertTrue(run.getMessages() > 0);
+        }
+    }
+
+    /**
+     * Forwards the command history of the link to the recorder of the burst size being measured.
+     */
+    static class ForwardingPublisher implements CommandHistoryPublisher {
+        final AtomicReference<CompletionRecorder> target;
+
+        ForwardingPublisher(AtomicReference<CompletionRecorder> target) {
+            this.target = target;
+        }
+
+        @Override
+        public void publishAck(CommandId cmdId, String key, long time, AckStatus state, String message,
+                ParameterValue returnPv) {
+            target.get().publishAck(cmdId, key, time, state, message, returnPv);
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, String value) {
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, int value) {
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, long value) {
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, byte[] binary) {
+        }
+
+        @Override
+        public void addCommand(PreparedCommand pc) {
+        }
+    }
+}
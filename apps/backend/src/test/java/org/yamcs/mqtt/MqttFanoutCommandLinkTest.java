@@ -0,0 +1,172 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.yamcs.ValidationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.cmdhistory.CommandHistoryPublisher;
+import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.protobuf.Commanding.CommandId;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.xtce.MetaCommand;
+
+/**
+ * Sequence counts of the command batches of {@link MqttFanoutCommandLink}. The targets do not answer, so the commands
+ * stay in flight and keep their sequences.
+ */
+public class MqttFanoutCommandLinkTest {
+    static EmbeddedMqttBroker broker;
+
+    MqttFanoutCommandLink link;
+    int commandSequence;
+    // by command sequence number
+    final Map<Integer, Integer> sequenceCounts = new ConcurrentHashMap<>();
+    final Map<Integer, String> failures = new ConcurrentHashMap<>();
+
+    class Recorder implements CommandHistoryPublisher {
+        @Override
+        public void publishAck(CommandId cmdId, String key, long time, AckStatus state, String message,
+                ParameterValue returnPv) {
+            if (CommandComplete_KEY.equals(key) && state == AckStatus.NOK) {
+                failures.put(cmdId.getSequenceNumber(), message);
+            }
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, String value) {
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, int value) {
+            if ("Sequence_Count".equals(key)) {
+                sequenceCounts.put(cmdId.getSequenceNumber(), value);
+            }
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, long value) {
+        }
+
+        @Override
+        public void publish(CommandId cmdId, String key, byte[] binary) {
+        }
+
+        @Override
+        public void addCommand(PreparedCommand pc) {
+        }
+    }
+
+    @BeforeAll
+    public static void startBroker() throws InterruptedException {
+        TimeEncoding.setUp();
+        EventProducerFactory.setMockup(false);
+        broker = new EmbeddedMqttBroker().start();
+    }
+
+    @AfterAll
+    public static void stopBroker() {
+        broker.close();
+    }
+
+    @AfterEach
+    public void stopLink() {
+        if (link != null) {
+            link.stopAsync().awaitTerminated();
+        }
+    }
+
+    void startLink() throws ValidationException {
+        Map<String, Object> args = new HashMap<>();
+        args.put("name", "test-fanout");
+        args.put("class", MqttFanoutCommandLink.class.getName());
+        args.put("brokers", List.of(broker.getUri()));
+        args.put("clientId", "test-fanout");
+        args.put("protocolVersion", "MQTT_5");
+        args.put("targets", List.of(
+                Map.of("name", "SystemA", "baseTopic", "fc-a/radio"),
+                Map.of("name", "SystemB", "baseTopic", "fc-b/radio")));
+
+        link = new MqttFanoutCommandLink();
+        link.init("test", "test-fanout", link.getSpec().validate(YConfiguration.wrap(args)));
+        link.setCommandHistoryPublisher(new Recorder());
+        link.startAsync().awaitRunning();
+    }
+
+    PreparedCommand command() {
+        var metaCommand = new MetaCommand("ping");
+        metaCommand.setShortDescription("pg");
+        var commandId = CommandId.newBuilder().setGenerationTime(TimeEncoding.getWallclockTime())
+                .setOrigin("test").setSequenceNumber(commandSequence++).setCommandName("/test/ping").build();
+        var pc = new PreparedCommand(commandId);
+        pc.setMetaCommand(metaCommand);
+        pc.setBinary("pg".getBytes(StandardCharsets.US_ASCII));
+        return pc;
+    }
+
+    List<PreparedCommand> commands(int n) {
+        List<PreparedCommand> commands = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            commands.add(command());
+        }
+        return commands;
+    }
+
+    @Test
+    public void testReservationWrapsContiguously() {
+        link = new MqttFanoutCommandLink();
+        assertEquals(1, link.reserveSequences(250));
+        // 251..255, then 1..5
+        assertEquals(251, link.reserveSequences(10));
+        assertEquals(6, link.reserveSequences(1));
+
+        assertEquals(255, MqttFanoutCommandLink.advanceSequence(251, 4));
+        assertEquals(1, MqttFanoutCommandLink.advanceSequence(255, 1));
+        assertEquals(5, MqttFanoutCommandLink.advanceSequence(251, 9));
+        assertEquals(7, MqttFanoutCommandLink.advanceSequence(7, 255));
+        link = null;
+    }
+
+    @Test
+    public void testBatchAcrossTheWrap() throws ValidationException {
+        startLink();
+        link.reserveSequences(252);
+
+        assertEquals(6, link.sendCommands(commands(6)));
+        assertEquals(List.of(253, 254, 255, 1, 2, 3), List.of(sequenceCounts.get(0), sequenceCounts.get(1),
+                sequenceCounts.get(2), sequenceCounts.get(3), sequenceCounts.get(4), sequenceCounts.get(5)));
+        assertTrue(failures.isEmpty());
+        assertEquals(4, link.reserveSequences(1));
+    }
+
+    @Test
+    public void testBatchOnOccupiedSequences() throws ValidationException {
+        startLink();
+        // sequences 1 and 2 stay in flight
+        assertTrue(link.sendCommand(command()));
+        assertTrue(link.sendCommand(command()));
+        link.reserveSequences(250);
+
+        // 253, 254, 255 are free, 1 and 2 are taken, 3 is free
+        assertEquals(4, link.sendCommands(commands(6)));
+        assertEquals(Map.of(5, "Sequence 1 is still in flight; refusing to overwrite dispatch state",
+                6, "Sequence 2 is still in flight; refusing to overwrite dispatch state"), failures);
+        assertEquals(3, sequenceCounts.get(7));
+        // the failed commands do not take the sequences of the commands in flight
+        assertEquals(1, sequenceCounts.get(0));
+        assertEquals(2, sequenceCounts.get(1));
+    }
+}
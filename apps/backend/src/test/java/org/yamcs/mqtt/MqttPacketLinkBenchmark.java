@@ -0,0 +1,99 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.mrt.AstraLoadGenerator;
+import org.yamcs.mrt.AstraLoadGenerator.Profile;
+import org.yamcs.tctm.GenericPacketPreprocessor;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * End-to-end throughput of {@link MqttPacketLink}: FC frames published by the emulated radios, received through the
+ * embedded broker and the shared connection, converted and preprocessed, until they reach the TM sink.
+ * <p>
+ * Parameters (system properties): <code>benchmark.devices</code>, <code>benchmark.framesPerSecond</code> (per device),
+ * <code>benchmark.warmupSecs</code>, <code>benchmark.durationSecs</code>, <code>benchmark.processingThreads</code>.
+ */
+@Tag(BenchmarkRun.TAG)
+public class MqttPacketLinkBenchmark {
+    EmbeddedMqttBroker broker;
+    AstraLoadGenerator generator;
+    MqttPacketLink link;
+
+    @BeforeEach
+    public void startBroker() throws InterruptedException {
+        TimeEncoding.setUp();
+        EventProducerFactory.setMockup(false);
+        broker = new EmbeddedMqttBroker().start();
+    }
+
+    @AfterEach
+    public void stop() throws InterruptedException {
+        if (generator != null) {
+            generator.close();
+        }
+        if (link != null) {
+            link.stopAsync().awaitTerminated();
+        }
+        broker.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { MqttUtils.PROTOCOL_3_1_1, MqttUtils.PROTOCOL_5 })
+    public void benchmarkTelemetry(String version) throws Exception {
+        int devices = BenchmarkRun.intParam("devices", 8);
+        double framesPerSecond = BenchmarkRun.doubleParam("framesPerSecond", 500);
+        int processingThreads = BenchmarkRun.intParam("processingThreads", 1);
+        var run = new BenchmarkRun("MqttPacketLink-" + version)
+                .param("devices", devices)
+                .param("framesPerSecond", framesPerSecond)
+                .param("processingThreads", processingThreads);
+
+        Map<String, Object> args = new HashMap<>();
+        args.put("name", "bench-tm");
+        args.put("class", MqttPacketLink.class.getName());
+        args.put("brokers", List.of(broker.getUri()));
+        args.put("clientId", "bench-tm");
+        args.put("protocolVersion", version);
+        args.put("tmTopic", "+/telemetry");
+        args.put("processingThreads", processingThreads);
+        args.put("packetPreprocessorClassName", GenericPacketPreprocessor.class.getName());
+        args.put("packetPreprocessorArgs", Map.of("timestampOffset", -1, "seqCountOffset", 0));
+
+        link = new MqttPacketLink();
+        link.init("bench", "bench-tm", link.getSpec().validate(YConfiguration.wrap(args)));
+
+        generator = new AstraLoadGenerator(broker.getUri(),
+                new Profile(AstraLoadGenerator.deviceNames("radio-", devices), "433", framesPerSecond, 1, 0))
+                .connect();
+        link.setTmSink(tmPacket -> {
+            byte[] frame = tmPacket.getPacket();
+            int device = AstraLoadGenerator.getDeviceIndex(frame);
+            run.record(generator.getSentNanos(device, AstraLoadGenerator.getSequence(frame)));
+        });
+        link.startAsync().awaitRunning();
+
+        generator.start();
+        Thread.sleep(1000L * BenchmarkRun.intParam("warmupSecs", 3));
+        run.begin();
+        Thread.sleep(1000L * BenchmarkRun.intParam("durationSecs", 10));
+        run.end();
+
+        run.result("framesSent", generator.getFramesSent())
+                .result("messagesDropped", generator.getMessagesDropped())
+                .result("linkExtraInfo", link.getExtraInfo());
+        run.write();
+        assertTrue(run.getMessages() > 0);
+    }
+}
@@ -0,0 +1,381 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducer;
+import org.yamcs.logging.Log;
+import org.yamcs.mqtt.MqttConnectionPool.LinkConnection;
+import org.yamcs.time.RealtimeTimeService;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Runs the shared connections of both MQTT versions against the {@link EmbeddedMqttBroker}.
+ */
+public class MqttTransportTest {
+    static final Log log = new Log(MqttTransportTest.class);
+    static EmbeddedMqttBroker broker;
+
+    record Arrived(String topic, MqttMessage message) {
+    }
+
+    /**
+     * Records the messages published to the broker while open.
+     */
+    static class Recorder implements AutoCloseable {
+        final List<EmbeddedMqttBroker.Received> received = new CopyOnWriteArrayList<>();
+        final Consumer<EmbeddedMqttBroker.Received> listener = received::add;
+
+        Recorder() {
+            broker.addListener(listener);
+        }
+
+        @Override
+        public void close() {
+            broker.removeListener(listener);
+        }
+    }
+
+    @BeforeAll
+    public static void startBroker() throws InterruptedException {
+        TimeEncoding.setUp();
+        broker = new EmbeddedMqttBroker(8).start();
+    }
+
+    @AfterAll
+    public static void stopBroker() {
+        broker.close();
+    }
+
+    static YConfiguration config(String clientId, String version, Object... options) {
+        Map<String, Object> m = new HashMap<>();
+        m.put("brokers", List.of(broker.getUri()));
+        m.put("clientId", clientId);
+        m.put("connectionTimeoutSecs", 5);
+        m.put("autoReconnect", true);
+        m.put("keepAliveSecs", 60);
+        m.put("protocolVersion", version);
+        for (int i = 0; i < options.length; i += 2) {
+            m.put((String) options[i], options[i + 1]);
+        }
+        return YConfiguration.wrap(m);
+    }
+
+    static LinkConnection acquire(String linkName, YConfiguration config) {
+        return MqttConnectionPool.getInstance().acquire(linkName, config, log, mock(EventProducer.class));
+    }
+
+    /**
+     * Subscribes and waits until the broker has the subscriptions.
+     */
+    static BlockingQueue<Arrived> subscribe(LinkConnection conn, String filter, int qos, boolean shared)
+            throws Exception {
+        BlockingQueue<Arrived> queue = new LinkedBlockingQueue<>();
+        int before = broker.getSubscriptionCount(conn.getClientId());
+        if (shared) {
+            conn.subscribeShared(filter, qos, (t, m) -> queue.add(new Arrived(t, m)));
+        } else {
+            conn.subscribe(filter, qos, (t, m) -> queue.add(new Arrived(t, m)));
+        }
+        conn.connectAndWait();
+        waitFor(() -> broker.getSubscriptionCount(conn.getClientId()) > before);
+        return queue;
+    }
+
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timed out");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    static void publishAndWait(LinkConnection conn, String topic, MqttMessage msg) throws Exception {
+        var latch = new CountDownLatch(1);
+        List<Throwable> errors = new ArrayList<>();
+        conn.publish(topic, msg, null, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable e) {
+                errors.add(e);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of(), errors);
+    }
+
+    static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { MqttUtils.PROTOCOL_3_1_1, MqttUtils.PROTOCOL_5 })
+    public void testPublishAndSubscribe(String version) throws Exception {
+        var conn = acquire("link1", config("transport-pubsub-" + version, version));
+        try {
+            var queue = subscribe(conn, "radio1/+", 2, false);
+            assertTrue(conn.isConnected());
+
+            for (int qos = 0; qos <= 2; qos++) {
+                broker.publish("radio1/telemetry", bytes("tm" + qos), qos, List.of());
+                var arrived = queue.poll(10, TimeUnit.SECONDS);
+                assertEquals("radio1/telemetry", arrived.topic);
+                assertArrayEquals(bytes("tm" + qos), arrived.message.getPayload());
+                assertEquals(qos, arrived.message.getQos());
+            }
+
+            List<EmbeddedMqttBroker.Received> received;
+            try (var recorder = new Recorder()) {
+                for (int qos = 0; qos <= 2; qos++) {
+                    var msg = new MqttMessage(bytes("tc" + qos));
+                    msg.setQos(qos);
+                    publishAndWait(conn, "radio1/commands", msg);
+                }
+                received = recorder.received;
+                waitFor(() -> received.size() == 3);
+            }
+            for (int qos = 0; qos <= 2; qos++) {
+                assertEquals("radio1/commands", received.get(qos).topic());
+                assertArrayEquals(bytes("tc" + qos), received.get(qos).payload());
+                assertEquals(qos, received.get(qos).qos());
+            }
+            // the commands come back on the subscription
+            for (int i = 0; i < 3; i++) {
+                assertEquals("radio1/commands", queue.poll(10, TimeUnit.SECONDS).topic);
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { MqttUtils.PROTOCOL_3_1_1, MqttUtils.PROTOCOL_5 })
+    public void testSharedSubscriptionsSplitTheMessages(String version) throws Exception {
+        // two Yamcs servers in the same group, each with its own client
+        var server1 = acquire("tm", config("transport-shared-1-" + version, version,
+                "sharedSubscriptionGroup", "yamcs"));
+        var server2 = acquire("tm", config("transport-shared-2-" + version, version,
+                "sharedSubscriptionGroup", "yamcs"));
+        try {
+            var queue1 = subscribe(server1, "+/telemetry", 1, true);
+            var queue2 = subscribe(server2, "+/telemetry", 1, true);
+
+            int n = 20;
+            for (int i = 0; i < n; i++) {
+                broker.publish("radio" + (i % 3) + "/telemetry", bytes("tm" + i), 1, List.of());
+            }
+            waitFor(() -> queue1.size() + queue2.size() == n);
+            assertFalse(queue1.isEmpty());
+            assertFalse(queue2.isEmpty());
+
+            Set<String> payloads = new HashSet<>();
+            for (var queue : List.of(queue1, queue2)) {
+                for (var arrived : queue) {
+                    // the topic is the one published to, not the shared filter
+                    assertTrue(arrived.topic.matches("radio[0-2]/telemetry"), arrived.topic);
+                    payloads.add(new String(arrived.message.getPayload(), StandardCharsets.US_ASCII));
+                }
+            }
+            assertEquals(n, payloads.size());
+        } finally {
+            server1.close();
+            server2.close();
+        }
+    }
+
+    @Test
+    public void testOutgoingTopicAliases() throws Exception {
+        var conn = acquire("link1", config("transport-alias-out", MqttUtils.PROTOCOL_5));
+        var recorder = new Recorder();
+        var received = recorder.received;
+        try {
+            conn.connectAndWait();
+            for (int i = 0; i < 5; i++) {
+                publishAndWait(conn, "radio1/commands", new MqttMessage(bytes("c" + i)));
+                publishAndWait(conn, "radio2/commands", new MqttMessage(bytes("c" + i)));
+            }
+            waitFor(() -> received.size() == 10);
+        } finally {
+            recorder.close();
+            conn.close();
+        }
+        // the first message on each topic defines the alias, the next ones only carry the alias
+        int aliased = 0;
+        for (int i = 0; i < received.size(); i++) {
+            var r = received.get(i);
+            assertEquals(i % 2 == 0 ? "radio1/commands" : "radio2/commands", r.topic());
+            if (r.aliased()) {
+                aliased++;
+            }
+        }
+        assertEquals(8, aliased);
+    }
+
+    @Test
+    public void testNoTopicAliasesWithMqtt3() throws Exception {
+        var conn = acquire("link1", config("transport-alias-3", MqttUtils.PROTOCOL_3_1_1));
+        var recorder = new Recorder();
+        var received = recorder.received;
+        try {
+            conn.connectAndWait();
+            for (int i = 0; i < 3; i++) {
+                publishAndWait(conn, "radio1/commands", new MqttMessage(bytes("c" + i)));
+            }
+            waitFor(() -> received.size() == 3);
+        } finally {
+            recorder.close();
+            conn.close();
+        }
+        for (var r : received) {
+            assertFalse(r.aliased());
+        }
+    }
+
+    @Test
+    public void testIncomingTopicAliases() throws Exception {
+        var conn = acquire("link1", config("transport-alias-in", MqttUtils.PROTOCOL_5, "topicAliasMaximum", 2));
+        try {
+            var queue = subscribe(conn, "#", 0, false);
+            long aliasedBefore = broker.getAliasedOut();
+            // more topics than aliases: the third one is always sent in full
+            for (int i = 0; i < 3; i++) {
+                for (int t = 0; t < 3; t++) {
+                    broker.publish("radio" + t + "/telemetry", bytes("tm" + i), 0, List.of());
+                }
+            }
+            for (int i = 0; i < 3; i++) {
+                for (int t = 0; t < 3; t++) {
+                    var arrived = queue.poll(10, TimeUnit.SECONDS);
+                    assertEquals("radio" + t + "/telemetry", arrived.topic);
+                    assertArrayEquals(bytes("tm" + i), arrived.message.getPayload());
+                }
+            }
+            assertEquals(4, broker.getAliasedOut() - aliasedBefore);
+        } finally {
+            conn.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { MqttUtils.PROTOCOL_3_1_1, MqttUtils.PROTOCOL_5 })
+    public void testUserProperties(String version) throws Exception {
+        boolean mqtt5 = MqttUtils.PROTOCOL_5.equals(version);
+        var conn = acquire("link1", config("transport-properties-" + version, version));
+        var recorder = new Recorder();
+        var received = recorder.received;
+        try {
+            var queue = subscribe(conn, "radio1/telemetry", 1, false);
+            broker.publish("radio1/telemetry", bytes("tm"), 1,
+                    List.of(Map.entry(Mqtt5Message.SEQ, "12"), Map.entry("station", "leaf-1")));
+            var arrived = queue.poll(10, TimeUnit.SECONDS);
+            if (mqtt5) {
+                var msg = assertInstanceOf(Mqtt5Message.class, arrived.message);
+                assertEquals("12", msg.getUserProperty(Mqtt5Message.SEQ));
+                assertEquals("leaf-1", Mqtt5Message.getUserProperty(msg, "station"));
+            } else {
+                assertNull(Mqtt5Message.getUserProperty(arrived.message, Mqtt5Message.SEQ));
+            }
+
+            received.clear();
+            var msg = new Mqtt5Message(bytes("tc")).addUserProperty(Mqtt5Message.SEQ, "7")
+                    .addUserProperty(Mqtt5Message.TIMESTAMP, "2024-08-12T22:23:28.430Z");
+            publishAndWait(conn, "radio1/commands", msg);
+            waitFor(() -> received.size() == 1);
+            var expected = mqtt5 ? List.of(Map.entry(Mqtt5Message.SEQ, "7"),
+                    Map.entry(Mqtt5Message.TIMESTAMP, "2024-08-12T22:23:28.430Z")) : List.of();
+            assertEquals(expected, received.get(0).userProperties());
+        } finally {
+            recorder.close();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testReconnection() throws Exception {
+        var conn = acquire("link1", config("transport-reconnect", MqttUtils.PROTOCOL_5));
+        try {
+            var queue = subscribe(conn, "radio1/telemetry", 1, false);
+            broker.disconnectAll();
+            // the subscriptions are renewed on the new session
+            waitFor(() -> broker.getSubscriptionCount("transport-reconnect") == 1);
+            broker.publish("radio1/telemetry", bytes("after"), 1, List.of());
+            assertArrayEquals(bytes("after"), queue.poll(10, TimeUnit.SECONDS).message.getPayload());
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testDefaultConvertersUseTheUserProperties() {
+        var tmConverter = new DefaultMqttToTmPacketConverter();
+        tmConverter.timeService = new RealtimeTimeService();
+        tmConverter.log = log;
+
+        var msg = new Mqtt5Message(bytes("tm")).addUserProperty(Mqtt5Message.SEQ, "42")
+                .addUserProperty(Mqtt5Message.TIMESTAMP, "2024-08-12T22:23:28.430Z");
+        var packet = tmConverter.convert(msg).get(0);
+        assertEquals(42, packet.getSeqCount());
+        assertEquals(TimeEncoding.parseHres("2024-08-12T22:23:28.430Z"), packet.getEarthReceptionTime());
+
+        // invalid properties are ignored
+        msg = new Mqtt5Message(bytes("tm")).addUserProperty(Mqtt5Message.SEQ, "x");
+        assertArrayEquals(bytes("tm"), tmConverter.convert(msg).get(0).getPacket());
+
+        var frameConverter = new DefaultMqttToFrameConverter();
+        frameConverter.timeService = tmConverter.timeService;
+        frameConverter.log = log;
+        var frame = frameConverter.convert(new Mqtt5Message(bytes("frame"))
+                .addUserProperty(Mqtt5Message.TIMESTAMP, "2024-08-12T22:23:28.430Z")).iterator().next();
+        assertEquals(TimeEncoding.parseHres("2024-08-12T22:23:28.430Z"), frame.ert());
+    }
+
+    @Test
+    public void testVersionConflictIsRefused() {
+        var c1 = acquire("link1", config("transport-conflict", MqttUtils.PROTOCOL_3_1_1));
+        try {
+            var e = assertThrows(ConfigurationException.class,
+                    () -> acquire("link2", config("transport-conflict", MqttUtils.PROTOCOL_5)));
+            assertTrue(e.getMessage().contains("protocolVersion"), e.getMessage());
+        } finally {
+            c1.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.yamcs.mrt;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.mqtt.BenchmarkRun;
+import org.yamcs.mqtt.EmbeddedMqttBroker;
+import org.yamcs.mrt.AstraLoadGenerator.Profile;
+import org.yamcs.mrt.astra.AstraSubLink;
+import org.yamcs.mrt.utils.AckBus;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * End-to-end throughput of {@link AstraAggregateDataLink}: discovery of the emulated radios from
+ * their metadata, then their FC frames routed to the radio sublinks until they reach the TM sink,
+ * with the FC acks found in the frames delivered to the {@link AckBus}.
+ *
+ * <p>The sublinks are started directly instead of through the link manager of a Yamcs instance.
+ *
+ * <p>Parameters (system properties): <code>benchmark.devices</code>, <code>
+ * benchmark.framesPerSecond</code> (per device), <code>benchmark.ackEvery</code>, <code>
+ * benchmark.warmupSecs</code>, <code>benchmark.durationSecs</code>.
+ */
+@Tag(BenchmarkRun.TAG)
+public class AstraAggregateDataLinkBenchmark {
+  static final String INSTANCE = "bench";
+
+  EmbeddedMqttBroker broker;
+  AstraLoadGenerator generator;
+  BenchmarkAggregateLink link;
+
+  /** Starts the sublinks itself and sends their packets to the benchmark. */
+  static class BenchmarkAggregateLink extends AstraAggregateDataLink {
+    BenchmarkRun run;
+    AstraLoadGenerator generator;
+
+    @Override
+    void configureSubLink(AstraSubLink subLink) {
+      subLink.setTmSink(
+          tmPacket -> {
+            byte[] frame = tmPacket.getPacket();
+            int device = AstraLoadGenerator.getDeviceIndex(frame);
+            run.record(generator.getSentNanos(device, AstraLoadGenerator.getSequence(frame)));
+          });
+      subLink.startAsync().awaitRunning();
+    }
+
+    @Override
+    void enableSubLink(AstraSubLink subLink) {
+      subLink.enable();
+    }
+
+    @Override
+    void disableSubLink(AstraSubLink subLink) {
+      subLink.disable();
+    }
+  }
+
+  @BeforeEach
+  public void startBroker() throws InterruptedException {
+    TimeEncoding.setUp();
+    EventProducerFactory.setMockup(false);
+    broker = new EmbeddedMqttBroker().start();
+  }
+
+  @AfterEach
+  public void stop() throws InterruptedException {
+    if (generator != null) {
+      generator.close();
+    }
+    if (link != null) {
+      link.stopAsync().awaitTerminated();
+    }
+    broker.close();
+  }
+
+  @Test
+  public void benchmarkTelemetry() throws Exception {
+    int devices = BenchmarkRun.intParam("devices", 8);
+    double framesPerSecond = BenchmarkRun.doubleParam("framesPerSecond", 500);
+    int ackEvery = BenchmarkRun.intParam("ackEvery", 10);
+    var run =
+        new BenchmarkRun("AstraAggregateDataLink")
+            .param("devices", devices)
+            .param("framesPerSecond", framesPerSecond)
+            .param("ackEvery", ackEvery);
+
+    Map<String, Object> args = new HashMap<>();
+    args.put("name", "bench-astra");
+    args.put("class", AstraAggregateDataLink.class.getName());
+    args.put("brokers", List.of(broker.getUri()));
+    args.put("clientId", "bench-astra");
+    args.put("frequency", "433");
+
+    generator =
+        new AstraLoadGenerator(
+                broker.getUri(),
+                new Profile(
+                    AstraLoadGenerator.deviceNames("radio-", devices),
+                    "433",
+                    framesPerSecond,
+                    1,
+                    ackEvery))
+            .connect();
+    link = new BenchmarkAggregateLink();
+    link.run = run;
+    link.generator = generator;
+    link.init(INSTANCE, "bench-astra", link.getSpec().validate(YConfiguration.wrap(args)));
+
+    AtomicLong fcAcks = new AtomicLong();
+    AckBus.FcAckListener ackListener =
+        (cmdId, frequency, deviceName, arrivalNanos) -> {
+          if (run.isMeasuring()) {
+            fcAcks.incrementAndGet();
+          }
+        };
+    AckBus.getInstance(INSTANCE).addListener(ackListener);
+    try {
+      link.startAsync().awaitRunning();
+
+      long discoveryStart = System.nanoTime();
+      generator.publishMetadata();
+      long deadline = discoveryStart + TimeUnit.SECONDS.toNanos(30);
+      while (link.getSubLinks().size() < devices) {
+        assertTrue(System.nanoTime() < deadline, "Devices not discovered");
+        Thread.sleep(1);
+      }
+      long discoveryMicros = (System.nanoTime() - discoveryStart) / 1000;
+
+      generator.start();
+      Thread.sleep(1000L * BenchmarkRun.intParam("warmupSecs", 3));
+      run.begin();
+      Thread.sleep(1000L * BenchmarkRun.intParam("durationSecs", 10));
+      run.end();
+
+      run.result("discoveryMicros", discoveryMicros)
+          .result("fcAcks", fcAcks.get())
+          .result("framesSent", generator.getFramesSent())
+          .result("messagesDropped", generator.getMessagesDropped())
+          .result("linkExtraInfo", link.getExtraInfo());
+      run.write();
+      assertTrue(run.getMessages() > 0);
+    } finally {
+      AckBus.getInstance(INSTANCE).removeListener(ackListener);
+    }
+  }
+}
@@ -0,0 +1,301 @@
+package org.yamcs.mrt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Emulates radios and flight computers publishing to an MQTT broker, for the end-to-end
+ * benchmarks.
+ *
+ * <p>Each device is an MQTT client publishing, at the rates of the {@link Profile}:
+ *
+ * <ul>
+ *   <li><code>&lt;device&gt;/telemetry</code>: <code>FCFrame</code>s as defined in
+ *       <code>rocket.xml</code> (header, states, prop, flight and sd containers, {@value
+ *       #FRAME_SIZE} bytes), with the FC ack flag set on one frame out of <code>ackEvery</code>;
+ *   <li><code>&lt;device&gt;/metadata</code>: the device metadata JSON.
+ * </ul>
+ *
+ * <p>A device can also answer the commands received on <code>&lt;device&gt;/commands</code> like
+ * a flight computer behind a radio: <code>TX_OK</code> and <code>RX_OK</code> radio acks on the
+ * radio ack topic, then a frame acking the command sequence on its telemetry topic.
+ *
+ * <p>The frames carry the device index in the header padding (bytes 5-6) next to the sequence
+ * count (bytes 0-1), so the receiver can find when a frame was sent with {@link #getSentNanos}.
+ */
+public class AstraLoadGenerator implements AutoCloseable {
+  public static final int FRAME_SIZE = 76;
+  // also the prefix of the names of the generator threads
+  public static final String CLIENT_ID_PREFIX = "loadgen-";
+
+  // header flags: ack in the FC flags byte, included containers in the atomic flags byte
+  private static final int FC_ACK_FLAG = 0x02;
+  private static final int ATOMIC_FLAGS = 0x10 | 0x08 | 0x04 | 0x01;
+  private static final int NUM_SEQUENCES = 1 << 16;
+
+  /**
+   * @param devices names of the emulated devices, also the first levels of their topics
+   * @param frequency frequency reported in the metadata
+   * @param framesPerSecond telemetry rate of each device
+   * @param metadataPerSecond metadata rate of each device
+   * @param ackEvery one telemetry frame out of <code>ackEvery</code> has the FC ack flag set, 0
+   *     for none
+   */
+  public record Profile(
+      List<String> devices,
+      String frequency,
+      double framesPerSecond,
+      double metadataPerSecond,
+      int ackEvery) {}
+
+  private final String brokerUri;
+  private final Profile profile;
+  private final List<Device> devices = new ArrayList<>();
+  private final AtomicLong framesSent = new AtomicLong();
+  private final AtomicLong messagesDropped = new AtomicLong();
+  private final AtomicLong commandsReceived = new AtomicLong();
+  private volatile boolean running;
+  private Thread pacer;
+
+  public AstraLoadGenerator(String brokerUri, Profile profile) {
+    this.brokerUri = brokerUri;
+    this.profile = profile;
+  }
+
+  /** Returns the device names <code>&lt;prefix&gt;0</code> to <code>&lt;prefix&gt;n-1</code>. */
+  public static List<String> deviceNames(String prefix, int n) {
+    List<String> names = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      names.add(prefix + i);
+    }
+    return names;
+  }
+
+  /** Connects the devices; nothing is published before {@link #start()}. */
+  public AstraLoadGenerator connect() throws MqttException {
+    for (int i = 0; i < profile.devices().size(); i++) {
+      Device device = new Device(i, profile.devices().get(i));
+      device.connect();
+      devices.add(device);
+    }
+    return this;
+  }
+
+  /**
+   * Makes the device answer the commands it receives, sending the radio acks to <code>
+   * radioAckTopic</code>.
+   */
+  public void respondToCommands(int deviceIndex, String radioAckTopic) throws MqttException {
+    devices.get(deviceIndex).respondToCommands(radioAckTopic);
+  }
+
+  /** Publishes the metadata of all the devices once. */
+  public void publishMetadata() throws MqttException {
+    for (Device device : devices) {
+      device.publishMetadata();
+    }
+  }
+
+  /** Starts publishing telemetry and metadata at the rates of the profile. */
+  public void start() {
+    running = true;
+    pacer = new Thread(this::pace, CLIENT_ID_PREFIX + "pacer");
+    pacer.start();
+  }
+
+  /** Publishes what is due since the start, so the rates are kept if the thread falls behind. */
+  private void pace() {
+    long start = System.nanoTime();
+    long framesDue = 0;
+    long metadataDue = 0;
+    while (running) {
+      double elapsedSecs = (System.nanoTime() - start) / 1e9;
+      long frames = (long) (elapsedSecs * profile.framesPerSecond());
+      long metadata = (long) (elapsedSecs * profile.metadataPerSecond());
+      for (; framesDue < frames; framesDue++) {
+        for (Device device : devices) {
+          device.publishFrame();
+        }
+      }
+      for (; metadataDue < metadata; metadataDue++) {
+        for (Device device : devices) {
+          device.publishMetadataOrDrop();
+        }
+      }
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+    }
+  }
+
+  /** Returns the {@link System#nanoTime()} when the frame was published. */
+  public long getSentNanos(int deviceIndex, int sequence) {
+    return devices.get(deviceIndex).sentNanos.get(sequence);
+  }
+
+  /** Returns the device index written in the frame. */
+  public static int getDeviceIndex(byte[] frame) {
+    return (frame[5] & 0xFF) | (frame[6] & 0xFF) << 8;
+  }
+
+  /** Returns the sequence count of the frame. */
+  public static int getSequence(byte[] frame) {
+    return (frame[0] & 0xFF) | (frame[1] & 0xFF) << 8;
+  }
+
+  /** Builds an <code>FCFrame</code> with all its containers. */
+  public static byte[] fcFrame(int sequence, int deviceIndex, boolean fcAck, int ackId) {
+    byte[] frame = new byte[FRAME_SIZE];
+    frame[0] = (byte) sequence;
+    frame[1] = (byte) (sequence >> 8);
+    frame[2] = (byte) (fcAck ? FC_ACK_FLAG : 0);
+    frame[3] = (byte) ackId;
+    frame[4] = (byte) ATOMIC_FLAGS;
+    frame[5] = (byte) deviceIndex;
+    frame[6] = (byte) (deviceIndex >> 8);
+    // states, prop, flight and sd containers
+    for (int i = 8; i < FRAME_SIZE; i++) {
+      frame[i] = (byte) (sequence + i);
+    }
+    return frame;
+  }
+
+  public long getFramesSent() {
+    return framesSent.get();
+  }
+
+  /** Returns the number of messages the clients refused, e.g. because too many were in flight. */
+  public long getMessagesDropped() {
+    return messagesDropped.get();
+  }
+
+  public long getCommandsReceived() {
+    return commandsReceived.get();
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    if (pacer != null) {
+      try {
+        pacer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (Device device : devices) {
+      device.close();
+    }
+  }
+
+  private final class Device implements MqttCallback {
+    final int index;
+    final String name;
+    final String telemetryTopic;
+    final String metadataTopic;
+    final MqttAsyncClient client;
+    final AtomicLongArray sentNanos = new AtomicLongArray(NUM_SEQUENCES);
+    final byte[] metadata;
+    volatile String radioAckTopic;
+    // only used by the pacer thread
+    int sequence;
+    int ackId;
+
+    Device(int index, String name) throws MqttException {
+      this.index = index;
+      this.name = name;
+      this.telemetryTopic = name + "/telemetry";
+      this.metadataTopic = name + "/metadata";
+      this.client =
+          new MqttAsyncClient(
+              brokerUri, CLIENT_ID_PREFIX + name.replace('/', '-'), new MemoryPersistence());
+      this.metadata =
+          ("{\"frequency\":\""
+                  + profile.frequency()
+                  + "\",\"status\":\"OK\",\"long_status\":\"Emulated device "
+                  + name
+                  + "\"}")
+              .getBytes(StandardCharsets.UTF_8);
+    }
+
+    void connect() throws MqttException {
+      MqttConnectOptions opts = new MqttConnectOptions();
+      opts.setCleanSession(true);
+      opts.setMaxInflight(65535);
+      client.setCallback(this);
+      client.connect(opts).waitForCompletion();
+    }
+
+    void respondToCommands(String radioAckTopic) throws MqttException {
+      this.radioAckTopic = radioAckTopic;
+      client.subscribe(name + "/commands", 1).waitForCompletion();
+    }
+
+    void publishMetadata() throws MqttException {
+      client.publish(metadataTopic, metadata, 0, true);
+    }
+
+    void publishMetadataOrDrop() {
+      try {
+        publishMetadata();
+      } catch (MqttException e) {
+        messagesDropped.incrementAndGet();
+      }
+    }
+
+    void publishFrame() {
+      int seq = sequence++ & (NUM_SEQUENCES - 1);
+      boolean fcAck = profile.ackEvery() > 0 && seq % profile.ackEvery() == 0;
+      byte[] frame = fcFrame(seq, index, fcAck, fcAck ? ackId++ & 0xFF : 0);
+      sentNanos.set(seq, System.nanoTime());
+      try {
+        client.publish(telemetryTopic, frame, 0, false);
+        framesSent.incrementAndGet();
+      } catch (MqttException e) {
+        messagesDropped.incrementAndGet();
+      }
+    }
+
+    /** Answers a "&lt;sequence&gt;,&lt;code&gt;" command, on the Paho callback thread. */
+    @Override
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+      commandsReceived.incrementAndGet();
+      String command = new String(message.getPayload(), StandardCharsets.US_ASCII);
+      int comma = command.indexOf(',');
+      if (comma < 0 || radioAckTopic == null) {
+        return;
+      }
+      int commandSequence = Integer.parseInt(command, 0, comma, 10);
+      for (String status : new String[] {"TX_OK", "RX_OK"}) {
+        String ack = "{\"cmd_id\":" + commandSequence + ",\"status\":\"" + status + "\"}";
+        client.publish(radioAckTopic, ack.getBytes(StandardCharsets.US_ASCII), 1, false);
+      }
+      client.publish(telemetryTopic, fcFrame(0, index, true, commandSequence), 1, false);
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {}
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {}
+
+    void close() {
+      try {
+        client.disconnect().waitForCompletion();
+        client.close();
+      } catch (MqttException e) {
+        // the broker may already be closed
+      }
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package org.yamcs.mrt.astra;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.yamcs.YConfiguration;
+import org.yamcs.mdb.Mdb;
+import org.yamcs.mdb.MdbFactory;
+import org.yamcs.mdb.XtceTmExtractor;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.xtce.SequenceContainer;
+
+/** Checks the FC RSSI read by {@link RadiosLink} against the XTCE extraction of rocket.xml. */
+public class RadiosLinkTest {
+  static XtceTmExtractor extractor;
+  static SequenceContainer fcFrame;
+
+  @BeforeAll
+  public static void loadMdb() {
+    TimeEncoding.setUp();
+    var loaderConfig =
+        YConfiguration.wrap(
+            Map.of("type", "xtce", "args", Map.of("file", "src/main/yamcs/mdb/rocket.xml")));
+    Mdb mdb = MdbFactory.createInstance(List.of(loaderConfig), false, false);
+    fcFrame = mdb.getSequenceContainer("/FlightComputer/FCFrame");
+    extractor = new XtceTmExtractor(mdb);
+    extractor.provideAll();
+  }
+
+  static double extractFcRssi(byte[] frame) {
+    long time = TimeEncoding.getWallclockTime();
+    var result = extractor.processPacket(frame, time, time, 0, fcFrame);
+    for (var pv : result.getParameterResult()) {
+      if (pv.getParameter().getName().equals("fc_rssi")) {
+        return pv.getEngValue().getFloatValue();
+      }
+    }
+    return Double.NaN;
+  }
+
+  @Test
+  public void testAllAtomicContainerCombinations() {
+    var random = new Random(42);
+    // states, prop, flight, radio and sd
+    for (int flags = 0; flags < 32; flags++) {
+      byte[] frame = new byte[128];
+      random.nextBytes(frame);
+      frame[4] = (byte) flags;
+
+      double expected = extractFcRssi(frame);
+      assertEquals(expected, RadiosLink.fcRssi(frame), "atomic flags " + flags);
+      assertEquals((flags & RadiosLink.FLIGHT_ATOMIC_FLAG) != 0, !Double.isNaN(expected));
+    }
+  }
+
+  @Test
+  public void testCalibration() {
+    byte[] frame = new byte[80];
+    frame[4] = (byte) (RadiosLink.STATES_ATOMIC_FLAG | RadiosLink.FLIGHT_ATOMIC_FLAG);
+    frame[8 + 4 + 51] = (byte) 143;
+    assertEquals(-71.5, RadiosLink.fcRssi(frame));
+    assertEquals(-71.5, extractFcRssi(frame));
+  }
+
+  @Test
+  public void testShortFrames() {
+    assertTrue(Double.isNaN(RadiosLink.fcRssi(new byte[4])));
+    byte[] frame = new byte[40];
+    frame[4] = (byte) RadiosLink.FLIGHT_ATOMIC_FLAG;
+    assertTrue(Double.isNaN(RadiosLink.fcRssi(frame)));
+  }
+}
@@ -0,0 +1,85 @@
+package org.yamcs.mrt.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class AckParserTest {
+
+  static AckParser.Ack parse(String json) throws IOException {
+    return AckParser.parse(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testAck() throws IOException {
+    assertEquals(new AckParser.Ack(42, "TX_OK"), parse("{\"cmd_id\":42,\"status\":\"TX_OK\"}"));
+    assertEquals(new AckParser.Ack(0, "RX_NOK"), parse("{\"cmd_id\":0,\"status\":\"RX_NOK\"}"));
+  }
+
+  @Test
+  public void testFieldOrderAndWhitespace() throws IOException {
+    assertEquals(
+        new AckParser.Ack(255, "RX_OK"),
+        parse(" {\n  \"status\" : \"RX_OK\",\n  \"cmd_id\" : 255\n}\n"));
+  }
+
+  @Test
+  public void testUnknownFieldsAreSkipped() throws IOException {
+    assertEquals(
+        new AckParser.Ack(7, "TX_OK"),
+        parse(
+            "{\"radio\":\"radio-pad-a\",\"cmd_id\":7,\"rssi\":-71.5,"
+                + "\"extra\":{\"cmd_id\":99,\"status\":\"x\"},\"list\":[1,\"status\"],"
+                + "\"status\":\"TX_OK\",\"flag\":true}"));
+  }
+
+  @Test
+  public void testNumberForms() throws IOException {
+    // as accepted by Gson for an int field
+    assertEquals(12, parse("{\"cmd_id\":12.0,\"status\":\"OK\"}").cmdId());
+    assertEquals(12, parse("{\"cmd_id\":\"12\",\"status\":\"OK\"}").cmdId());
+    assertEquals(12, parse("{\"cmd_id\":1.2e1,\"status\":\"OK\"}").cmdId());
+  }
+
+  @Test
+  public void testNonAsciiStatus() throws IOException {
+    assertEquals("RX_OK é", parse("{\"cmd_id\":1,\"status\":\"RX_OK é\"}").status());
+    assertEquals("RX_OK é", parse("{\"cmd_id\":1,\"status\":\"RX_OK \\u00e9\"}").status());
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "{\"status\":\"TX_OK\"}",
+        "{\"cmd_id\":null,\"status\":\"TX_OK\"}",
+        "{\"cmd_id\":-3,\"status\":\"TX_OK\"}",
+        "{\"cmd_id\":3}",
+        "{\"cmd_id\":3,\"status\":null}",
+        "{}"
+      })
+  public void testMissingFields(String json) {
+    assertThrows(IllegalArgumentException.class, () -> parse(json));
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "",
+        "TX_OK",
+        "\"TX_OK\"",
+        "[42,\"TX_OK\"]",
+        "{\"cmd_id\":42,\"status\":\"TX_OK\"",
+        "{\"cmd_id\":4.5,\"status\":\"TX_OK\"}",
+        "{\"cmd_id\":\"x\",\"status\":\"TX_OK\"}",
+        "{\"cmd_id\":10000000000,\"status\":\"TX_OK\"}",
+        "{\"cmd_id\":42,\"status\":{\"code\":\"TX_OK\"}}"
+      })
+  public void testInvalidPayloads(String json) {
+    assertThrows(IOException.class, () -> parse(json));
+  }
+}
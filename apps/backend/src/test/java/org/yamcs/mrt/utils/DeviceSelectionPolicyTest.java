@@ -0,0 +1,135 @@
+package org.yamcs.mrt.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class DeviceSelectionPolicyTest {
+    static final List<String> DEVICES = List.of("radio-a", "radio-b", "radio-c");
+
+    Map<String, DeviceStats> stats = new HashMap<>();
+
+    void recordAckLatency(String device, double millis, long nanoTime) {
+        stats.computeIfAbsent(device, d -> new DeviceStats()).recordAckLatency(millis, nanoTime);
+    }
+
+    void recordRssi(String device, double dBm, long nanoTime) {
+        stats.computeIfAbsent(device, d -> new DeviceStats()).recordRssi(dBm, nanoTime);
+    }
+
+    String select(String current) {
+        return DeviceSelectionPolicy.LOWEST_ACK_LATENCY.select(DEVICES, current, stats);
+    }
+
+    @Test
+    public void testExploresUnmeasuredDevices() {
+        long now = System.nanoTime();
+        assertEquals("radio-a", select(null));
+
+        recordAckLatency("radio-a", 100, now);
+        assertEquals("radio-b", select("radio-a"));
+        // kept until it has been measured
+        assertEquals("radio-b", select("radio-b"));
+
+        recordAckLatency("radio-b", 50, now);
+        assertEquals("radio-c", select("radio-b"));
+
+        recordAckLatency("radio-c", 90, now);
+        assertEquals("radio-b", select("radio-c"));
+    }
+
+    @Test
+    public void testHysteresis() {
+        long now = System.nanoTime();
+        recordAckLatency("radio-a", 100, now);
+        recordAckLatency("radio-b", 85, now);
+        recordAckLatency("radio-c", 95, now);
+        assertEquals("radio-a", select("radio-a"));
+
+        recordAckLatency("radio-b", 0, now);
+        assertEquals("radio-b", select("radio-a"));
+    }
+
+    @Test
+    public void testStaleLatencyIsMeasuredAgain() {
+        long now = System.nanoTime();
+        recordAckLatency("radio-a", 100, now);
+        recordAckLatency("radio-b", 10, now - DeviceStats.MAX_AGE_NANOS - 1);
+        recordAckLatency("radio-c", 200, now);
+        assertEquals(Double.NaN, stats.get("radio-b").getAckLatencyMillis());
+        assertEquals("radio-b", select("radio-a"));
+
+        // the old average is dropped
+        recordAckLatency("radio-b", 300, now);
+        assertEquals(300, stats.get("radio-b").getAckLatencyMillis());
+        assertEquals("radio-a", select("radio-b"));
+    }
+
+    @Test
+    public void testManagerReselectsOnAck() {
+        var manager = new DeviceFrequencyManager(DeviceSelectionPolicy.LOWEST_ACK_LATENCY);
+        manager.addOrUpdateDevice("radio-a", "433");
+        manager.addOrUpdateDevice("radio-b", "433");
+        assertEquals("radio-a", manager.getSelectedDevice("433"));
+
+        manager.recordAckLatency("radio-a", 200_000_000);
+        assertEquals("radio-b", manager.getSelectedDevice("433"));
+
+        manager.recordAckLatency("radio-b", 300_000_000);
+        assertEquals("radio-a", manager.getSelectedDevice("433"));
+    }
+
+    @Test
+    public void testBestRssi() {
+        long now = System.nanoTime();
+        // no measurement yet
+        assertEquals("radio-a", DeviceSelectionPolicy.BEST_RSSI.select(DEVICES, null, stats));
+
+        recordRssi("radio-b", -80, now);
+        assertEquals("radio-b", DeviceSelectionPolicy.BEST_RSSI.select(DEVICES, "radio-a", stats));
+
+        // less than 3 dB better
+        recordRssi("radio-c", -78, now);
+        assertEquals("radio-b", DeviceSelectionPolicy.BEST_RSSI.select(DEVICES, "radio-b", stats));
+
+        recordRssi("radio-c", -70, now);
+        assertEquals("radio-c", DeviceSelectionPolicy.BEST_RSSI.select(DEVICES, "radio-b", stats));
+    }
+
+    @Test
+    public void testBestRssiIgnoresStaleValues() {
+        long now = System.nanoTime();
+        recordRssi("radio-a", -90, now);
+        recordRssi("radio-b", -50, now - DeviceStats.MAX_AGE_NANOS - 1);
+        assertEquals(Double.NaN, stats.get("radio-b").getRssi());
+        assertEquals("radio-a", DeviceSelectionPolicy.BEST_RSSI.select(DEVICES, "radio-a", stats));
+    }
+
+    @Test
+    public void testManagerReselectsOnRssi() {
+        var manager = new DeviceFrequencyManager(DeviceSelectionPolicy.BEST_RSSI);
+        manager.addOrUpdateDevice("radio-a", "433");
+        manager.addOrUpdateDevice("radio-b", "433");
+        manager.recordRssi("radio-a", -90);
+        assertEquals("radio-a", manager.getSelectedDevice("433"));
+
+        manager.recordRssi("radio-b", -60);
+        assertEquals("radio-b", manager.getSelectedDevice("433"));
+        manager.recordRssi("radio-a", -58);
+        assertEquals("radio-b", manager.getSelectedDevice("433"));
+    }
+
+    @Test
+    public void testForName() {
+        assertEquals(DeviceSelectionPolicy.FIRST, DeviceSelectionPolicy.forName("FIRST"));
+        assertEquals(DeviceSelectionPolicy.BEST_RSSI, DeviceSelectionPolicy.forName("BEST_RSSI"));
+        assertEquals(DeviceSelectionPolicy.LOWEST_ACK_LATENCY, DeviceSelectionPolicy.forName("LOWEST_ACK_LATENCY"));
+        assertEquals(DeviceSelectionPolicy.ROUND_ROBIN, DeviceSelectionPolicy.forName("ROUND_ROBIN"));
+        assertThrows(IllegalArgumentException.class, () -> DeviceSelectionPolicy.forName("RANDOM"));
+    }
+}
@@ -0,0 +1,107 @@
+package org.yamcs.mrt.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testSmallValuesHaveTheirOwnBucket() {
+    for (int micros = 0; micros < 4; micros++) {
+      assertEquals(micros, LatencyHistogram.bucketIndex(micros));
+      assertEquals(micros + 1, LatencyHistogram.bucketLimit(micros));
+    }
+  }
+
+  @Test
+  public void testFourBucketsPerPowerOfTwo() {
+    // [4, 5), [5, 6), [6, 7), [7, 8), then [8, 10), [10, 12), ...
+    assertEquals(4, LatencyHistogram.bucketIndex(4));
+    assertEquals(7, LatencyHistogram.bucketIndex(7));
+    assertEquals(8, LatencyHistogram.bucketIndex(8));
+    assertEquals(8, LatencyHistogram.bucketIndex(9));
+    assertEquals(9, LatencyHistogram.bucketIndex(10));
+    assertEquals(11, LatencyHistogram.bucketIndex(15));
+    assertEquals(12, LatencyHistogram.bucketIndex(16));
+    assertEquals(10, LatencyHistogram.bucketLimit(8));
+    assertEquals(16, LatencyHistogram.bucketLimit(11));
+  }
+
+  @Test
+  public void testBucketLimitsAreContiguous() {
+    long lower = 0;
+    for (int i = 0; i < 200; i++) {
+      long limit = LatencyHistogram.bucketLimit(i);
+      assertTrue(limit > lower, "bucket " + i);
+      assertEquals(i, LatencyHistogram.bucketIndex(lower), "lower bound of bucket " + i);
+      assertEquals(i, LatencyHistogram.bucketIndex(limit - 1), "upper bound of bucket " + i);
+      assertEquals(i + 1, LatencyHistogram.bucketIndex(limit), "limit of bucket " + i);
+      // at most 25% wider than the lower bound, except for the first exact buckets
+      if (lower >= 4) {
+        assertTrue(limit - lower <= lower / 4, "width of bucket " + i);
+      }
+      lower = limit;
+    }
+  }
+
+  @Test
+  public void testLargestValuesGoToTheLastBucket() {
+    int last = LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+    assertTrue(last < 64 * 4);
+    assertEquals(last, LatencyHistogram.bucketIndex(Long.MAX_VALUE - 1));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.getPercentileMicros(0.5));
+
+    for (int micros = 1; micros <= 1000; micros++) {
+      h.recordMicros(micros);
+    }
+    assertEquals(1000, h.getCount());
+    assertEquals(1000, h.getMaxMicros());
+    assertEquals(500.5, h.getMeanMicros(), 1e-9);
+
+    long p50 = h.getPercentileMicros(0.5);
+    assertTrue(p50 >= 500 && p50 <= 500 * 1.25, "p50 " + p50);
+    long p99 = h.getPercentileMicros(0.99);
+    assertTrue(p99 >= 990 && p99 <= 1000, "p99 " + p99);
+    // never above the largest value
+    assertEquals(1000, h.getPercentileMicros(1));
+  }
+
+  @Test
+  public void testRecording() {
+    LatencyHistogram h = new LatencyHistogram();
+    h.recordMicros(-5);
+    assertEquals(0, h.getMaxMicros());
+    h.recordNanos(2_500_000);
+    assertEquals(2500, h.getMaxMicros());
+    assertEquals(2, h.getCount());
+    assertEquals(2.5, LatencyHistogram.toMillis(2500));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException {
+    LatencyHistogram h = new LatencyHistogram();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 10_000; i++) {
+                  h.recordMicros(i);
+                }
+              });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(40_000, h.getCount());
+    assertEquals(9999, h.getMaxMicros());
+  }
+}
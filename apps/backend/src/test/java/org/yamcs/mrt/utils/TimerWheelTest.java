@@ -0,0 +1,131 @@
+package org.yamcs.mrt.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+  static final int WHEEL_SIZE = 4;
+
+  // the ticks are driven by the tests, the timer thread is never started
+  TimerWheel wheel = new TimerWheel("test", 1000, WHEEL_SIZE);
+  List<Long> fired = new ArrayList<>();
+  long currentTick;
+
+  TimerWheel.Timeout addAtTick(long tick) {
+    return wheel.add(wheel.startNanos + tick * wheel.tickNanos, () -> fired.add(currentTick));
+  }
+
+  void advanceTo(long tick) {
+    while (currentTick < tick) {
+      currentTick++;
+      wheel.advance(currentTick);
+    }
+  }
+
+  @Test
+  public void testFiresAtDeadlineTick() {
+    addAtTick(3);
+    advanceTo(2);
+    assertTrue(fired.isEmpty());
+    advanceTo(10);
+    assertEquals(List.of(3L), fired);
+  }
+
+  @Test
+  public void testDeadlinesBeyondOneTurnWaitForRounds() {
+    // several turns of the 4 buckets wheel, some in the bucket of the current tick
+    addAtTick(5);
+    addAtTick(9);
+    addAtTick(14);
+    advanceTo(1);
+    assertTrue(fired.isEmpty());
+    advanceTo(20);
+    assertEquals(List.of(5L, 9L, 14L), fired);
+  }
+
+  @Test
+  public void testRoundsCountedFromTheTransferTick() {
+    advanceTo(6);
+    // transferred at tick 7, into the bucket of tick 7 after two more turns
+    addAtTick(15);
+    advanceTo(14);
+    assertTrue(fired.isEmpty());
+    advanceTo(15);
+    assertEquals(List.of(15L), fired);
+  }
+
+  @Test
+  public void testLateScheduleFiresAtNextTick() {
+    advanceTo(10);
+    // deadline already passed when the timeout reaches the wheel
+    var timeout = addAtTick(2);
+    var pastStart = wheel.add(wheel.startNanos - wheel.tickNanos, () -> fired.add(-currentTick));
+    assertFalse(timeout.isExpired());
+    advanceTo(11);
+    assertEquals(List.of(11L, -11L), fired);
+    assertTrue(timeout.isExpired());
+    assertTrue(pastStart.isExpired());
+  }
+
+  @Test
+  public void testCancel() {
+    var cancelled = addAtTick(3);
+    var cancelledInWheel = addAtTick(6);
+    var expired = addAtTick(4);
+    assertTrue(cancelled.cancel());
+    advanceTo(2);
+    assertTrue(cancelledInWheel.cancel());
+    assertFalse(cancelledInWheel.cancel());
+    advanceTo(10);
+
+    assertEquals(List.of(4L), fired);
+    assertFalse(cancelled.isExpired());
+    assertFalse(cancelledInWheel.isExpired());
+    assertTrue(expired.isExpired());
+    assertFalse(expired.cancel());
+  }
+
+  @Test
+  public void testFailingTaskDoesNotStopTheBucket() {
+    wheel.add(
+        wheel.startNanos + 2 * wheel.tickNanos,
+        () -> {
+          throw new IllegalStateException("test");
+        });
+    addAtTick(2);
+    advanceTo(2);
+    assertEquals(List.of(2L), fired);
+  }
+
+  @Test
+  public void testWheelSizeRoundedToPowerOfTwo() {
+    var wheel = new TimerWheel("test", 1000, 3);
+    // the bucket of tick 4 is not the bucket of tick 1 with 4 buckets
+    wheel.add(wheel.startNanos + 4 * wheel.tickNanos, () -> fired.add(4L));
+    wheel.advance(1);
+    wheel.advance(2);
+    wheel.advance(3);
+    assertTrue(fired.isEmpty());
+    wheel.advance(4);
+    assertEquals(List.of(4L), fired);
+
+    assertThrows(IllegalArgumentException.class, () -> new TimerWheel("test", 0, 4));
+    assertThrows(IllegalArgumentException.class, () -> new TimerWheel("test", 10, 0));
+  }
+
+  @Test
+  public void testScheduleOnTimerThread() throws InterruptedException {
+    var wheel = new TimerWheel("TimerWheelTest", 5, 8);
+    var latch = new CountDownLatch(1);
+    wheel.schedule(20, TimeUnit.MILLISECONDS, latch::countDown);
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+}
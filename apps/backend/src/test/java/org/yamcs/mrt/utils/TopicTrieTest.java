@@ -0,0 +1,159 @@
+package org.yamcs.mrt.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class TopicTrieTest {
+
+  private static List<String> matches(TopicTrie<String> trie, String topic) {
+    List<String> result = new ArrayList<>();
+    int count = trie.forEachMatch(topic, result, (v, t, list) -> list.add(v));
+    assertEquals(result.size(), count);
+    result.sort(null);
+    return result;
+  }
+
+  @Test
+  public void testExactMatch() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("radio1/telemetry", "a");
+
+    assertEquals(List.of("a"), matches(trie, "radio1/telemetry"));
+    assertEquals(List.of(), matches(trie, "radio1"));
+    assertEquals(List.of(), matches(trie, "radio1/telemetry/x"));
+    assertEquals(List.of(), matches(trie, "radio2/telemetry"));
+  }
+
+  @Test
+  public void testPlusMatchesOneLevel() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("+/metadata", "meta");
+    trie.add("radio1/+", "radio1");
+
+    assertEquals(List.of("meta", "radio1"), matches(trie, "radio1/metadata"));
+    assertEquals(List.of("meta"), matches(trie, "radio2/metadata"));
+    assertEquals(List.of("radio1"), matches(trie, "radio1/telemetry"));
+    assertEquals(List.of(), matches(trie, "radio1/metadata/x"));
+    // + matches an empty level
+    assertEquals(List.of("meta"), matches(trie, "/metadata"));
+  }
+
+  @Test
+  public void testHashMatchesParentLevel() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("a/#", "hash");
+
+    assertEquals(List.of("hash"), matches(trie, "a"));
+    assertEquals(List.of("hash"), matches(trie, "a/b"));
+    assertEquals(List.of("hash"), matches(trie, "a/b/c"));
+    assertEquals(List.of(), matches(trie, "b"));
+    assertEquals(List.of(), matches(trie, "ab"));
+  }
+
+  @Test
+  public void testDollarTopicsAtFirstLevel() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("#", "all");
+    trie.add("+/info", "plus");
+    trie.add("$SYS/info", "sys");
+    trie.add("$SYS/#", "sysall");
+
+    assertEquals(List.of("sys", "sysall"), matches(trie, "$SYS/info"));
+    assertEquals(List.of("all", "plus"), matches(trie, "broker/info"));
+    // the $ rule only applies to the first level
+    trie.add("a/+", "a");
+    assertEquals(List.of("a", "all"), matches(trie, "a/$x"));
+  }
+
+  @Test
+  public void testSameValueSeveralTimes() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("a/b", "x");
+    trie.add("a/b", "x");
+    trie.add("a/+", "x");
+    assertEquals(3, trie.size());
+    assertEquals(List.of("x", "x", "x"), matches(trie, "a/b"));
+
+    assertTrue(trie.remove("a/b", "x"));
+    assertEquals(List.of("x", "x"), matches(trie, "a/b"));
+    assertEquals(2, trie.size());
+  }
+
+  @Test
+  public void testRemove() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("a/b/c", "abc");
+    trie.add("a/#", "hash");
+    trie.add("a/+/c", "plus");
+
+    assertFalse(trie.remove("a/b/c", "other"));
+    assertFalse(trie.remove("a/b", "abc"));
+    assertFalse(trie.remove("x/#", "hash"));
+
+    assertTrue(trie.remove("a/b/c", "abc"));
+    assertEquals(List.of("hash", "plus"), matches(trie, "a/b/c"));
+    assertTrue(trie.remove("a/#", "hash"));
+    assertEquals(List.of("plus"), matches(trie, "a/b/c"));
+    assertTrue(trie.remove("a/+/c", "plus"));
+    assertEquals(List.of(), matches(trie, "a/b/c"));
+    assertFalse(trie.hasMatch("a/b/c"));
+    assertEquals(0, trie.size());
+
+    // the emptied nodes can be reused
+    trie.add("a/b/c", "again");
+    assertEquals(List.of("again"), matches(trie, "a/b/c"));
+  }
+
+  @Test
+  public void testManyChildren() {
+    // grows the open addressing table of the root several times, then removes every other child so the remaining
+    // ones have to be found after the table is rebuilt
+    TopicTrie<String> trie = new TopicTrie<>();
+    int n = 200;
+    for (int i = 0; i < n; i++) {
+      trie.add("radio" + i + "/telemetry", "r" + i);
+    }
+    for (int i = 0; i < n; i += 2) {
+      assertTrue(trie.remove("radio" + i + "/telemetry", "r" + i));
+    }
+    for (int i = 0; i < n; i++) {
+      List<String> expected = i % 2 == 0 ? List.of() : List.of("r" + i);
+      assertEquals(expected, matches(trie, "radio" + i + "/telemetry"));
+    }
+    assertEquals(n / 2, trie.size());
+  }
+
+  @Test
+  public void testLevelsAreNotPrefixes() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("abc", "abc");
+    trie.add("ab", "ab");
+
+    assertEquals(List.of("ab"), matches(trie, "ab"));
+    assertEquals(List.of("abc"), matches(trie, "abc"));
+    assertEquals(List.of(), matches(trie, "a"));
+    assertEquals(List.of(), matches(trie, "abcd"));
+  }
+
+  @Test
+  public void testInvalidFilters() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    assertThrows(IllegalArgumentException.class, () -> trie.add("", "x"));
+    assertThrows(IllegalArgumentException.class, () -> trie.add("a/#/b", "x"));
+    assertThrows(IllegalArgumentException.class, () -> trie.add("a#", "x"));
+    assertThrows(IllegalArgumentException.class, () -> trie.add("a/b+", "x"));
+    assertThrows(IllegalArgumentException.class, () -> trie.add("+a/b", "x"));
+    assertEquals(0, trie.size());
+
+    trie.add("#", "x");
+    trie.add("+", "x");
+    trie.add("+/+/#", "x");
+    assertEquals(3, trie.size());
+  }
+}